@@ -5,7 +5,7 @@ import java.util.regex.Pattern;
 
 public class CSV
 {
-    private static final java.lang.String CSV_PATTERN = "\"([0-9]+)\",\"([0-9]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([0-9.-]+)\",\"([0-9.-]+)\"";
+    private static final Pattern CSV_PATTERN = Pattern.compile("\"([0-9]+)\",\"([0-9]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([^\"]+)\",\"([0-9.-]+)\",\"([0-9.-]+)\"");
 
     public final long ipStart;
     public final long ipEnd;
@@ -30,8 +30,7 @@ public class CSV
 
     public static CSV parse(String csv)
     {
-        Pattern r = Pattern.compile(CSV_PATTERN);
-        Matcher m = r.matcher(csv);
+        Matcher m = CSV_PATTERN.matcher(csv);
 
         if (m.find()) {
             return new CSV(
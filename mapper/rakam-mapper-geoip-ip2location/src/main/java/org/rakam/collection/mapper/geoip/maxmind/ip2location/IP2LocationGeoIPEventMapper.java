@@ -19,7 +19,6 @@ import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.util.MapProxyGenericRecord;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -51,8 +50,7 @@ public class IP2LocationGeoIPEventMapper
     private IPReader getReader(String url)
     {
         try {
-            FileInputStream cityDatabase = new FileInputStream(downloadOrGetFile(url));
-            return IPReader.build(cityDatabase);
+            return IPReader.build(downloadOrGetFile(url));
         }
         catch (Exception e) {
             throw Throwables.propagate(e);
@@ -158,11 +156,15 @@ public class IP2LocationGeoIPEventMapper
 
     private void setGeoFields(InetAddress address, GenericRecord properties)
     {
-        GeoLocation city = lookup.lookup(address);
-        properties.put("_country_code", city.country);
-        properties.put("_region", city.stateProv);
-        properties.put("_city", city.city);
-        properties.put("_latitude", city.coordination.latitude);
-        properties.put("_longitude", city.coordination.longitude);
+        int location = lookup.lookupLocation(address);
+        if (location == -1) {
+            return;
+        }
+
+        properties.put("_country_code", lookup.getCountry(location));
+        properties.put("_region", lookup.getRegion(location));
+        properties.put("_city", lookup.getCity(location));
+        properties.put("_latitude", lookup.getLatitude(location));
+        properties.put("_longitude", lookup.getLongitude(location));
     }
 }
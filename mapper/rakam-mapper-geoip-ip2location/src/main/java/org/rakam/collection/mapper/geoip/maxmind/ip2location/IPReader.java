@@ -1,45 +1,328 @@
 package org.rakam.collection.mapper.geoip.maxmind.ip2location;
 
+import io.airlift.log.Logger;
 import org.rakam.collection.mapper.geoip.maxmind.ip2location.utils.IP4Converter;
 
-import java.io.*;
-import java.math.BigInteger;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * IP range lookup table that is built once from the IP2Location CSV database and stored in a binary file
+ * that is memory-mapped on the next startups.
+ *
+ * The file consists of a header and the following sections:
+ * range start and end addresses (long), location latitude and longitude (double),
+ * the location id of each range (int), the dictionary id of country, region and city of each location (int)
+ * and the dictionary strings (length prefixed UTF-8).
+ *
+ * The lookups are binary searches on the mapped primitive arrays so they don't allocate.
+ */
 public class IPReader
 {
-    private final NavigableMap<Long, CSV> ipLookup;
+    private final static Logger LOGGER = Logger.get(IPReader.class);
+
+    private static final int MAGIC = 0x52324C49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    public static final String INDEX_EXTENSION = ".idx";
+
+    private final int rangeCount;
+    private final LongBuffer starts;
+    private final LongBuffer ends;
+    private final IntBuffer rangeLocations;
+    private final DoubleBuffer latitudes;
+    private final DoubleBuffer longitudes;
+    private final IntBuffer countries;
+    private final IntBuffer regions;
+    private final IntBuffer cities;
+    private final String[] dictionary;
+
+    private IPReader(ByteBuffer buffer)
+    {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Invalid IP2Location index file");
+        }
+
+        rangeCount = buffer.getInt(8);
+        int locationCount = buffer.getInt(12);
+        int stringCount = buffer.getInt(16);
+
+        int position = HEADER_SIZE;
+        starts = slice(buffer, position, rangeCount * 8).asLongBuffer();
+        position += rangeCount * 8;
+        ends = slice(buffer, position, rangeCount * 8).asLongBuffer();
+        position += rangeCount * 8;
+        latitudes = slice(buffer, position, locationCount * 8).asDoubleBuffer();
+        position += locationCount * 8;
+        longitudes = slice(buffer, position, locationCount * 8).asDoubleBuffer();
+        position += locationCount * 8;
+        rangeLocations = slice(buffer, position, rangeCount * 4).asIntBuffer();
+        position += rangeCount * 4;
+        countries = slice(buffer, position, locationCount * 4).asIntBuffer();
+        position += locationCount * 4;
+        regions = slice(buffer, position, locationCount * 4).asIntBuffer();
+        position += locationCount * 4;
+        cities = slice(buffer, position, locationCount * 4).asIntBuffer();
+        position += locationCount * 4;
+
+        // the dictionary is small compared to the ranges, the strings are decoded once
+        // so that the lookups return the same instances.
+        dictionary = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int length = buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(position + 4);
+            duplicate.get(bytes);
+            dictionary[i] = new String(bytes, UTF_8).intern();
+            position += 4 + length;
+        }
+    }
 
-    private IPReader(NavigableMap<Long, CSV> ipLookup)
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length)
+    {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice();
+    }
+
+    /**
+     * Builds the index file next to the CSV database if it doesn't exist or it's older than the database and maps it.
+     */
+    public static IPReader build(File database)
+            throws IOException
     {
-        this.ipLookup = ipLookup;
+        File index = new File(database.getAbsolutePath() + INDEX_EXTENSION);
+        if (!index.exists() || index.lastModified() < database.lastModified()) {
+            long start = System.currentTimeMillis();
+            File temp = new File(index.getAbsolutePath() + ".tmp");
+            try (InputStream inputStream = new FileInputStream(database)) {
+                writeIndex(inputStream, temp);
+            }
+            Files.move(temp.toPath(), index.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            LOGGER.info("Built IP2Location index %s in %d ms", index.getName(), System.currentTimeMillis() - start);
+        }
+
+        return map(index);
     }
 
     public static IPReader build(String dbPath)
             throws IOException
     {
-        File ipdb = new File(dbPath);
-        InputStream inputStream = new FileInputStream(ipdb);
-        return build(inputStream);
+        return build(new File(dbPath));
     }
 
     public static IPReader build(InputStream inputStream)
             throws IOException
     {
-        NavigableMap<Long, CSV> lookup = new ConcurrentSkipListMap<>();
+        File temp = File.createTempFile("ip2location", INDEX_EXTENSION);
+        temp.deleteOnExit();
+        writeIndex(inputStream, temp);
+        return map(temp);
+    }
+
+    public static IPReader map(File index)
+            throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return new IPReader(buffer);
+        }
+    }
+
+    public static void writeIndex(InputStream inputStream, File output)
+            throws IOException
+    {
+        LongArray starts = new LongArray();
+        LongArray ends = new LongArray();
+        IntArray rangeLocations = new IntArray();
+
+        Map<String, Integer> locationIds = new HashMap<>();
+        List<CSV> locations = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+
+        boolean sorted = true;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                CSV csv = CSV.parse(line);
+
+                String locationKey = csv.country + '\0' + csv.stateProv + '\0' + csv.city + '\0' + csv.latitude + '\0' + csv.longitude;
+                Integer location = locationIds.get(locationKey);
+                if (location == null) {
+                    location = locations.size();
+                    locationIds.put(locationKey, location);
+                    locations.add(csv);
+                    for (String value : new String[] {csv.country, csv.stateProv, csv.city}) {
+                        if (!stringIds.containsKey(value)) {
+                            stringIds.put(value, strings.size());
+                            strings.add(value);
+                        }
+                    }
+                }
+
+                if (starts.size > 0 && starts.get(starts.size - 1) > csv.ipStart) {
+                    sorted = false;
+                }
+                starts.add(csv.ipStart);
+                ends.add(csv.ipEnd);
+                rangeLocations.add(location);
+            }
+        }
+
+        int[] order = null;
+        if (!sorted) {
+            order = sortedOrder(starts);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(starts.size);
+            out.writeInt(locations.size());
+            out.writeInt(strings.size());
+            out.writeInt(0);
+
+            for (int i = 0; i < starts.size; i++) {
+                out.writeLong(starts.get(order == null ? i : order[i]));
+            }
+            for (int i = 0; i < ends.size; i++) {
+                out.writeLong(ends.get(order == null ? i : order[i]));
+            }
+            for (CSV location : locations) {
+                out.writeDouble(location.latitude);
+            }
+            for (CSV location : locations) {
+                out.writeDouble(location.longitude);
+            }
+            for (int i = 0; i < rangeLocations.size; i++) {
+                out.writeInt(rangeLocations.get(order == null ? i : order[i]));
+            }
+            for (CSV location : locations) {
+                out.writeInt(stringIds.get(location.country));
+            }
+            for (CSV location : locations) {
+                out.writeInt(stringIds.get(location.stateProv));
+            }
+            for (CSV location : locations) {
+                out.writeInt(stringIds.get(location.city));
+            }
+            for (String value : strings) {
+                byte[] bytes = value.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        while (reader.ready()) {
-            CSV csv = CSV.parse(reader.readLine());
-            lookup.put(csv.ipStart, csv);
+    private static int[] sortedOrder(LongArray starts)
+    {
+        Integer[] order = new Integer[starts.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
         }
-        reader.close();
+        Arrays.sort(order, (first, second) -> Long.compare(starts.get(first), starts.get(second)));
 
-        return new IPReader(lookup);
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the location id of the range that contains the address or -1 if there is no such range.
+     */
+    public int lookupLocation(long address)
+    {
+        int low = 0;
+        int high = rangeCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts.get(mid) <= address) {
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+
+        if (high < 0 || ends.get(high) < address) {
+            return -1;
+        }
+
+        return rangeLocations.get(high);
+    }
+
+    public int lookupLocation(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != 4) {
+            // the database only contains IPv4 ranges
+            return -1;
+        }
+        return lookupLocation(IP4Converter.toLong(bytes));
+    }
+
+    public String getCountry(int location)
+    {
+        return dictionary[countries.get(location)];
+    }
+
+    public String getRegion(int location)
+    {
+        return dictionary[regions.get(location)];
+    }
+
+    public String getCity(int location)
+    {
+        return dictionary[cities.get(location)];
+    }
+
+    public double getLatitude(int location)
+    {
+        return latitudes.get(location);
+    }
+
+    public double getLongitude(int location)
+    {
+        return longitudes.get(location);
+    }
+
+    public int getRangeCount()
+    {
+        return rangeCount;
     }
 
     public GeoLocation lookup(String ipAddress)
@@ -51,26 +334,50 @@ public class IPReader
 
     public GeoLocation lookup(InetAddress inetAddress)
     {
-        return lookup(IP4Converter.toLong(inetAddress.getAddress()));
+        int location = lookupLocation(inetAddress);
+        if (location == -1) {
+            return null;
+        }
+
+        return GeoLocation.of(getCountry(location), getRegion(location), getCity(location),
+                Coordination.of(getLatitude(location), getLongitude(location)));
     }
 
-    private GeoLocation lookup(Long address)
+    private static class LongArray
     {
-        Map.Entry<Long, CSV> entry = ipLookup.lowerEntry(address);
-        if (entry == null) {
-            return null;
-        }
+        private long[] values = new long[1024];
+        private int size;
 
-        CSV csv = entry.getValue();
-        if (csv.ipEnd < address) {
-            return null;
+        void add(long value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
         }
 
-        return GeoLocation.of(csv.country, csv.stateProv, csv.city, Coordination.of(csv.latitude, csv.longitude));
+        long get(int index)
+        {
+            return values[index];
+        }
     }
 
-    private Long toLong(byte[] address)
+    private static class IntArray
     {
-        return new BigInteger(address).longValue();
+        private int[] values = new int[1024];
+        private int size;
+
+        void add(int value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index)
+        {
+            return values[index];
+        }
     }
 }
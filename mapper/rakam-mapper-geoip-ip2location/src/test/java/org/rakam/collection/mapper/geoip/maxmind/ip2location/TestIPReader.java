@@ -0,0 +1,71 @@
+package org.rakam.collection.mapper.geoip.maxmind.ip2location;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestIPReader
+{
+    private static final String DATABASE = "" +
+            "\"16777216\",\"16777471\",\"AU\",\"Australia\",\"Queensland\",\"Brisbane\",\"-27.467940\",\"153.028090\"\n" +
+            "\"16777472\",\"16778239\",\"CN\",\"China\",\"Fujian\",\"Fuzhou\",\"26.061390\",\"119.306110\"\n" +
+            "\"16778240\",\"16779263\",\"AU\",\"Australia\",\"Victoria\",\"Melbourne\",\"-37.814000\",\"144.963320\"\n" +
+            "\"16779264\",\"16781311\",\"CN\",\"China\",\"Fujian\",\"Fuzhou\",\"26.061390\",\"119.306110\"\n" +
+            "\"134744064\",\"134744319\",\"US\",\"United States\",\"California\",\"Mountain View\",\"37.405992\",\"-122.078515\"\n";
+
+    @Test
+    public void testLookup()
+            throws Exception
+    {
+        IPReader reader = IPReader.build(new ByteArrayInputStream(DATABASE.getBytes(UTF_8)));
+
+        assertEquals(reader.getRangeCount(), 5);
+
+        GeoLocation location = reader.lookup("8.8.8.8");
+        assertEquals(location.country, "US");
+        assertEquals(location.stateProv, "California");
+        assertEquals(location.city, "Mountain View");
+        assertEquals(location.coordination, Coordination.of(37.405992, -122.078515));
+
+        // range boundaries are inclusive
+        assertEquals(reader.getCity(reader.lookupLocation(16777216L)), "Brisbane");
+        assertEquals(reader.getCity(reader.lookupLocation(16777471L)), "Brisbane");
+        assertEquals(reader.getCity(reader.lookupLocation(16779263L)), "Melbourne");
+
+        // the same locations share the location id
+        assertEquals(reader.lookupLocation(16777472L), reader.lookupLocation(16779264L));
+
+        assertEquals(reader.lookupLocation(0L), -1);
+        assertEquals(reader.lookupLocation(16781312L), -1);
+        assertNull(reader.lookup("9.9.9.9"));
+        assertEquals(reader.lookupLocation(InetAddress.getByName("::1")), -1);
+    }
+
+    @Test
+    public void testIndexFile()
+            throws Exception
+    {
+        File directory = Files.createTempDirectory("ip2location").toFile();
+        File database = new File(directory, "IP2LOCATION-LITE-DB5.CSV");
+        Files.write(database.toPath(), DATABASE.getBytes(UTF_8));
+
+        IPReader reader = IPReader.build(database);
+        File index = new File(database.getAbsolutePath() + IPReader.INDEX_EXTENSION);
+        assertTrue(index.exists());
+        long lastModified = index.lastModified();
+
+        // the index is reused on the next startup
+        IPReader mapped = IPReader.build(database);
+        assertEquals(index.lastModified(), lastModified);
+        assertEquals(mapped.getRangeCount(), reader.getRangeCount());
+        assertEquals(mapped.getCity(mapped.lookupLocation(134744072L)), "Mountain View");
+    }
+}
@@ -4,7 +4,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
 import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
@@ -24,13 +28,14 @@ import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.util.MapProxyGenericRecord;
+import org.rakam.util.metrics.MetricRegistry;
+
+import javax.inject.Inject;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.URL;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -54,6 +59,8 @@ public class MaxmindGeoIPEventMapper
     private final DatabaseReader ispLookup;
     private final DatabaseReader cityLookup;
     private final boolean attachIp;
+    private final String[] cityFields;
+    private final Cache<AddressKey, LookupResult> cache;
 
     public MaxmindGeoIPEventMapper(MaxmindGeoIPModuleConfig config)
             throws IOException
@@ -122,6 +129,21 @@ public class MaxmindGeoIPEventMapper
         this.cityLookup = cityLookup;
         this.ispLookup = ispLookup;
         this.connectionTypeLookup = connectionTypeLookup;
+
+        if (attributes != null) {
+            cityFields = Arrays.stream(attributes)
+                    .map(attr -> CITY_DATABASE_ATTRIBUTES.contains(attr) ? "_" + attr : null)
+                    .toArray(String[]::new);
+        }
+        else {
+            cityFields = new String[0];
+        }
+
+        // the traffic is skewed towards the same ip addresses so we cache the attributes instead of looking up the databases for each event.
+        cache = config.getCacheSize() > 0 ? CacheBuilder.newBuilder()
+                .maximumSize(config.getCacheSize())
+                .recordStats()
+                .build() : null;
     }
 
     private DatabaseReader getReader(URL url)
@@ -142,24 +164,12 @@ public class MaxmindGeoIPEventMapper
 
         InetAddress addr;
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return null;
-            }
+            addr = parseAddress((String) ip);
         }
         else if (Boolean.TRUE == ip) {
             String forwardedFor = extraProperties.headers().get("X-Forwarded-For");
             if (forwardedFor != null && (forwardedFor = findNonPrivateIpAddress(forwardedFor)) != null) {
-                try {
-                    // it may be slow because java performs reverse hostname lookup.
-                    addr = Inet4Address.getByName(forwardedFor);
-                }
-                catch (UnknownHostException e) {
-                    return null;
-                }
+                addr = parseAddress(forwardedFor);
             } else {
                 addr = sourceAddress;
             }
@@ -184,17 +194,7 @@ public class MaxmindGeoIPEventMapper
             event.properties().put("__ip", addr.getHostAddress());
         }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(addr, event.properties());
-        }
-
-        if (ispLookup != null) {
-            setIsp(addr, event.properties());
-        }
-
-        if (cityLookup != null) {
-            setGeoFields(addr, event.properties());
-        }
+        setFields(lookup(addr), event.properties());
 
         return null;
     }
@@ -223,13 +223,7 @@ public class MaxmindGeoIPEventMapper
         }
 
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                sourceAddress = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return;
-            }
+            sourceAddress = parseAddress((String) ip);
         }
 
         if (sourceAddress == null) {
@@ -237,17 +231,80 @@ public class MaxmindGeoIPEventMapper
         }
 
         GenericRecord record = new MapProxyGenericRecord(data);
+        setFields(lookup(sourceAddress), record);
+    }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(sourceAddress, record);
+    /**
+     * Parses IPv4 and IPv6 literals without any DNS lookup, returns null if the value is not an ip address.
+     */
+    static InetAddress parseAddress(String ip)
+    {
+        try {
+            return InetAddresses.forString(ip.trim());
+        }
+        catch (IllegalArgumentException e) {
+            return null;
         }
+    }
 
-        if (ispLookup != null) {
-            setIsp(sourceAddress, record);
+    @Inject
+    public void registerMetrics(MetricRegistry registry)
+    {
+        if (cache != null) {
+            registry.cache("geoip", cache);
+        }
+    }
+
+    public CacheStats getCacheStats()
+    {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    public long getCacheSize()
+    {
+        return cache == null ? 0 : cache.size();
+    }
+
+    private LookupResult lookup(InetAddress address)
+    {
+        if (cache == null) {
+            return lookupInternal(address);
         }
 
-        if (cityLookup != null) {
-            setGeoFields(sourceAddress, record);
+        AddressKey key = new AddressKey(address.getAddress());
+        LookupResult result = cache.getIfPresent(key);
+        if (result == null) {
+            result = lookupInternal(address);
+            cache.put(key, result);
+        }
+
+        return result;
+    }
+
+    private LookupResult lookupInternal(InetAddress address)
+    {
+        return new LookupResult(
+                connectionTypeLookup != null ? getConnectionType(address) : null,
+                ispLookup != null ? getIsp(address) : null,
+                cityLookup != null ? getGeoFields(address) : null);
+    }
+
+    private void setFields(LookupResult result, GenericRecord properties)
+    {
+        if (result.connectionType != null) {
+            properties.put("_connection_type", result.connectionType);
+        }
+
+        if (result.isp != null) {
+            properties.put("_isp", result.isp);
+        }
+
+        if (result.cityValues != null) {
+            for (int i = 0; i < cityFields.length; i++) {
+                if (cityFields[i] != null) {
+                    properties.put(cityFields[i], result.cityValues[i]);
+                }
+            }
         }
     }
 
@@ -288,44 +345,42 @@ public class MaxmindGeoIPEventMapper
         }
     }
 
-    private void setConnectionType(InetAddress address, GenericRecord properties)
+    private String getConnectionType(InetAddress address)
     {
         ConnectionTypeResponse connectionType;
         try {
             connectionType = connectionTypeLookup.connectionType(address);
         }
         catch (AddressNotFoundException e) {
-            return;
+            return null;
         }
         catch (Exception e) {
             LOGGER.error(e, "Error while searching for location information.");
-            return;
+            return null;
         }
 
         ConnectionTypeResponse.ConnectionType connType = connectionType.getConnectionType();
-        if (connType != null) {
-            properties.put("_connection_type", connType.name());
-        }
+        return connType != null ? connType.name() : null;
     }
 
-    private void setIsp(InetAddress address, GenericRecord properties)
+    private String getIsp(InetAddress address)
     {
         IspResponse isp;
         try {
             isp = ispLookup.isp(address);
         }
         catch (AddressNotFoundException e) {
-            return;
+            return null;
         }
         catch (Exception e) {
             LOGGER.error(e, "Error while searching for location information.");
-            return;
+            return null;
         }
 
-        properties.put("_isp", isp.getIsp());
+        return isp.getIsp();
     }
 
-    private void setGeoFields(InetAddress address, GenericRecord properties)
+    private Object[] getGeoFields(InetAddress address)
     {
         CityResponse city;
 
@@ -333,35 +388,76 @@ public class MaxmindGeoIPEventMapper
             city = cityLookup.city(address);
         }
         catch (AddressNotFoundException e) {
-            return;
+            return null;
         }
         catch (Exception e) {
             LOGGER.error(e, "Error while searching for location information.");
-            return;
+            return null;
         }
 
-        for (String attribute : attributes) {
-            switch (attribute) {
+        Object[] values = new Object[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            switch (attributes[i]) {
                 case "country_code":
-                    properties.put("_country_code", city.getCountry().getIsoCode());
+                    values[i] = city.getCountry().getIsoCode();
                     break;
                 case "region":
-                    properties.put("_region", city.getContinent().getName());
+                    values[i] = city.getContinent().getName();
                     break;
                 case "city":
-                    properties.put("_city", city.getCity().getName());
+                    values[i] = city.getCity().getName();
                     break;
                 case "latitude":
-                    properties.put("_latitude", city.getLocation().getLatitude());
+                    values[i] = city.getLocation().getLatitude();
                     break;
                 case "longitude":
-                    properties.put("_longitude", city.getLocation().getLongitude());
+                    values[i] = city.getLocation().getLongitude();
                     break;
                 case "timezone":
-                    properties.put("_timezone", city.getLocation().getTimeZone());
+                    values[i] = city.getLocation().getTimeZone();
                     break;
             }
         }
+
+        return values;
+    }
+
+    private static class AddressKey
+    {
+        private final byte[] address;
+        private final int hashCode;
+
+        private AddressKey(byte[] address)
+        {
+            this.address = address;
+            this.hashCode = Arrays.hashCode(address);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return this == o || (o instanceof AddressKey && Arrays.equals(address, ((AddressKey) o).address));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+
+    private static class LookupResult
+    {
+        private final String connectionType;
+        private final String isp;
+        private final Object[] cityValues;
+
+        private LookupResult(String connectionType, String isp, Object[] cityValues)
+        {
+            this.connectionType = connectionType;
+            this.isp = isp;
+            this.cityValues = cityValues;
+        }
     }
 
     private static final String IP_ADDRESS_REGEX = "([0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3})";
@@ -29,6 +29,7 @@ public class MaxmindGeoIPModuleConfig
     private URL ispDatabaseUrl;
     private URL connectionTypeDatabaseUrl;
     private boolean useExistingFields;
+    private long cacheSize = 100_000;
 
     @Config("plugin.geoip.database.url")
     public MaxmindGeoIPModuleConfig setDatabaseUrl(URL url)
@@ -85,4 +86,16 @@ public class MaxmindGeoIPModuleConfig
     public boolean getUseExistingFields() {
         return useExistingFields;
     }
+
+    @Config("plugin.geoip.cache-size")
+    @ConfigDescription("Maximum number of ip addresses whose lookup results are cached, 0 disables the cache")
+    public MaxmindGeoIPModuleConfig setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
 }
@@ -12,6 +12,8 @@ import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.EventMapper;
 import org.rakam.util.AvroUtil;
+import org.rakam.util.metrics.MetricRegistry;
+import org.rakam.util.metrics.PrometheusTextFormat;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
@@ -186,6 +188,47 @@ public class TestGeoIPEventMapper
         }
     }
 
+    @Test
+    public void testCachedLookup()
+            throws Exception
+    {
+        MaxmindGeoIPEventMapper mapper = new MaxmindGeoIPEventMapper(new MaxmindGeoIPModuleConfig()
+                .setAttributes("")
+                .setIspDatabaseUrl(new URL("https://github.com/maxmind/MaxMind-DB/raw/master/test-data/GeoIP2-ISP-Test.mmdb")));
+
+        for (int i = 0; i < 10; i++) {
+            Record properties = new Record(Schema.createRecord(ImmutableList.of(
+                    new Schema.Field("_ip", Schema.create(NULL), null, null),
+                    new Schema.Field("__ip", Schema.create(STRING), null, null),
+                    new Schema.Field("_isp", Schema.create(STRING), null, null))));
+            properties.put("_ip", "8.8.8.8");
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+            mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null);
+            assertEquals(event.getAttribute("_isp"), "Level 3 Communications");
+        }
+
+        assertEquals(mapper.getCacheStats().missCount(), 1);
+        assertEquals(mapper.getCacheStats().hitCount(), 9);
+        assertEquals(mapper.getCacheSize(), 1);
+
+        MetricRegistry registry = new MetricRegistry();
+        mapper.registerMetrics(registry);
+        String metrics = PrometheusTextFormat.format(registry);
+        assertTrue(metrics.contains("rakam_cache_requests{cache=\"geoip\"} 10\n"), metrics);
+    }
+
+    @Test
+    public void testParseAddress()
+            throws Exception
+    {
+        assertEquals(MaxmindGeoIPEventMapper.parseAddress("8.8.8.8"), InetAddress.getByName("8.8.8.8"));
+        assertEquals(MaxmindGeoIPEventMapper.parseAddress("2001:4860:4860::8888"), InetAddress.getByName("2001:4860:4860::8888"));
+        // host names are not resolved
+        assertNull(MaxmindGeoIPEventMapper.parseAddress("google.com"));
+        assertNull(MaxmindGeoIPEventMapper.parseAddress("256.1.1.1"));
+    }
+
     @Test
     public void testFieldDependency()
             throws Exception
@@ -15,6 +15,7 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.module.website.WebsiteParseCache.ReferrerAttributes;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
@@ -34,9 +35,16 @@ public class ReferrerEventMapper
     private final static Logger LOGGER = Logger.get(ReferrerEventMapper.class);
 
     private final Parser parser;
+    private final WebsiteParseCache cache;
 
     public ReferrerEventMapper()
     {
+        this(new WebsiteParseCache(new WebsiteMapperConfig()));
+    }
+
+    public ReferrerEventMapper(WebsiteParseCache cache)
+    {
+        this.cache = cache;
         try {
             parser = new Parser();
         }
@@ -73,31 +81,15 @@ public class ReferrerEventMapper
             }
         }
 
-        Referer parse;
-        URI referrerUri;
-
         if (referrerUrl != null) {
-            try {
-                referrerUri = new URI(referrerUrl);
-            }
-            catch (URISyntaxException e) {
-                return;
-            }
-
-            try {
-                parse = parser.parse(referrerUri, hostUrl);
-            }
-            catch (Exception e) {
-                LOGGER.warn(e, "Error while parsing referrer");
-                return;
-            }
-
-            if (parse == null) {
+            String finalHostUrl = hostUrl;
+            ReferrerAttributes parse = cache.getReferrer(referrerUrl, hostUrl, () -> parse(referrerUrl, finalHostUrl));
+            if (parse == ReferrerAttributes.UNPARSABLE) {
                 return;
             }
 
             if (record.get("_referrer_medium") == null) {
-                record.put("_referrer_medium", parse.medium != null ? parse.medium.toString().toLowerCase() : null);
+                record.put("_referrer_medium", parse.medium);
             }
             if (record.get("_referrer_source") == null) {
                 record.put("_referrer_source", parse.source);
@@ -107,19 +99,50 @@ public class ReferrerEventMapper
                 record.put("_referrer_term", parse.term);
             }
 
-            if (parse.medium != Medium.INTERNAL) {
+            if (parse.external) {
                 if (record.get("_referrer_domain") == null) {
-                    record.put("_referrer_domain", referrerUri.getHost());
+                    record.put("_referrer_domain", parse.domain);
                 }
 
                 if (record.get("_referrer_path") == null) {
-                    record.put("_referrer_path", referrerUri.getPath() +
-                            (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery())));
+                    record.put("_referrer_path", parse.path);
                 }
             }
         }
     }
 
+    private ReferrerAttributes parse(String referrerUrl, String hostUrl)
+    {
+        URI referrerUri;
+        try {
+            referrerUri = new URI(referrerUrl);
+        }
+        catch (URISyntaxException e) {
+            return ReferrerAttributes.UNPARSABLE;
+        }
+
+        Referer parse;
+        try {
+            parse = parser.parse(referrerUri, hostUrl);
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Error while parsing referrer");
+            return ReferrerAttributes.UNPARSABLE;
+        }
+
+        if (parse == null) {
+            return ReferrerAttributes.UNPARSABLE;
+        }
+
+        return new ReferrerAttributes(
+                parse.medium != null ? cache.intern(parse.medium.toString().toLowerCase()) : null,
+                cache.intern(parse.source),
+                parse.term,
+                parse.medium != Medium.INTERNAL,
+                cache.intern(referrerUri.getHost()),
+                referrerUri.getPath() + (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery())));
+    }
+
     @Override
     public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
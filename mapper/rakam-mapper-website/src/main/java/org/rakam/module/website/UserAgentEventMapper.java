@@ -11,13 +11,13 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.module.website.WebsiteParseCache.UserAgentAttributes;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.util.MapProxyGenericRecord;
-import ua_parser.CachingParser;
 import ua_parser.Client;
 import ua_parser.Parser;
 
@@ -31,15 +31,22 @@ import java.util.List;
 public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper {
     private final Parser uaParser;
     private final boolean trackSpiders;
+    private final WebsiteParseCache cache;
 
-    @Inject
     public UserAgentEventMapper(WebsiteMapperConfig config) {
+        this(config, new WebsiteParseCache(config));
+    }
+
+    @Inject
+    public UserAgentEventMapper(WebsiteMapperConfig config, WebsiteParseCache cache) {
         try {
-            uaParser = new CachingParser();
+            // the parsed attributes are cached in WebsiteParseCache so the parser itself doesn't need a cache
+            uaParser = new Parser();
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
         this.trackSpiders = config.getTrackSpiders();
+        this.cache = cache;
     }
 
     @Override
@@ -76,46 +83,71 @@ public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper
         }
 
         if (userAgent != null) {
-            Client parsed;
-            try {
-                parsed = uaParser.parse(userAgent);
-            } catch (Exception e) {
+            UserAgentAttributes parsed = cache.getUserAgent(userAgent, () -> parse(userAgent));
+            if (parsed == UserAgentAttributes.UNPARSABLE) {
                 return;
             }
 
-            if (parsed.device != null && "Spider".equals(parsed.device.family)) {
+            if (parsed.spider) {
                 // A bit SEO wouldn't hurt.
                 throw new HttpRequestException("Spiders are not allowed in Rakam Analytics.", HttpResponseStatus.FORBIDDEN);
             }
 
             if (properties.get("user_agent_family") == null) {
-                properties.put("_user_agent_family", parsed.userAgent.family);
+                properties.put("_user_agent_family", parsed.userAgentFamily);
             }
 
-            if (trackSpiders && parsed.userAgent != null && properties.get("_user_agent_version") == null) {
-                try {
-                    properties.put("_user_agent_version", Long.parseLong(parsed.userAgent.major));
-                } catch (NumberFormatException e) {
-                }
+            if (trackSpiders && parsed.userAgentVersion != null && properties.get("_user_agent_version") == null) {
+                properties.put("_user_agent_version", parsed.userAgentVersion);
             }
 
-            if (parsed.device != null && properties.get("_device_family") == null) {
-                properties.put("_device_family", parsed.device.family);
+            if (parsed.deviceFamily != null && properties.get("_device_family") == null) {
+                properties.put("_device_family", parsed.deviceFamily);
             }
 
-            if (parsed.os != null) {
-                if (properties.get("_os") == null) {
-                    properties.put("_os", parsed.os.family);
-                }
-
-                if (parsed.os.major != null && properties.get("_os_version") == null) {
-                    try {
-                        properties.put("_os_version", Long.parseLong(parsed.os.major));
-                    } catch (Exception e) {
-                    }
-                }
+            if (parsed.os != null && properties.get("_os") == null) {
+                properties.put("_os", parsed.os);
             }
+
+            if (parsed.osVersion != null && properties.get("_os_version") == null) {
+                properties.put("_os_version", parsed.osVersion);
+            }
+        }
+    }
+
+    private UserAgentAttributes parse(String userAgent)
+    {
+        Client parsed;
+        try {
+            parsed = uaParser.parse(userAgent);
+        } catch (Exception e) {
+            return UserAgentAttributes.UNPARSABLE;
         }
+
+        boolean spider = parsed.device != null && "Spider".equals(parsed.device.family);
+
+        Long userAgentVersion = null;
+        if (parsed.userAgent != null) {
+            try {
+                userAgentVersion = Long.parseLong(parsed.userAgent.major);
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        Long osVersion = null;
+        if (parsed.os != null && parsed.os.major != null) {
+            try {
+                osVersion = Long.parseLong(parsed.os.major);
+            } catch (Exception e) {
+            }
+        }
+
+        return new UserAgentAttributes(spider,
+                cache.intern(parsed.userAgent.family),
+                userAgentVersion,
+                parsed.device != null ? cache.intern(parsed.device.family) : null,
+                parsed.os != null ? cache.intern(parsed.os.family) : null,
+                osVersion);
     }
 
     @Override
@@ -30,13 +30,16 @@ public class WebsiteEventMapperModule
         Multibinder<EventMapper> eventMappers = Multibinder.newSetBinder(binder, EventMapper.class);
 
         WebsiteMapperConfig config = buildConfigObject(WebsiteMapperConfig.class);
+        WebsiteParseCache cache = new WebsiteParseCache(config);
+        // the cache is shared by the mappers and not bound itself, its metrics are registered through the injector
+        binder.requestInjection(cache);
         if (config.getReferrer()) {
-            ReferrerEventMapper referrerEventMapper = new ReferrerEventMapper();
+            ReferrerEventMapper referrerEventMapper = new ReferrerEventMapper(cache);
             eventMappers.addBinding().toInstance(referrerEventMapper);
             userPropertyMappers.addBinding().toInstance(referrerEventMapper);
         }
         if (config.getUserAgent()) {
-            UserAgentEventMapper userAgentEventMapper = new UserAgentEventMapper(config);
+            UserAgentEventMapper userAgentEventMapper = new UserAgentEventMapper(config, cache);
             eventMappers.addBinding().toInstance(userAgentEventMapper);
             userPropertyMappers.addBinding().toInstance(userAgentEventMapper);
         }
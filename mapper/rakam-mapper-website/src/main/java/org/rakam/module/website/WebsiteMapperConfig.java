@@ -1,11 +1,15 @@
 package org.rakam.module.website;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
 public class WebsiteMapperConfig {
     private boolean userAgent = true;
     private boolean referrer = true;
     private boolean trackSpiders = false;
+    private long cacheSize = 10000;
+    private int cacheConcurrency = 16;
+    private boolean internStrings = true;
 
     @Config("module.website.mapper.user-agent")
     public WebsiteMapperConfig setUserAgent(boolean enabled) {
@@ -40,4 +44,43 @@ public class WebsiteMapperConfig {
         this.trackSpiders = true;
         return this;
     }
+
+    @Config("module.website.mapper.cache-size")
+    @ConfigDescription("Maximum number of parsed user agent and referrer values that are cached, 0 disables the cache")
+    public WebsiteMapperConfig setCacheSize(long cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public long getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    @Config("module.website.mapper.cache-concurrency")
+    @ConfigDescription("Number of lock stripes of the parse cache")
+    public WebsiteMapperConfig setCacheConcurrency(int cacheConcurrency)
+    {
+        this.cacheConcurrency = cacheConcurrency;
+        return this;
+    }
+
+    public int getCacheConcurrency()
+    {
+        return cacheConcurrency;
+    }
+
+    @Config("module.website.mapper.intern-strings")
+    @ConfigDescription("Intern the parsed attribute values so that the events share the same string instances")
+    public WebsiteMapperConfig setInternStrings(boolean internStrings)
+    {
+        this.internStrings = internStrings;
+        return this;
+    }
+
+    public boolean getInternStrings()
+    {
+        return internStrings;
+    }
 }
@@ -0,0 +1,181 @@
+package org.rakam.module.website;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.rakam.util.metrics.MetricRegistry;
+
+import javax.inject.Inject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the final attributes that are produced from the user agent and referrer strings so that
+ * the regex based parsers run once per distinct value. The caches are size bounded and segmented
+ * so that concurrent lookups from the event mappers don't contend on a single lock.
+ *
+ * The cache is shared by {@link UserAgentEventMapper} and {@link ReferrerEventMapper}; a cache size
+ * of zero disables caching and the values are parsed for each event.
+ */
+public class WebsiteParseCache
+{
+    private final Cache<String, UserAgentAttributes> userAgents;
+    private final Cache<ReferrerKey, ReferrerAttributes> referrers;
+    private final Interner<String> interner;
+
+    public WebsiteParseCache(WebsiteMapperConfig config)
+    {
+        this(config.getCacheSize(), config.getCacheConcurrency(), config.getInternStrings());
+    }
+
+    public WebsiteParseCache(long maximumSize, int concurrencyLevel, boolean internStrings)
+    {
+        this.userAgents = maximumSize > 0 ? CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .concurrencyLevel(concurrencyLevel)
+                .recordStats()
+                .build() : null;
+        this.referrers = maximumSize > 0 ? CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .concurrencyLevel(concurrencyLevel)
+                .recordStats()
+                .build() : null;
+        this.interner = internStrings ? Interners.newWeakInterner() : null;
+    }
+
+    public UserAgentAttributes getUserAgent(String userAgent, Callable<UserAgentAttributes> parser)
+    {
+        return get(userAgents, userAgent, parser);
+    }
+
+    public ReferrerAttributes getReferrer(String referrer, String host, Callable<ReferrerAttributes> parser)
+    {
+        return get(referrers, new ReferrerKey(referrer, host), parser);
+    }
+
+    public String intern(String value)
+    {
+        if (value == null || interner == null) {
+            return value;
+        }
+        return interner.intern(value);
+    }
+
+    @Inject
+    public void registerMetrics(MetricRegistry registry)
+    {
+        if (userAgents != null) {
+            registry.cache("website_user_agent", userAgents);
+        }
+        if (referrers != null) {
+            registry.cache("website_referrer", referrers);
+        }
+    }
+
+    public CacheStats getUserAgentStats()
+    {
+        return userAgents == null ? new CacheStats(0, 0, 0, 0, 0, 0) : userAgents.stats();
+    }
+
+    public CacheStats getReferrerStats()
+    {
+        return referrers == null ? new CacheStats(0, 0, 0, 0, 0, 0) : referrers.stats();
+    }
+
+    private static <K, V> V get(Cache<K, V> cache, K key, Callable<V> parser)
+    {
+        try {
+            if (cache == null) {
+                return parser.call();
+            }
+            return cache.get(key, parser);
+        }
+        catch (UncheckedExecutionException | ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static class ReferrerKey
+    {
+        private final String referrer;
+        private final String host;
+
+        private ReferrerKey(String referrer, String host)
+        {
+            this.referrer = referrer;
+            this.host = host;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReferrerKey)) {
+                return false;
+            }
+
+            ReferrerKey that = (ReferrerKey) o;
+            return referrer.equals(that.referrer) && (host == null ? that.host == null : host.equals(that.host));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * referrer.hashCode() + (host != null ? host.hashCode() : 0);
+        }
+    }
+
+    public static class UserAgentAttributes
+    {
+        public static final UserAgentAttributes UNPARSABLE = new UserAgentAttributes(false, null, null, null, null, null);
+
+        public final boolean spider;
+        public final String userAgentFamily;
+        public final Long userAgentVersion;
+        public final String deviceFamily;
+        public final String os;
+        public final Long osVersion;
+
+        public UserAgentAttributes(boolean spider, String userAgentFamily, Long userAgentVersion, String deviceFamily, String os, Long osVersion)
+        {
+            this.spider = spider;
+            this.userAgentFamily = userAgentFamily;
+            this.userAgentVersion = userAgentVersion;
+            this.deviceFamily = deviceFamily;
+            this.os = os;
+            this.osVersion = osVersion;
+        }
+    }
+
+    public static class ReferrerAttributes
+    {
+        public static final ReferrerAttributes UNPARSABLE = new ReferrerAttributes(null, null, null, false, null, null);
+
+        public final String medium;
+        public final String source;
+        public final String term;
+        public final boolean external;
+        public final String domain;
+        public final String path;
+
+        public ReferrerAttributes(String medium, String source, String term, boolean external, String domain, String path)
+        {
+            this.medium = medium;
+            this.source = source;
+            this.term = term;
+            this.external = external;
+            this.domain = domain;
+            this.path = path;
+        }
+    }
+}
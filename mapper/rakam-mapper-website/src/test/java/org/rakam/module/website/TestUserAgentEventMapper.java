@@ -23,6 +23,7 @@ import java.util.stream.Collectors;
 import static org.apache.avro.Schema.Type.NULL;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 
 public class TestUserAgentEventMapper {
     private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36";
@@ -151,4 +152,36 @@ public class TestUserAgentEventMapper {
             assertNull(event.getAttribute(field.getName()));
         }
     }
+
+    @Test()
+    public void testSharedParseCache() throws Exception {
+        WebsiteMapperConfig config = new WebsiteMapperConfig();
+        WebsiteParseCache cache = new WebsiteParseCache(config);
+        UserAgentEventMapper mapper = new UserAgentEventMapper(config, cache);
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+
+        List<SchemaField> fields = builder.build().dependentFields.get("_user_agent");
+        ImmutableList<Schema.Field> build = ImmutableList.<Schema.Field>builder()
+                .addAll(fields.stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_user_agent", Schema.create(NULL), null, null))
+                .build();
+        Schema schema = Schema.createRecord(build);
+
+        Object[] families = new Object[2];
+        for (int i = 0; i < families.length; i++) {
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", USER_AGENT);
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+            mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null);
+            families[i] = event.getAttribute("_user_agent_family");
+        }
+
+        assertEquals("Chrome", families[0]);
+        assertSame(families[0], families[1]);
+        assertEquals(cache.getUserAgentStats().missCount(), 1);
+        assertEquals(cache.getUserAgentStats().hitCount(), 1);
+    }
 }
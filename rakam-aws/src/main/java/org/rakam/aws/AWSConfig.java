@@ -7,6 +7,11 @@ import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.MinDataSize;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
 
 public class AWSConfig {
     private String accessKey;
@@ -18,6 +23,8 @@ public class AWSConfig {
     private String kinesisEndpoint;
     private String dynamodbEndpoint;
     private String lambdaEndpoint;
+    private DataSize eventStoreBulkS3PartSize = new DataSize(16, MEGABYTE);
+    private int eventStoreBulkUploadConcurrency = 4;
 
     public String getEventStoreStreamName() {
         return eventStoreStreamName;
@@ -39,6 +46,33 @@ public class AWSConfig {
         return eventStoreBulkS3Bucket;
     }
 
+    @Config("event.store.bulk.s3-part-size")
+    @ConfigDescription("Size of the multipart upload parts of the bulk files, an upload keeps a single part in memory")
+    public AWSConfig setEventStoreBulkS3PartSize(DataSize eventStoreBulkS3PartSize)
+    {
+        this.eventStoreBulkS3PartSize = eventStoreBulkS3PartSize;
+        return this;
+    }
+
+    @MinDataSize("5MB")
+    public DataSize getEventStoreBulkS3PartSize()
+    {
+        return eventStoreBulkS3PartSize;
+    }
+
+    @Config("event.store.bulk.upload-concurrency")
+    @ConfigDescription("Number of collections that are uploaded to S3 concurrently")
+    public AWSConfig setEventStoreBulkUploadConcurrency(int eventStoreBulkUploadConcurrency)
+    {
+        this.eventStoreBulkUploadConcurrency = eventStoreBulkUploadConcurrency;
+        return this;
+    }
+
+    public int getEventStoreBulkUploadConcurrency()
+    {
+        return eventStoreBulkUploadConcurrency;
+    }
+
     @Config("aws.access-key")
     public AWSConfig setAccessKey(String accessKey) {
         this.accessKey = accessKey;
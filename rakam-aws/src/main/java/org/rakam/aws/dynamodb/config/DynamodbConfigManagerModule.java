@@ -2,9 +2,10 @@ package org.rakam.aws.dynamodb.config;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
-import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.aws.AWSConfig;
 import org.rakam.aws.dynamodb.user.DynamodbUserConfig;
+import org.rakam.config.ConfigManagerCacheConfig;
 import org.rakam.plugin.RakamModule;
 import org.rakam.util.ConditionalModule;
 
@@ -21,7 +22,7 @@ public class DynamodbConfigManagerModule extends RakamModule
         configBinder(binder).bindConfig(DynamodbConfigManagerConfig.class);
         configBinder(binder).bindConfig(AWSConfig.class);
 
-        binder.bind(ConfigManager.class).to(DynamodbConfigManager.class);
+        CachingConfigManager.bind(binder, buildConfigObject(ConfigManagerCacheConfig.class), DynamodbConfigManager.class);
     }
 
     @Override
@@ -22,12 +22,17 @@ import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.aws.AWSConfig;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents.ContinuousQueryCreatedEvent;
+import org.rakam.plugin.SystemEvents.ContinuousQueryDeletedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewCreatedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewDeletedEvent;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.NotExistsException;
 
@@ -58,9 +63,10 @@ public class DynamodbQueryMetastore
 
     private final AmazonDynamoDBClient dynamoDBClient;
     private final DynamodbQueryMetastoreConfig tableConfig;
+    private final EventBus eventBus;
 
     @Inject
-    public DynamodbQueryMetastore(AWSConfig config, DynamodbQueryMetastoreConfig tableConfig)
+    public DynamodbQueryMetastore(AWSConfig config, DynamodbQueryMetastoreConfig tableConfig, EventBus eventBus)
     {
         dynamoDBClient = new AmazonDynamoDBClient(config.getCredentials());
         dynamoDBClient.setRegion(config.getAWSRegion());
@@ -69,6 +75,7 @@ public class DynamodbQueryMetastore
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+        this.eventBus = eventBus;
     }
 
     @PostConstruct
@@ -108,6 +115,7 @@ public class DynamodbQueryMetastore
                         "project", new AttributeValue(project),
                         "type_table_name", new AttributeValue("materialized_" + materializedView.tableName),
                         "value", new AttributeValue(JsonHelper.encode(materializedView)))));
+        eventBus.post(new MaterializedViewCreatedEvent(project, materializedView));
     }
 
     @Override
@@ -117,6 +125,7 @@ public class DynamodbQueryMetastore
                 .withKey(of(
                         "project", new AttributeValue(project),
                         "type_table_name", new AttributeValue("materialized_" + tableName))));
+        eventBus.post(new MaterializedViewDeletedEvent(project, tableName));
     }
 
     @Override
@@ -163,6 +172,7 @@ public class DynamodbQueryMetastore
                         "project", new AttributeValue(project),
                         "type_table_name", new AttributeValue("continuous_" + report.tableName),
                         "value", new AttributeValue(JsonHelper.encode(report)))));
+        eventBus.post(new ContinuousQueryCreatedEvent(project, report));
     }
 
     @Override
@@ -172,6 +182,7 @@ public class DynamodbQueryMetastore
                 .withKey(of(
                         "project", new AttributeValue(project),
                         "type_table_name", new AttributeValue("continuous_" + tableName))));
+        eventBus.post(new ContinuousQueryDeletedEvent(project, tableName));
     }
 
     @Override
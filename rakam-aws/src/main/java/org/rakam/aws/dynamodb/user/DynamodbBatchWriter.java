@@ -0,0 +1,182 @@
+package org.rakam.aws.dynamodb.user;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
+import io.airlift.log.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Sends write requests to a single Dynamodb table in parallel using the async client.
+ * The number of in-flight requests is bounded, the write rate is limited with a token bucket
+ * that is matched to the provisioned write capacity of the table and throttled requests
+ * (or the unprocessed items of a batch write) are retried with exponential backoff.
+ */
+public class DynamodbBatchWriter
+{
+    private final static Logger LOGGER = Logger.get(DynamodbBatchWriter.class);
+
+    public static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    private final AmazonDynamoDBAsyncClient client;
+    private final String tableName;
+    private final RateLimiter rateLimiter;
+    private final Semaphore inFlightRequests;
+    private final ScheduledExecutorService retryExecutor;
+    private final int maxRetries;
+
+    public DynamodbBatchWriter(AmazonDynamoDBAsyncClient client, String tableName, double writeCapacity, int maxConcurrentRequests, int maxRetries, ScheduledExecutorService retryExecutor)
+    {
+        this.client = client;
+        this.tableName = tableName;
+        this.rateLimiter = writeCapacity > 0 ? RateLimiter.create(writeCapacity) : null;
+        this.inFlightRequests = new Semaphore(maxConcurrentRequests);
+        this.maxRetries = maxRetries;
+        this.retryExecutor = retryExecutor;
+    }
+
+    public CompletableFuture<Void> batchWrite(List<WriteRequest> requests)
+    {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<WriteRequest> chunk : Lists.partition(requests, MAX_BATCH_WRITE_ITEMS)) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            List<WriteRequest> items = new ArrayList<>(chunk);
+            acquire(future);
+            runWhenPermitted(items.size(), () -> sendBatch(items, future, 0));
+            futures.add(future);
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    public <R extends AmazonWebServiceRequest, T> CompletableFuture<T> execute(R request, BiFunction<R, AsyncHandler<R, T>, Future<T>> call)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        acquire(future);
+        runWhenPermitted(1, () -> execute(request, call, future, 0));
+        return future;
+    }
+
+    private void acquire(CompletableFuture<?> future)
+    {
+        inFlightRequests.acquireUninterruptibly();
+        future.whenComplete((result, ex) -> inFlightRequests.release());
+    }
+
+    private <R extends AmazonWebServiceRequest, T> void execute(R request, BiFunction<R, AsyncHandler<R, T>, Future<T>> call, CompletableFuture<T> future, int attempt)
+    {
+        call.apply(request, new AsyncHandler<R, T>()
+        {
+            @Override
+            public void onError(Exception e)
+            {
+                if (isRetryable(e) && attempt < maxRetries) {
+                    retry(attempt, 1, () -> execute(request, call, future, attempt + 1));
+                }
+                else {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onSuccess(R request, T result)
+            {
+                future.complete(result);
+            }
+        });
+    }
+
+    private void sendBatch(List<WriteRequest> items, CompletableFuture<Void> future, int attempt)
+    {
+        BatchWriteItemRequest request = new BatchWriteItemRequest()
+                .withRequestItems(ImmutableMap.of(tableName, items));
+
+        client.batchWriteItemAsync(request, new AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult>()
+        {
+            @Override
+            public void onError(Exception e)
+            {
+                if (isRetryable(e) && attempt < maxRetries) {
+                    retry(attempt, items.size(), () -> sendBatch(items, future, attempt + 1));
+                }
+                else {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onSuccess(BatchWriteItemRequest request, BatchWriteItemResult result)
+            {
+                List<WriteRequest> unprocessed = result.getUnprocessedItems() == null ? null :
+                        result.getUnprocessedItems().get(tableName);
+                if (unprocessed == null || unprocessed.isEmpty()) {
+                    future.complete(null);
+                }
+                else if (attempt < maxRetries) {
+                    retry(attempt, unprocessed.size(), () -> sendBatch(unprocessed, future, attempt + 1));
+                }
+                else {
+                    future.completeExceptionally(new IllegalStateException(
+                            format("%d items couldn't be written to Dynamodb table %s after %d retries",
+                                    unprocessed.size(), tableName, maxRetries)));
+                }
+            }
+        });
+    }
+
+    private void retry(int attempt, int items, Runnable task)
+    {
+        // exponential backoff with full jitter
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+        LOGGER.debug("Retrying Dynamodb write of %d items in %d ms (attempt %d)", items, delay, attempt + 1);
+
+        retryExecutor.schedule(() -> runWhenPermitted(items, task), delay, MILLISECONDS);
+    }
+
+    private void runWhenPermitted(int items, Runnable task)
+    {
+        // the requests are not sent until the rate limiter has the permits, the shared executor is never blocked
+        if (rateLimiter == null || rateLimiter.tryAcquire(items)) {
+            task.run();
+        }
+        else {
+            long wait = Math.max(1, (long) Math.ceil(items * 1000 / rateLimiter.getRate()));
+            retryExecutor.schedule(() -> runWhenPermitted(items, task), wait, MILLISECONDS);
+        }
+    }
+
+    private static boolean isRetryable(Exception e)
+    {
+        if (e instanceof ProvisionedThroughputExceededException) {
+            return true;
+        }
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ex = (AmazonServiceException) e;
+            return ex.getErrorType() == AmazonServiceException.ErrorType.Service
+                    || "ThrottlingException".equals(ex.getErrorCode());
+        }
+        return false;
+    }
+}
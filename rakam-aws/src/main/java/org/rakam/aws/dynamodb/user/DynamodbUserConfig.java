@@ -1,12 +1,17 @@
 package org.rakam.aws.dynamodb.user;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class DynamodbUserConfig
 {
     private String tableName;
+    private double writeCapacity;
+    private int maxConcurrentRequests = 16;
+    private int maxRetries = 8;
 
     @Config("plugin.user.storage.dynamodb.table")
     public DynamodbUserConfig setTableName(String tableName) {
@@ -19,4 +24,43 @@ public class DynamodbUserConfig
     {
         return tableName;
     }
+
+    @Config("plugin.user.storage.dynamodb.write-capacity")
+    @ConfigDescription("Maximum write requests per second, the provisioned write capacity of the table is used if it's not set")
+    public DynamodbUserConfig setWriteCapacity(double writeCapacity)
+    {
+        this.writeCapacity = writeCapacity;
+        return this;
+    }
+
+    public double getWriteCapacity()
+    {
+        return writeCapacity;
+    }
+
+    @Config("plugin.user.storage.dynamodb.max-concurrent-requests")
+    public DynamodbUserConfig setMaxConcurrentRequests(int maxConcurrentRequests)
+    {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentRequests()
+    {
+        return maxConcurrentRequests;
+    }
+
+    @Config("plugin.user.storage.dynamodb.max-retries")
+    public DynamodbUserConfig setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
 }
@@ -1,11 +1,11 @@
 package org.rakam.aws.dynamodb.user;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
 import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
@@ -13,11 +13,13 @@ import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.QueryRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -29,7 +31,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.aws.AWSConfig;
 import org.rakam.collection.FieldType;
@@ -37,12 +41,16 @@ import org.rakam.collection.SchemaField;
 import org.rakam.plugin.user.AbstractUserService.BatchUserOperationRequest.BatchUserOperations;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.User;
+import org.rakam.plugin.user.UserOperationMerger;
+import org.rakam.plugin.user.UserOperationMerger.MergedUser;
+import org.rakam.plugin.user.UserOperationMerger.PropertyChange;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.report.QueryResult;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.time.Duration;
@@ -50,22 +58,29 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.amazonaws.services.dynamodbv2.model.KeyType.HASH;
 import static com.amazonaws.services.dynamodbv2.model.KeyType.RANGE;
+import static java.lang.String.format;
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.plugin.user.UserOperationMerger.Operation.NONE;
 
 public class DynamodbUserStorage
         implements UserStorage
 {
-    private final AmazonDynamoDBClient dynamoDBClient;
+    private final AmazonDynamoDBAsyncClient dynamoDBClient;
     private static final List<KeySchemaElement> PROJECT_KEYSCHEMA = ImmutableList.of(
             new KeySchemaElement().withKeyType(HASH).withAttributeName("project"),
             new KeySchemaElement().withKeyType(RANGE).withAttributeName("id")
@@ -75,22 +90,27 @@ public class DynamodbUserStorage
             new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S)
     );
     private final DynamodbUserConfig tableConfig;
+    private final ScheduledExecutorService retryExecutor;
+    private DynamodbBatchWriter writer;
 
     @Inject
     public DynamodbUserStorage(AWSConfig config, DynamodbUserConfig tableConfig)
     {
-        dynamoDBClient = new AmazonDynamoDBClient(config.getCredentials());
+        dynamoDBClient = new AmazonDynamoDBAsyncClient(config.getCredentials());
         dynamoDBClient.setRegion(config.getAWSRegion());
 
         if (config.getDynamodbEndpoint() != null) {
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-user-storage-retry").setDaemon(true).build());
     }
 
     @PostConstruct
     public void setup()
     {
+        long provisionedWriteCapacity;
         try {
             DescribeTableResult result = dynamoDBClient.describeTable(tableConfig.getTableName());
 
@@ -98,15 +118,29 @@ public class DynamodbUserStorage
                 throw new IllegalStateException("Invalid schema for user storage dynamodb table. " +
                         "Please remove existing table or change dynamodb table.");
             }
+
+            provisionedWriteCapacity = result.getTable().getProvisionedThroughput().getWriteCapacityUnits();
         }
         catch (ResourceNotFoundException e) {
+            provisionedWriteCapacity = 3L;
             dynamoDBClient.createTable(new CreateTableRequest().withTableName(tableConfig.getTableName())
                     .withKeySchema(PROJECT_KEYSCHEMA)
                     .withAttributeDefinitions(ATTRIBUTES)
                     .withProvisionedThroughput(new ProvisionedThroughput()
                             .withReadCapacityUnits(3L)
-                            .withWriteCapacityUnits(3L)));
+                            .withWriteCapacityUnits(provisionedWriteCapacity)));
         }
+
+        double writeCapacity = tableConfig.getWriteCapacity() > 0 ? tableConfig.getWriteCapacity() : provisionedWriteCapacity;
+        writer = new DynamodbBatchWriter(dynamoDBClient, tableConfig.getTableName(), writeCapacity,
+                tableConfig.getMaxConcurrentRequests(), tableConfig.getMaxRetries(), retryExecutor);
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        retryExecutor.shutdownNow();
+        dynamoDBClient.shutdown();
     }
 
     @Override
@@ -172,11 +206,15 @@ public class DynamodbUserStorage
     @Override
     public List<Object> batchCreate(String project, List<User> users)
     {
-        List<WriteRequest> collect = users.stream()
-                .map(user -> new WriteRequest(new PutRequest(generatePutRequest(project, user.id, user.properties))))
-                .collect(Collectors.toList());
-        dynamoDBClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(ImmutableMap.of(project, collect)));
-        return null;
+        // Dynamodb rejects the batch requests that contain the same key more than once so the last write wins.
+        Map<String, WriteRequest> requests = new LinkedHashMap<>();
+        for (User user : users) {
+            requests.put(user.id.toString(),
+                    new WriteRequest(new PutRequest(generatePutRequest(project, user.id, user.properties))));
+        }
+
+        join(writer.batchWrite(new ArrayList<>(requests.values())));
+        return users.stream().map(user -> user.id).collect(Collectors.toList());
     }
 
     @Override
@@ -256,7 +294,7 @@ public class DynamodbUserStorage
     public CompletableFuture<User> getUser(String project, Object userId)
     {
         return CompletableFuture.supplyAsync(() -> {
-            GetItemResult item = dynamoDBClient.getItem("users", ImmutableMap.of(
+            GetItemResult item = dynamoDBClient.getItem(tableConfig.getTableName(), ImmutableMap.of(
                     "project", new AttributeValue(project),
                     "id", new AttributeValue(userId.toString())
             ));
@@ -349,104 +387,202 @@ public class DynamodbUserStorage
                 ImmutableList.of(new BatchUserOperations(user, null, properties, null, null, null)));
     }
 
+    @Override
+    public void batch(String project, List<? extends ISingleUserBatchOperation> operations)
+    {
+        applyOperations(project, operations);
+    }
+
     @Override
     public void applyOperations(String project, List<? extends ISingleUserBatchOperation> operations)
     {
-        Map<String, String> nameMap = new HashMap<>();
-        Map<String, AttributeValue> valueMap = new HashMap<>();
-        StringBuilder setBuilder = null;
-        StringBuilder addBuilder = null;
-        StringBuilder unsetBuilder = null;
-        List<UpdateItemRequest> setOnceBuilder = null;
-        char nameCur = 'a';
-        char valueCur = 'a';
-        for (ISingleUserBatchOperation operation : operations) {
-            for (Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
-                if (addBuilder == null) {
-                    addBuilder = new StringBuilder();
-                }
-                else {
-                    addBuilder.append(", ");
-                }
-
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " " + value);
-
-                nameMap.put(name, entry.getKey());
-                valueMap.put(value, new AttributeValue().withN(entry.getValue().toString()));
-            }
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (MergedUser user : UserOperationMerger.merge(operations, Function.identity())) {
+            futures.add(update(project, user));
+        }
 
-            Iterator<Entry<String, JsonNode>> fields = operation.getSetProperties().fields();
-            while (fields.hasNext()) {
-                Entry<String, JsonNode> next = fields.next();
-                if (setBuilder == null) {
-                    setBuilder = new StringBuilder();
-                }
-                else {
-                    setBuilder.append(", ");
-                }
-
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " = " + value);
-
-                nameMap.put(name, next.getKey());
-                valueMap.put(value, convertAttributeValue(next.getValue()));
-            }
+        join(CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])));
+    }
 
-            Iterator<Entry<String, JsonNode>> setOncefields = operation.getSetPropertiesOnce().fields();
-            while (setOncefields.hasNext()) {
-                Entry<String, JsonNode> next = fields.next();
+    private CompletableFuture<?> update(String project, MergedUser user)
+    {
+        Map<String, AttributeValue> key = ImmutableMap.of("project", new AttributeValue(project),
+                "id", new AttributeValue(user.getId().toString()));
+
+        Map<String, PropertyChange> properties = new LinkedHashMap<>(user.getProperties());
+        if (user.getCreatedAt() != null) {
+            // created_at is never updated once it's set
+            properties.putIfAbsent("created_at", PropertyChange.ofSetOnce(user.getCreatedAt()));
+        }
 
-                if (setOnceBuilder == null) {
-                    setOnceBuilder = new ArrayList<>();
-                }
-
-                setOnceBuilder.add(new UpdateItemRequest()
-                        .withUpdateExpression("SET properties.#a = :a")
-                        .withExpressionAttributeNames(ImmutableMap.of("#a", next.getKey()))
-                        .withExpressionAttributeValues(ImmutableMap.of(":a", convertAttributeValue(next.getValue())))
-                        .withTableName(tableConfig.getTableName())
-                        .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                                new AttributeValue(operation.getUser().toString())))
-                );
+        UpdateItemRequest request = buildUpdateRequest(key, properties);
+        if (request == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // the nested property paths can't be resolved if the user doesn't exist, the condition turns it into
+        // a conditional check failure instead of a validation error.
+        request.withConditionExpression("attribute_exists(properties)");
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        writer.<UpdateItemRequest, UpdateItemResult>execute(request, dynamoDBClient::updateItemAsync).whenComplete((result, ex) -> {
+            if (ex == null) {
+                future.complete(result);
             }
+            else if (ex instanceof ConditionalCheckFailedException) {
+                // the user doesn't exist yet
+                createUser(key, properties, request, future);
+            }
+            else {
+                future.completeExceptionally(ex);
+            }
+        });
+        return future;
+    }
 
-            for (String unsetProperty : operation.getUnsetProperties()) {
-                if (unsetBuilder == null) {
-                    unsetBuilder = new StringBuilder();
-                }
-                else {
-                    unsetBuilder.append(" , ");
-                }
+    private void createUser(Map<String, AttributeValue> key, Map<String, PropertyChange> properties, UpdateItemRequest update, CompletableFuture<Object> future)
+    {
+        Map<String, AttributeValue> props = new HashMap<>();
+        for (Entry<String, PropertyChange> entry : properties.entrySet()) {
+            JsonNode value = getInitialValue(entry.getKey(), entry.getValue());
+            if (value != null) {
+                props.put(entry.getKey(), convertAttributeValue(value));
+            }
+        }
 
-                String name = new String(new char[] {'#', nameCur++});
-                unsetBuilder.append("properties." + name);
+        Map<String, AttributeValue> item = new HashMap<>(key);
+        item.put("properties", new AttributeValue().withM(props));
 
-                nameMap.put(name, unsetProperty);
-            }
+        PutItemRequest request = new PutItemRequest()
+                .withTableName(tableConfig.getTableName())
+                .withItem(item)
+                .withConditionExpression("attribute_not_exists(id)");
 
-            StringBuilder query = new StringBuilder();
-            if (setBuilder != null) {
-                query.append("SET ").append(setBuilder);
+        writer.<PutItemRequest, PutItemResult>execute(request, dynamoDBClient::putItemAsync).whenComplete((result, ex) -> {
+            if (ex == null) {
+                future.complete(result);
             }
-            if (unsetBuilder != null) {
-                query.append("DELETE ").append(unsetBuilder);
+            else if (ex instanceof ConditionalCheckFailedException) {
+                // the user is created concurrently, the update can be applied now.
+                writer.<UpdateItemRequest, UpdateItemResult>execute(update, dynamoDBClient::updateItemAsync).whenComplete((updateResult, updateEx) -> {
+                    if (updateEx == null) {
+                        future.complete(updateResult);
+                    }
+                    else {
+                        future.completeExceptionally(updateEx);
+                    }
+                });
             }
-            if (addBuilder != null) {
-                query.append("ADD ").append(addBuilder);
+            else {
+                future.completeExceptionally(ex);
             }
+        });
+    }
 
-            dynamoDBClient.updateItem(new UpdateItemRequest()
-                    .withTableName(tableConfig.getTableName())
-                    .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                            new AttributeValue(operation.getUser().toString())))
-                    .withUpdateExpression(query.toString()));
-
-            if (setOnceBuilder != null) {
-                setOnceBuilder.forEach(dynamoDBClient::updateItem);
+    private UpdateItemRequest buildUpdateRequest(Map<String, AttributeValue> key, Map<String, PropertyChange> properties)
+    {
+        Map<String, String> nameMap = new HashMap<>();
+        Map<String, AttributeValue> valueMap = new HashMap<>();
+        List<String> setExpressions = new ArrayList<>();
+        List<String> removeExpressions = new ArrayList<>();
+
+        int i = 0;
+        for (Entry<String, PropertyChange> entry : properties.entrySet()) {
+            PropertyChange change = entry.getValue();
+            String path = "properties.#p" + i;
+            String value = ":v" + i;
+            String increment = ":i" + i;
+
+            switch (change.getOperation()) {
+                case SET:
+                    if (change.getIncrement() == null) {
+                        if (UserOperationMerger.isNull(change.getValue())) {
+                            removeExpressions.add(path);
+                        }
+                        else {
+                            setExpressions.add(path + " = " + value);
+                            valueMap.put(value, convertAttributeValue(change.getValue()));
+                        }
+                    }
+                    else {
+                        setExpressions.add(path + " = " + value);
+                        valueMap.put(value, convertAttributeValue(getInitialValue(entry.getKey(), change)));
+                    }
+                    break;
+                case SET_ONCE:
+                    valueMap.put(value, convertAttributeValue(change.getValue()));
+                    if (change.getIncrement() == null) {
+                        setExpressions.add(format("%s = if_not_exists(%s, %s)", path, path, value));
+                    }
+                    else {
+                        setExpressions.add(format("%s = if_not_exists(%s, %s) + %s", path, path, value, increment));
+                        valueMap.put(increment, new AttributeValue().withN(change.getIncrement().toString()));
+                    }
+                    break;
+                case NONE:
+                    if (change.getIncrement() == null) {
+                        continue;
+                    }
+                    // ADD action can only be used for top-level attributes
+                    setExpressions.add(format("%s = if_not_exists(%s, :zero) + %s", path, path, increment));
+                    valueMap.put(":zero", new AttributeValue().withN("0"));
+                    valueMap.put(increment, new AttributeValue().withN(change.getIncrement().toString()));
+                    break;
+                default:
+                    throw new IllegalStateException();
             }
+
+            nameMap.put("#p" + i, entry.getKey());
+            i++;
+        }
+
+        if (setExpressions.isEmpty() && removeExpressions.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder expression = new StringBuilder();
+        if (!setExpressions.isEmpty()) {
+            expression.append("SET ").append(String.join(", ", setExpressions));
+        }
+        if (!removeExpressions.isEmpty()) {
+            expression.append(" REMOVE ").append(String.join(", ", removeExpressions));
+        }
+
+        UpdateItemRequest request = new UpdateItemRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKey(key)
+                .withUpdateExpression(expression.toString().trim())
+                .withExpressionAttributeNames(nameMap);
+        if (!valueMap.isEmpty()) {
+            request.withExpressionAttributeValues(valueMap);
+        }
+        return request;
+    }
+
+    private JsonNode getInitialValue(String property, PropertyChange change)
+    {
+        JsonNode value = change.getOperation() == NONE || UserOperationMerger.isNull(change.getValue()) ? null : change.getValue();
+        if (change.getIncrement() == null) {
+            return value;
+        }
+
+        if (value == null) {
+            return DoubleNode.valueOf(change.getIncrement());
+        }
+        if (!value.isNumber()) {
+            throw new RakamException(format("The property %s is not numeric and it can't be incremented.", property),
+                    HttpResponseStatus.BAD_REQUEST);
+        }
+        return DoubleNode.valueOf(value.asDouble() + change.getIncrement());
+    }
+
+    private static <T> T join(CompletableFuture<T> future)
+    {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw e;
         }
     }
 
@@ -18,6 +18,7 @@ import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.aws.AWSConfig;
+import org.rakam.aws.kinesis.KinesisEventStoreConfig.PartitionKeyStrategy;
 import org.rakam.aws.s3.S3BulkEventStore;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
@@ -26,16 +27,16 @@ import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.util.RakamException;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static io.netty.buffer.PooledByteBufAllocator.DEFAULT;
-import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.valueOf;
 
@@ -48,9 +49,19 @@ public class AWSKinesisEventStore
     private final AWSConfig config;
     private final S3BulkEventStore bulkClient;
     private final KinesisProducer producer;
+    private final KinesisBatchWriter batchWriter;
+    private final PartitionKeyStrategy partitionKeyStrategy;
+
+    public AWSKinesisEventStore(AWSConfig config,
+            Metastore metastore,
+            FieldDependency fieldDependency)
+    {
+        this(config, new KinesisEventStoreConfig(), metastore, fieldDependency);
+    }
 
     @Inject
     public AWSKinesisEventStore(AWSConfig config,
+            KinesisEventStoreConfig kinesisConfig,
             Metastore metastore,
             FieldDependency fieldDependency)
     {
@@ -62,9 +73,15 @@ public class AWSKinesisEventStore
         this.config = config;
         this.bulkClient = new S3BulkEventStore(metastore, config, fieldDependency);
 
+        this.partitionKeyStrategy = kinesisConfig.getPartitionKeyStrategy();
+
         KinesisProducerConfiguration producerConfiguration = new KinesisProducerConfiguration()
                 .setRegion(config.getRegion())
-                .setCredentialsProvider(config.getCredentials());
+                .setCredentialsProvider(config.getCredentials())
+                .setAggregationEnabled(kinesisConfig.getAggregationEnabled())
+                .setAggregationMaxCount(kinesisConfig.getAggregationMaxCount())
+                .setAggregationMaxSize(kinesisConfig.getAggregationMaxSize())
+                .setRecordMaxBufferedTime(kinesisConfig.getRecordMaxBufferedTime().toMillis());
         if (config.getKinesisEndpoint() != null) {
             try {
                 URL url = new URL(config.getKinesisEndpoint());
@@ -77,43 +94,22 @@ public class AWSKinesisEventStore
             }
         }
         producer = new KinesisProducer(producerConfiguration);
+        batchWriter = new KinesisBatchWriter(producer::addUserRecord, config.getEventStoreStreamName(),
+                kinesisConfig.getMaxOutstandingRecords());
     }
 
     public CompletableFuture<int[]> storeBatchInline(List<Event> events)
     {
-        ByteBuf[] byteBufs = new ByteBuf[events.size()];
-
-        try {
-            for (int i = 0; i < events.size(); i++) {
-                Event event = events.get(i);
-                ByteBuf buffer = getBuffer(event);
-                ByteBuffer data = buffer.nioBuffer();
-                try {
-                    producer.addUserRecord(config.getEventStoreStreamName(),
-                            getPartitionKey(event),
-                            data);
-                }
-                catch (IllegalArgumentException e) {
-                    if (data.remaining() > 1048576) {
-                        throw new RakamException("Too many event properties, the total size of an event must be less than or equal to 1MB, got " + data.remaining(),
-                                BAD_REQUEST);
-                    }
-                }
-                byteBufs[i] = buffer;
-            }
-
-            // TODO: async callback?
-            producer.flush();
-        }
-        finally {
-            for (ByteBuf byteBuf : byteBufs) {
-                if (byteBuf != null) {
-                    byteBuf.release();
-                }
-            }
-        }
+        return batchWriter.write(events, this::getPartitionKey, this::getBuffer);
+    }
 
-        return EventStore.COMPLETED_FUTURE_BATCH;
+    @PreDestroy
+    public void destroy()
+    {
+        // the batches don't flush the producer so the buffered records need to be sent before shutdown
+        producer.flushSync();
+        producer.destroy();
+        bulkClient.destroy();
     }
 
     @Override
@@ -152,8 +148,17 @@ public class AWSKinesisEventStore
 
     private String getPartitionKey(Event event)
     {
-        Object user = event.getAttribute("_user");
-        return event.project() + "|" + (user == null ? event.collection() : user.toString());
+        switch (partitionKeyStrategy) {
+            case USER:
+                Object user = event.getAttribute("_user");
+                return event.project() + "|" + (user == null ? event.collection() : user.toString());
+            case COLLECTION:
+                return event.project() + "|" + event.collection();
+            case RANDOM:
+                return Long.toHexString(ThreadLocalRandom.current().nextLong());
+            default:
+                throw new IllegalStateException();
+        }
     }
 
     public void store(Event event, CompletableFuture<Void> future, int tryCount)
@@ -4,6 +4,7 @@ import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.log.Logger;
 import org.rakam.aws.AWSConfig;
 import org.rakam.util.ConditionalModule;
@@ -18,6 +19,7 @@ public class AWSKinesisModule extends RakamModule {
     @Override
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(AWSConfig.class);
+        configBinder(binder).bindConfig(KinesisEventStoreConfig.class);
         configBinder(binder).bindConfig(PrestoStreamConfig.class);
         binder.bind(EventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
     }
@@ -34,6 +36,8 @@ public class AWSKinesisModule extends RakamModule {
 
     public static class PrestoStreamConfig {
         private int port;
+        private int subscriberBufferSize = 1000;
+        private boolean pushEnabled;
 
         @Config("presto.streaming.port")
         public void setPort(int port) {
@@ -43,6 +47,26 @@ public class AWSKinesisModule extends RakamModule {
         public int getPort() {
             return port;
         }
+
+        @Config("presto.streaming.subscriber-buffer-size")
+        @ConfigDescription("Maximum number of the row batches that are buffered for an event stream subscriber")
+        public void setSubscriberBufferSize(int subscriberBufferSize) {
+            this.subscriberBufferSize = subscriberBufferSize;
+        }
+
+        public int getSubscriberBufferSize() {
+            return subscriberBufferSize;
+        }
+
+        @Config("presto.streaming.push-enabled")
+        @ConfigDescription("Receive the rows of all the subscribers over a single push connection instead of polling the streaming connector for each subscriber, the polling is used if the connector doesn't support it")
+        public void setPushEnabled(boolean pushEnabled) {
+            this.pushEnabled = pushEnabled;
+        }
+
+        public boolean getPushEnabled() {
+            return pushEnabled;
+        }
     }
 
 }
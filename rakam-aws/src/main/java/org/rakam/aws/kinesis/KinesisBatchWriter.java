@@ -0,0 +1,184 @@
+package org.rakam.aws.kinesis;
+
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
+import org.rakam.util.RakamException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.TOO_MANY_REQUESTS;
+import static org.rakam.plugin.EventStore.SUCCESSFUL_BATCH;
+
+/**
+ * Adds the records of a batch to the Kinesis producer and returns a single future that is completed
+ * when the producer reports the results of all the records, so the batch doesn't wait for the other
+ * records in the producer buffer. The number of records that are not acknowledged yet is bounded and
+ * the batches that exceed the limit are rejected so that the clients back off.
+ */
+public class KinesisBatchWriter
+{
+    private final static Logger LOGGER = Logger.get(KinesisBatchWriter.class);
+
+    public static final int MAX_RECORD_SIZE = 1048576;
+
+    private final RecordSink sink;
+    private final String streamName;
+    private final Semaphore outstandingRecords;
+    private final int maxOutstandingRecords;
+
+    public interface RecordSink
+    {
+        ListenableFuture<UserRecordResult> addUserRecord(String stream, String partitionKey, ByteBuffer data);
+    }
+
+    public KinesisBatchWriter(RecordSink sink, String streamName, int maxOutstandingRecords)
+    {
+        this.sink = sink;
+        this.streamName = streamName;
+        this.maxOutstandingRecords = maxOutstandingRecords;
+        this.outstandingRecords = new Semaphore(maxOutstandingRecords);
+    }
+
+    public <T> CompletableFuture<int[]> write(List<T> records, Function<T, String> partitionKey, Function<T, ByteBuf> serializer)
+    {
+        if (records.isEmpty()) {
+            return CompletableFuture.completedFuture(SUCCESSFUL_BATCH);
+        }
+
+        if (!outstandingRecords.tryAcquire(records.size())) {
+            throw new RakamException("The event store is overloaded, please retry later", TOO_MANY_REQUESTS);
+        }
+
+        // the records are serialized before any of them is sent so that a batch with an invalid record is rejected as a whole
+        ByteBuf[] buffers = new ByteBuf[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            ByteBuf buffer;
+            try {
+                buffer = serializer.apply(records.get(i));
+            }
+            catch (RakamException e) {
+                release(records.size());
+                releaseAll(buffers);
+                throw e;
+            }
+            catch (Exception e) {
+                // the record is reported as failed
+                LOGGER.error(e, "Unable to serialize record");
+                continue;
+            }
+
+            buffers[i] = buffer;
+            if (buffer.readableBytes() > MAX_RECORD_SIZE) {
+                release(records.size());
+                releaseAll(buffers);
+                throw new RakamException("Too many event properties, the total size of an event must be less than or equal to 1MB, got " + buffer.readableBytes(),
+                        BAD_REQUEST);
+            }
+        }
+
+        CompletableFuture<int[]> future = new CompletableFuture<>();
+        // the failed indexes are marked with 1
+        int[] failed = new int[records.size()];
+        AtomicInteger remaining = new AtomicInteger(records.size());
+
+        for (int i = 0; i < records.size(); i++) {
+            int index = i;
+
+            if (buffers[i] == null) {
+                failed[index] = 1;
+                complete(future, failed, remaining);
+                continue;
+            }
+
+            ListenableFuture<UserRecordResult> result;
+            try {
+                // the producer copies the data so the buffer can be released once the record is added
+                result = sink.addUserRecord(streamName, partitionKey.apply(records.get(i)), buffers[i].nioBuffer());
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to add record to Kinesis producer");
+                failed[index] = 1;
+                complete(future, failed, remaining);
+                continue;
+            }
+            finally {
+                buffers[i].release();
+                buffers[i] = null;
+            }
+
+            Futures.addCallback(result, new FutureCallback<UserRecordResult>()
+            {
+                @Override
+                public void onSuccess(UserRecordResult result)
+                {
+                    if (!result.isSuccessful()) {
+                        failed[index] = 1;
+                    }
+                    complete(future, failed, remaining);
+                }
+
+                @Override
+                public void onFailure(Throwable t)
+                {
+                    failed[index] = 1;
+                    complete(future, failed, remaining);
+                }
+            }, directExecutor());
+        }
+
+        return future;
+    }
+
+    private static void releaseAll(ByteBuf[] buffers)
+    {
+        for (ByteBuf buffer : buffers) {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    public int getOutstandingRecords()
+    {
+        return maxOutstandingRecords - outstandingRecords.availablePermits();
+    }
+
+    private void release(int records)
+    {
+        outstandingRecords.release(records);
+    }
+
+    private void complete(CompletableFuture<int[]> future, int[] failed, AtomicInteger remaining)
+    {
+        release(1);
+        // the decrement publishes the writes to the failed array to the thread that completes the future
+        if (remaining.decrementAndGet() != 0) {
+            return;
+        }
+
+        int[] failedIndexes = new int[failed.length];
+        int count = 0;
+        for (int i = 0; i < failed.length; i++) {
+            if (failed[i] != 0) {
+                failedIndexes[count++] = i;
+            }
+        }
+
+        if (count > 0) {
+            LOGGER.warn("%d of %d records couldn't be sent to Kinesis", count, failed.length);
+        }
+        future.complete(count == 0 ? SUCCESSFUL_BATCH : Arrays.copyOf(failedIndexes, count));
+    }
+}
@@ -0,0 +1,99 @@
+package org.rakam.aws.kinesis;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class KinesisEventStoreConfig
+{
+    private boolean aggregationEnabled = true;
+    private long aggregationMaxCount = 1000;
+    private long aggregationMaxSize = 51200;
+    private Duration recordMaxBufferedTime = new Duration(100, MILLISECONDS);
+    private PartitionKeyStrategy partitionKeyStrategy = PartitionKeyStrategy.USER;
+    private int maxOutstandingRecords = 100_000;
+
+    public enum PartitionKeyStrategy
+    {
+        USER, COLLECTION, RANDOM
+    }
+
+    @Config("event.store.kinesis.aggregation-enabled")
+    public KinesisEventStoreConfig setAggregationEnabled(boolean aggregationEnabled)
+    {
+        this.aggregationEnabled = aggregationEnabled;
+        return this;
+    }
+
+    public boolean getAggregationEnabled()
+    {
+        return aggregationEnabled;
+    }
+
+    @Config("event.store.kinesis.aggregation-max-count")
+    public KinesisEventStoreConfig setAggregationMaxCount(long aggregationMaxCount)
+    {
+        this.aggregationMaxCount = aggregationMaxCount;
+        return this;
+    }
+
+    public long getAggregationMaxCount()
+    {
+        return aggregationMaxCount;
+    }
+
+    @Config("event.store.kinesis.aggregation-max-size")
+    @ConfigDescription("Maximum number of bytes that are packed into an aggregated Kinesis record")
+    public KinesisEventStoreConfig setAggregationMaxSize(long aggregationMaxSize)
+    {
+        this.aggregationMaxSize = aggregationMaxSize;
+        return this;
+    }
+
+    public long getAggregationMaxSize()
+    {
+        return aggregationMaxSize;
+    }
+
+    @Config("event.store.kinesis.record-max-buffered-time")
+    @ConfigDescription("Maximum time a record waits in the producer buffer before it's sent")
+    public KinesisEventStoreConfig setRecordMaxBufferedTime(Duration recordMaxBufferedTime)
+    {
+        this.recordMaxBufferedTime = recordMaxBufferedTime;
+        return this;
+    }
+
+    public Duration getRecordMaxBufferedTime()
+    {
+        return recordMaxBufferedTime;
+    }
+
+    @Config("event.store.kinesis.partition-key")
+    @ConfigDescription("USER keeps the events of a user in the same shard, COLLECTION keeps the events of a collection " +
+            "in the same shard and RANDOM distributes the events evenly")
+    public KinesisEventStoreConfig setPartitionKeyStrategy(PartitionKeyStrategy partitionKeyStrategy)
+    {
+        this.partitionKeyStrategy = partitionKeyStrategy;
+        return this;
+    }
+
+    public PartitionKeyStrategy getPartitionKeyStrategy()
+    {
+        return partitionKeyStrategy;
+    }
+
+    @Config("event.store.kinesis.max-outstanding-records")
+    @ConfigDescription("The batch requests are rejected while there are more records waiting to be sent to Kinesis")
+    public KinesisEventStoreConfig setMaxOutstandingRecords(int maxOutstandingRecords)
+    {
+        this.maxOutstandingRecords = maxOutstandingRecords;
+        return this;
+    }
+
+    public int getMaxOutstandingRecords()
+    {
+        return maxOutstandingRecords;
+    }
+}
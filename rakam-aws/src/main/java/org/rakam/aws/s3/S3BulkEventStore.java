@@ -1,18 +1,19 @@
 package org.rakam.aws.s3;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.airlift.slice.BasicSliceInput;
-import io.airlift.slice.DynamicSliceOutput;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.FilteredRecordWriter;
 import org.apache.avro.generic.GenericData;
@@ -26,15 +27,21 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
 
+import javax.annotation.PreDestroy;
+
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.rakam.util.AvroUtil.convertAvroSchema;
 
@@ -42,209 +49,190 @@ public class S3BulkEventStore
 {
     private final static Logger LOGGER = Logger.get(S3BulkEventStore.class);
     private final Metastore metastore;
-    private final AmazonS3Client s3Client;
+    private final AmazonS3 s3Client;
     private final AWSConfig config;
     private final int conditionalMagicFieldsSize;
-    private final AmazonCloudWatchAsyncClient cloudWatchClient;
-    private final AmazonKinesisClient kinesis;
+    private final AmazonCloudWatchAsync cloudWatchClient;
+    private final AmazonKinesis kinesis;
+    private final ExecutorService uploadExecutor;
 
     public S3BulkEventStore(Metastore metastore, AWSConfig config, FieldDependencyBuilder.FieldDependency fieldDependency)
+    {
+        this(metastore, config, fieldDependency, createS3Client(config), createKinesisClient(config), createCloudWatchClient(config));
+    }
+
+    @VisibleForTesting
+    S3BulkEventStore(Metastore metastore, AWSConfig config, FieldDependencyBuilder.FieldDependency fieldDependency,
+            AmazonS3 s3Client, AmazonKinesis kinesis, AmazonCloudWatchAsync cloudWatchClient)
     {
         this.metastore = metastore;
         this.config = config;
-        this.s3Client = new AmazonS3Client(config.getCredentials());
+        this.s3Client = s3Client;
+        this.kinesis = kinesis;
+        this.cloudWatchClient = cloudWatchClient;
+        this.conditionalMagicFieldsSize = fieldDependency.dependentFields.size();
+        // the collections of a bulk request are uploaded concurrently, each upload keeps a single part in memory
+        this.uploadExecutor = Executors.newFixedThreadPool(config.getEventStoreBulkUploadConcurrency(),
+                new ThreadFactoryBuilder().setNameFormat("s3-bulk-upload-%d").setDaemon(true).build());
+    }
+
+    private static AmazonS3 createS3Client(AWSConfig config)
+    {
+        AmazonS3Client s3Client = new AmazonS3Client(config.getCredentials());
         s3Client.setRegion(config.getAWSRegion());
         if (config.getS3Endpoint() != null) {
             s3Client.setEndpoint(config.getS3Endpoint());
         }
+        return s3Client;
+    }
 
-        kinesis = new AmazonKinesisClient(config.getCredentials());
+    private static AmazonKinesis createKinesisClient(AWSConfig config)
+    {
+        AmazonKinesisClient kinesis = new AmazonKinesisClient(config.getCredentials());
         kinesis.setRegion(config.getAWSRegion());
         if (config.getKinesisEndpoint() != null) {
             kinesis.setEndpoint(config.getKinesisEndpoint());
         }
+        return kinesis;
+    }
 
-        cloudWatchClient = new AmazonCloudWatchAsyncClient(config.getCredentials());
+    private static AmazonCloudWatchAsync createCloudWatchClient(AWSConfig config)
+    {
+        AmazonCloudWatchAsyncClient cloudWatchClient = new AmazonCloudWatchAsyncClient(config.getCredentials());
         cloudWatchClient.setRegion(config.getAWSRegion());
+        return cloudWatchClient;
+    }
 
-        this.conditionalMagicFieldsSize = fieldDependency.dependentFields.size();
+    @PreDestroy
+    public void destroy()
+    {
+        // the running uploads are completed, the callers of upload are blocked until then
+        uploadExecutor.shutdown();
     }
 
     public void upload(String project, List<Event> events, int tryCount)
     {
-        GenericData data = GenericData.get();
-
-        DynamicSliceOutput buffer = new DynamicSliceOutput(events.size() * 30);
-
         Map<String, List<Event>> map = new HashMap<>();
         events.forEach(event -> map.computeIfAbsent(event.collection(),
                 (col) -> new ArrayList<>()).add(event));
 
-        BinaryEncoder encoder = null;
-
         String batchId = UUID.randomUUID().toString();
 
-        List<String> uploadedFiles = new ArrayList<>();
-        try {
-            for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
-                buffer.reset();
-
-                List<SchemaField> collection = metastore.getCollection(project, entry.getKey());
-
-                Schema avroSchema = convertAvroSchema(collection);
-                DatumWriter writer = new FilteredRecordWriter(avroSchema, data);
-                encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
-
-                encoder.writeInt(collection.size());
-                for (SchemaField schemaField : collection) {
-                    encoder.writeString(schemaField.getName());
-                }
-
-                encoder.writeInt(entry.getValue().size());
-
-                int expectedSchemaSize = collection.size() + conditionalMagicFieldsSize;
-                for (Event event : entry.getValue()) {
-                    GenericRecord properties = event.properties();
-
-                    List<Schema.Field> existingFields = properties.getSchema().getFields();
-                    if (existingFields.size() != expectedSchemaSize) {
-                        GenericData.Record record = new GenericData.Record(avroSchema);
-                        for (int i = 0; i < existingFields.size(); i++) {
-                            if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
-                                record.put(i, properties.get(i));
-                            }
-                        }
-                        properties = record;
-                    }
-                    writer.write(properties, encoder);
-                }
+        List<String> uploadedFiles = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
+            futures.add(uploadExecutor.submit(() -> {
+                uploadCollection(project, entry.getKey(), entry.getValue(), batchId, uploadedFiles);
+                return null;
+            }));
+        }
 
-                ObjectMetadata objectMetadata = new ObjectMetadata();
-                int bulkSize = buffer.size();
-                objectMetadata.setContentLength(bulkSize);
-                String key = events.get(0).project() + "/" + entry.getKey() + "/" + batchId;
-                PutObjectRequest putObjectRequest = new PutObjectRequest(config.getEventStoreBulkS3Bucket(),
-                        key,
-                        new SafeSliceInputStream(new BasicSliceInput(buffer.slice())), objectMetadata);
-                putObjectRequest.getRequestClientOptions().setReadLimit(bulkSize);
-
-                s3Client.putObject(putObjectRequest);
-
-                ByteBuffer allocate = ByteBuffer.allocate(key.length() + 1 + 8);
-                allocate.put((byte) 1);
-                allocate.putLong(bulkSize);
-                allocate.put(key.getBytes(StandardCharsets.UTF_8));
-                allocate.clear();
-
-                putMetadataToKinesis(allocate, events.get(0).project(), entry.getKey(), 3);
-                uploadedFiles.add(key);
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                failure = e.getCause();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                failure = e;
             }
-
-            LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
-
-            cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
-                    .withNamespace("rakam-middleware-collection")
-                    .withMetricData(new MetricDatum()
-                            .withMetricName("bulk")
-                            .withValue(((Number) events.size()).doubleValue())
-                            .withDimensions(new Dimension().withName("project").withValue(project))));
         }
-        catch (IOException | AmazonClientException e) {
+
+        if (failure != null) {
             for (String uploadedFile : uploadedFiles) {
                 s3Client.deleteObject(config.getEventStoreBulkS3Bucket(), uploadedFile);
             }
-            if(tryCount <= 0) {
-                throw Throwables.propagate(e);
+
+            if (tryCount <= 0 || !(failure instanceof IOException || failure instanceof AmazonClientException)) {
+                throw Throwables.propagate(failure);
             }
 
             upload(project, events, tryCount - 1);
+            return;
         }
-    }
 
-    private void putMetadataToKinesis(ByteBuffer allocate, String project, String collection, int tryCount)
-    {
-        try {
-            kinesis.putRecord(config.getEventStoreStreamName(), allocate,
-                    project + "|" + collection);
-        }
-        catch (Exception e) {
-            if (tryCount == 0) {
-                throw e;
-            }
+        LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
 
-            putMetadataToKinesis(allocate, project, collection, tryCount - 1);
-        }
+        cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
+                .withNamespace("rakam-middleware-collection")
+                .withMetricData(new MetricDatum()
+                        .withMetricName("bulk")
+                        .withValue(((Number) events.size()).doubleValue())
+                        .withDimensions(new Dimension().withName("project").withValue(project))));
     }
 
-    private class SafeSliceInputStream
-            extends InputStream
+    private void uploadCollection(String project, String collectionName, List<Event> events, String batchId, List<String> uploadedFiles)
+            throws IOException
     {
-        private final BasicSliceInput sliceInput;
+        List<SchemaField> collection = metastore.getCollection(project, collectionName);
 
-        public SafeSliceInputStream(BasicSliceInput sliceInput)
-        {
-            this.sliceInput = sliceInput;
-        }
+        Schema avroSchema = convertAvroSchema(collection);
+        DatumWriter writer = new FilteredRecordWriter(avroSchema, GenericData.get());
 
-        @Override
-        public int read()
-                throws IOException
-        {
-            return sliceInput.read();
-        }
+        String key = project + "/" + collectionName + "/" + batchId;
+        S3MultipartOutputStream output = new S3MultipartOutputStream(s3Client, config.getEventStoreBulkS3Bucket(), key,
+                (int) config.getEventStoreBulkS3PartSize().toBytes(), 3);
+        try {
+            BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(output, null);
 
-        @Override
-        public int read(byte[] b)
-                throws IOException
-        {
-            return sliceInput.read(b);
-        }
+            encoder.writeInt(collection.size());
+            for (SchemaField schemaField : collection) {
+                encoder.writeString(schemaField.getName());
+            }
 
-        @Override
-        public int read(byte[] b, int off, int len)
-                throws IOException
-        {
-            return sliceInput.read(b, off, len);
-        }
+            encoder.writeInt(events.size());
 
-        @Override
-        public long skip(long n)
-                throws IOException
-        {
-            return sliceInput.skip(n);
-        }
+            int expectedSchemaSize = collection.size() + conditionalMagicFieldsSize;
+            for (Event event : events) {
+                GenericRecord properties = event.properties();
 
-        @Override
-        public int available()
-                throws IOException
-        {
-            return sliceInput.available();
-        }
+                List<Schema.Field> existingFields = properties.getSchema().getFields();
+                if (existingFields.size() != expectedSchemaSize) {
+                    GenericData.Record record = new GenericData.Record(avroSchema);
+                    for (int i = 0; i < existingFields.size(); i++) {
+                        if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
+                            record.put(i, properties.get(i));
+                        }
+                    }
+                    properties = record;
+                }
+                writer.write(properties, encoder);
+            }
 
-        @Override
-        public void close()
-                throws IOException
-        {
-            sliceInput.close();
+            output.close();
         }
-
-        @Override
-        public synchronized void mark(int readlimit)
-        {
-            throw new RuntimeException("mark/reset not supported");
+        catch (IOException | RuntimeException e) {
+            output.abort();
+            throw e;
         }
+        uploadedFiles.add(key);
 
-        @Override
-        public synchronized void reset()
-                throws IOException
-        {
-            throw new IOException("mark/reset not supported");
+        long bulkSize = output.getSize();
+        ByteBuffer allocate = ByteBuffer.allocate(key.length() + 1 + 8);
+        allocate.put((byte) 1);
+        allocate.putLong(bulkSize);
+        allocate.put(key.getBytes(StandardCharsets.UTF_8));
+        allocate.clear();
+
+        putMetadataToKinesis(allocate, project, collectionName, 3);
+    }
+
+    private void putMetadataToKinesis(ByteBuffer allocate, String project, String collection, int tryCount)
+    {
+        try {
+            kinesis.putRecord(config.getEventStoreStreamName(), allocate,
+                    project + "|" + collection);
         }
+        catch (Exception e) {
+            if (tryCount == 0) {
+                throw e;
+            }
 
-        @Override
-        public boolean markSupported()
-        {
-            return false;
+            putMetadataToKinesis(allocate, project, collection, tryCount - 1);
         }
     }
 }
@@ -0,0 +1,220 @@
+package org.rakam.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import io.airlift.log.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Streams the written bytes to a S3 object using a multipart upload so that at most one part is kept in memory.
+ * The parts are retried individually and the multipart upload is aborted if a part can't be uploaded so that
+ * the uploaded parts don't stay in the bucket. If the data fits in a single part, it's uploaded with a single request.
+ */
+public class S3MultipartOutputStream
+        extends OutputStream
+{
+    private final static Logger LOGGER = Logger.get(S3MultipartOutputStream.class);
+
+    // S3 doesn't accept parts smaller than 5MB except the last part
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final int maxRetries;
+    private final int partSize;
+    private final List<PartETag> parts = new ArrayList<>();
+
+    // grows up to the part size as the data is written since most of the streams are much smaller than a part
+    private byte[] buffer = new byte[0];
+    private int position;
+    private long size;
+    private String uploadId;
+    private boolean closed;
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, int partSize, int maxRetries)
+    {
+        checkArgument(partSize >= MIN_PART_SIZE, "part size must be at least %s bytes", MIN_PART_SIZE);
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.maxRetries = maxRetries;
+        this.partSize = partSize;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        checkOpen();
+        if (position == partSize) {
+            uploadPart();
+        }
+        ensureCapacity(position + 1);
+        buffer[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        checkOpen();
+        while (len > 0) {
+            if (position == partSize) {
+                uploadPart();
+            }
+            int length = Math.min(len, partSize - position);
+            ensureCapacity(position + length);
+            System.arraycopy(b, off, buffer, position, length);
+            position += length;
+            size += length;
+            off += length;
+            len -= length;
+        }
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buffer.length) {
+            int newLength = Math.max(buffer.length, INITIAL_BUFFER_SIZE);
+            while (newLength < capacity) {
+                newLength = (int) Math.min((long) newLength * 2, partSize);
+            }
+            buffer = Arrays.copyOf(buffer, newLength);
+        }
+    }
+
+    private void checkOpen()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(position);
+                PutObjectRequest request = new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, position), metadata);
+                request.getRequestClientOptions().setReadLimit(position + 1);
+                retry(() -> s3Client.putObject(request));
+                return;
+            }
+
+            if (position > 0) {
+                uploadPart();
+            }
+            retry(() -> s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, parts)));
+        }
+        catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards the uploaded parts. The stream can't be used after it's aborted.
+     */
+    public void abort()
+    {
+        closed = true;
+        if (uploadId == null) {
+            return;
+        }
+
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        }
+        catch (AmazonClientException e) {
+            LOGGER.warn(e, "Unable to abort multipart upload of %s", key);
+        }
+        uploadId = null;
+    }
+
+    private void uploadPart()
+            throws IOException
+    {
+        try {
+            if (uploadId == null) {
+                uploadId = retry(() -> s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)))
+                        .getUploadId();
+            }
+
+            int partNumber = parts.size() + 1;
+            int length = position;
+            UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(partNumber)
+                    .withPartSize(length);
+            parts.add(retry(() -> s3Client.uploadPart(request
+                    .withInputStream(new ByteArrayInputStream(buffer, 0, length))))
+                    .getPartETag());
+            position = 0;
+        }
+        catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private <T> T retry(Supplier<T> request)
+            throws IOException
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return request.get();
+            }
+            catch (AmazonClientException e) {
+                if (attempt >= maxRetries || !e.isRetryable()) {
+                    throw new IOException(String.format("Unable to upload %s to S3", key), e);
+                }
+                LOGGER.debug(e, "Retrying S3 request for %s (attempt %d)", key, attempt + 1);
+            }
+
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.rakam.aws.kinesis;
+
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.rakam.util.RakamException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestKinesisBatchWriter
+{
+    private final static Logger LOGGER = Logger.get(TestKinesisBatchWriter.class);
+
+    private static final long BUFFER_TIME_MILLIS = 5;
+    private static final long ROUND_TRIP_MILLIS = 20;
+
+    private ScheduledExecutorService executor;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        executor = Executors.newScheduledThreadPool(4);
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCompositeFuture()
+    {
+        StubProducer producer = new StubProducer(record -> true);
+        KinesisBatchWriter writer = new KinesisBatchWriter(producer, "stream", 1000);
+
+        CompletableFuture<int[]> future = writer.write(records(100), record -> record, TestKinesisBatchWriter::serialize);
+        assertFalse(future.isDone());
+        assertEquals(future.join().length, 0);
+        assertEquals(producer.received.size(), 100);
+        assertEquals(writer.getOutstandingRecords(), 0);
+    }
+
+    @Test
+    public void testFailedRecords()
+    {
+        StubProducer producer = new StubProducer(record -> !record.endsWith("3"));
+        KinesisBatchWriter writer = new KinesisBatchWriter(producer, "stream", 1000);
+
+        int[] failed = writer.write(records(25), record -> record, TestKinesisBatchWriter::serialize).join();
+        assertEquals(failed, new int[] {3, 13, 23});
+        assertEquals(writer.getOutstandingRecords(), 0);
+    }
+
+    @Test
+    public void testBackpressure()
+    {
+        StubProducer producer = new StubProducer(record -> true);
+        KinesisBatchWriter writer = new KinesisBatchWriter(producer, "stream", 150);
+
+        CompletableFuture<int[]> first = writer.write(records(100), record -> record, TestKinesisBatchWriter::serialize);
+        try {
+            writer.write(records(100), record -> record, TestKinesisBatchWriter::serialize);
+            fail("the batch must be rejected while the outstanding records exceed the limit");
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode().code(), 429);
+        }
+
+        first.join();
+        assertEquals(writer.write(records(100), record -> record, TestKinesisBatchWriter::serialize).join().length, 0);
+    }
+
+    @Test
+    public void testOversizeRecordRejectsWholeBatch()
+    {
+        StubProducer producer = new StubProducer(record -> true);
+        KinesisBatchWriter writer = new KinesisBatchWriter(producer, "stream", 1000);
+
+        List<String> records = new ArrayList<>(records(10));
+        records.set(5, Strings.repeat("a", KinesisBatchWriter.MAX_RECORD_SIZE + 1));
+        try {
+            writer.write(records, record -> record.substring(0, Math.min(record.length(), 10)), TestKinesisBatchWriter::serialize);
+            fail("the batch must be rejected");
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode().code(), 400);
+        }
+
+        // none of the records before the oversize record is sent
+        assertEquals(producer.received.size(), 0);
+        assertEquals(writer.getOutstandingRecords(), 0);
+    }
+
+    @Test
+    public void testThroughputComparedToFlushPerBatch()
+            throws Exception
+    {
+        int batches = 100;
+        List<String> batch = records(100);
+
+        // the previous implementation flushed the producer after each batch and held the caller until it's sent
+        BufferingProducer flushingProducer = new BufferingProducer();
+        long start = System.nanoTime();
+        for (int i = 0; i < batches; i++) {
+            List<ListenableFuture<UserRecordResult>> futures = new ArrayList<>();
+            for (String record : batch) {
+                futures.add(flushingProducer.addUserRecord("stream", record, UTF_8.encode(record)));
+            }
+            flushingProducer.flush();
+            Futures.allAsList(futures).get();
+        }
+        long flushPerBatch = System.nanoTime() - start;
+
+        BufferingProducer producer = new BufferingProducer();
+        KinesisBatchWriter writer = new KinesisBatchWriter(producer, "stream", 100_000);
+        start = System.nanoTime();
+        List<CompletableFuture<int[]>> futures = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            futures.add(writer.write(batch, record -> record, TestKinesisBatchWriter::serialize));
+        }
+        futures.forEach(CompletableFuture::join);
+        long composite = System.nanoTime() - start;
+
+        LOGGER.info("%d records: flush per batch sent %d requests in %d ms, composite futures sent %d requests in %d ms",
+                batches * batch.size(), flushingProducer.requests, NANOSECONDS.toMillis(flushPerBatch),
+                producer.requests, NANOSECONDS.toMillis(composite));
+
+        // a flush sends a request per batch while the producer fills the requests if the batches don't flush it
+        assertTrue(flushingProducer.requests >= batches);
+        assertTrue(producer.requests < flushingProducer.requests / 2,
+                format("%d requests without flush, %d requests with flush", producer.requests, flushingProducer.requests));
+    }
+
+    private static List<String> records(int count)
+    {
+        return IntStream.range(0, count).mapToObj(i -> "record" + i).collect(Collectors.toList());
+    }
+
+    private static ByteBuf serialize(String record)
+    {
+        return Unpooled.copiedBuffer(record, UTF_8);
+    }
+
+    /**
+     * Simulates the Kinesis producer: the records are buffered for a while and acknowledged after a round trip.
+     */
+    private class StubProducer
+            implements KinesisBatchWriter.RecordSink
+    {
+        private final Predicate<String> successful;
+        private final List<String> received = new ArrayList<>();
+
+        private StubProducer(Predicate<String> successful)
+        {
+            this.successful = successful;
+        }
+
+        @Override
+        public synchronized ListenableFuture<UserRecordResult> addUserRecord(String stream, String partitionKey, ByteBuffer data)
+        {
+            received.add(partitionKey);
+            SettableFuture<UserRecordResult> future = SettableFuture.create();
+            boolean success = successful.test(partitionKey);
+            executor.schedule(() -> future.set(new UserRecordResult(ImmutableList.of(), "0", "shard-0", success)),
+                    BUFFER_TIME_MILLIS + ROUND_TRIP_MILLIS, MILLISECONDS);
+            return future;
+        }
+    }
+
+    /**
+     * Simulates the buffering of the Kinesis producer: the records are sent in a single request when the request
+     * is full, the buffer time elapses or the producer is flushed, and acknowledged after a round trip.
+     */
+    private class BufferingProducer
+            implements KinesisBatchWriter.RecordSink
+    {
+        private static final int RECORDS_PER_REQUEST = 500;
+        private static final long MAX_BUFFERED_TIME_MILLIS = 100;
+
+        private final List<SettableFuture<UserRecordResult>> buffer = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+        private volatile int requests;
+
+        @Override
+        public synchronized ListenableFuture<UserRecordResult> addUserRecord(String stream, String partitionKey, ByteBuffer data)
+        {
+            SettableFuture<UserRecordResult> future = SettableFuture.create();
+            buffer.add(future);
+            if (buffer.size() >= RECORDS_PER_REQUEST) {
+                flush();
+            }
+            else if (timer == null) {
+                timer = executor.schedule(this::flush, MAX_BUFFERED_TIME_MILLIS, MILLISECONDS);
+            }
+            return future;
+        }
+
+        public synchronized void flush()
+        {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (buffer.isEmpty()) {
+                return;
+            }
+
+            requests++;
+            List<SettableFuture<UserRecordResult>> request = new ArrayList<>(buffer);
+            buffer.clear();
+            executor.schedule(() -> request.forEach(future ->
+                            future.set(new UserRecordResult(ImmutableList.of(), "0", "shard-0", true))),
+                    ROUND_TRIP_MILLIS, MILLISECONDS);
+        }
+    }
+}
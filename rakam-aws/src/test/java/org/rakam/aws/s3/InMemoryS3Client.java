@@ -0,0 +1,157 @@
+package org.rakam.aws.s3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process S3 fake that supports single and multipart uploads. Each request waits for the given latency
+ * to simulate the round trip. If the content is not kept, only the sizes of the objects are recorded.
+ */
+public class InMemoryS3Client
+        extends AmazonS3Client
+{
+    private final long latencyMillis;
+    private final boolean keepContent;
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    final Map<String, Long> objectSizes = new ConcurrentHashMap<>();
+    final Map<String, ConcurrentSkipListMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    final Map<String, AtomicLong> uploadSizes = new ConcurrentHashMap<>();
+    final AtomicInteger abortedUploads = new AtomicInteger();
+    final AtomicInteger failingRequests = new AtomicInteger();
+    // the highest number of the requests that were in progress at the same time
+    final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    public InMemoryS3Client(long latencyMillis, boolean keepContent)
+    {
+        super(new BasicAWSCredentials("access", "secret"));
+        this.latencyMillis = latencyMillis;
+        this.keepContent = keepContent;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request)
+    {
+        roundTrip();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        objectSizes.put(request.getKey(), read(request.getInputStream(), content));
+        if (keepContent) {
+            objects.put(request.getKey(), content.toByteArray());
+        }
+        return new PutObjectResult();
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request)
+    {
+        roundTrip();
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        uploadSizes.put(uploadId, new AtomicLong());
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request)
+    {
+        roundTrip();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        uploadSizes.get(request.getUploadId()).addAndGet(read(request.getInputStream(), content));
+        uploads.get(request.getUploadId()).put(request.getPartNumber(), content.toByteArray());
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(Integer.toString(request.getPartNumber()));
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request)
+    {
+        roundTrip();
+        ConcurrentSkipListMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (PartETag partETag : request.getPartETags()) {
+            byte[] part = parts.get(partETag.getPartNumber());
+            content.write(part, 0, part.length);
+        }
+        objectSizes.put(request.getKey(), uploadSizes.remove(request.getUploadId()).get());
+        if (keepContent) {
+            objects.put(request.getKey(), content.toByteArray());
+        }
+        return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request)
+    {
+        uploads.remove(request.getUploadId());
+        uploadSizes.remove(request.getUploadId());
+        abortedUploads.incrementAndGet();
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key)
+    {
+        objects.remove(key);
+        objectSizes.remove(key);
+    }
+
+    private void roundTrip()
+    {
+        if (failingRequests.get() > 0 && failingRequests.getAndDecrement() > 0) {
+            throw new AmazonClientException("Simulated S3 failure");
+        }
+
+        maxConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(latencyMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        }
+        finally {
+            concurrentRequests.decrementAndGet();
+        }
+    }
+
+    private long read(InputStream inputStream, ByteArrayOutputStream content)
+    {
+        try {
+            if (keepContent) {
+                return ByteStreams.copy(inputStream, content);
+            }
+            return ByteStreams.copy(inputStream, ByteStreams.nullOutputStream());
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.rakam.aws.s3;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import io.airlift.log.Logger;
+import io.airlift.units.DataSize;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+import org.rakam.EventBuilder;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.aws.AWSConfig;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.airlift.units.DataSize.Unit.MEGABYTE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestS3BulkEventStore
+{
+    private final static Logger LOGGER = Logger.get(TestS3BulkEventStore.class);
+
+    private static final String PROJECT = "test";
+    private static final int PART_SIZE = S3MultipartOutputStream.MIN_PART_SIZE;
+
+    @Test
+    public void testSinglePartUpload()
+            throws IOException
+    {
+        InMemoryS3Client s3 = new InMemoryS3Client(0, true);
+        byte[] data = "small object".getBytes(UTF_8);
+        try (S3MultipartOutputStream output = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 3)) {
+            output.write(data);
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test
+    public void testMultipartUploadWithRetries()
+            throws IOException
+    {
+        InMemoryS3Client s3 = new InMemoryS3Client(0, true);
+        byte[] data = new byte[PART_SIZE * 2 + 1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        S3MultipartOutputStream output = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 3);
+        output.write(data, 0, PART_SIZE + 10);
+        s3.failingRequests.set(2);
+        output.write(data, PART_SIZE + 10, data.length - PART_SIZE - 10);
+        output.close();
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(output.getSize(), data.length);
+        assertEquals(s3.abortedUploads.get(), 0);
+    }
+
+    @Test
+    public void testAbortOnFailure()
+            throws IOException
+    {
+        InMemoryS3Client s3 = new InMemoryS3Client(0, true);
+        S3MultipartOutputStream output = new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, 1);
+        // the first part is uploaded, the second one waits in the buffer
+        output.write(new byte[PART_SIZE * 2]);
+        assertEquals(s3.uploads.size(), 1);
+
+        s3.failingRequests.set(Integer.MAX_VALUE);
+        try {
+            output.write(1);
+            fail("the upload must fail after the retries");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(s3.abortedUploads.get(), 1);
+        assertTrue(s3.uploads.isEmpty());
+        assertFalse(s3.objects.containsKey("key"));
+    }
+
+    @Test
+    public void testConcurrentCollectionUploads()
+            throws IOException
+    {
+        List<Event> events = createEvents(4, 20_000);
+
+        InMemoryS3Client sequentialS3 = new InMemoryS3Client(50, true);
+        long sequential = timeUpload(sequentialS3, new FakeKinesis(), 1, events);
+
+        InMemoryS3Client concurrentS3 = new InMemoryS3Client(50, true);
+        FakeKinesis kinesis = new FakeKinesis();
+        long concurrent = timeUpload(concurrentS3, kinesis, 4, events);
+
+        LOGGER.info("Bulk upload of %d events: sequential %d ms, concurrent %d ms",
+                events.size(), NANOSECONDS.toMillis(sequential), NANOSECONDS.toMillis(concurrent));
+        assertEquals(sequentialS3.maxConcurrentRequests.get(), 1);
+        assertTrue(concurrentS3.maxConcurrentRequests.get() > 1, "the collections must be uploaded concurrently");
+        assertTrue(concurrentS3.maxConcurrentRequests.get() <= 4, "the upload concurrency must be bounded");
+
+        assertEquals(concurrentS3.objects.size(), 4);
+        assertEquals(concurrentS3.abortedUploads.get(), 0);
+        for (Map.Entry<String, byte[]> entry : concurrentS3.objects.entrySet()) {
+            assertTrue(entry.getValue().length > PART_SIZE, "collections must be uploaded in multiple parts");
+            assertEquals(kinesis.bulkSizes.get(entry.getKey()).longValue(), entry.getValue().length);
+
+            BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(entry.getValue(), null);
+            int fieldCount = decoder.readInt();
+            for (int i = 0; i < fieldCount; i++) {
+                decoder.readString();
+            }
+            assertEquals(decoder.readInt(), 20_000);
+        }
+    }
+
+    @Test
+    public void testPeakHeapOfStreamingUpload()
+            throws Exception
+    {
+        long total = new DataSize(1, DataSize.Unit.GIGABYTE).toBytes();
+        int collections = 4;
+        int payloadSize = 16 * 1024;
+        int eventsPerCollection = (int) (total / collections / payloadSize);
+
+        // the same event instance is repeated so that the request itself stays small,
+        // the payload is a Utf8 value that is written without being copied
+        List<Event> events = new ArrayList<>();
+        for (Event event : createEvents(collections, 1)) {
+            event.properties().put("payload", new Utf8(Strings.repeat("x", payloadSize)));
+            events.addAll(Collections.nCopies(eventsPerCollection, event));
+        }
+
+        InMemoryS3Client s3 = new InMemoryS3Client(5, false);
+        FakeKinesis kinesis = new FakeKinesis();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+
+        AtomicLong peak = new AtomicLong(baseline);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (running.get()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        long elapsed;
+        try {
+            elapsed = timeUpload(s3, kinesis, collections, (int) new DataSize(16, MEGABYTE).toBytes(), events);
+        }
+        finally {
+            running.set(false);
+            sampler.join();
+        }
+
+        long peakIncrease = peak.get() - baseline;
+        LOGGER.info("Uploaded %s in %d ms, peak heap increase %s", new DataSize(total, DataSize.Unit.BYTE).convertToMostSuccinctDataSize(),
+                NANOSECONDS.toMillis(elapsed), new DataSize(peakIncrease, DataSize.Unit.BYTE).convertToMostSuccinctDataSize());
+
+        assertEquals(s3.objectSizes.size(), collections);
+        for (Map.Entry<String, Long> entry : s3.objectSizes.entrySet()) {
+            assertTrue(entry.getValue() > (long) eventsPerCollection * payloadSize, entry.getKey());
+            assertEquals(kinesis.bulkSizes.get(entry.getKey()), entry.getValue());
+        }
+        // a single part per collection is buffered, the serialized payload never has to fit in the heap
+        assertTrue(peakIncrease < total / 4, "peak heap increase: " + peakIncrease);
+    }
+
+    private long timeUpload(InMemoryS3Client s3, FakeKinesis kinesis, int concurrency, List<Event> events)
+    {
+        return timeUpload(s3, kinesis, concurrency, PART_SIZE, events);
+    }
+
+    private long timeUpload(InMemoryS3Client s3, FakeKinesis kinesis, int concurrency, int partSize, List<Event> events)
+    {
+        AWSConfig config = new AWSConfig()
+                .setEventStoreBulkS3Bucket("bucket")
+                .setEventStoreStreamName("stream")
+                .setEventStoreBulkS3PartSize(new DataSize(partSize, DataSize.Unit.BYTE))
+                .setEventStoreBulkUploadConcurrency(concurrency);
+
+        S3BulkEventStore store = new S3BulkEventStore(metastore, config, new FieldDependencyBuilder().build(),
+                s3, kinesis, new FakeCloudWatch());
+        try {
+            long start = System.nanoTime();
+            store.upload(PROJECT, events, 0);
+            return System.nanoTime() - start;
+        }
+        finally {
+            store.destroy();
+        }
+    }
+
+    private InMemoryMetastore metastore;
+
+    private List<Event> createEvents(int collections, int eventsPerCollection)
+    {
+        metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        metastore.createProject(PROJECT);
+        EventBuilder builder = new EventBuilder(PROJECT, metastore);
+
+        String padding = Strings.repeat("x", 300);
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < eventsPerCollection; i++) {
+            for (int collection = 0; collection < collections; collection++) {
+                events.add(builder.createEvent("collection" + collection, ImmutableMap.of(
+                        "id", (long) i,
+                        "payload", padding)));
+            }
+        }
+        return events;
+    }
+
+    private static class FakeKinesis
+            extends AmazonKinesisClient
+    {
+        private final Map<String, Long> bulkSizes = new ConcurrentHashMap<>();
+
+        public FakeKinesis()
+        {
+            super(new BasicAWSCredentials("access", "secret"));
+        }
+
+        @Override
+        public PutRecordResult putRecord(String streamName, ByteBuffer data, String partitionKey)
+        {
+            data.get();
+            long size = data.getLong();
+            byte[] key = new byte[data.remaining()];
+            data.get(key);
+            bulkSizes.put(new String(key, UTF_8).trim(), size);
+            return new PutRecordResult();
+        }
+    }
+
+    private static class FakeCloudWatch
+            extends AmazonCloudWatchAsyncClient
+    {
+        public FakeCloudWatch()
+        {
+            super(new BasicAWSCredentials("access", "secret"));
+        }
+
+        @Override
+        public Future<Void> putMetricDataAsync(PutMetricDataRequest request)
+        {
+            return null;
+        }
+    }
+}
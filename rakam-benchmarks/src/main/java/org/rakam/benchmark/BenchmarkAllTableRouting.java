@@ -0,0 +1,154 @@
+package org.rakam.benchmark;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.eventbus.EventBus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.TestingConfigManager;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.event.TestingEnvironment;
+import org.rakam.presto.analysis.PrestoAllTableService;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.report.QueryResult;
+import org.rakam.util.lock.LocalLockService;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Measures the queries on _all for a project with many collections end to end on a testing Presto server,
+ * once routed to the physical table that is built by {@link PrestoAllTableService} and once as the union of
+ * all the collections. The query is rewritten the same way {@link org.rakam.report.QueryExecutorService} does.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BenchmarkAllTableRouting
+{
+    private static final String PROJECT = "benchmark_all_table";
+    private static final String QUERY = "select _collection, count(distinct _user) from _all " +
+            "where _time between timestamp '2016-01-01' and timestamp '2016-02-01' group by 1";
+    private static final FieldType[] TYPES = {STRING, FieldType.LONG, FieldType.DOUBLE, FieldType.BOOLEAN};
+
+    @Param({"100"})
+    private int collections;
+
+    @Param({"1000"})
+    private int eventsPerCollection;
+
+    @Param({"true", "false"})
+    private boolean physicalAllTable;
+
+    private PrestoRakamRaptorMetastore metastore;
+    private PrestoQueryExecutor executor;
+    private Statement statement;
+
+    @Setup
+    public void setup()
+            throws InterruptedException
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment(false);
+        PrestoConfig config = new PrestoConfig()
+                .setAddress(testingEnvironment.getPrestoConfig().getAddress())
+                .setColdStorageConnector(testingEnvironment.getPrestoConfig().getColdStorageConnector())
+                .setPhysicalAllTableEnabled(physicalAllTable);
+        ProjectConfig projectConfig = new ProjectConfig();
+
+        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), projectConfig, config);
+        metastore.setup();
+        executor = new PrestoQueryExecutor(projectConfig, config, null, null, metastore);
+        // TODO: Presto throws "No node available" error, find a way to avoid this ugly hack.
+        Thread.sleep(1000);
+
+        metastore.createProject(PROJECT);
+        Random random = new Random(0);
+        for (int i = 0; i < collections; i++) {
+            Set<SchemaField> fields = new HashSet<>();
+            fields.add(new SchemaField("_time", TIMESTAMP));
+            fields.add(new SchemaField("_user", STRING));
+            fields.add(new SchemaField("_shard_time", TIMESTAMP));
+            for (int column = 0; column < 20; column++) {
+                fields.add(new SchemaField("column" + random.nextInt(100), TYPES[random.nextInt(TYPES.length)]));
+            }
+            String collection = "collection" + i;
+            metastore.getOrCreateCollectionFields(PROJECT, collection, fields);
+
+            execute(format("INSERT INTO %s.%s.%s (_time, _user, _shard_time) " +
+                            "SELECT timestamp '2016-01-01' + id * interval '1' minute, cast(id %% 100 as varchar), timestamp '2016-01-01' " +
+                            "FROM UNNEST (sequence(1, %d)) t (id)",
+                    config.getColdStorageConnector(), PROJECT, collection, eventsPerCollection));
+        }
+
+        if (physicalAllTable) {
+            new PrestoAllTableService(config, projectConfig, metastore, new TestingConfigManager(), executor, new LocalLockService())
+                    .update(PROJECT);
+        }
+        statement = new SqlParser().createStatement(QUERY);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        metastore.deleteProject(PROJECT);
+        metastore.destroy();
+    }
+
+    @Benchmark
+    public QueryResult query()
+    {
+        String query = RakamSqlFormatter.formatSql(statement,
+                executor.getTableNameMapper(PROJECT, statement, Optional.empty(), new HashMap<>(), "collection"), '"');
+        return execute(query);
+    }
+
+    private QueryResult execute(String query)
+    {
+        QueryResult result = executor.executeRawQuery(query).getResult().join();
+        if (result.isFailed()) {
+            throw new IllegalStateException(result.getError().message);
+        }
+        return result;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkAllTableRouting.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
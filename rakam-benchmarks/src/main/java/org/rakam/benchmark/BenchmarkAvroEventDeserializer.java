@@ -0,0 +1,105 @@
+package org.rakam.benchmark;
+
+import io.airlift.slice.BasicSliceInput;
+import io.airlift.slice.DynamicSliceOutput;
+import io.airlift.slice.Slice;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.AvroEventDeserializer;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.benchmark.BenchmarkEvents.PROJECT;
+
+/**
+ * Deserializes the Avro encoded bulk uploads of a collection.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkAvroEventDeserializer
+{
+    @Param({"10", "100"})
+    private int properties;
+
+    @Param({"1000"})
+    private int events;
+
+    private AvroEventDeserializer deserializer;
+    private String collection;
+    private Slice body;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        BenchmarkEvents generator = new BenchmarkEvents(properties, 1);
+        generator.createCollections(metastore);
+        collection = generator.getCollection(0);
+        deserializer = new AvroEventDeserializer(metastore);
+
+        List<Event> list = generator.nextEvents(metastore, events);
+        Schema schema = list.get(0).properties().getSchema();
+        byte[] schemaJson = schema.toString().getBytes(UTF_8);
+
+        DynamicSliceOutput output = new DynamicSliceOutput(1024);
+        output.writeInt(schemaJson.length);
+        output.writeBytes(schemaJson);
+        output.writeInt(list.size());
+
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(output, null);
+        GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema);
+        for (Event event : list) {
+            writer.write(event.properties(), encoder);
+        }
+        encoder.flush();
+        body = output.slice();
+    }
+
+    @Benchmark
+    public EventList deserialize()
+            throws IOException
+    {
+        return deserializer.deserialize(PROJECT, collection, new BasicSliceInput(body));
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkAvroEventDeserializer.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,115 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.clickhouse.analysis.ClickHouseQueryResult;
+import org.rakam.clickhouse.analysis.ClickHouseRowBinaryReader;
+import org.rakam.clickhouse.analysis.RowBinaryWriter;
+import org.rakam.util.JsonHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.DATE_TIME_FORMATTER;
+
+/**
+ * Compares decoding the JSONCompact output of ClickHouse, which the query execution used before, with
+ * decoding the RowBinaryWithNamesAndTypes output of the same result.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkClickHouseResultDecoding
+{
+    private static final String[] NAMES = {"_user", "url", "_time", "amount", "tags"};
+    private static final String[] TYPES = {"UInt64", "String", "DateTime", "Float64", "Array(String)"};
+
+    @Param({"10000", "100000"})
+    private int rows;
+
+    private byte[] json;
+    private byte[] rowBinary;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(0);
+        RowBinaryWriter writer = new RowBinaryWriter().header(NAMES, TYPES);
+        List<List<Object>> data = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            long user = random.nextInt(100000);
+            String url = "/page/" + random.nextInt(1000);
+            int time = 1500000000 + random.nextInt(86400 * 30);
+            double amount = random.nextDouble() * 100;
+            String tag = "tag" + random.nextInt(10);
+
+            writer.int64(user).string(url).int32(time).float64(amount).varInt(1).string(tag);
+            // JSONCompact quotes the 64 bit integers
+            data.add(ImmutableList.of(String.valueOf(user), url,
+                    DATE_TIME_FORMATTER.format(Instant.ofEpochSecond(time).atZone(UTC)), amount, ImmutableList.of(tag)));
+        }
+        rowBinary = writer.toByteArray();
+
+        List<ImmutableMap<String, String>> meta = new ArrayList<>();
+        for (int i = 0; i < NAMES.length; i++) {
+            meta.add(ImmutableMap.of("name", NAMES[i], "type", TYPES[i]));
+        }
+        json = JsonHelper.encodeAsBytes(ImmutableMap.of("meta", meta, "data", data, "rows", rows));
+    }
+
+    @Benchmark
+    public List<List<Object>> json()
+            throws IOException
+    {
+        ClickHouseQueryResult result = JsonHelper.read(new ByteArrayInputStream(json), ClickHouseQueryResult.class);
+        for (List<Object> row : result.data) {
+            row.set(0, Long.parseLong(row.get(0).toString()));
+            row.set(2, LocalDateTime.parse(row.get(2).toString(), DATE_TIME_FORMATTER).toInstant(UTC));
+            row.set(3, Double.parseDouble(row.get(3).toString()));
+        }
+        return result.data;
+    }
+
+    @Benchmark
+    public List<List<Object>> rowBinary()
+            throws IOException
+    {
+        return new ClickHouseRowBinaryReader(new ByteArrayInputStream(rowBinary)).readRows();
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkClickHouseResultDecoding.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,84 @@
+package org.rakam.benchmark;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.clickhouse.collection.ClickHouseEventStore.writeRowBinary;
+
+/**
+ * Encodes the queued events of a collection in the RowBinary format that is sent to ClickHouse. The output is
+ * discarded so the benchmark measures only the encoding.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkClickHouseRowBinary
+{
+    @Param({"10", "100"})
+    private int properties;
+
+    @Param({"1000"})
+    private int events;
+
+    private String timeColumn;
+    private List<SchemaField> schema;
+    private List<Event> batch;
+
+    @Setup
+    public void setup()
+    {
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        BenchmarkEvents generator = new BenchmarkEvents(properties, 1);
+        generator.createCollections(metastore);
+        batch = generator.nextEvents(metastore, events);
+        schema = batch.get(0).schema();
+        timeColumn = new ProjectConfig().getTimeColumn();
+    }
+
+    @Benchmark
+    public long encode()
+            throws IOException
+    {
+        CountingOutputStream output = new CountingOutputStream(ByteStreams.nullOutputStream());
+        writeRowBinary(batch, schema, timeColumn, output);
+        return output.getCount();
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkClickHouseRowBinary.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,123 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.cfg.ContextAttributes;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.TestingConfigManager;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.metadata.SchemaChecker;
+import org.rakam.collection.CsvEventDeserializer;
+import org.rakam.collection.EventList;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.util.JsonHelper;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.benchmark.BenchmarkEvents.PROJECT;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Deserializes the CSV bulk uploads of a collection, the array and map values are encoded as JSON in the cells.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkCsvEventDeserializer
+{
+    @Param({"10", "100"})
+    private int properties;
+
+    @Param({"1000"})
+    private int events;
+
+    private ObjectReader reader;
+    private byte[] body;
+
+    @Setup
+    public void setup()
+    {
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        BenchmarkEvents generator = new BenchmarkEvents(properties, 1);
+        generator.createCollections(metastore);
+
+        CsvMapper mapper = new CsvMapper();
+        mapper.registerModule(new SimpleModule().addDeserializer(EventList.class,
+                new CsvEventDeserializer(metastore, new ProjectConfig(), new TestingConfigManager(),
+                        new SchemaChecker(metastore, fieldDependency), fieldDependency)));
+        reader = mapper.reader(EventList.class).with(ContextAttributes.getEmpty()
+                .withSharedAttribute("project", PROJECT)
+                .withSharedAttribute("collection", generator.getCollection(0))
+                .withSharedAttribute("apiKey", "apiKey"));
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(generator.getFields().stream().map(SchemaField::getName).collect(Collectors.joining(","))).append('\n');
+        for (int i = 0; i < events; i++) {
+            Map<String, Object> values = generator.nextProperties();
+            builder.append(generator.getFields().stream()
+                    .map(field -> toCell(field, values.get(field.getName())))
+                    .collect(Collectors.joining(","))).append('\n');
+        }
+        body = builder.toString().getBytes(UTF_8);
+    }
+
+    private static String toCell(SchemaField field, Object value)
+    {
+        String cell;
+        if (field.getType() == TIMESTAMP) {
+            cell = Instant.ofEpochMilli((Long) value).toString();
+        }
+        else if (field.getType().isArray() || field.getType().isMap()) {
+            cell = JsonHelper.encode(value);
+        }
+        else {
+            cell = value.toString();
+        }
+        return '"' + cell.replace("\"", "\"\"") + '"';
+    }
+
+    @Benchmark
+    public EventList deserialize()
+            throws IOException
+    {
+        return reader.readValue(body);
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkCsvEventDeserializer.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
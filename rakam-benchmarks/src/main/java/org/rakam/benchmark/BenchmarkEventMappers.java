@@ -0,0 +1,167 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.mapper.geoip.maxmind.ip2location.GeoIPModuleConfig;
+import org.rakam.collection.mapper.geoip.maxmind.ip2location.IP2LocationGeoIPEventMapper;
+import org.rakam.module.website.ReferrerEventMapper;
+import org.rakam.module.website.UserAgentEventMapper;
+import org.rakam.module.website.WebsiteMapperConfig;
+import org.rakam.module.website.WebsiteParseCache;
+import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.SyncEventMapper;
+import org.rakam.util.AvroUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.apache.avro.Schema.Type.NULL;
+import static org.apache.avro.Schema.Type.STRING;
+import static org.rakam.collection.mapper.geoip.maxmind.ip2location.IPReader.INDEX_EXTENSION;
+
+/**
+ * Runs the events through the mappers that are enabled in a typical website deployment, the user agent, referrer and
+ * IP2Location mappers. The IP2Location database is generated with ranges that cover the whole IPv4 address space.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkEventMappers
+{
+    private static final int EVENTS = 1_000;
+    private static final int IP_RANGES = 100_000;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/52.0.2743.116 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:47.0) Gecko/20100101 Firefox/47.0",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 9_3_2 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13F69 Safari/601.1",
+            "Mozilla/5.0 (Linux; Android 6.0.1; SM-G920F Build/MMB29K) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/51.0.2704.81 Mobile Safari/537.36",
+    };
+
+    private static final String[] REFERRERS = {
+            "https://www.google.com/?q=rakam",
+            "https://www.facebook.com/",
+            "https://twitter.com/rakamio",
+            "https://duckduckgo.com/?q=analytics",
+    };
+
+    private File database;
+    private List<SyncEventMapper> mappers;
+    private Schema schema;
+    private String[][] values;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        Random random = new Random(0);
+
+        database = File.createTempFile("ip2location", ".csv");
+        try (Writer writer = Files.newBufferedWriter(database.toPath(), UTF_8)) {
+            long rangeSize = (1L << 32) / IP_RANGES;
+            for (int i = 0; i < IP_RANGES; i++) {
+                int location = random.nextInt(50_000);
+                writer.write(format("\"%d\",\"%d\",\"C%d\",\"Country\",\"Region%d\",\"City%d\",\"%f\",\"%f\"\n",
+                        i * rangeSize, (i + 1) * rangeSize - 1, location % 250, location % 5000, location, location / 1000.0, location / 2000.0));
+            }
+        }
+
+        WebsiteParseCache cache = new WebsiteParseCache(new WebsiteMapperConfig());
+        mappers = ImmutableList.of(
+                new UserAgentEventMapper(new WebsiteMapperConfig(), cache),
+                new ReferrerEventMapper(cache),
+                new IP2LocationGeoIPEventMapper(new GeoIPModuleConfig().setDatabaseUrl("file://" + database.getAbsolutePath())));
+
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mappers.forEach(mapper -> mapper.addFieldDependency(builder));
+        FieldDependencyBuilder.FieldDependency dependency = builder.build();
+
+        ImmutableList.Builder<Schema.Field> fields = ImmutableList.builder();
+        dependency.dependentFields.values().stream()
+                .flatMap(List::stream)
+                .map(AvroUtil::generateAvroField)
+                .forEach(fields::add);
+        for (String source : dependency.dependentFields.keySet()) {
+            fields.add(new Schema.Field(source, Schema.create(STRING), null, null));
+        }
+        fields.add(new Schema.Field("_host", Schema.create(NULL), null, null));
+        schema = Schema.createRecord(fields.build());
+
+        values = new String[EVENTS][];
+        for (int i = 0; i < EVENTS; i++) {
+            values[i] = new String[] {
+                    USER_AGENTS[random.nextInt(USER_AGENTS.length)],
+                    REFERRERS[random.nextInt(REFERRERS.length)] + random.nextInt(1000),
+                    format("%d.%d.%d.%d", random.nextInt(224), random.nextInt(256), random.nextInt(256), random.nextInt(256))};
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        database.delete();
+        new File(database.getAbsolutePath() + INDEX_EXTENSION).delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Event map()
+    {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        Event event = null;
+        for (String[] value : values) {
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", value[0]);
+            properties.put("_referrer", value[1]);
+            properties.put("_ip", value[2]);
+
+            event = new Event(BenchmarkEvents.PROJECT, "pageview", null, null, properties);
+            for (SyncEventMapper mapper : mappers) {
+                mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, address, null);
+            }
+        }
+        return event;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkEventMappers.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,152 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_STRING;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+
+/**
+ * Generates the payloads of the benchmarks. The events are spread over many collections, each event has the given
+ * number of properties and a part of the properties are arrays and nested objects which are mapped to the MAP type.
+ */
+public final class BenchmarkEvents
+{
+    public static final String PROJECT = "benchmark";
+
+    private static final FieldType[] PROPERTY_TYPES = {STRING, LONG, DOUBLE, BOOLEAN, STRING, ARRAY_STRING, MAP_STRING};
+    private static final long START_TIME = 1483228800000L;
+
+    private final Random random;
+    private final List<SchemaField> fields;
+    private final int collections;
+
+    public BenchmarkEvents(int properties, int collections)
+    {
+        this.random = new Random(0);
+        this.collections = collections;
+
+        ImmutableList.Builder<SchemaField> builder = ImmutableList.builder();
+        builder.add(new SchemaField("_user", STRING));
+        builder.add(new SchemaField("_time", TIMESTAMP));
+        for (int i = 0; i < properties; i++) {
+            builder.add(new SchemaField("property_" + i, PROPERTY_TYPES[i % PROPERTY_TYPES.length]));
+        }
+        this.fields = builder.build();
+    }
+
+    public List<SchemaField> getFields()
+    {
+        return fields;
+    }
+
+    public String getCollection(int index)
+    {
+        return "collection_" + (index % collections);
+    }
+
+    /**
+     * Creates the collections in the metastore so that the benchmarks don't measure the schema changes.
+     */
+    public void createCollections(Metastore metastore)
+    {
+        if (!metastore.getProjects().contains(PROJECT)) {
+            metastore.createProject(PROJECT);
+        }
+        for (int i = 0; i < collections; i++) {
+            metastore.getOrCreateCollectionFields(PROJECT, getCollection(i), ImmutableSet.copyOf(fields));
+        }
+    }
+
+    public Map<String, Object> nextProperties()
+    {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        for (SchemaField field : fields) {
+            properties.put(field.getName(), nextValue(field));
+        }
+        return properties;
+    }
+
+    public List<Map<String, Object>> nextProperties(int count)
+    {
+        List<Map<String, Object>> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(nextProperties());
+        }
+        return list;
+    }
+
+    /**
+     * Creates the events using the schema of the collections in the metastore, the stores expect the fields of the
+     * record in the order of the collection schema.
+     */
+    public List<Event> nextEvents(Metastore metastore, int count)
+    {
+        Map<String, List<SchemaField>> schemas = new LinkedHashMap<>();
+        Map<String, Schema> avroSchemas = new LinkedHashMap<>();
+
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String collection = getCollection(i);
+            List<SchemaField> schema = schemas.computeIfAbsent(collection, name -> metastore.getCollection(PROJECT, name));
+            Schema avroSchema = avroSchemas.computeIfAbsent(collection, name -> AvroUtil.convertAvroSchema(schema));
+
+            GenericData.Record record = new GenericData.Record(avroSchema);
+            nextProperties().forEach(record::put);
+            events.add(new Event(PROJECT, collection, null, schema, record));
+        }
+        return events;
+    }
+
+    private Object nextValue(SchemaField field)
+    {
+        if (field.getName().equals("_user")) {
+            return "user" + random.nextInt(100_000);
+        }
+
+        switch (field.getType()) {
+            case STRING:
+                return "value" + random.nextInt(1_000);
+            case LONG:
+                return (long) random.nextInt(1_000_000);
+            case DOUBLE:
+                return random.nextDouble() * 1000;
+            case BOOLEAN:
+                return random.nextBoolean();
+            case TIMESTAMP:
+                return START_TIME + random.nextInt(86_400_000);
+            case ARRAY_STRING:
+                List<String> array = new ArrayList<>();
+                for (int i = random.nextInt(5); i >= 0; i--) {
+                    array.add("item" + random.nextInt(100));
+                }
+                return array;
+            case MAP_STRING:
+                Map<String, String> map = new LinkedHashMap<>();
+                for (int i = random.nextInt(5); i >= 0; i--) {
+                    map.put("key" + random.nextInt(20), "value" + random.nextInt(100));
+                }
+                return map;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
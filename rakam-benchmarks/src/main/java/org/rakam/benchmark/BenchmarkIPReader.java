@@ -0,0 +1,89 @@
+package org.rakam.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.collection.mapper.geoip.maxmind.ip2location.IPReader;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@State(Scope.Thread)
+@OutputTimeUnit(NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkIPReader
+{
+    private static final int LOOKUPS = 10_000;
+
+    @Param({"1000", "1000000"})
+    private int ranges;
+
+    private IPReader reader;
+    private long[] addresses;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        Random random = new Random(0);
+        StringBuilder builder = new StringBuilder();
+        long start = 0;
+        for (int i = 0; i < ranges; i++) {
+            long end = start + 1 + random.nextInt(1000);
+            int location = random.nextInt(50_000);
+            builder.append(String.format("\"%d\",\"%d\",\"C%d\",\"Country\",\"Region%d\",\"City%d\",\"%f\",\"%f\"\n",
+                    start, end, location % 250, location % 5000, location, location / 1000.0, location / 2000.0));
+            start = end + 1;
+        }
+        reader = IPReader.build(new ByteArrayInputStream(builder.toString().getBytes(UTF_8)));
+
+        addresses = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            addresses[i] = (long) (random.nextDouble() * start);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int lookup()
+    {
+        int result = 0;
+        for (long address : addresses) {
+            int location = reader.lookupLocation(address);
+            if (location != -1) {
+                result += reader.getCity(location).length();
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkIPReader.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,138 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.TestingConfigManager;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.metadata.SchemaChecker;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventCollectionMetrics;
+import org.rakam.collection.EventList;
+import org.rakam.collection.EventListDeserializer;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.JsonEventDeserializer;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.EventMapper;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.metrics.MetricRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.benchmark.BenchmarkEvents.PROJECT;
+
+/**
+ * Measures the overhead of the collection metrics on the ingestion path. The benchmark deserializes a batch request
+ * and records the same metrics as the event collection endpoints, the results with and without the metrics should be
+ * within a few percent of each other.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkIngestionMetrics
+{
+    @Param({"1", "100"})
+    private int events;
+
+    @Param({"false", "true"})
+    private boolean metrics;
+
+    private ObjectMapper mapper;
+    private EventCollectionMetrics collectionMetrics;
+    private byte[] body;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        InMemoryApiKeyService apiKeyService = new InMemoryApiKeyService();
+        InMemoryMetastore metastore = new InMemoryMetastore(apiKeyService);
+
+        BenchmarkEvents generator = new BenchmarkEvents(10, 1);
+        generator.createCollections(metastore);
+        String writeKey = apiKeyService.createApiKeys(PROJECT).writeKey();
+
+        JsonEventDeserializer eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestingConfigManager(),
+                new SchemaChecker(metastore, fieldDependency), new ProjectConfig(), fieldDependency);
+        mapper = JsonHelper.getMapper().copy();
+        mapper.registerModule(new SimpleModule()
+                .addDeserializer(Event.class, eventDeserializer)
+                .addDeserializer(EventList.class, new EventListDeserializer(apiKeyService, eventDeserializer)));
+
+        List<Map<String, Object>> list = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            list.add(ImmutableMap.of("collection", generator.getCollection(i), "properties", generator.nextProperties()));
+        }
+        body = mapper.writeValueAsBytes(ImmutableMap.of(
+                "api", ImmutableMap.of("api_key", writeKey),
+                "events", list));
+
+        collectionMetrics = new EventCollectionMetrics(new MetricRegistry());
+
+        // fills the schema caches of the deserializer
+        ingest();
+    }
+
+    @Benchmark
+    public EventList ingest()
+            throws IOException
+    {
+        if (!metrics) {
+            return mapper.readValue(body, EventList.class);
+        }
+
+        long startTime = System.nanoTime();
+        EventList eventList = mapper.readValue(body, EventList.class);
+        collectionMetrics.deserialized(eventList.project, eventList.events.size(), startTime);
+
+        long mappingStartTime = System.nanoTime();
+        collectionMetrics.mapped(eventList.project, EventMapper.COMPLETED_EMPTY_FUTURE, mappingStartTime);
+
+        collectionMetrics.stored(eventList.project, System.nanoTime());
+        return eventList;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EventList ingestConcurrently()
+            throws IOException
+    {
+        return ingest();
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkIngestionMetrics.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
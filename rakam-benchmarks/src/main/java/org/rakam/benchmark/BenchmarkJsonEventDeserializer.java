@@ -0,0 +1,112 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.TestingConfigManager;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.metadata.SchemaChecker;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+import org.rakam.collection.EventListDeserializer;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.JsonEventDeserializer;
+import org.rakam.config.ProjectConfig;
+import org.rakam.util.JsonHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.benchmark.BenchmarkEvents.PROJECT;
+
+/**
+ * Deserializes the body of a batch request, which is the most common way of sending events, from JSON to Avro records.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkJsonEventDeserializer
+{
+    @Param({"10", "100"})
+    private int properties;
+
+    @Param({"1", "100"})
+    private int collections;
+
+    @Param({"1000"})
+    private int events;
+
+    private ObjectMapper mapper;
+    private byte[] body;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        FieldDependencyBuilder.FieldDependency fieldDependency = new FieldDependencyBuilder().build();
+        InMemoryApiKeyService apiKeyService = new InMemoryApiKeyService();
+        InMemoryMetastore metastore = new InMemoryMetastore(apiKeyService);
+
+        BenchmarkEvents generator = new BenchmarkEvents(properties, collections);
+        generator.createCollections(metastore);
+        String writeKey = apiKeyService.createApiKeys(PROJECT).writeKey();
+
+        JsonEventDeserializer eventDeserializer = new JsonEventDeserializer(metastore, apiKeyService, new TestingConfigManager(),
+                new SchemaChecker(metastore, fieldDependency), new ProjectConfig(), fieldDependency);
+        mapper = JsonHelper.getMapper().copy();
+        mapper.registerModule(new SimpleModule()
+                .addDeserializer(Event.class, eventDeserializer)
+                .addDeserializer(EventList.class, new EventListDeserializer(apiKeyService, eventDeserializer)));
+
+        List<Map<String, Object>> list = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            list.add(ImmutableMap.of("collection", generator.getCollection(i), "properties", generator.nextProperties()));
+        }
+        body = mapper.writeValueAsBytes(ImmutableMap.of(
+                "api", ImmutableMap.of("api_key", writeKey),
+                "events", list));
+
+        // fills the schema caches of the deserializer
+        deserialize();
+    }
+
+    @Benchmark
+    public EventList deserialize()
+            throws IOException
+    {
+        return mapper.readValue(body, EventList.class);
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkJsonEventDeserializer.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
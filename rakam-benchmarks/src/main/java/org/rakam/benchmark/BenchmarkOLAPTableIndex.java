@@ -0,0 +1,123 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.InMemoryQueryMetadataStore;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
+import org.rakam.report.eventexplorer.OLAPTableIndex.IndexedTable;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.JsonHelper;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.OLAP_TABLE_OPTION;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+
+/**
+ * Compares the lookup of a pre-computed table in the index with the linear scan over the materialized views
+ * that the event explorer used to do for each query.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkOLAPTableIndex
+{
+    private static final Instant START = LocalDate.of(2016, 1, 1).atStartOfDay(UTC).toInstant();
+    private static final Instant END = LocalDate.of(2016, 1, 31).atStartOfDay(UTC).toInstant();
+    private static final Set<String> COLLECTIONS = ImmutableSet.of("collection7");
+    private static final Set<String> DIMENSIONS = ImmutableSet.of("dimension3");
+    private static final Measure MEASURE = new Measure("measure1", SUM);
+
+    @Param({"1000", "5000"})
+    private int views;
+
+    private InMemoryQueryMetadataStore metadataStore;
+    private OLAPTableIndex index;
+
+    @Setup
+    public void setup()
+    {
+        metadataStore = new InMemoryQueryMetadataStore();
+        index = new OLAPTableIndex(metadataStore);
+
+        Random random = new Random(0);
+        AggregationType[] aggregations = {SUM, COUNT, MAXIMUM};
+        for (int i = 0; i < views; i++) {
+            Set<String> collections = new HashSet<>();
+            Set<String> dimensions = new HashSet<>();
+            for (int j = 0; j < 3; j++) {
+                collections.add("collection" + random.nextInt(50));
+                dimensions.add("dimension" + random.nextInt(20));
+            }
+            OLAPTable table = new OLAPTable(collections, dimensions,
+                    ImmutableSet.of(aggregations[random.nextInt(aggregations.length)]),
+                    ImmutableSet.of("measure" + random.nextInt(5)), "table" + i, TimestampTransformation.DAY);
+            metadataStore.createMaterializedView("test", new MaterializedView(table.tableName, "Olap table", "select 1",
+                    Duration.ofHours(1), null, null, ImmutableMap.of(OLAP_TABLE_OPTION, table)));
+        }
+    }
+
+    @Benchmark
+    public Optional<IndexedTable> index()
+    {
+        return index.find("test", COLLECTIONS, DIMENSIONS, MEASURE, ImmutableSet.of(), START, END);
+    }
+
+    @Benchmark
+    public Optional<OLAPTable> linearScan()
+    {
+        List<MaterializedView> materializedViews = metadataStore.getMaterializedViews("test");
+        return materializedViews.stream()
+                .filter(view -> view.options != null && view.options.containsKey(OLAP_TABLE_OPTION))
+                .map(view -> JsonHelper.convert(view.options.get(OLAP_TABLE_OPTION), OLAPTable.class))
+                .filter(table -> table.collections.containsAll(COLLECTIONS)
+                        && table.aggregations.contains(MEASURE.aggregation)
+                        && table.measures.contains(MEASURE.column)
+                        && table.dimensions.containsAll(DIMENSIONS))
+                .findAny();
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkOLAPTableIndex.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,88 @@
+package org.rakam.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.config.JDBCConfig;
+import org.rakam.postgresql.analysis.PostgresqlEventStore;
+
+import java.net.URISyntaxException;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Binds the events of a batch to the insert statements of their collections. The database is replaced with
+ * {@link NullJdbcDriver} so the benchmark measures the encoding of the values, not the network or Postgresql.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkPostgresqlEventStore
+{
+    @Param({"10", "100"})
+    private int properties;
+
+    @Param({"1", "100"})
+    private int collections;
+
+    @Param({"1000"})
+    private int events;
+
+    private PostgresqlEventStore eventStore;
+    private List<Event> batch;
+
+    @Setup
+    public void setup()
+            throws URISyntaxException
+    {
+        NullJdbcDriver.register();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(new JDBCConfig()
+                .setUrl(NullJdbcDriver.URL)
+                .setMaxConnection(4));
+        eventStore = new PostgresqlEventStore(dataSource, new FieldDependencyBuilder().build());
+
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        BenchmarkEvents generator = new BenchmarkEvents(properties, collections);
+        generator.createCollections(metastore);
+        batch = generator.nextEvents(metastore, events);
+    }
+
+    @Benchmark
+    public long storeBatch()
+    {
+        eventStore.storeBatch(batch);
+        return NullJdbcDriver.getExecutedBatches();
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkPostgresqlEventStore.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
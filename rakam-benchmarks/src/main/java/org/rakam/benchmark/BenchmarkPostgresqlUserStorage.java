@@ -0,0 +1,167 @@
+package org.rakam.benchmark;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import io.airlift.testing.postgresql.TestingPostgreSqlServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.analysis.metadata.JDBCQueryMetadata;
+import org.rakam.config.JDBCConfig;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.user.AbstractUserService.BatchUserOperationRequest.BatchUserOperations;
+import org.rakam.plugin.user.UserOperationMerger;
+import org.rakam.postgresql.PostgresqlConfigManager;
+import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.plugin.user.PostgresqlUserStorage;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.QueryExecutorService;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures the throughput of the user batch operations of the Postgresql user storage. {@code batch} is the
+ * set-based path, {@code perOperation} applies the same operations with one statement per operation and property kind
+ * the way the batch endpoint used to, and {@code merge} is the in-memory coalescing that the batch path starts with.
+ * The storage benchmarks need a Postgresql server, a temporary one is started unless benchmark.postgresql.url is set.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 5000, timeUnit = MILLISECONDS)
+@Measurement(iterations = 5, time = 5000, timeUnit = MILLISECONDS)
+@OperationsPerInvocation(BenchmarkPostgresqlUserStorage.OPERATIONS)
+public class BenchmarkPostgresqlUserStorage
+{
+    static final int OPERATIONS = 1000;
+    private static final String PROJECT = "benchmark_users";
+
+    // the number of the operations per user in a batch, the batch path merges them into a single change per user
+    @Param({"1", "10"})
+    private int operationsPerUser;
+
+    private TestingPostgreSqlServer server;
+    private PostgresqlUserStorage userStorage;
+    private List<BatchUserOperations> operations;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        String url = System.getProperty("benchmark.postgresql.url");
+        JDBCConfig config;
+        if (url == null) {
+            server = new TestingPostgreSqlServer("testuser", "testdb");
+            config = new JDBCConfig().setUrl(server.getJdbcUrl()).setUsername(server.getUser());
+        }
+        else {
+            config = new JDBCConfig().setUrl(url);
+        }
+
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(config, "set time zone 'UTC'");
+        EventBus eventBus = new EventBus();
+        PostgresqlMetastore metastore = new PostgresqlMetastore(dataSource, eventBus);
+        PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore,
+                new CustomDataSourceService(dataSource), true);
+        PostgresqlMaterializedViewService materializedViewService = new PostgresqlMaterializedViewService(new ProjectConfig(),
+                queryExecutor, new JDBCQueryMetadata(dataSource, Clock.systemUTC(), eventBus));
+        QueryExecutorService queryExecutorService = new QueryExecutorService(queryExecutor, metastore,
+                materializedViewService, Clock.systemUTC(), '"');
+        PostgresqlConfigManager configManager = new PostgresqlConfigManager(dataSource);
+        configManager.setup();
+
+        userStorage = new PostgresqlUserStorage(queryExecutorService, materializedViewService, configManager, queryExecutor);
+        userStorage.createProjectIfNotExists(PROJECT, false);
+
+        operations = new ArrayList<>(OPERATIONS);
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        for (int i = 0; i < OPERATIONS; i++) {
+            ObjectNode set = factory.objectNode()
+                    .put("name", "user" + i)
+                    .put("plan", i % 3 == 0 ? "free" : "paid");
+            ObjectNode setOnce = factory.objectNode().put("first_seen", "2016-01-0" + (i % 9 + 1));
+            operations.add(new BatchUserOperations("user" + (i / operationsPerUser), set, setOnce,
+                    ImmutableMap.of("visits", 1.0), i % 10 == 0 ? ImmutableList.of("plan") : null, null));
+        }
+
+        // creates the users and the columns so that the iterations measure the updates
+        userStorage.batch(PROJECT, operations);
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        userStorage.dropProjectIfExists(PROJECT);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public void batch()
+    {
+        userStorage.batch(PROJECT, operations);
+    }
+
+    @Benchmark
+    public void perOperation()
+    {
+        for (BatchUserOperations operation : operations) {
+            Object user = operation.getUser();
+            userStorage.setUserProperties(PROJECT, user, operation.getSetProperties());
+            userStorage.setUserPropertiesOnce(PROJECT, user, operation.getSetPropertiesOnce());
+            if (operation.getUnsetProperties() != null) {
+                userStorage.unsetProperties(PROJECT, user, operation.getUnsetProperties());
+            }
+            operation.getIncrementProperties().forEach((property, value) ->
+                    userStorage.incrementProperty(PROJECT, user, property, value));
+        }
+    }
+
+    @Benchmark
+    public Collection<UserOperationMerger.MergedUser> merge()
+    {
+        return UserOperationMerger.merge(operations, Function.identity());
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkPostgresqlUserStorage.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,102 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.config.JDBCConfig;
+import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.QueryExecutorService;
+
+import java.net.URISyntaxException;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.rakam.benchmark.BenchmarkEvents.PROJECT;
+import static org.rakam.report.QueryExecutorService.DEFAULT_QUERY_RESULT_COUNT;
+
+/**
+ * Parses the queries of the users and rewrites the table references for Postgresql, the _all table is expanded to a
+ * union of all the collections of the project.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkQueryRewriting
+{
+    private static final Map<String, String> QUERIES = ImmutableMap.of(
+            "simple", "SELECT _user, count(*) FROM collection_0 WHERE _time > timestamp '2017-01-01 00:00:00' GROUP BY 1",
+            "join", "SELECT a._user, count(*) FROM collection_0 a JOIN collection_1 b ON (a._user = b._user) " +
+                    "WHERE a.property_1 > 10 AND b.property_4 = 'value1' GROUP BY 1 ORDER BY 2 DESC LIMIT 100",
+            "nested", "WITH daily AS (SELECT date_trunc('day', _time) AS day, property_0, count(*) AS total FROM collection_0 " +
+                    "WHERE property_3 GROUP BY 1, 2) " +
+                    "SELECT day, total, sum(total) OVER (PARTITION BY property_0 ORDER BY day) FROM daily " +
+                    "WHERE property_0 IN (SELECT property_0 FROM collection_1 WHERE property_2 > 500)",
+            "all", "SELECT _collection, count(*) FROM _all WHERE _time > timestamp '2017-01-01 00:00:00' GROUP BY 1");
+
+    @Param({"simple", "join", "nested", "all"})
+    private String query;
+
+    @Param({"10", "200"})
+    private int collections;
+
+    private QueryExecutorService service;
+    private String sql;
+
+    @Setup
+    public void setup()
+            throws URISyntaxException
+    {
+        NullJdbcDriver.register();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(new JDBCConfig()
+                .setUrl(NullJdbcDriver.URL)
+                .setMaxConnection(4));
+
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        new BenchmarkEvents(10, collections).createCollections(metastore);
+
+        PostgresqlQueryExecutor executor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore, null, true);
+        service = new QueryExecutorService(executor, metastore, null, Clock.systemUTC(), '"');
+        sql = QUERIES.get(query);
+    }
+
+    @Benchmark
+    public String buildQuery()
+    {
+        return service.buildQuery(PROJECT, sql, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT,
+                new HashMap<>(), new HashMap<>());
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkQueryRewriting.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,180 @@
+package org.rakam.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.module.website.ReferrerEventMapper;
+import org.rakam.module.website.UserAgentEventMapper;
+import org.rakam.module.website.WebsiteMapperConfig;
+import org.rakam.module.website.WebsiteParseCache;
+import org.rakam.plugin.EventMapper;
+import org.rakam.util.AvroUtil;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.apache.avro.Schema.Type.NULL;
+import static org.apache.avro.Schema.Type.STRING;
+
+/**
+ * Replays a user agent / referrer distribution through the website mappers.
+ * A captured distribution can be passed with -Dreplay.file=path, each line of the file is
+ * a user agent and a referrer separated with a tab character. Otherwise a skewed distribution
+ * is generated from a small set of common values.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkWebsiteParseCache
+{
+    private static final int EVENTS = 1_000;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/52.0.2743.116 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:47.0) Gecko/20100101 Firefox/47.0",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 9_3_2 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13F69 Safari/601.1",
+            "Mozilla/5.0 (Linux; Android 6.0.1; SM-G920F Build/MMB29K) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/51.0.2704.81 Mobile Safari/537.36",
+            "Mozilla/5.0 (Windows NT 6.1; Trident/7.0; rv:11.0) like Gecko",
+    };
+
+    private static final String[] REFERRERS = {
+            "https://www.google.com/?q=rakam",
+            "https://www.facebook.com/",
+            "https://twitter.com/rakamio",
+            "https://news.ycombinator.com/item?id=",
+            "https://duckduckgo.com/?q=analytics",
+    };
+
+    @Param({"0", "10000"})
+    private long cacheSize;
+
+    @Param({"true", "false"})
+    private boolean internStrings;
+
+    private UserAgentEventMapper userAgentMapper;
+    private ReferrerEventMapper referrerMapper;
+    private Schema schema;
+    private String[][] events;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        WebsiteParseCache cache = new WebsiteParseCache(cacheSize, 16, internStrings);
+        WebsiteMapperConfig config = new WebsiteMapperConfig();
+        userAgentMapper = new UserAgentEventMapper(config, cache);
+        referrerMapper = new ReferrerEventMapper(cache);
+
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        userAgentMapper.addFieldDependency(builder);
+        referrerMapper.addFieldDependency(builder);
+        FieldDependencyBuilder.FieldDependency dependency = builder.build();
+        schema = Schema.createRecord(ImmutableList.<Schema.Field>builder()
+                .addAll(dependency.dependentFields.get("_user_agent").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .addAll(dependency.dependentFields.get("_referrer").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_user_agent", Schema.create(STRING), null, null))
+                .add(new Schema.Field("_referrer", Schema.create(STRING), null, null))
+                .add(new Schema.Field("_host", Schema.create(NULL), null, null))
+                .build());
+
+        String replayFile = System.getProperty("replay.file");
+        List<String[]> distribution = replayFile != null ? readDistribution(new File(replayFile)) : generateDistribution();
+        events = distribution.toArray(new String[distribution.size()][]);
+    }
+
+    private static List<String[]> readDistribution(File file)
+            throws Exception
+    {
+        List<String[]> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), UTF_8)) {
+            String[] parts = line.split("\t", 2);
+            if (parts.length == 2) {
+                lines.add(parts);
+            }
+        }
+        return lines;
+    }
+
+    private static List<String[]> generateDistribution()
+    {
+        // most of the traffic comes from a few browsers and referrers, the long tail is unique paths
+        Random random = new Random(0);
+        List<String[]> lines = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            String userAgent = USER_AGENTS[skewed(random, USER_AGENTS.length)];
+            String referrer = REFERRERS[skewed(random, REFERRERS.length)] + random.nextInt(1000);
+            lines.add(new String[] {userAgent, referrer});
+        }
+        return lines;
+    }
+
+    private static int skewed(Random random, int size)
+    {
+        return (int) Math.min(size - 1, Math.abs(random.nextGaussian()) * size / 3);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Event map()
+            throws Exception
+    {
+        Random random = new Random();
+        InetAddress address = InetAddress.getLoopbackAddress();
+        Event event = null;
+        for (int i = 0; i < EVENTS; i++) {
+            String[] values = events[random.nextInt(events.length)];
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", values[0]);
+            properties.put("_referrer", values[1]);
+
+            event = new Event("project", "collection", null, null, properties);
+            userAgentMapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, address, null);
+            referrerMapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, address, null);
+        }
+        return event;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkWebsiteParseCache.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,153 @@
+package org.rakam.benchmark;
+
+import com.google.common.base.Throwables;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A local stand-in for the database in the benchmarks of the JDBC event stores. The connections accept every
+ * statement and discard the parameters so that the benchmarks measure the work that is done in Rakam before the
+ * rows are sent to the database.
+ */
+public class NullJdbcDriver
+        implements Driver
+{
+    public static final String URL = "jdbc:rakam-null://localhost/benchmark";
+
+    private static final AtomicLong BATCHES = new AtomicLong();
+
+    static {
+        try {
+            DriverManager.registerDriver(new NullJdbcDriver());
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public static void register()
+    {
+        // the driver is registered when the class is loaded
+    }
+
+    /**
+     * The number of the batches that are executed, the benchmarks return it so that the JIT can't eliminate the calls.
+     */
+    public static long getExecutedBatches()
+    {
+        return BATCHES.get();
+    }
+
+    @Override
+    public Connection connect(String url, Properties info)
+    {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        return proxy(Connection.class);
+    }
+
+    @Override
+    public boolean acceptsURL(String url)
+    {
+        return url.startsWith("jdbc:rakam-null:");
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger()
+            throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type)
+    {
+        return (T) Proxy.newProxyInstance(NullJdbcDriver.class.getClassLoader(), new Class[] {type},
+                (proxy, method, args) -> invoke(proxy, method, args));
+    }
+
+    private static Object invoke(Object proxy, Method method, Object[] args)
+            throws SQLException
+    {
+        switch (method.getName()) {
+            case "isValid":
+            case "getAutoCommit":
+                return true;
+            case "executeBatch":
+                BATCHES.incrementAndGet();
+                return new int[0];
+            case "isWrapperFor":
+                return false;
+            case "unwrap":
+                throw new SQLException("Not a wrapper");
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "NullJdbcDriver." + method.getDeclaringClass().getSimpleName();
+        }
+
+        Class<?> returnType = method.getReturnType();
+        if (returnType.isInterface() && returnType.getName().startsWith("java.sql.")) {
+            return proxy(returnType);
+        }
+        if (returnType == boolean.class) {
+            return false;
+        }
+        if (returnType == int.class) {
+            return 0;
+        }
+        if (returnType == long.class) {
+            return 0L;
+        }
+        if (returnType == double.class) {
+            return .0;
+        }
+        if (returnType == float.class) {
+            return .0f;
+        }
+        if (returnType == short.class) {
+            return (short) 0;
+        }
+        if (returnType == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,43 @@
+package org.rakam.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks that match the pattern in the first argument and writes the results in JSON format to the file
+ * in the benchmark.result system property, the files of two commits can be compared to catch the regressions in the
+ * hot paths. It's the entry point of the benchmark profile: mvn verify -Pbenchmark -Dbenchmark.include=Json
+ */
+public final class RakamBenchmarks
+{
+    private RakamBenchmarks()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        String include = args.length > 0 ? args[0] : ".*";
+        File result = new File(System.getProperty("benchmark.result", "target/benchmark-results/jmh-result.json"));
+        File parent = result.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IllegalStateException("Unable to create directory " + parent);
+        }
+
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*Benchmark.*" + include + ".*")
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getAbsolutePath())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -15,7 +15,7 @@ import static org.rakam.collection.FieldType.MAP_BINARY;
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.collection.FieldType.TIMESTAMP;
 
-class ClickHouseQueryResult
+public class ClickHouseQueryResult
 {
     public final List<ClickHouseColumn> meta;
     public final List<List<Object>> data;
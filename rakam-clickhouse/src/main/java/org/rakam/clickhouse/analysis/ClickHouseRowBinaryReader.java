@@ -0,0 +1,359 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.LittleEndianDataInputStream;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.readVarInt;
+
+/**
+ * Reads the RowBinaryWithNamesAndTypes output of ClickHouse. The column types in the header are parsed once into
+ * readers so the values are decoded without looking up the type of each column and the rows are decoded
+ * from the response stream as they arrive.
+ */
+public class ClickHouseRowBinaryReader
+{
+    public static final String FORMAT = "RowBinaryWithNamesAndTypes";
+
+    private final BufferedInputStream stream;
+    private final DataInput input;
+    private final List<SchemaField> columns;
+    private final ValueReader[] readers;
+
+    public ClickHouseRowBinaryReader(InputStream inputStream)
+            throws IOException
+    {
+        this.stream = new BufferedInputStream(inputStream, 64 * 1024);
+        this.input = new LittleEndianDataInputStream(stream);
+
+        int columnCount = readVarInt(input);
+        String[] names = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = readString(input);
+        }
+
+        ImmutableList.Builder<SchemaField> columns = ImmutableList.builder();
+        this.readers = new ValueReader[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            String type = readString(input);
+            columns.add(new SchemaField(names[i], getFieldType(type)));
+            readers[i] = getReader(type);
+        }
+        this.columns = columns.build();
+    }
+
+    public List<SchemaField> getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Returns the next row or null if the stream is finished.
+     */
+    public List<Object> readRow()
+            throws IOException
+    {
+        stream.mark(1);
+        if (stream.read() == -1) {
+            return null;
+        }
+        stream.reset();
+
+        List<Object> row = new ArrayList<>(readers.length);
+        for (ValueReader reader : readers) {
+            row.add(reader.read(input));
+        }
+        return row;
+    }
+
+    public List<List<Object>> readRows()
+            throws IOException
+    {
+        List<List<Object>> rows = new ArrayList<>();
+        List<Object> row;
+        while ((row = readRow()) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private interface ValueReader
+    {
+        Object read(DataInput input)
+                throws IOException;
+    }
+
+    private static ValueReader getReader(String type)
+    {
+        TypeSignature signature = TypeSignature.parse(type);
+        switch (signature.name) {
+            case "Int8":
+                return input -> (int) input.readByte();
+            case "UInt8":
+                return input -> input.readUnsignedByte();
+            case "Bool":
+                return input -> input.readByte() != 0;
+            case "Int16":
+                return input -> (int) input.readShort();
+            case "UInt16":
+                return input -> input.readUnsignedShort();
+            case "Int32":
+                return input -> input.readInt();
+            case "UInt32":
+                return input -> input.readInt() & 0xFFFFFFFFL;
+            case "Int64":
+                return input -> input.readLong();
+            case "UInt64":
+                return input -> {
+                    long value = input.readLong();
+                    // the values that don't fit in a signed long are returned as BigInteger instead of wrapping around
+                    return value >= 0 ? value : (Object) new BigInteger(Long.toUnsignedString(value));
+                };
+            case "Float32":
+                return input -> (double) input.readFloat();
+            case "Float64":
+                return input -> input.readDouble();
+            case "String":
+                return ClickHouseRowBinaryReader::readString;
+            case "FixedString": {
+                int length = Integer.parseInt(signature.arguments.get(0));
+                return input -> {
+                    byte[] bytes = new byte[length];
+                    input.readFully(bytes);
+                    int end = length;
+                    // the values that are shorter than the length are padded with zero bytes
+                    while (end > 0 && bytes[end - 1] == 0) {
+                        end--;
+                    }
+                    return new String(bytes, 0, end, UTF_8);
+                };
+            }
+            case "UUID":
+                return input -> new UUID(input.readLong(), input.readLong()).toString();
+            case "Date":
+                return input -> LocalDate.ofEpochDay(input.readUnsignedShort());
+            case "DateTime":
+                return input -> Instant.ofEpochSecond(input.readInt() & 0xFFFFFFFFL);
+            case "DateTime64": {
+                int precision = Integer.parseInt(signature.arguments.get(0));
+                long scale = BigDecimal.ONE.scaleByPowerOfTen(precision).longValueExact();
+                long nanosPerTick = BigDecimal.ONE.scaleByPowerOfTen(9 - precision).longValueExact();
+                return input -> {
+                    long ticks = input.readLong();
+                    return Instant.ofEpochSecond(Math.floorDiv(ticks, scale), Math.floorMod(ticks, scale) * nanosPerTick);
+                };
+            }
+            case "Decimal32":
+                return getDecimalReader(9, Integer.parseInt(signature.arguments.get(0)));
+            case "Decimal64":
+                return getDecimalReader(18, Integer.parseInt(signature.arguments.get(0)));
+            case "Decimal":
+                return getDecimalReader(Integer.parseInt(signature.arguments.get(0)), Integer.parseInt(signature.arguments.get(1)));
+            case "Enum8":
+            case "Enum16": {
+                Map<Integer, String> values = getEnumValues(signature);
+                boolean enum8 = signature.name.equals("Enum8");
+                return input -> values.get(enum8 ? (int) input.readByte() : (int) input.readShort());
+            }
+            case "Nothing":
+                return input -> null;
+            case "Nullable": {
+                ValueReader reader = getReader(signature.arguments.get(0));
+                return input -> input.readByte() == 1 ? null : reader.read(input);
+            }
+            case "LowCardinality":
+                return getReader(signature.arguments.get(0));
+            case "Array": {
+                ValueReader reader = getReader(signature.arguments.get(0));
+                return input -> {
+                    int size = readVarInt(input);
+                    List<Object> values = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        values.add(reader.read(input));
+                    }
+                    return values;
+                };
+            }
+            case "Map": {
+                ValueReader keyReader = getReader(signature.arguments.get(0));
+                ValueReader valueReader = getReader(signature.arguments.get(1));
+                return input -> {
+                    int size = readVarInt(input);
+                    Map<String, Object> values = new LinkedHashMap<>(size);
+                    for (int i = 0; i < size; i++) {
+                        values.put(String.valueOf(keyReader.read(input)), valueReader.read(input));
+                    }
+                    return values;
+                };
+            }
+            default:
+                throw new IllegalStateException("The type cannot be identified: " + type);
+        }
+    }
+
+    private static ValueReader getDecimalReader(int precision, int scale)
+    {
+        if (precision <= 9) {
+            return input -> BigDecimal.valueOf(input.readInt(), scale).doubleValue();
+        }
+        if (precision <= 18) {
+            return input -> BigDecimal.valueOf(input.readLong(), scale).doubleValue();
+        }
+        throw new IllegalStateException("Decimal types with precision larger than 18 are not supported");
+    }
+
+    public static FieldType getFieldType(String type)
+    {
+        TypeSignature signature = TypeSignature.parse(type);
+        switch (signature.name) {
+            case "Int8":
+            case "UInt8":
+            case "Int16":
+            case "UInt16":
+            case "Int32":
+                return FieldType.INTEGER;
+            case "UInt32":
+            case "Int64":
+            case "UInt64":
+                return FieldType.LONG;
+            case "Bool":
+                return FieldType.BOOLEAN;
+            case "Float32":
+            case "Float64":
+                return FieldType.DOUBLE;
+            case "Decimal32":
+            case "Decimal64":
+            case "Decimal":
+                return FieldType.DECIMAL;
+            case "String":
+            case "FixedString":
+            case "UUID":
+            case "Enum":
+            case "Enum8":
+            case "Enum16":
+            case "Nothing":
+                return FieldType.STRING;
+            case "Date":
+                return FieldType.DATE;
+            case "DateTime":
+            case "DateTime64":
+                return FieldType.TIMESTAMP;
+            case "Nullable":
+            case "LowCardinality":
+                return getFieldType(signature.arguments.get(0));
+            case "Array": {
+                FieldType elementType = getFieldType(signature.arguments.get(0));
+                if (elementType.isArray() || elementType.isMap()) {
+                    throw new IllegalStateException("Nested arrays are not supported: " + type);
+                }
+                return elementType.convertToArrayType();
+            }
+            case "Map":
+                return getFieldType(signature.arguments.get(1)).convertToMapValueType();
+            case "Nested":
+                // Nested(Key String, Value Type), the way ClickHouseMetastore stores the map columns
+                if (signature.arguments.size() == 2 && signature.arguments.get(1).startsWith("Value ")) {
+                    return getFieldType(signature.arguments.get(1).substring("Value ".length())).convertToMapValueType();
+                }
+                return FieldType.MAP_STRING;
+            default:
+                throw new IllegalStateException("The type cannot be identified: " + type);
+        }
+    }
+
+    private static Map<Integer, String> getEnumValues(TypeSignature signature)
+    {
+        ImmutableMap.Builder<Integer, String> values = ImmutableMap.builder();
+        for (String argument : signature.arguments) {
+            int separator = argument.lastIndexOf('=');
+            String name = argument.substring(0, separator).trim();
+            values.put(Integer.parseInt(argument.substring(separator + 1).trim()),
+                    name.substring(1, name.length() - 1).replace("\\'", "'"));
+        }
+        return values.build();
+    }
+
+    private static String readString(DataInput input)
+            throws IOException
+    {
+        byte[] bytes = new byte[readVarInt(input)];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static class TypeSignature
+    {
+        private final String name;
+        private final List<String> arguments;
+
+        private TypeSignature(String name, List<String> arguments)
+        {
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Splits the type into its name and the top level arguments, the arguments may be types or literals.
+         */
+        public static TypeSignature parse(String type)
+        {
+            type = type.trim();
+            int start = type.indexOf('(');
+            if (start == -1) {
+                return new TypeSignature(type, ImmutableList.of());
+            }
+            if (!type.endsWith(")")) {
+                throw new IllegalStateException("The type cannot be identified: " + type);
+            }
+
+            ImmutableList.Builder<String> arguments = ImmutableList.builder();
+            int depth = 0;
+            boolean quoted = false;
+            int argumentStart = start + 1;
+            for (int i = start + 1; i < type.length() - 1; i++) {
+                char c = type.charAt(i);
+                if (quoted) {
+                    if (c == '\\') {
+                        i++;
+                    }
+                    else if (c == '\'') {
+                        quoted = false;
+                    }
+                }
+                else if (c == '\'') {
+                    quoted = true;
+                }
+                else if (c == '(') {
+                    depth++;
+                }
+                else if (c == ')') {
+                    depth--;
+                }
+                else if (c == ',' && depth == 0) {
+                    arguments.add(type.substring(argumentStart, i).trim());
+                    argumentStart = i + 1;
+                }
+            }
+            arguments.add(type.substring(argumentStart, type.length() - 1).trim());
+
+            return new TypeSignature(type.substring(0, start).trim(), arguments.build());
+        }
+    }
+}
@@ -18,6 +18,7 @@ import org.rakam.collection.Event;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.SyncEventStore;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.inject.Inject;
 
@@ -46,7 +47,7 @@ public class AWSKinesisClickhouseEventStore
 //    private final KinesisProducer producer;
 
     @Inject
-    public AWSKinesisClickhouseEventStore(AWSConfig config, ProjectConfig projectConfig, ClickHouseConfig clickHouseConfig)
+    public AWSKinesisClickhouseEventStore(AWSConfig config, ProjectConfig projectConfig, ClickHouseConfig clickHouseConfig, MetricRegistry registry)
     {
         kinesis = new AmazonKinesisClient(config.getCredentials());
         kinesis.setRegion(config.getAWSRegion());
@@ -55,7 +56,7 @@ public class AWSKinesisClickhouseEventStore
         }
         this.config = config;
         this.projectConfig = projectConfig;
-        this.bulkClient = new ClickHouseEventStore(projectConfig, clickHouseConfig);
+        this.bulkClient = new ClickHouseEventStore(projectConfig, clickHouseConfig, registry);
 
         KinesisProducerConfiguration producerConfiguration = new KinesisProducerConfiguration()
                 .setRegion(config.getRegion())
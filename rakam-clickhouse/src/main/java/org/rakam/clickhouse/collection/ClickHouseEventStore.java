@@ -25,6 +25,9 @@ import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.EventStore;
 import org.rakam.report.QueryExecution;
 import org.rakam.util.ProjectCollection;
+import org.rakam.util.metrics.Histogram;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.ws.rs.core.UriBuilder;
 
@@ -57,6 +60,8 @@ import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.getSystemSo
 import static org.rakam.collection.FieldType.DATE;
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.metrics.Histogram.LATENCY_BUCKETS;
+import static org.rakam.util.metrics.Histogram.SIZE_BUCKETS;
 
 public class ClickHouseEventStore
         implements EventStore
@@ -75,15 +80,29 @@ public class ClickHouseEventStore
     private final ClickHouseConfig config;
     private final ProjectConfig projectConfig;
     Map<ProjectCollection, CompletableFuture<Void>> currentFutureSingle;
+    private final MetricFamily<Histogram> flushSize;
+    private final MetricFamily<Histogram> flushTime;
 
-    @Inject
     public ClickHouseEventStore(ProjectConfig projectConfig, ClickHouseConfig config)
+    {
+        this(projectConfig, config, new MetricRegistry());
+    }
+
+    @Inject
+    public ClickHouseEventStore(ProjectConfig projectConfig, ClickHouseConfig config, MetricRegistry registry)
     {
         this.config = config;
         this.projectConfig = projectConfig;
         queuedEvents = new ConcurrentHashMap<>();
         currentFutureSingle = new ConcurrentHashMap<>();
 
+        flushSize = registry.histogram("rakam_clickhouse_flush_events",
+                "Number of the events that are sent to ClickHouse in a single insert", "project", SIZE_BUCKETS);
+        flushTime = registry.histogram("rakam_clickhouse_flush_seconds",
+                "Time spent for inserting the buffered events of a collection to ClickHouse", "project", LATENCY_BUCKETS);
+        registry.gauge("rakam_clickhouse_buffered_events", "Number of the events that wait in the ClickHouse buffer",
+                () -> queuedEvents.values().stream().mapToInt(List::size).sum());
+
         Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
             try {
                 Iterator<Map.Entry<ProjectCollection, List<Event>>> iterator = queuedEvents.entrySet().iterator();
@@ -95,6 +114,13 @@ public class ClickHouseEventStore
 
                     List<SchemaField> schema = value.get(0).schema();
 
+                    String project = next.getKey().project;
+                    long startTime = System.nanoTime();
+                    flushSize.get(project).add(value.size());
+                    if (remove != null) {
+                        remove.whenComplete((result, ex) -> flushTime.get(project).addElapsed(startTime));
+                    }
+
                     executeRequest(next.getKey(), schema, next.getValue(), remove, false);
                 }
             }
@@ -248,6 +274,22 @@ public class ClickHouseEventStore
         }
     }
 
+    public static void writeRowBinary(List<Event> events, List<SchemaField> schema, String timeColumn, OutputStream outputStream)
+            throws IOException
+    {
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(outputStream);
+
+        for (Event event : events) {
+            GenericRecord record = event.properties();
+            Object time = record.get(timeColumn);
+            writeValue(time == null ? 0 : ((int) (((long) time) / 86400)), DATE, out);
+
+            for (int i = 0; i < schema.size(); i++) {
+                writeValue(record.get(i), schema.get(i).getType(), out);
+            }
+        }
+    }
+
     public static void writeVarInt(int message, DataOutput output)
             throws IOException
     {
@@ -279,17 +321,7 @@ public class ClickHouseEventStore
         public void write(OutputStream outputStream)
                 throws Exception
         {
-            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(outputStream);
-
-            for (Event event : value) {
-                GenericRecord record = event.properties();
-                Object time = record.get(projectConfig.getTimeColumn());
-                writeValue(time == null ? 0 : ((int) (((long) time) / 86400)), DATE, out);
-
-                for (int i = 0; i < schema.size(); i++) {
-                    writeValue(record.get(i), schema.get(i).getType(), out);
-                }
-            }
+            writeRowBinary(value, schema, projectConfig.getTimeColumn(), outputStream);
         }
     }
 }
@@ -0,0 +1,123 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the RowBinaryWithNamesAndTypes responses the way ClickHouse serializes them.
+ */
+public class RowBinaryWriter
+{
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final LittleEndianDataOutputStream output = new LittleEndianDataOutputStream(bytes);
+
+    public RowBinaryWriter header(String[] names, String[] types)
+    {
+        varInt(names.length);
+        for (String name : names) {
+            string(name);
+        }
+        for (String type : types) {
+            string(type);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter varInt(long value)
+    {
+        try {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            output.writeByte((int) value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter string(String value)
+    {
+        byte[] data = value.getBytes(UTF_8);
+        varInt(data.length);
+        return bytes(data);
+    }
+
+    public RowBinaryWriter bytes(byte[] data)
+    {
+        try {
+            output.write(data);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter int8(int value)
+    {
+        try {
+            output.writeByte(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter int16(int value)
+    {
+        try {
+            output.writeShort(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter int32(int value)
+    {
+        try {
+            output.writeInt(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter int64(long value)
+    {
+        try {
+            output.writeLong(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public RowBinaryWriter float64(double value)
+    {
+        try {
+            output.writeDouble(value);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public byte[] toByteArray()
+    {
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,228 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.clickhouse.analysis.ClickHouseRowBinaryReader.getFieldType;
+import static org.rakam.collection.FieldType.ARRAY_LONG;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DECIMAL;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_INTEGER;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestClickHouseRowBinaryReader
+{
+    private static final String[] NAMES = {"id", "name", "tags", "properties", "created", "day", "kind", "code", "amount", "ratio", "counter"};
+    private static final String[] TYPES = {"UInt64", "Nullable(String)", "Array(String)", "Map(String, Int32)", "DateTime64(3, 'UTC')",
+            "Date", "Enum8('a' = 1, 'b, c' = 2)", "LowCardinality(FixedString(4))", "Decimal(9, 2)", "Float64", "UInt32"};
+
+    private HttpServer server;
+    private final AtomicReference<String> lastQuery = new AtomicReference<>();
+    private final AtomicReference<URI> lastUri = new AtomicReference<>();
+    private volatile byte[] response;
+    private volatile String exceptionCode;
+
+    @BeforeClass
+    public void setUp()
+            throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            lastQuery.set(new String(ByteStreams.toByteArray(exchange.getRequestBody()), UTF_8));
+            lastUri.set(exchange.getRequestURI());
+            if (exceptionCode != null) {
+                exchange.getResponseHeaders().add("X-ClickHouse-Exception-Code", exceptionCode);
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(response);
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void testTypes()
+    {
+        assertEquals(getFieldType("Nullable(Int64)"), LONG);
+        assertEquals(getFieldType("UInt32"), LONG);
+        assertEquals(getFieldType("UInt8"), INTEGER);
+        assertEquals(getFieldType("Array(Nullable(Int64))"), ARRAY_LONG);
+        assertEquals(getFieldType("Array(LowCardinality(String))"), ARRAY_STRING);
+        assertEquals(getFieldType("Map(String, Int32)"), MAP_INTEGER);
+        assertEquals(getFieldType("Nested(Key String, Value Int32)"), MAP_INTEGER);
+        assertEquals(getFieldType("DateTime('Europe/Istanbul')"), TIMESTAMP);
+        assertEquals(getFieldType("DateTime64(6)"), TIMESTAMP);
+        assertEquals(getFieldType("Decimal64(4)"), DECIMAL);
+        assertEquals(getFieldType("Enum8('a' = 1, 'b' = 2)"), STRING);
+    }
+
+    @Test
+    public void testRead()
+            throws IOException
+    {
+        ClickHouseRowBinaryReader reader = new ClickHouseRowBinaryReader(new ByteArrayInputStream(getResponse(true)));
+
+        assertEquals(reader.getColumns(), ImmutableList.of(
+                new SchemaField("id", LONG), new SchemaField("name", STRING), new SchemaField("tags", ARRAY_STRING),
+                new SchemaField("properties", MAP_INTEGER), new SchemaField("created", TIMESTAMP), new SchemaField("day", DATE),
+                new SchemaField("kind", STRING), new SchemaField("code", STRING), new SchemaField("amount", DECIMAL),
+                new SchemaField("ratio", DOUBLE), new SchemaField("counter", LONG)));
+        assertEquals(reader.readRows(), getExpectedRows());
+    }
+
+    @Test
+    public void testQueryExecution()
+    {
+        response = getResponse(true);
+        QueryResult result = new ClickHouseQueryExecution(new ClickHouseConfig().setAddress(getAddress()), "select * from test")
+                .getResult().join();
+
+        assertEquals(lastQuery.get(), "select * from test format " + ClickHouseRowBinaryReader.FORMAT);
+        assertTrue(lastUri.get().getQuery().contains("wait_end_of_query=1"), lastUri.get().toString());
+        assertEquals(result.getMetadata().size(), NAMES.length);
+        assertEquals(result.getResult(), getExpectedRows());
+    }
+
+    @Test
+    public void testTruncatedResponse()
+    {
+        byte[] complete = getResponse(true);
+        response = Arrays.copyOf(complete, complete.length - 3);
+        try {
+            new ClickHouseQueryExecution(new ClickHouseConfig().setAddress(getAddress()), "select * from test").getResult().join();
+            fail("the query should fail");
+        }
+        catch (CompletionException e) {
+            assertTrue(e.getCause().getMessage().startsWith("An error occurred while reading query results"), e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testExceptionAfterResultStarted()
+    {
+        byte[] rows = getResponse(true);
+        byte[] error = "Code: 241. DB::Exception: Memory limit exceeded, Stack trace:\n0. foo".getBytes(UTF_8);
+        response = Arrays.copyOf(rows, rows.length + error.length);
+        System.arraycopy(error, 0, response, rows.length, error.length);
+        exceptionCode = "241";
+        try {
+            new ClickHouseQueryExecution(new ClickHouseConfig().setAddress(getAddress()), "select * from test").getResult().join();
+            fail("the query should fail");
+        }
+        catch (CompletionException e) {
+            assertTrue(e.getCause().getMessage().endsWith("Memory limit exceeded"), e.getCause().getMessage());
+        }
+        finally {
+            exceptionCode = null;
+        }
+    }
+
+    @Test
+    public void testUnsignedLong()
+            throws IOException
+    {
+        byte[] data = new RowBinaryWriter().header(new String[] {"value"}, new String[] {"UInt64"})
+                .int64(Long.MAX_VALUE)
+                .int64(-1)
+                .toByteArray();
+        ClickHouseRowBinaryReader reader = new ClickHouseRowBinaryReader(new ByteArrayInputStream(data));
+
+        assertEquals(reader.readRows(), ImmutableList.of(
+                ImmutableList.of(Long.MAX_VALUE),
+                ImmutableList.of(new BigInteger("18446744073709551615"))));
+    }
+
+    @Test
+    public void testEmptyResult()
+            throws IOException
+    {
+        ClickHouseRowBinaryReader reader = new ClickHouseRowBinaryReader(new ByteArrayInputStream(getResponse(false)));
+        assertNull(reader.readRow());
+    }
+
+    private URI getAddress()
+    {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    private static byte[] getResponse(boolean withRows)
+    {
+        RowBinaryWriter writer = new RowBinaryWriter().header(NAMES, TYPES);
+        if (!withRows) {
+            return writer.toByteArray();
+        }
+
+        writer.int64(1)
+                .int8(0).string("first")
+                .varInt(2).string("a").string("b")
+                .varInt(1).string("count").int32(10)
+                .int64(1500000000123L)
+                .int16(17000)
+                .int8(2)
+                .bytes(new byte[] {'a', 'b', 0, 0})
+                .int32(-12345)
+                .float64(0.5)
+                .int32(0xFFFFFFFF);
+
+        writer.int64(2)
+                .int8(1)
+                .varInt(0)
+                .varInt(0)
+                .int64(-1)
+                .int16(0)
+                .int8(1)
+                .bytes(new byte[] {'a', 'b', 'c', 'd'})
+                .int32(100)
+                .float64(-1.25)
+                .int32(7);
+
+        return writer.toByteArray();
+    }
+
+    private static List<List<Object>> getExpectedRows()
+    {
+        return ImmutableList.of(
+                Arrays.asList(1L, "first", ImmutableList.of("a", "b"), ImmutableMap.of("count", 10),
+                        Instant.ofEpochMilli(1500000000123L), LocalDate.ofEpochDay(17000), "b, c", "ab", -123.45, 0.5, 4294967295L),
+                Arrays.asList(2L, null, ImmutableList.of(), ImmutableMap.of(),
+                        Instant.ofEpochMilli(-1), LocalDate.ofEpochDay(0), "a", "abcd", 1.0, -1.25, 7L));
+    }
+}
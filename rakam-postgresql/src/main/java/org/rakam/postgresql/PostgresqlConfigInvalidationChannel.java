@@ -0,0 +1,132 @@
+package org.rakam.postgresql;
+
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.rakam.analysis.ConfigInvalidationChannel;
+import org.rakam.analysis.JDBCPoolDataSource;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Sends the config invalidations to the other nodes using Postgresql LISTEN / NOTIFY on the metadata database.
+ * The notifications are received on a dedicated connection that is polled every second and re-opened if it fails.
+ */
+public class PostgresqlConfigInvalidationChannel
+        implements ConfigInvalidationChannel
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlConfigInvalidationChannel.class);
+    private static final String CHANNEL = "rakam_config_invalidation";
+
+    private final JDBCPoolDataSource dataSource;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor;
+    private Connection listenConnection;
+
+    @Inject
+    public PostgresqlConfigInvalidationChannel(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource)
+    {
+        this.dataSource = dataSource;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("config-invalidation-listener").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(this::poll, 0, 1, SECONDS);
+    }
+
+    @Override
+    public void publish(String source, String project, String configName)
+    {
+        String payload = source + '\n' + (project == null ? "" : project) + '\n' + (configName == null ? "" : configName);
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            statement.setString(1, CHANNEL);
+            statement.setString(2, payload);
+            statement.execute();
+        }
+        catch (SQLException e) {
+            // the other nodes will see the change when their cache entries expire
+            LOGGER.warn(e, "Unable to publish config invalidation");
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    private void poll()
+    {
+        try {
+            if (listenConnection == null) {
+                listenConnection = dataSource.getConnection(true);
+                try (Statement statement = listenConnection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+            }
+
+            // the driver only reads the notifications from the socket while executing a query
+            try (Statement statement = listenConnection.createStatement()) {
+                statement.execute("SELECT 1");
+            }
+
+            PGNotification[] notifications = listenConnection.unwrap(PGConnection.class).getNotifications();
+            if (notifications == null) {
+                return;
+            }
+
+            for (PGNotification notification : notifications) {
+                List<String> parts = Splitter.on('\n').splitToList(notification.getParameter());
+                if (parts.size() != 3) {
+                    continue;
+                }
+                String project = parts.get(1).isEmpty() ? null : parts.get(1);
+                String configName = parts.get(2).isEmpty() ? null : parts.get(2);
+                for (Listener listener : listeners) {
+                    listener.invalidate(parts.get(0), project, configName);
+                }
+            }
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Error while listening config invalidations, reconnecting");
+            closeConnection();
+            // the invalidations that are sent while the connection is down are lost
+            for (Listener listener : listeners) {
+                listener.invalidate(null, null, null);
+            }
+        }
+    }
+
+    private void closeConnection()
+    {
+        if (listenConnection != null) {
+            try {
+                listenConnection.close();
+            }
+            catch (SQLException e) {
+                // ignore
+            }
+            listenConnection = null;
+        }
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        executor.shutdownNow();
+        closeConnection();
+    }
+}
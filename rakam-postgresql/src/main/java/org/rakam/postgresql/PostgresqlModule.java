@@ -11,7 +11,7 @@ import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
 import org.rakam.analysis.ApiKeyService;
-import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
@@ -25,6 +25,7 @@ import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.ConfigManagerCacheConfig;
 import org.rakam.config.JDBCConfig;
 import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
@@ -99,7 +100,8 @@ public class PostgresqlModule
                     .annotatedWith(Names.named("report.metadata.store.jdbc"))
                     .toInstance(orCreateDataSource);
 
-            binder.bind(ConfigManager.class).to(PostgresqlConfigManager.class);
+            CachingConfigManager.bind(binder, buildConfigObject(ConfigManagerCacheConfig.class), PostgresqlConfigManager.class,
+                    PostgresqlConfigInvalidationChannel.class);
             binder.bind(QueryMetadataStore.class).to(JDBCQueryMetadata.class)
                     .in(Scopes.SINGLETON);
         }
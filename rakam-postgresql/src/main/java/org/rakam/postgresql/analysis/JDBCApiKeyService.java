@@ -9,8 +9,10 @@ import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.util.CryptUtil;
 import org.rakam.util.RakamException;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 
 import java.net.URI;
 import java.sql.Connection;
@@ -41,7 +43,7 @@ public class JDBCApiKeyService
     {
         this.connectionPool = connectionPool;
 
-        apiKeyCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, List<Set<String>>>()
+        apiKeyCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).recordStats().build(new CacheLoader<String, List<Set<String>>>()
         {
             @Override
             public List<Set<String>> load(String project)
@@ -53,7 +55,7 @@ public class JDBCApiKeyService
             }
         });
 
-        apiKeyReverseCache = CacheBuilder.newBuilder().build(new CacheLoader<ApiKey, String>()
+        apiKeyReverseCache = CacheBuilder.newBuilder().recordStats().build(new CacheLoader<ApiKey, String>()
         {
             @Override
             public String load(ApiKey apiKey)
@@ -75,6 +77,13 @@ public class JDBCApiKeyService
         });
     }
 
+    @Inject
+    public void registerMetrics(MetricRegistry registry)
+    {
+        registry.cache("api_key", apiKeyCache);
+        registry.cache("api_key_project", apiKeyReverseCache);
+    }
+
     @PostConstruct
     public void setup()
     {
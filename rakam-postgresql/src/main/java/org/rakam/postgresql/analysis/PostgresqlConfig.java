@@ -1,11 +1,21 @@
 package org.rakam.postgresql.analysis;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
     private boolean enableEventStore = true;
+    private int queryFetchSize = 10000;
+    private int queryMaxResultRows;
+    private Duration queryMaxExecutionTime = new Duration(30, MINUTES);
+    private int maxConcurrentQueries = 32;
+    private int maxConcurrentQueriesPerProject = 8;
+    private int maxQueuedQueries = 1000;
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -17,4 +27,79 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    @Config("postgresql.query.fetch-size")
+    @ConfigDescription("The number of rows that are fetched from the server-side cursor at once")
+    public PostgresqlConfig setQueryFetchSize(int queryFetchSize)
+    {
+        this.queryFetchSize = queryFetchSize;
+        return this;
+    }
+
+    public int getQueryFetchSize()
+    {
+        return queryFetchSize;
+    }
+
+    @Config("postgresql.query.max-result-rows")
+    @ConfigDescription("The queries whose results are collected in memory fail if they return more rows, 0 disables the limit")
+    public PostgresqlConfig setQueryMaxResultRows(int queryMaxResultRows)
+    {
+        this.queryMaxResultRows = queryMaxResultRows;
+        return this;
+    }
+
+    public int getQueryMaxResultRows()
+    {
+        return queryMaxResultRows;
+    }
+
+    @Config("postgresql.query.max-execution-time")
+    @ConfigDescription("The maximum execution time of the analytics queries of the projects")
+    public PostgresqlConfig setQueryMaxExecutionTime(Duration queryMaxExecutionTime)
+    {
+        this.queryMaxExecutionTime = queryMaxExecutionTime;
+        return this;
+    }
+
+    public Duration getQueryMaxExecutionTime()
+    {
+        return queryMaxExecutionTime;
+    }
+
+    @Config("postgresql.query.max-concurrent-queries")
+    public PostgresqlConfig setMaxConcurrentQueries(int maxConcurrentQueries)
+    {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        return this;
+    }
+
+    public int getMaxConcurrentQueries()
+    {
+        return maxConcurrentQueries;
+    }
+
+    @Config("postgresql.query.max-concurrent-queries-per-project")
+    public PostgresqlConfig setMaxConcurrentQueriesPerProject(int maxConcurrentQueriesPerProject)
+    {
+        this.maxConcurrentQueriesPerProject = maxConcurrentQueriesPerProject;
+        return this;
+    }
+
+    public int getMaxConcurrentQueriesPerProject()
+    {
+        return maxConcurrentQueriesPerProject;
+    }
+
+    @Config("postgresql.query.max-queued-queries")
+    public PostgresqlConfig setMaxQueuedQueries(int maxQueuedQueries)
+    {
+        this.maxQueuedQueries = maxQueuedQueries;
+        return this;
+    }
+
+    public int getMaxQueuedQueries()
+    {
+        return maxQueuedQueries;
+    }
 }
@@ -15,9 +15,11 @@ package org.rakam.postgresql.analysis;
 
 import com.facebook.presto.sql.RakamSqlFormatter;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.AbstractFunnelQueryExecutor;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecution;
@@ -31,8 +33,12 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.facebook.presto.sql.RakamExpressionFormatter.formatIdentifier;
@@ -40,11 +46,19 @@ import static java.lang.String.format;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
+/**
+ * Strictly ordered funnel that reads the events of each collection once. The events are tagged with the steps they
+ * match and the rakam_funnel aggregate walks the events of each user in time order. The aggregate state keeps the
+ * latest start time of the chain for each step so that it enforces the step order and the funnel window in a single pass.
+ */
 public class PostgresqlFunnelQueryExecutor
         extends AbstractFunnelQueryExecutor
 {
+    private static final String EVENTS_ALIAS = "events";
+
     private final PostgresqlQueryExecutor executor;
     private final FastGenericFunnelQueryExecutor fastExecutor;
+    private final Metastore metastore;
 
     @Inject
     public PostgresqlFunnelQueryExecutor(FastGenericFunnelQueryExecutor fastExecutor, ProjectConfig projectConfig, Metastore metastore, PostgresqlQueryExecutor executor)
@@ -52,24 +66,54 @@ public class PostgresqlFunnelQueryExecutor
         super(projectConfig, metastore, executor);
         this.executor = executor;
         this.fastExecutor = fastExecutor;
+        this.metastore = metastore;
     }
 
     @PostConstruct
     public void setup()
     {
         try (Connection conn = executor.getConnection()) {
-            conn.createStatement().execute("CREATE OR REPLACE FUNCTION get_funnel_step(arr int[]) RETURNS integer AS $$\n" +
-                    "DECLARE next_step integer := 1; step integer;\n" +
+            // state[1] is the deepest step that is reached, state[n + 1] is the start time of the latest chain that reached step n.
+            // in consecutive mode the chains that are not continued by the current event are dropped.
+            conn.createStatement().execute("CREATE OR REPLACE FUNCTION rakam_funnel_state(state bigint[], event_time timestamp, steps int[], window_seconds bigint, consecutive boolean) RETURNS bigint[] AS $$\n" +
+                    "DECLARE event_epoch bigint := extract(epoch from event_time)::bigint; step integer; next_state bigint[];\n" +
                     "        BEGIN \n" +
-                    "                FOREACH step IN ARRAY arr\n" +
+                    "    next_state := CASE WHEN consecutive THEN array[state[1]] ELSE state END;\n" +
+                    "    FOREACH step IN ARRAY steps\n" +
                     "       LOOP\n" +
-                    "      IF step = next_step THEN\n" +
-                    "         next_step = next_step + 1;\n" +
+                    "      IF step = 1 THEN\n" +
+                    "         next_state[2] := event_epoch;\n" +
+                    "      ELSIF state[step] IS NOT NULL AND (window_seconds IS NULL OR event_epoch - state[step] <= window_seconds) THEN\n" +
+                    "         next_state[step + 1] := state[step];\n" +
+                    "      ELSE\n" +
+                    "         CONTINUE;\n" +
                     "      END IF;\n" +
+                    "      next_state[1] := greatest(next_state[1], step);\n" +
                     "       END LOOP;\n" +
-                    "    return next_step - 1;\n" +
+                    "    return next_state;\n" +
                     "        END;\n" +
-                    "$$ LANGUAGE plpgsql;");
+                    "$$ LANGUAGE plpgsql IMMUTABLE;");
+            conn.createStatement().execute("CREATE OR REPLACE FUNCTION rakam_funnel_final(state bigint[]) RETURNS integer AS $$\n" +
+                    "SELECT state[1]::integer\n" +
+                    "$$ LANGUAGE sql IMMUTABLE;");
+            // the aggregate is re-created so that the definition is updated when it changes, the queries of the
+            // other nodes don't see the aggregate missing since it's dropped and created in the same transaction
+            conn.setAutoCommit(false);
+            try {
+                conn.createStatement().execute("DROP AGGREGATE IF EXISTS rakam_funnel(timestamp, int[], bigint, boolean)");
+                conn.createStatement().execute("CREATE AGGREGATE rakam_funnel(timestamp, int[], bigint, boolean) " +
+                        "(SFUNC = rakam_funnel_state, STYPE = bigint[], FINALFUNC = rakam_funnel_final, INITCOND = '{0}')");
+                // replaced by rakam_funnel
+                conn.createStatement().execute("DROP FUNCTION IF EXISTS get_funnel_step(int[])");
+                conn.commit();
+            }
+            catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            finally {
+                conn.setAutoCommit(true);
+            }
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
@@ -79,7 +123,13 @@ public class PostgresqlFunnelQueryExecutor
     @Override
     public QueryExecution query(String project, List<FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate, Optional<FunnelWindow> window, ZoneId zoneId, Optional<List<String>> connectors, Optional<Boolean> ordered)
     {
-        if (!ordered.orElse(false)) {
+        return query(project, steps, dimension, startDate, endDate, window, zoneId, connectors, ordered, false);
+    }
+
+    @Override
+    public QueryExecution query(String project, List<FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate, Optional<FunnelWindow> window, ZoneId zoneId, Optional<List<String>> connectors, Optional<Boolean> ordered, boolean consecutive)
+    {
+        if (!ordered.orElse(false) && !consecutive) {
             return fastExecutor.query(project, steps, dimension, startDate, endDate, window, zoneId, connectors, ordered);
         }
 
@@ -87,35 +137,108 @@ public class PostgresqlFunnelQueryExecutor
             throw new RakamException("Dimension and connector field cannot be equal", HttpResponseStatus.BAD_REQUEST);
         }
 
-        return super.query(project, steps, dimension, startDate, endDate, window, zoneId, connectors, ordered);
+        if (!consecutive) {
+            return super.query(project, steps, dimension, startDate, endDate, window, zoneId, connectors, ordered);
+        }
+
+        String stepQueries = getStepQueries(project, steps, dimension, connectors, metastore.getCollections(project), true);
+        String query = formatQuery(getTemplate(window, true), stepQueries, dimension, startDate, endDate, zoneId, connectors);
+        return executeFunnel(query, steps, dimension);
     }
 
     @Override
     public String getTemplate(List<FunnelStep> steps, Optional<String> dimension, Optional<FunnelWindow> window)
     {
-        return "select %s get_funnel_step(steps) step, count(*) total from (\n" +
-                "select %s array_agg(step order by " + checkTableColumn(projectConfig.getTimeColumn()) + ") as steps from (%s) t WHERE " + checkTableColumn(projectConfig.getTimeColumn()) + " between timestamp '%s' and timestamp '%s'\n" +
+        return getTemplate(window, false);
+    }
+
+    private String getTemplate(Optional<FunnelWindow> window, boolean consecutive)
+    {
+        String timeColumn = checkTableColumn(projectConfig.getTimeColumn());
+        String windowSeconds = window.map(value -> String.valueOf(getWindowSeconds(value))).orElse("cast(null as bigint)");
+
+        // the events that have the same time are ordered by their steps in order to make the result deterministic
+        return "select %s step, count(*) total from (\n" +
+                "select %s rakam_funnel(" + timeColumn + ", steps, " + windowSeconds + ", " + consecutive + " order by " + timeColumn + ", steps) as step from (%s) t WHERE " + timeColumn + " between timestamp '%s' and timestamp '%s'\n" +
                 "group by %s %s\n" +
                 ") t group by 1 %s order by 1";
     }
 
+    public static long getWindowSeconds(FunnelWindow window)
+    {
+        switch (window.type) {
+            case DAY:
+                return TimeUnit.DAYS.toSeconds(window.value);
+            case WEEK:
+                return TimeUnit.DAYS.toSeconds(window.value * 7);
+            case MONTH:
+                return TimeUnit.DAYS.toSeconds(window.value * 30);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    protected String getStepQueries(String project, List<FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate,
+            Optional<List<String>> connectors, Map<String, List<SchemaField>> collections)
+    {
+        return getStepQueries(project, steps, dimension, connectors, collections, false);
+    }
+
+    private String getStepQueries(String project, List<FunnelStep> steps, Optional<String> dimension, Optional<List<String>> connectors,
+            Map<String, List<SchemaField>> collections, boolean consecutive)
+    {
+        Map<String, Map<Integer, FunnelStep>> stepsByCollection = new LinkedHashMap<>();
+        for (int i = 0; i < steps.size(); i++) {
+            stepsByCollection.computeIfAbsent(steps.get(i).getCollection(), k -> new TreeMap<>()).put(i, steps.get(i));
+        }
+
+        return stepsByCollection.entrySet().stream()
+                .map(entry -> {
+                    FunnelStep firstStep = entry.getValue().values().iterator().next();
+                    return convertSteps(project, getConnectorField(firstStep, connectors, collections), entry.getKey(), entry.getValue(),
+                            dimension, consecutive);
+                })
+                .collect(Collectors.joining(" UNION ALL "));
+    }
+
+    @Override
     public String convertFunnel(String project, String connectorField, int idx, FunnelStep funnelStep, Optional<String> dimension, LocalDate startDate, LocalDate endDate)
     {
-        String table = checkProject(project, '"') + "." + ValidationUtil.checkCollection(funnelStep.getCollection());
-        Optional<String> filterExp = funnelStep.getExpression().map(value -> RakamSqlFormatter.formatExpression(value,
-                name -> name.getParts().stream().map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")),
-                name -> formatIdentifier("step" + idx, '"') + "." + name.getParts().stream()
-                        .map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")), '"'));
+        return convertSteps(project, connectorField, funnelStep.getCollection(), ImmutableMap.of(idx, funnelStep), dimension, false);
+    }
+
+    private String convertSteps(String project, String connectorField, String collection, Map<Integer, FunnelStep> steps, Optional<String> dimension, boolean consecutive)
+    {
+        String table = checkProject(project, '"') + "." + ValidationUtil.checkCollection(collection);
+
+        Map<Integer, Optional<String>> filters = steps.entrySet().stream()
+                .collect(Collectors.toMap(e -> e.getKey() + 1, e -> formatFilter(e.getValue()), (a, b) -> a, TreeMap::new));
+
+        String stepArray = filters.entrySet().stream()
+                .map(e -> e.getValue().map(filter -> format("case when %s then %d end", filter, e.getKey())).orElse(String.valueOf(e.getKey())))
+                .collect(Collectors.joining(", "));
 
-        String format = format("SELECT %s %s, %d as step, %s from %s %s %s",
-                dimension.map(ValidationUtil::checkTableColumn).map(v -> v + ",").orElse(""),
-                format(connectorField, "step" + idx),
-                idx + 1,
+        // the events that don't match any step are also needed to break the chains in consecutive mode
+        Optional<String> where = consecutive || filters.values().stream().anyMatch(filter -> !filter.isPresent()) ? Optional.empty() :
+                Optional.of(filters.values().stream().map(filter -> "(" + filter.get() + ")").collect(Collectors.joining(" or ")));
+
+        return format("SELECT %s %s, %s.%s, array_remove(array[%s]::int[], null) as steps from %s %s %s",
+                dimension.map(ValidationUtil::checkTableColumn).map(v -> EVENTS_ALIAS + "." + v + ",").orElse(""),
+                format(connectorField, EVENTS_ALIAS),
+                EVENTS_ALIAS,
                 checkTableColumn(projectConfig.getTimeColumn()),
+                stepArray,
                 table,
-                "step" + idx,
-                filterExp.map(v -> "where " + v).orElse(""));
-        return format;
+                EVENTS_ALIAS,
+                where.map(v -> "where " + v).orElse(""));
     }
-}
 
+    private Optional<String> formatFilter(FunnelStep step)
+    {
+        return step.getExpression().map(value -> RakamSqlFormatter.formatExpression(value,
+                name -> name.getParts().stream().map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")),
+                name -> formatIdentifier(EVENTS_ALIAS, '"') + "." + name.getParts().stream()
+                        .map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")), '"'));
+    }
+}
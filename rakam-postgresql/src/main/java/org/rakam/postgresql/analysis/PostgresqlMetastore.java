@@ -17,6 +17,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -58,7 +59,7 @@ public class PostgresqlMetastore
         super(eventBus);
         this.connectionPool = connectionPool;
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
+        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).recordStats().build(new CacheLoader<ProjectCollection, List<SchemaField>>()
         {
             @Override
             public List<SchemaField> load(ProjectCollection key)
@@ -74,7 +75,7 @@ public class PostgresqlMetastore
             }
         });
 
-        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
+        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).recordStats().build(new CacheLoader<String, Set<String>>()
         {
             @Override
             public Set<String> load(String project)
@@ -103,6 +104,13 @@ public class PostgresqlMetastore
         });
     }
 
+    @Inject
+    public void registerMetrics(MetricRegistry registry)
+    {
+        registry.cache("postgresql_schema", schemaCache);
+        registry.cache("postgresql_collections", collectionCache);
+    }
+
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
     {
@@ -17,12 +17,17 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.core.BaseConnection;
 import org.postgresql.util.PGobject;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.User;
+import org.rakam.plugin.user.UserOperationMerger;
+import org.rakam.plugin.user.UserOperationMerger.MergedUser;
+import org.rakam.plugin.user.UserOperationMerger.PropertyChange;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryError;
@@ -35,6 +40,7 @@ import org.rakam.util.RakamException;
 
 import javax.annotation.Nullable;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -47,8 +53,14 @@ import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -73,6 +85,10 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public abstract class AbstractPostgresqlUserStorage
         implements UserStorage
 {
+    private static final String BATCH_STAGING_TABLE = "_user_batch";
+    private static final DateTimeFormatter COPY_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneOffset.UTC);
+
     private final QueryExecutorService queryExecutorService;
     private final PostgresqlQueryExecutor queryExecutor;
     private final Cache<String, Map<String, FieldType>> propertyCache;
@@ -149,17 +165,21 @@ public abstract class AbstractPostgresqlUserStorage
         ObjectNode properties = JsonHelper.jsonObject();
 
         for (Map.Entry<String, JsonNode> entry : fields) {
-            String key = stripName(entry.getKey(), "property");
-            if (key.equals("id")) {
-                key = "_id";
-            }
-
-            properties.set(key, entry.getValue());
+            properties.set(stripPropertyName(entry.getKey()), entry.getValue());
         }
 
         return () -> properties.fields();
     }
 
+    private static String stripPropertyName(String name)
+    {
+        String key = stripName(name, "property");
+        if (key.equals("id")) {
+            key = "_id";
+        }
+        return key;
+    }
+
     public Object createInternal(String project, Object id, Iterable<Map.Entry<String, JsonNode>> _properties)
     {
         Iterable<Map.Entry<String, JsonNode>> properties = strip(_properties);
@@ -879,7 +899,7 @@ public abstract class AbstractPostgresqlUserStorage
         }
 
         if (!fieldType.isNumeric()) {
-            throw new RakamException(String.format("The property the is %s and it can't be incremented.", fieldType.name()),
+            throw new RakamException(String.format("The type of the property is %s and it can't be incremented.", fieldType.name()),
                     BAD_REQUEST);
         }
 
@@ -895,37 +915,199 @@ public abstract class AbstractPostgresqlUserStorage
     @Override
     public void batch(String project, List<? extends ISingleUserBatchOperation> operations)
     {
+        Collection<MergedUser> users = UserOperationMerger.merge(operations, AbstractPostgresqlUserStorage::stripPropertyName);
+        if (users.isEmpty()) {
+            return;
+        }
+
+        Map<String, JsonNode> samples = new LinkedHashMap<>();
+        for (MergedUser user : users) {
+            for (Map.Entry<String, PropertyChange> entry : user.getProperties().entrySet()) {
+                PropertyChange change = entry.getValue();
+                if (!UserOperationMerger.isNull(change.getValue())) {
+                    samples.putIfAbsent(entry.getKey(), change.getValue());
+                }
+                else if (change.getIncrement() != null) {
+                    samples.putIfAbsent(entry.getKey(), new DoubleNode(change.getIncrement()));
+                }
+            }
+        }
+
+        Object sampleId = users.iterator().next().getId();
+        Map<String, FieldType> columns = createMissingColumns(project, sampleId, samples.entrySet());
+
+        List<String> properties = new ArrayList<>();
+        Set<String> incrementedProperties = new HashSet<>();
+        for (MergedUser user : users) {
+            for (Map.Entry<String, PropertyChange> entry : user.getProperties().entrySet()) {
+                FieldType fieldType = columns.get(entry.getKey());
+                if (fieldType == null) {
+                    continue;
+                }
+                if (entry.getValue().getIncrement() != null) {
+                    if (!fieldType.isNumeric()) {
+                        throw new RakamException(String.format("The type of the property is %s and it can't be incremented.", fieldType.name()),
+                                BAD_REQUEST);
+                    }
+                    incrementedProperties.add(entry.getKey());
+                }
+                if (!properties.contains(entry.getKey())) {
+                    properties.add(entry.getKey());
+                }
+            }
+        }
+
         try (Connection conn = queryExecutor.getConnection()) {
             conn.setAutoCommit(false);
+            try {
+                applyBatch(conn, project, users, properties, incrementedProperties, columns);
+                conn.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+            finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
 
-            int i = 1;
-            for (ISingleUserBatchOperation operation : operations) {
-                    if (operation.getSetProperties() != null) {
-                        setUserProperties(conn, project, operation.getUser(), () -> operation.getSetProperties().fields(), false);
-                    }
-                    if (operation.getSetPropertiesOnce() != null) {
-                        setUserProperties(conn, project, operation.getUser(), () -> operation.getSetPropertiesOnce().fields(), true);
-                    }
-                    if (operation.getUnsetProperties() != null) {
-                        unsetProperties(conn, project, operation.getUser(), operation.getUnsetProperties());
-                    }
-                    if (operation.getIncrementProperties() != null) {
-                        for (Map.Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
-                            incrementProperty(conn, project, operation.getUser(), entry.getKey(), entry.getValue());
-                        }
+    private void applyBatch(Connection conn, String project, Collection<MergedUser> users, List<String> properties, Set<String> incrementedProperties, Map<String, FieldType> columns)
+            throws SQLException
+    {
+        String userTable = getUserTable(project, false);
+
+        // the staging table has the same column types with the user table, the value of the i-th property is stored in _v{i},
+        // the operation code in _op{i} and the merged increment in _inc{i}.
+        StringBuilder staging = new StringBuilder("CREATE TEMPORARY TABLE " + BATCH_STAGING_TABLE +
+                " ON COMMIT DROP AS SELECT " + PRIMARY_KEY + ", created_at");
+        for (int i = 0; i < properties.size(); i++) {
+            staging.append(format(", %s AS _v%d, NULL::int2 AS _op%d, NULL::float8 AS _inc%d",
+                    checkTableColumn(properties.get(i)), i, i, i));
+        }
+        staging.append(" FROM ").append(userTable).append(" WITH NO DATA");
+
+        try (Statement statement = conn.createStatement()) {
+            statement.execute(staging.toString());
+        }
+
+        CopyIn copyIn = conn.unwrap(BaseConnection.class).getCopyAPI()
+                .copyIn("COPY " + BATCH_STAGING_TABLE + " FROM STDIN WITH (FORMAT csv)");
+        try {
+            StringBuilder row = new StringBuilder();
+            for (MergedUser user : users) {
+                row.setLength(0);
+                appendCsvValue(row, user.getId().toString());
+                row.append(',');
+                appendCsvValue(row, COPY_TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(getCreatedAt(user.getCreatedAt()))));
+
+                for (String property : properties) {
+                    PropertyChange change = user.getProperties().get(property);
+                    row.append(',');
+                    if (change == null) {
+                        row.append(",,");
+                        continue;
                     }
 
-                    if (i++ % 5000 == 0) {
-                        conn.commit();
+                    appendCsvValue(row, toCopyValue(getJDBCValue(columns.get(property), change.getValue(), conn)));
+                    row.append(',').append(change.getOperation().getCode()).append(',');
+                    if (change.getIncrement() != null) {
+                        row.append(change.getIncrement());
                     }
+                }
+                row.append('\n');
+
+                byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(bytes, 0, bytes.length);
+            }
+            copyIn.endCopy();
+        }
+        finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate(format("INSERT INTO %s (%s, created_at) SELECT %s, created_at FROM %s ON CONFLICT (%s) DO NOTHING",
+                    userTable, PRIMARY_KEY, PRIMARY_KEY, BATCH_STAGING_TABLE, PRIMARY_KEY));
+
+            if (properties.isEmpty()) {
+                return;
             }
 
-            conn.commit();
-            conn.setAutoCommit(true);
+            StringBuilder update = new StringBuilder("UPDATE " + userTable + " AS u SET ");
+            for (int i = 0; i < properties.size(); i++) {
+                String column = checkTableColumn(properties.get(i));
+                String value = format("CASE s._op%d WHEN 1 THEN s._v%d WHEN 2 THEN coalesce(u.%s, s._v%d) ELSE u.%s END",
+                        i, i, column, i, column);
+                if (incrementedProperties.contains(properties.get(i))) {
+                    value = format("CASE WHEN s._inc%d IS NULL THEN %s ELSE coalesce(%s, 0) + s._inc%d END", i, value, value, i);
+                }
+                if (i > 0) {
+                    update.append(", ");
+                }
+                update.append(column).append(" = ").append(value);
+            }
+            update.append(format(" FROM %s AS s WHERE u.%s = s.%s", BATCH_STAGING_TABLE, PRIMARY_KEY, PRIMARY_KEY));
+
+            statement.executeUpdate(update.toString());
         }
-        catch (SQLException e) {
-            throw Throwables.propagate(e);
+    }
+
+    private static long getCreatedAt(JsonNode value)
+    {
+        if (value == null) {
+            return Instant.now().toEpochMilli();
+        }
+
+        try {
+            return DateTimeUtils.parseTimestamp(value.isNumber() ? value.numberValue() : value.textValue());
+        }
+        catch (Exception e) {
+            return Instant.now().toEpochMilli();
+        }
+    }
+
+    private static String toCopyValue(Object value)
+    {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Array) {
+            // the driver keeps the array literal that is built in createArrayOf
+            return value.toString();
+        }
+        if (value instanceof PGobject) {
+            return ((PGobject) value).getValue();
+        }
+        if (value instanceof Timestamp) {
+            // Timestamp.toString uses the time zone of the JVM
+            return COPY_TIMESTAMP_FORMAT.format(((Timestamp) value).toInstant());
+        }
+        return value.toString();
+    }
+
+    private static void appendCsvValue(StringBuilder builder, String value)
+    {
+        // unquoted empty value is NULL in CSV format of COPY, the values are always quoted
+        if (value == null) {
+            return;
+        }
+
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                builder.append('"');
+            }
+            builder.append(c);
         }
+        builder.append('"');
     }
 
     private String getPostgresqlType(JsonNode clazz)
@@ -15,7 +15,6 @@ package org.rakam.postgresql.report;
 
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
-import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.config.ProjectConfig;
@@ -23,6 +22,7 @@ import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
@@ -67,9 +67,9 @@ public class PostgresqlEventExplorer
 
     @Inject
     public PostgresqlEventExplorer(ProjectConfig projectConfig, QueryExecutorService service, MaterializedViewService materializedViewService,
-            ContinuousQueryService continuousQueryService)
+            OLAPTableIndex olapTableIndex)
     {
-        super(projectConfig, service, materializedViewService, continuousQueryService, timestampMapping);
+        super(projectConfig, service, materializedViewService, olapTableIndex, timestampMapping);
         this.executorService = service;
         this.projectConfig = projectConfig;
     }
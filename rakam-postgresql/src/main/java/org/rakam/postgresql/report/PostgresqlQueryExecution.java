@@ -16,6 +16,7 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
 import org.skife.jdbi.v2.tweak.ConnectionFactory;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
 import java.io.IOException;
@@ -33,17 +34,20 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Supplier;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static java.lang.String.format;
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.postgresql.analysis.PostgresqlEventStore.UTC_CALENDAR;
-import static org.rakam.postgresql.report.PostgresqlQueryExecutor.QUERY_EXECUTOR;
 import static org.rakam.report.QueryResult.EXECUTION_TIME;
 import static org.rakam.report.QueryResult.QUERY;
 import static org.rakam.report.QueryStats.State.FINISHED;
 import static org.rakam.report.QueryStats.State.RUNNING;
+import static org.rakam.report.QueryStats.State.WAITING_FOR_AVAILABLE_THREAD;
 import static org.rakam.util.JDBCUtil.fromSql;
 
 public class PostgresqlQueryExecution
@@ -51,63 +55,148 @@ public class PostgresqlQueryExecution
 {
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecution.class);
 
-    private final CompletableFuture<QueryResult> result;
+    private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+    private final PostgresqlQueryScheduler scheduler;
+    private final ConnectionFactory connectionPool;
     private final String query;
-    private Statement statement;
+    private final boolean update;
+    private final boolean analyticsQuery;
+    private final Consumer<List<Object>> rowConsumer;
+    private final AtomicLong processedRows = new AtomicLong();
+    private volatile boolean started;
+    private volatile Statement statement;
+    private volatile String killReason;
 
     public PostgresqlQueryExecution(ConnectionFactory connectionPool, String query, boolean update)
     {
+        this(PostgresqlQueryScheduler.getDefault(), Optional.empty(), connectionPool, query, update);
+    }
+
+    public PostgresqlQueryExecution(PostgresqlQueryScheduler scheduler, Optional<String> project, ConnectionFactory connectionPool,
+            String query, boolean update)
+    {
+        this(scheduler, project, connectionPool, query, update, null);
+    }
+
+    /**
+     * @param rowConsumer if it's set, the rows are passed to the consumer as they are fetched from the cursor
+     * instead of being collected into the query result.
+     */
+    public PostgresqlQueryExecution(PostgresqlQueryScheduler scheduler, Optional<String> project, ConnectionFactory connectionPool,
+            String query, boolean update, @Nullable Consumer<List<Object>> rowConsumer)
+    {
+        this.scheduler = scheduler;
+        this.connectionPool = connectionPool;
         this.query = query;
+        this.update = update;
+        // the statements and the internal queries that are not run for a project are not limited by the execution time
+        this.analyticsQuery = project.isPresent() && !update;
+        this.rowConsumer = rowConsumer;
 
-        // TODO: unnecessary threads will be spawn
-        Supplier<QueryResult> task = () -> {
-            final QueryResult queryResult;
-            try (Connection connection = connectionPool.openConnection()) {
-                statement = connection.createStatement();
-                if (update) {
-                    statement.executeUpdate(query);
-                    // CREATE TABLE queries doesn't return any value and
-                    // fail when using executeQuery so we fake the result data
-                    queryResult = new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
-                            ImmutableList.of(ImmutableList.of(true)));
-                }
-                else {
-                    long beforeExecuted = System.currentTimeMillis();
-                    ResultSet resultSet = statement.executeQuery(query);
-                    statement = null;
-                    queryResult = resultSetToQueryResult(resultSet,
-                            System.currentTimeMillis() - beforeExecuted);
-                }
+        if (!scheduler.schedule(project, this::run)) {
+            QueryError error = new QueryError("There are too many queued queries, please try again later.", null, null, null, null);
+            result.complete(QueryResult.errorResult(error, query));
+        }
+    }
+
+    private void run()
+    {
+        if (killReason != null) {
+            result.complete(QueryResult.errorResult(new QueryError(killReason, null, null, null, null), query));
+            return;
+        }
+
+        started = true;
+        ScheduledFuture<?> timeout = analyticsQuery ? scheduler.scheduleTimeout(() ->
+                kill("Query exceeded the maximum execution time of " + scheduler.getMaxExecutionTime())) : null;
+        try {
+            result.complete(execute());
+        }
+        catch (Throwable e) {
+            result.complete(QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null), query));
+        }
+        finally {
+            if (timeout != null) {
+                timeout.cancel(false);
             }
-            catch (Exception e) {
-                QueryError error;
-                if (e instanceof SQLException) {
-                    SQLException cause = (SQLException) e;
-                    error = new QueryError(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), null, null);
-                    LogUtil.logQueryError(query, error, PostgresqlQueryExecutor.class);
+            statement = null;
+        }
+    }
+
+    private QueryResult execute()
+    {
+        long beforeExecuted = System.currentTimeMillis();
+        try (Connection connection = connectionPool.openConnection()) {
+            statement = connection.createStatement();
+            checkKilled();
+
+            if (update) {
+                statement.executeUpdate(query);
+                // CREATE TABLE queries doesn't return any value and
+                // fail when using executeQuery so we fake the result data
+                return new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
+                        ImmutableList.of(ImmutableList.of(true)));
+            }
+
+            // the driver uses a server-side cursor and fetches the rows in batches only if the autocommit is disabled
+            connection.setAutoCommit(false);
+            try {
+                statement.setFetchSize(scheduler.getFetchSize());
+                QueryResult queryResult = resultSetToQueryResult(statement.executeQuery(query), beforeExecuted);
+                connection.commit();
+                return queryResult;
+            }
+            catch (SQLException e) {
+                try {
+                    connection.rollback();
                 }
-                else {
-                    LOGGER.error(e, "Internal query execution error");
-                    error = new QueryError(e.getMessage(), null, null, null, null);
+                catch (SQLException rollbackException) {
+                    e.addSuppressed(rollbackException);
                 }
-                LOGGER.debug(e, format("Error while executing Postgresql query: \n%s", query));
-                return QueryResult.errorResult(error, query);
+                throw e;
             }
+            finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (Exception e) {
+            QueryError error;
+            if (killReason != null) {
+                error = new QueryError(killReason, null, null, null, null);
+            }
+            else if (e instanceof SQLException) {
+                SQLException cause = (SQLException) e;
+                error = new QueryError(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), null, null);
+                LogUtil.logQueryError(query, error, PostgresqlQueryExecutor.class);
+            }
+            else {
+                LOGGER.error(e, "Internal query execution error");
+                error = new QueryError(e.getMessage(), null, null, null, null);
+            }
+            LOGGER.debug(e, format("Error while executing Postgresql query: \n%s", query));
+            return QueryResult.errorResult(error, query);
+        }
+    }
 
-            return queryResult;
-        };
-
-        this.result = CompletableFuture.supplyAsync(task, QUERY_EXECUTOR);
+    private void checkKilled()
+            throws SQLException
+    {
+        if (killReason != null) {
+            throw new SQLException(killReason);
+        }
     }
 
     @Override
     public QueryStats currentStats()
     {
         if (result.isDone()) {
-            return new QueryStats(100, FINISHED, null, null, null, null, null, null);
+            return new QueryStats(100, FINISHED, null, processedRows.get(), null, null, null, null);
+        }
+        else if (!started) {
+            return new QueryStats(WAITING_FOR_AVAILABLE_THREAD);
         }
         else {
-            return new QueryStats(null, RUNNING, null, null, null, null, null, null);
+            return new QueryStats(null, RUNNING, null, processedRows.get(), null, null, null, null);
         }
     }
 
@@ -126,139 +215,161 @@ public class PostgresqlQueryExecution
     @Override
     public void kill()
     {
+        kill("Query was killed");
+    }
+
+    private void kill(String reason)
+    {
+        if (result.isDone()) {
+            return;
+        }
+        if (killReason == null) {
+            killReason = reason;
+        }
+
+        // the statement is kept until the rows are consumed so the query is cancelled even if it's fetching the rows.
+        // if the cursor is not waiting for the server, the fetch loop stops when it sees the kill reason.
+        Statement statement = this.statement;
         if (statement != null) {
             try {
                 statement.cancel();
             }
             catch (SQLException e) {
-                return;
+                LOGGER.warn(e, "Error while cancelling Postgresql query");
             }
         }
     }
 
-    private QueryResult resultSetToQueryResult(ResultSet resultSet, long executionTimeInMillis)
+    private QueryResult resultSetToQueryResult(ResultSet resultSet, long beforeExecuted)
+            throws SQLException
     {
         List<SchemaField> columns;
         List<List<Object>> data;
-        try {
-            ResultSetMetaData metaData = resultSet.getMetaData();
-            int columnCount = metaData.getColumnCount();
-
-            columns = new ArrayList<>(columnCount);
-            for (int i = 1; i < columnCount + 1; i++) {
-                FieldType type;
-                try {
-                    type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
-                }
-                catch (UnsupportedOperationException e) {
-                    LOGGER.warn(e.getMessage());
-                    type = STRING;
-                }
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columnCount = metaData.getColumnCount();
 
-                columns.add(new SchemaField(metaData.getColumnName(i), type));
+        columns = new ArrayList<>(columnCount);
+        for (int i = 1; i < columnCount + 1; i++) {
+            FieldType type;
+            try {
+                type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
+            }
+            catch (UnsupportedOperationException e) {
+                LOGGER.warn(e.getMessage());
+                type = STRING;
             }
 
-            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
-            while (resultSet.next()) {
-                List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
-                for (int i = 0; i < columnCount; i++) {
-                    Object object;
-                    SchemaField schemaField = columns.get(i);
-                    if (schemaField == null) {
-                        continue;
-                    }
-                    FieldType type = schemaField.getType();
-                    switch (type) {
-                        case STRING:
-                            object = resultSet.getString(i + 1);
-                            break;
-                        case LONG:
-                            object = resultSet.getLong(i + 1);
-                            break;
-                        case INTEGER:
-                            object = resultSet.getInt(i + 1);
-                            break;
-                        case DECIMAL:
-                            BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
-                            object = bigDecimal != null ? bigDecimal.doubleValue() : null;
-                            break;
-                        case DOUBLE:
-                            object = resultSet.getDouble(i + 1);
-                            break;
-                        case BOOLEAN:
-                            object = resultSet.getBoolean(i + 1);
-                            break;
-                        case TIMESTAMP:
-                            Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
-                            object = timestamp != null ? timestamp.toInstant() : null;
-                            break;
-                        case DATE:
-                            Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
-                            object = date != null ? date.toLocalDate() : null;
-                            break;
-                        case TIME:
-                            Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
-                            object = time != null ? time.toLocalTime() : null;
-                            break;
-                        case BINARY:
-                            InputStream binaryStream = resultSet.getBinaryStream(i + 1);
-                            if (binaryStream != null) {
-                                try {
-                                    object = ByteStreams.toByteArray(binaryStream);
-                                }
-                                catch (IOException e) {
-                                    LOGGER.error("Error while de-serializing BINARY type", e);
-                                    object = null;
-                                }
+            columns.add(new SchemaField(metaData.getColumnName(i), type));
+        }
+
+        ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
+        int maxResultRows = scheduler.getMaxResultRows();
+        while (resultSet.next()) {
+            checkKilled();
+            // the collected rows are kept in memory until the result is consumed so their number can be limited
+            if (rowConsumer == null && maxResultRows > 0 && processedRows.get() >= maxResultRows) {
+                throw new SQLException(format("Query result exceeded the maximum of %d rows", maxResultRows));
+            }
+            List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
+            for (int i = 0; i < columnCount; i++) {
+                Object object;
+                SchemaField schemaField = columns.get(i);
+                if (schemaField == null) {
+                    continue;
+                }
+                FieldType type = schemaField.getType();
+                switch (type) {
+                    case STRING:
+                        object = resultSet.getString(i + 1);
+                        break;
+                    case LONG:
+                        object = resultSet.getLong(i + 1);
+                        break;
+                    case INTEGER:
+                        object = resultSet.getInt(i + 1);
+                        break;
+                    case DECIMAL:
+                        BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
+                        object = bigDecimal != null ? bigDecimal.doubleValue() : null;
+                        break;
+                    case DOUBLE:
+                        object = resultSet.getDouble(i + 1);
+                        break;
+                    case BOOLEAN:
+                        object = resultSet.getBoolean(i + 1);
+                        break;
+                    case TIMESTAMP:
+                        Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
+                        object = timestamp != null ? timestamp.toInstant() : null;
+                        break;
+                    case DATE:
+                        Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
+                        object = date != null ? date.toLocalDate() : null;
+                        break;
+                    case TIME:
+                        Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
+                        object = time != null ? time.toLocalTime() : null;
+                        break;
+                    case BINARY:
+                        InputStream binaryStream = resultSet.getBinaryStream(i + 1);
+                        if (binaryStream != null) {
+                            try {
+                                object = ByteStreams.toByteArray(binaryStream);
                             }
-                            else {
+                            catch (IOException e) {
+                                LOGGER.error("Error while de-serializing BINARY type", e);
                                 object = null;
                             }
-                            break;
-                        default:
-                            if (type.isArray()) {
-                                Array array = resultSet.getArray(i + 1);
-                                object = array == null ? null : array.getArray();
+                        }
+                        else {
+                            object = null;
+                        }
+                        break;
+                    default:
+                        if (type.isArray()) {
+                            Array array = resultSet.getArray(i + 1);
+                            object = array == null ? null : array.getArray();
+                        }
+                        else if (type.isMap()) {
+                            PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
+                            if (pgObject == null) {
+                                object = null;
                             }
-                            else if (type.isMap()) {
-                                PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
-                                if (pgObject == null) {
-                                    object = null;
+                            else {
+                                if (pgObject.getType().equals("jsonb")) {
+                                    object = JsonHelper.read(pgObject.getValue());
                                 }
                                 else {
-                                    if (pgObject.getType().equals("jsonb")) {
-                                        object = JsonHelper.read(pgObject.getValue());
-                                    }
-                                    else {
-                                        throw new UnsupportedOperationException("Postgresql type is not supported");
-                                    }
+                                    throw new UnsupportedOperationException("Postgresql type is not supported");
                                 }
                             }
-                            else {
-                                throw new IllegalStateException();
-                            }
-                    }
-
-                    if (resultSet.wasNull()) {
-                        object = null;
-                    }
+                        }
+                        else {
+                            throw new IllegalStateException();
+                        }
+                }
 
-                    rowBuilder.set(i, object);
+                if (resultSet.wasNull()) {
+                    object = null;
                 }
+
+                rowBuilder.set(i, object);
+            }
+            processedRows.incrementAndGet();
+            if (rowConsumer != null) {
+                rowConsumer.accept(rowBuilder);
+            }
+            else {
                 builder.add(rowBuilder);
             }
-            data = builder.build();
+        }
+        data = builder.build();
 
-            for (int i = 0; i < columns.size(); i++) {
-                if (columns.get(i) == null) {
-                    columns.set(i, new SchemaField(metaData.getColumnName(i + 1), STRING));
-                }
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i) == null) {
+                columns.set(i, new SchemaField(metaData.getColumnName(i + 1), STRING));
             }
-            return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis, QUERY, query));
-        }
-        catch (SQLException e) {
-            QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
-            return QueryResult.errorResult(error, query);
         }
+        return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, System.currentTimeMillis() - beforeExecuted, QUERY, query));
     }
 }
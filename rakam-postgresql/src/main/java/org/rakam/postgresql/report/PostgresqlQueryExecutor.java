@@ -16,12 +16,14 @@ import org.rakam.analysis.datasource.SupportedCustomDatabase;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -31,9 +33,8 @@ import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -56,22 +57,46 @@ public class PostgresqlQueryExecutor
     public final static String CONTINUOUS_QUERY_PREFIX = "$view_";
 
     private final JDBCPoolDataSource connectionPool;
-    protected static final ExecutorService QUERY_EXECUTOR = Executors.newWorkStealingPool();
+    private final PostgresqlQueryScheduler scheduler;
     private final Metastore metastore;
     private final boolean userServiceIsPostgresql;
     private final CustomDataSourceService customDataSource;
     private final ProjectConfig projectConfig;
     private SqlParser sqlParser = new SqlParser();
 
+    public PostgresqlQueryExecutor(
+            ProjectConfig projectConfig,
+            JDBCPoolDataSource connectionPool,
+            Metastore metastore,
+            @Nullable CustomDataSourceService customDataSource,
+            boolean userServiceIsPostgresql)
+    {
+        this(projectConfig, connectionPool, metastore, customDataSource, userServiceIsPostgresql, PostgresqlQueryScheduler.getDefault());
+    }
+
     @Inject
     public PostgresqlQueryExecutor(
             ProjectConfig projectConfig,
             @Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool,
             Metastore metastore,
             @Nullable CustomDataSourceService customDataSource,
-            @Named("user.storage.postgresql") boolean userServiceIsPostgresql)
+            @Named("user.storage.postgresql") boolean userServiceIsPostgresql,
+            PostgresqlConfig postgresqlConfig,
+            MetricRegistry registry)
+    {
+        this(projectConfig, connectionPool, metastore, customDataSource, userServiceIsPostgresql, new PostgresqlQueryScheduler(postgresqlConfig, registry));
+    }
+
+    private PostgresqlQueryExecutor(
+            ProjectConfig projectConfig,
+            JDBCPoolDataSource connectionPool,
+            Metastore metastore,
+            CustomDataSourceService customDataSource,
+            boolean userServiceIsPostgresql,
+            PostgresqlQueryScheduler scheduler)
     {
         this.projectConfig = projectConfig;
+        this.scheduler = scheduler;
         this.connectionPool = connectionPool;
         this.customDataSource = customDataSource;
         this.metastore = metastore;
@@ -92,23 +117,44 @@ public class PostgresqlQueryExecutor
     @Override
     public QueryExecution executeRawQuery(String query)
     {
-        return new PostgresqlQueryExecution(connectionPool::getConnection, query, false);
+        return new PostgresqlQueryExecution(scheduler, Optional.empty(), connectionPool::getConnection, query, false);
     }
 
     @Override
     public QueryExecution executeRawQuery(String query, Map<String, String> sessionParameters)
+    {
+        return executeRawQuery(Optional.empty(), query, sessionParameters);
+    }
+
+    @Override
+    public QueryExecution executeRawQuery(String project, String query, Map<String, String> sessionParameters)
+    {
+        // the queries of the project are limited by the scheduler
+        return executeRawQuery(Optional.of(project), query, sessionParameters);
+    }
+
+    /**
+     * Executes the query on a server-side cursor and passes the rows to the consumer as they are fetched, the rows
+     * are not collected into the query result.
+     */
+    public QueryExecution executeRawQuery(String project, String query, Consumer<List<Object>> rowConsumer)
+    {
+        return new PostgresqlQueryExecution(scheduler, Optional.of(project), connectionPool::getConnection, query, false, rowConsumer);
+    }
+
+    private QueryExecution executeRawQuery(Optional<String> project, String query, Map<String, String> sessionParameters)
     {
         String remotedb = sessionParameters.get("remotedb");
         if(remotedb != null) {
-            return getSingleQueryExecution(query, JsonHelper.read(remotedb, CustomDataSource.class));
+            return getSingleQueryExecution(query, JsonHelper.read(remotedb, CustomDataSource.class), project);
         }
-        return new PostgresqlQueryExecution(connectionPool::getConnection, query, false);
+        return new PostgresqlQueryExecution(scheduler, project, connectionPool::getConnection, query, false);
     }
 
     @Override
     public QueryExecution executeRawStatement(String query)
     {
-        return new PostgresqlQueryExecution(connectionPool::getConnection, query, true);
+        return new PostgresqlQueryExecution(scheduler, Optional.empty(), connectionPool::getConnection, query, true);
     }
 
     @Override
@@ -203,7 +249,7 @@ public class PostgresqlQueryExecutor
         }
     }
 
-    private QueryExecution getSingleQueryExecution(String query, CustomDataSource type)
+    private QueryExecution getSingleQueryExecution(String query, CustomDataSource type, Optional<String> project)
     {
         Optional<String> schema = Optional.ofNullable(type.options.getSchema());
 
@@ -230,7 +276,7 @@ public class PostgresqlQueryExecutor
             sqlQuery = sqlQuery.replaceAll("LIMIT ([0-9]+)$", "ORDER BY 1 OFFSET 0 ROWS FETCH NEXT $1 ROWS ONLY");
         }
 
-        return new PostgresqlQueryExecution(() ->
+        return new PostgresqlQueryExecution(scheduler, project, () ->
                 source.getDataSource().openConnection(type.options), sqlQuery, false);
     }
 }
@@ -0,0 +1,183 @@
+package org.rakam.postgresql.report;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.Histogram;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.util.metrics.Histogram.LATENCY_BUCKETS;
+
+/**
+ * Runs the Postgresql queries on a bounded thread pool. A project can run at most
+ * {@link PostgresqlConfig#getMaxConcurrentQueriesPerProject()} queries at the same time, the other queries of the
+ * project wait in its queue so that a single project can't take all the threads. The queries that can't be queued
+ * are rejected.
+ */
+public class PostgresqlQueryScheduler
+{
+    private static PostgresqlQueryScheduler defaultScheduler;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timeoutExecutor;
+    private final PostgresqlConfig config;
+    private final Map<String, ProjectQueue> projects = new HashMap<>();
+    private final MetricFamily<Histogram> queueTime;
+    private final Counter rejectedQueries;
+    private int queuedQueries;
+
+    public PostgresqlQueryScheduler(PostgresqlConfig config)
+    {
+        this(config, new MetricRegistry());
+    }
+
+    public PostgresqlQueryScheduler(PostgresqlConfig config, MetricRegistry registry)
+    {
+        this.config = config;
+        this.executor = new ThreadPoolExecutor(config.getMaxConcurrentQueries(), config.getMaxConcurrentQueries(),
+                60L, SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("postgresql-query-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("postgresql-query-timeout").setDaemon(true).build());
+
+        this.queueTime = registry.histogram("rakam_postgresql_query_queue_seconds",
+                "Time that the Postgresql queries wait for a thread", "project", LATENCY_BUCKETS);
+        this.rejectedQueries = registry.counter("rakam_postgresql_rejected_queries_total",
+                "Number of the Postgresql queries that are rejected because the queue is full");
+        registry.gauge("rakam_postgresql_queued_queries", "Number of the Postgresql queries that wait for a thread",
+                this::getQueuedQueries);
+    }
+
+    /**
+     * The scheduler with the default configuration, used by the executions that are not created by
+     * {@link PostgresqlQueryExecutor} such as the queries of the custom data sources. Its metrics are kept in a separate
+     * registry so that they don't replace the metrics of the scheduler of the query executor.
+     */
+    public static synchronized PostgresqlQueryScheduler getDefault()
+    {
+        if (defaultScheduler == null) {
+            defaultScheduler = new PostgresqlQueryScheduler(new PostgresqlConfig());
+        }
+        return defaultScheduler;
+    }
+
+    public int getFetchSize()
+    {
+        return config.getQueryFetchSize();
+    }
+
+    public int getMaxResultRows()
+    {
+        return config.getQueryMaxResultRows();
+    }
+
+    /**
+     * Runs the query when a thread and a slot of the project is available.
+     *
+     * @return false if the query queue is full and the task is rejected
+     */
+    public synchronized boolean schedule(Optional<String> project, Runnable query)
+    {
+        if (queuedQueries >= config.getMaxQueuedQueries()) {
+            rejectedQueries.increment();
+            return false;
+        }
+        queuedQueries++;
+
+        long queuedAt = System.nanoTime();
+        Histogram projectQueueTime = queueTime.get(project.orElse(""));
+        Runnable task = () -> {
+            projectQueueTime.addElapsed(queuedAt);
+            query.run();
+        };
+
+        if (!project.isPresent()) {
+            executor.execute(() -> run(task));
+            return true;
+        }
+
+        String projectName = project.get();
+        ProjectQueue queue = projects.computeIfAbsent(projectName, key -> new ProjectQueue());
+        if (queue.running < config.getMaxConcurrentQueriesPerProject()) {
+            queue.running++;
+            executor.execute(() -> run(projectName, task));
+        }
+        else {
+            queue.waiting.add(task);
+        }
+        return true;
+    }
+
+    /**
+     * Calls the action once the query exceeds the maximum execution time.
+     */
+    public ScheduledFuture<?> scheduleTimeout(Runnable action)
+    {
+        return timeoutExecutor.schedule(action, config.getQueryMaxExecutionTime().toMillis(), MILLISECONDS);
+    }
+
+    public synchronized int getQueuedQueries()
+    {
+        return queuedQueries;
+    }
+
+    public String getMaxExecutionTime()
+    {
+        return config.getQueryMaxExecutionTime().toString();
+    }
+
+    private void run(Runnable task)
+    {
+        synchronized (this) {
+            queuedQueries--;
+        }
+        task.run();
+    }
+
+    private void run(String project, Runnable task)
+    {
+        try {
+            run(task);
+        }
+        finally {
+            finished(project);
+        }
+    }
+
+    private synchronized void finished(String project)
+    {
+        ProjectQueue queue = projects.get(project);
+        Runnable next = queue.waiting.poll();
+        if (next != null) {
+            executor.execute(() -> run(project, next));
+            return;
+        }
+
+        queue.running--;
+        if (queue.running == 0) {
+            projects.remove(project);
+        }
+    }
+
+    private static class ProjectQueue
+    {
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int running;
+    }
+}
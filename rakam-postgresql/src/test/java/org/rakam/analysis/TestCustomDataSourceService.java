@@ -0,0 +1,171 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.units.Duration;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.datasource.CustomDataSource;
+import org.rakam.analysis.datasource.CustomDataSourceConfig;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.analysis.datasource.JDBCSchemaConfig;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestCustomDataSourceService
+{
+    private static final String PROJECT_NAME = TestCustomDataSourceService.class.getSimpleName().toLowerCase();
+
+    private JDBCPoolDataSource dataSource;
+    private CustomDataSourceService service;
+    private JDBCSchemaConfig options;
+    // accepts the connections but never responds
+    private ServerSocket unresponsiveServer;
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        service = new CustomDataSourceService(dataSource, new CustomDataSourceConfig()
+                .setMetadataTimeout(new Duration(2, SECONDS))
+                .setMetadataCacheTtl(new Duration(1, HOURS)));
+        service.setup();
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("CREATE SCHEMA IF NOT EXISTS external_source");
+            connection.createStatement().execute("DROP TABLE IF EXISTS external_source.test");
+            connection.createStatement().execute("CREATE TABLE external_source.test (id BIGINT, name TEXT)");
+        }
+
+        URI uri = URI.create(testingEnvironment.getPostgresqlConfig().getUrl().substring("jdbc:".length()));
+        options = new JDBCSchemaConfig()
+                .setHost(uri.getHost())
+                .setPort(uri.getPort())
+                .setDatabase(uri.getPath().substring(1))
+                .setUsername(testingEnvironment.getPostgresqlConfig().getUsername())
+                .setSchema("external_source");
+
+        unresponsiveServer = new ServerSocket(0);
+    }
+
+    @AfterClass
+    public void destroy()
+            throws IOException, SQLException
+    {
+        service.destroy();
+        unresponsiveServer.close();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("DROP SCHEMA external_source CASCADE");
+        }
+    }
+
+    @AfterMethod
+    public void clean()
+    {
+        for (CustomDataSource source : service.listDatabases(PROJECT_NAME).customDataSources) {
+            service.removeDatabase(PROJECT_NAME, source.schemaName);
+        }
+    }
+
+    @Test
+    public void testFailuresArePerSource()
+            throws IOException
+    {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+
+        service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "external", options));
+        service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "closed", copy(options).setPort(closedPort)));
+        service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "unresponsive", copy(options).setPort(unresponsiveServer.getLocalPort())));
+
+        long start = System.nanoTime();
+        CustomDataSourceService.CustomDataSourceSchemas schemas = service.schemaDatabases(PROJECT_NAME);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(schemas.schemas.keySet(), ImmutableSet.of("external"));
+        assertEquals(schemas.schemas.get("external").keySet(), ImmutableSet.of("test"));
+        assertEquals(schemas.errors.keySet(), ImmutableSet.of("closed", "unresponsive"));
+        assertTrue(schemas.errors.get("unresponsive").startsWith("The data source did not respond"), schemas.errors.get("unresponsive"));
+
+        // the sources are queried in parallel so a slow source delays the response by at most the timeout
+        assertTrue(elapsed < SECONDS.toNanos(4), "took " + elapsed + "ns");
+    }
+
+    @Test
+    public void testMetadataRequestsAreBounded()
+    {
+        CustomDataSourceService boundedService = new CustomDataSourceService(dataSource, new CustomDataSourceConfig()
+                .setMetadataTimeout(new Duration(2, SECONDS))
+                .setMetadataThreads(1)
+                .setMetadataQueueSize(1));
+        try {
+            for (int i = 0; i < 3; i++) {
+                service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "unresponsive" + i,
+                        copy(options).setPort(unresponsiveServer.getLocalPort())));
+            }
+
+            // one request runs, one waits in the queue and the last one is rejected
+            CustomDataSourceService.CustomDataSourceSchemas schemas = boundedService.schemaDatabases(PROJECT_NAME);
+            assertTrue(schemas.schemas.isEmpty());
+            assertEquals(schemas.errors.keySet(), ImmutableSet.of("unresponsive0", "unresponsive1", "unresponsive2"));
+            assertEquals(schemas.errors.values().stream()
+                    .filter("Too many pending data source requests"::equals).count(), 1);
+        }
+        finally {
+            boundedService.destroy();
+        }
+    }
+
+    @Test
+    public void testMetadataCache()
+            throws SQLException
+    {
+        service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "external", options));
+
+        List<SchemaField> columns = ImmutableList.of(new SchemaField("id", LONG), new SchemaField("name", STRING));
+        assertEquals(service.schemaTable(PROJECT_NAME, "external", "test"), columns);
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("ALTER TABLE external_source.test ADD COLUMN value BIGINT");
+        }
+
+        // the columns are served from the cache until the data source is changed
+        assertEquals(service.schemaTable(PROJECT_NAME, "external", "test"), columns);
+
+        service.removeDatabase(PROJECT_NAME, "external");
+        service.addDatabase(PROJECT_NAME, new CustomDataSource("POSTGRESQL", "external", options));
+        assertEquals(service.schemaTable(PROJECT_NAME, "external", "test"), ImmutableList.builder()
+                .addAll(columns).add(new SchemaField("value", LONG)).build());
+    }
+
+    private static JDBCSchemaConfig copy(JDBCSchemaConfig config)
+    {
+        return new JDBCSchemaConfig()
+                .setHost(config.getHost())
+                .setPort(config.getPort())
+                .setDatabase(config.getDatabase())
+                .setUsername(config.getUsername())
+                .setSchema(config.getSchema());
+    }
+}
@@ -11,9 +11,9 @@ import org.rakam.postgresql.analysis.PostgresqlEventStore;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
 import org.rakam.postgresql.report.PostgresqlEventExplorer;
-import org.rakam.postgresql.report.PostgresqlPseudoContinuousQueryService;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecutorService;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
 import org.testng.annotations.BeforeSuite;
 
 import java.time.Clock;
@@ -43,17 +43,13 @@ public class TestPostgresqlEventExplorer
         metastore = new PostgresqlMetastore(dataSource, eventBus);
         PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore, new CustomDataSourceService(dataSource), false);
 
-        QueryExecutorService executorService = new QueryExecutorService(queryExecutor, metastore,
-                new PostgresqlMaterializedViewService(new ProjectConfig(), queryExecutor, queryMetadataStore), Clock.systemUTC(), '"');
-        PostgresqlPseudoContinuousQueryService continuousQueryService = new PostgresqlPseudoContinuousQueryService(queryMetadataStore, executorService, queryExecutor);
-
         eventStore = new PostgresqlEventStore(dataSource, build);
         PostgresqlMaterializedViewService materializedViewService = new PostgresqlMaterializedViewService(new ProjectConfig(), queryExecutor, queryMetadataStore);
         eventExplorer = new PostgresqlEventExplorer(
                 new ProjectConfig(),
                 new QueryExecutorService(queryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"'),
                 materializedViewService,
-                continuousQueryService);
+                new OLAPTableIndex(queryMetadataStore));
         super.setup();
     }
 
@@ -0,0 +1,262 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.EventBuilder;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.FunnelQueryExecutor.FunnelStep;
+import org.rakam.analysis.FunnelQueryExecutor.FunnelWindow;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.analysis.FastGenericFunnelQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlEventStore;
+import org.rakam.postgresql.analysis.PostgresqlFunnelQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.analysis.FunnelQueryExecutor.WindowType.DAY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestPostgresqlOrderedFunnel
+{
+    private static final String PROJECT_NAME = "test_ordered_funnel";
+    private static final int DAYS = 4;
+    private static final String[] PAGES = {"a", "b", "c"};
+
+    private TestingEnvironment testingEnvironment;
+    private PostgresqlMetastore metastore;
+    private PostgresqlFunnelQueryExecutor funnelQueryExecutor;
+    private final List<TestEvent> events = new ArrayList<>();
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        testingEnvironment = new TestingEnvironment();
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore, new CustomDataSourceService(dataSource), false);
+        PostgresqlEventStore eventStore = new PostgresqlEventStore(dataSource, new FieldDependencyBuilder().build());
+        FastGenericFunnelQueryExecutor fastExecutor = new FastGenericFunnelQueryExecutor(new QueryExecutorService(queryExecutor, metastore, null, Clock.systemUTC(), '"'),
+                new ProjectConfig());
+        funnelQueryExecutor = new PostgresqlFunnelQueryExecutor(fastExecutor, new ProjectConfig(), metastore, queryExecutor);
+        funnelQueryExecutor.setup();
+
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+
+        Random random = new Random(0);
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            // the events are generated in 6 hour slots so that there are ties on _time and events that are exactly one day apart
+            TestEvent event = new TestEvent(
+                    "user" + random.nextInt(100),
+                    random.nextInt(4) == 0 ? "signup" : "visit",
+                    random.nextInt(DAYS * 4) * 6 * 3600L,
+                    PAGES[random.nextInt(PAGES.length)]);
+            events.add(event);
+            batch.add(builder.createEvent(event.collection, ImmutableMap.of(
+                    "_user", event.user,
+                    "_time", Instant.ofEpochSecond(event.time),
+                    "page", event.page)));
+        }
+        eventStore.storeBatch(batch);
+    }
+
+    @AfterClass
+    public void destroy()
+    {
+        metastore.deleteProject(PROJECT_NAME);
+    }
+
+    @Test
+    public void testRepeatedSteps()
+    {
+        List<TestStep> steps = ImmutableList.of(new TestStep("visit", null), new TestStep("visit", null), new TestStep("visit", null));
+        assertFunnel(steps, Optional.empty(), false);
+        assertFunnel(steps, Optional.of(new FunnelWindow(1, DAY)), true);
+    }
+
+    @Test
+    public void testWindowBoundary()
+    {
+        List<TestStep> steps = ImmutableList.of(new TestStep("visit", "a"), new TestStep("signup", null), new TestStep("visit", "b"));
+        assertFunnel(steps, Optional.of(new FunnelWindow(1, DAY)), false);
+        assertFunnel(steps, Optional.of(new FunnelWindow(2, DAY)), false);
+    }
+
+    @Test
+    public void testRandomFunnels()
+    {
+        TestStep[] candidates = {
+                new TestStep("visit", null),
+                new TestStep("visit", "a"),
+                new TestStep("visit", "b"),
+                new TestStep("signup", null),
+                new TestStep("signup", "c"),
+        };
+
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            List<TestStep> steps = IntStream.range(0, 2 + random.nextInt(3))
+                    .mapToObj(idx -> candidates[random.nextInt(candidates.length)])
+                    .collect(Collectors.toList());
+            Optional<FunnelWindow> window = random.nextBoolean() ? Optional.of(new FunnelWindow(1 + random.nextInt(2), DAY)) : Optional.empty();
+            assertFunnel(steps, window, random.nextBoolean());
+        }
+    }
+
+    private void assertFunnel(List<TestStep> steps, Optional<FunnelWindow> window, boolean consecutive)
+    {
+        QueryResult result = funnelQueryExecutor.query(PROJECT_NAME,
+                steps.stream().map(TestStep::toFunnelStep).collect(Collectors.toList()),
+                Optional.empty(), LocalDate.ofEpochDay(0), LocalDate.ofEpochDay(DAYS), window, UTC,
+                Optional.empty(), Optional.of(true), consecutive).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+
+        Long windowSeconds = window.map(PostgresqlFunnelQueryExecutor::getWindowSeconds).orElse(null);
+        Map<String, List<TestEvent>> users = events.stream().collect(Collectors.groupingBy(e -> e.user));
+        long[] expected = new long[steps.size()];
+        for (List<TestEvent> userEvents : users.values()) {
+            int deepestStep = getDeepestStep(userEvents, steps, windowSeconds, consecutive);
+            for (int i = 0; i < deepestStep; i++) {
+                expected[i]++;
+            }
+        }
+
+        List<List<Object>> expectedResult = IntStream.range(0, steps.size())
+                .mapToObj(i -> Arrays.<Object>asList("Step " + (i + 1), expected[i]))
+                .collect(Collectors.toList());
+        assertEquals(result.getResult(), expectedResult, steps + " window: " + windowSeconds + " consecutive: " + consecutive);
+    }
+
+    /**
+     * Tries each event that matches the first step as the start of the funnel and follows it with the events in time order.
+     */
+    private static int getDeepestStep(List<TestEvent> userEvents, List<TestStep> steps, Long windowSeconds, boolean consecutive)
+    {
+        List<MatchedEvent> sequence = userEvents.stream()
+                .filter(event -> steps.stream().anyMatch(step -> step.collection.equals(event.collection)))
+                .map(event -> new MatchedEvent(event.time, IntStream.range(0, steps.size())
+                        .filter(i -> steps.get(i).matches(event)).map(i -> i + 1).toArray()))
+                .filter(event -> consecutive || event.steps.length > 0)
+                .sorted(Comparator.<MatchedEvent>comparingLong(e -> e.time).thenComparing(e -> e.steps, TestPostgresqlOrderedFunnel::compareSteps))
+                .collect(Collectors.toList());
+
+        int deepestStep = 0;
+        for (int start = 0; start < sequence.size(); start++) {
+            if (!sequence.get(start).matches(1)) {
+                continue;
+            }
+
+            int level = 1;
+            for (int i = start + 1; i < sequence.size() && level < steps.size(); i++) {
+                MatchedEvent event = sequence.get(i);
+                boolean inWindow = windowSeconds == null || event.time - sequence.get(start).time <= windowSeconds;
+                if (event.matches(level + 1) && inWindow) {
+                    level++;
+                }
+                else if (consecutive) {
+                    break;
+                }
+            }
+            deepestStep = Math.max(deepestStep, level);
+        }
+        return deepestStep;
+    }
+
+    private static int compareSteps(int[] first, int[] second)
+    {
+        for (int i = 0; i < Math.min(first.length, second.length); i++) {
+            if (first[i] != second[i]) {
+                return Integer.compare(first[i], second[i]);
+            }
+        }
+        return Integer.compare(first.length, second.length);
+    }
+
+    private static class TestEvent
+    {
+        private final String user;
+        private final String collection;
+        private final long time;
+        private final String page;
+
+        private TestEvent(String user, String collection, long time, String page)
+        {
+            this.user = user;
+            this.collection = collection;
+            this.time = time;
+            this.page = page;
+        }
+    }
+
+    private static class MatchedEvent
+    {
+        private final long time;
+        private final int[] steps;
+
+        private MatchedEvent(long time, int[] steps)
+        {
+            this.time = time;
+            this.steps = steps;
+        }
+
+        private boolean matches(int step)
+        {
+            return Arrays.stream(steps).anyMatch(value -> value == step);
+        }
+    }
+
+    private static class TestStep
+    {
+        private final String collection;
+        private final String page;
+
+        private TestStep(String collection, String page)
+        {
+            this.collection = collection;
+            this.page = page;
+        }
+
+        private boolean matches(TestEvent event)
+        {
+            return collection.equals(event.collection) && (page == null || page.equals(event.page));
+        }
+
+        private FunnelStep toFunnelStep()
+        {
+            return new FunnelStep(collection, Optional.ofNullable(page).map(value -> "page = '" + value + "'"));
+        }
+
+        @Override
+        public String toString()
+        {
+            return collection + (page == null ? "" : "[" + page + "]");
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.rakam.analysis;
+
+import io.airlift.units.Duration;
+import org.rakam.TestingEnvironment;
+import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.report.PostgresqlQueryExecution;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.postgresql.report.PostgresqlQueryScheduler;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.report.QueryStats.State.RUNNING;
+import static org.rakam.report.QueryStats.State.WAITING_FOR_AVAILABLE_THREAD;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlQueryExecution
+{
+    private static final long ROW_COUNT = 10_000_000;
+    private static final int MAX_RESULT_ROWS = 100_000;
+    // the driver would keep all the rows in memory without the cursor, 10M rows take more than 1GB.
+    private static final long MAX_HEAP_GROWTH = 64 * 1024 * 1024;
+
+    private JDBCPoolDataSource dataSource;
+
+    @BeforeClass
+    public void setup()
+            throws SQLException
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+
+        try (Connection connection = dataSource.getConnection()) {
+            Statement statement = connection.createStatement();
+            statement.execute("DROP TABLE IF EXISTS test_query_execution");
+            statement.execute("CREATE UNLOGGED TABLE test_query_execution AS " +
+                    "SELECT id, 'value' || id AS value, now() AS time FROM generate_series(1, " + ROW_COUNT + ") id");
+        }
+    }
+
+    @AfterClass
+    public void destroy()
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.createStatement().execute("DROP TABLE IF EXISTS test_query_execution");
+        }
+    }
+
+    @Test
+    public void testConstantHeapUsage()
+    {
+        PostgresqlQueryExecutor executor = createExecutor(new PostgresqlConfig().setQueryFetchSize(1000));
+
+        long baseline = getUsedHeap();
+        AtomicLong rows = new AtomicLong();
+        AtomicLong maxHeapGrowth = new AtomicLong();
+        QueryResult result = executor.executeRawQuery("test", "SELECT id, value, time FROM test_query_execution", row -> {
+            if (rows.incrementAndGet() % 1_000_000 == 0) {
+                maxHeapGrowth.set(Math.max(maxHeapGrowth.get(), getUsedHeap() - baseline));
+            }
+        }).getResult().join();
+
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+        assertEquals(rows.get(), ROW_COUNT);
+        assertTrue(result.getResult().isEmpty());
+        assertTrue(maxHeapGrowth.get() < MAX_HEAP_GROWTH, "heap grew " + maxHeapGrowth.get() + " bytes");
+    }
+
+    @Test
+    public void testMaxResultRows()
+            throws InterruptedException
+    {
+        QueryExecutor executor = createExecutor(new PostgresqlConfig().setQueryFetchSize(1000).setQueryMaxResultRows(MAX_RESULT_ROWS));
+
+        long baseline = getUsedHeap();
+        long maxHeapGrowth = 0;
+        QueryExecution execution = executor.executeRawQuery("SELECT id, value, time FROM test_query_execution");
+        while (!execution.isFinished()) {
+            maxHeapGrowth = Math.max(maxHeapGrowth, getUsedHeap() - baseline);
+            Thread.sleep(100);
+        }
+
+        QueryResult result = execution.getResult().join();
+        assertTrue(result.isFailed());
+        assertEquals(result.getError().message, "Query result exceeded the maximum of " + MAX_RESULT_ROWS + " rows");
+        assertEquals(execution.currentStats().processedRows.longValue(), MAX_RESULT_ROWS);
+        assertTrue(maxHeapGrowth < MAX_HEAP_GROWTH, "heap grew " + maxHeapGrowth + " bytes");
+    }
+
+    @Test
+    public void testResultWithinMaxRows()
+    {
+        QueryExecutor executor = createExecutor(new PostgresqlConfig().setQueryFetchSize(1000).setQueryMaxResultRows(MAX_RESULT_ROWS));
+
+        QueryResult result = executor.executeRawQuery("SELECT id, value, time FROM test_query_execution LIMIT " + MAX_RESULT_ROWS)
+                .getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+        assertEquals(result.getResult().size(), MAX_RESULT_ROWS);
+    }
+
+    @Test
+    public void testKillWhileFetching()
+            throws InterruptedException
+    {
+        QueryExecutor executor = createExecutor(new PostgresqlConfig().setQueryFetchSize(1000));
+
+        QueryExecution execution = executor.executeRawQuery("SELECT id, value FROM test_query_execution");
+        while (execution.currentStats().processedRows == null || execution.currentStats().processedRows < 10_000) {
+            Thread.sleep(1);
+        }
+        execution.kill();
+
+        QueryResult result = execution.getResult().join();
+        assertTrue(result.isFailed());
+        assertEquals(result.getError().message, "Query was killed");
+        assertTrue(execution.currentStats().processedRows < ROW_COUNT);
+    }
+
+    @Test
+    public void testMaxExecutionTime()
+    {
+        PostgresqlQueryScheduler scheduler = new PostgresqlQueryScheduler(new PostgresqlConfig()
+                .setQueryMaxExecutionTime(new Duration(500, MILLISECONDS)));
+
+        QueryResult result = new PostgresqlQueryExecution(scheduler, Optional.of("test"), dataSource::getConnection,
+                "SELECT pg_sleep(10)", false).getResult().join();
+        assertTrue(result.isFailed());
+        assertTrue(result.getError().message.startsWith("Query exceeded the maximum execution time"), result.getError().message);
+    }
+
+    @Test
+    public void testMaxExecutionTimeIsNotAppliedToInternalQueries()
+    {
+        PostgresqlQueryScheduler scheduler = new PostgresqlQueryScheduler(new PostgresqlConfig()
+                .setQueryMaxExecutionTime(new Duration(500, MILLISECONDS)));
+
+        QueryResult result = new PostgresqlQueryExecution(scheduler, Optional.empty(), dataSource::getConnection,
+                "SELECT pg_sleep(1)", false).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+
+        result = new PostgresqlQueryExecution(scheduler, Optional.of("test"), dataSource::getConnection,
+                "DO $$ BEGIN PERFORM pg_sleep(1); END $$", true).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+    }
+
+    @Test
+    public void testConcurrentQueriesPerProject()
+            throws InterruptedException
+    {
+        PostgresqlQueryScheduler scheduler = new PostgresqlQueryScheduler(new PostgresqlConfig()
+                .setMaxConcurrentQueriesPerProject(1));
+
+        PostgresqlQueryExecution first = new PostgresqlQueryExecution(scheduler, Optional.of("project1"), dataSource::getConnection,
+                "SELECT pg_sleep(2)", false);
+        PostgresqlQueryExecution second = new PostgresqlQueryExecution(scheduler, Optional.of("project1"), dataSource::getConnection,
+                "SELECT pg_sleep(2)", false);
+        PostgresqlQueryExecution otherProject = new PostgresqlQueryExecution(scheduler, Optional.of("project2"), dataSource::getConnection,
+                "SELECT pg_sleep(2)", false);
+
+        while (first.currentStats().state == WAITING_FOR_AVAILABLE_THREAD || otherProject.currentStats().state == WAITING_FOR_AVAILABLE_THREAD) {
+            Thread.sleep(10);
+        }
+        // the second query waits until the first query of the project finishes
+        assertEquals(first.currentStats().state, RUNNING);
+        assertEquals(otherProject.currentStats().state, RUNNING);
+        assertEquals(second.currentStats().state, WAITING_FOR_AVAILABLE_THREAD);
+
+        assertFalse(first.getResult().join().isFailed());
+        assertFalse(second.getResult().join().isFailed());
+        assertFalse(otherProject.getResult().join().isFailed());
+    }
+
+    private PostgresqlQueryExecutor createExecutor(PostgresqlConfig config)
+    {
+        return new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, null, null, false, config);
+    }
+
+    private static long getUsedHeap()
+    {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,33 @@
+package org.rakam.util.lock;
+
+import io.airlift.units.Duration;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.annotations.BeforeClass;
+
+public class TestPostgresqlLockService
+        extends TestLockService
+{
+    private JDBCPoolDataSource dataSource;
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+    }
+
+    @Override
+    public ConnectionFactory getConnectionFactory()
+    {
+        return dataSource::getConnection;
+    }
+
+    @Override
+    public JDBCLockService createService(ConnectionFactory connectionFactory, Duration leaseDuration)
+    {
+        return new PostgresqlLockService(connectionFactory, leaseDuration);
+    }
+}
@@ -2,11 +2,13 @@ package org.rakam.kafka.collection;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Names;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.RakamModule;
+import org.rakam.server.http.HttpService;
 
 import static io.airlift.configuration.ConfigurationModule.bindConfig;
 
@@ -22,6 +24,7 @@ public class KafkaCollectorModule extends RakamModule  {
                 .to(KafkaConfig.class);
         binder.bind(EventStore.class).to(KafkaEventStore.class);
         binder.bind(EventStream.class).to(KafkaStream.class);
+        Multibinder.newSetBinder(binder, HttpService.class).addBinding().to(KafkaHttpService.class);
     }
 
     @Override
@@ -4,6 +4,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.DataSize;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
@@ -22,6 +23,7 @@ public class KafkaConfig
     private DataSize kafkaBufferSize = new DataSize(64, DataSize.Unit.KILOBYTE);
     private Duration commitInterval = Duration.valueOf("5s");
     private HostAndPort zookeeperNode;
+    private String consumerGroup = "rakam";
 
 //    @Size(min = 1)
     public Set<HostAndPort> getNodes()
@@ -87,6 +89,19 @@ public class KafkaConfig
         return zookeeperNode;
     }
 
+    public String getConsumerGroup()
+    {
+        return consumerGroup;
+    }
+
+    @Config("consumer-group")
+    @ConfigDescription("The consumer group of the mover that moves the messages to the cold storage, the lag of the collections is calculated from its committed offsets")
+    public KafkaConfig setConsumerGroup(String consumerGroup)
+    {
+        this.consumerGroup = consumerGroup;
+        return this;
+    }
+
     public static ImmutableSet<HostAndPort> parseNodes(String nodes)
     {
         Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
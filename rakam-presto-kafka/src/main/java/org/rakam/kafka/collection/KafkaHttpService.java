@@ -0,0 +1,44 @@
+package org.rakam.kafka.collection;
+
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.server.http.HttpService;
+import org.rakam.server.http.annotations.Api;
+import org.rakam.server.http.annotations.ApiOperation;
+import org.rakam.server.http.annotations.ApiParam;
+import org.rakam.server.http.annotations.Authorization;
+import org.rakam.server.http.annotations.JsonRequest;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.Path;
+
+import java.util.Map;
+import java.util.Set;
+
+@Path("/kafka")
+@Api(value = "/kafka", nickname = "kafka", description = "Kafka event store", tags = "collect")
+public class KafkaHttpService
+        extends HttpService
+{
+    private final KafkaOffsetManager offsetManager;
+    private final Metastore metastore;
+
+    @Inject
+    public KafkaHttpService(KafkaOffsetManager offsetManager, Metastore metastore)
+    {
+        this.offsetManager = offsetManager;
+        this.metastore = metastore;
+    }
+
+    /**
+     * Returns the number of events in each collection that are not consumed by the consumer group yet.
+     */
+    @JsonRequest
+    @ApiOperation(value = "Get consumer lag of collections", authorizations = @Authorization(value = "master_key"))
+    @Path("/lag")
+    public Map<String, Long> lag(@Named("project") String project,
+            @ApiParam(value = "collections", required = false) Set<String> collections)
+    {
+        return offsetManager.getLag(project, collections == null ? metastore.getCollectionNames(project) : collections);
+    }
+}
@@ -8,7 +8,11 @@ import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import kafka.api.PartitionOffsetRequestInfo;
 import kafka.cluster.Broker;
+import kafka.common.ErrorMapping;
+import kafka.common.OffsetMetadataAndError;
 import kafka.common.TopicAndPartition;
+import kafka.javaapi.OffsetFetchRequest;
+import kafka.javaapi.OffsetFetchResponse;
 import kafka.javaapi.OffsetRequest;
 import kafka.javaapi.OffsetResponse;
 import kafka.javaapi.PartitionMetadata;
@@ -21,19 +25,30 @@ import org.rakam.util.RakamException;
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
 
+/**
+ * Fetches the offsets of the collection topics per partition. The committed offsets are the ones that the mover
+ * commits after it moves the messages to the cold storage, it's not part of Rakam so the consumer group in the config
+ * must be the group of the mover. The offsets are stored in Zookeeper by the brokers (version 0 of the offset commit
+ * API) so any broker can serve them.
+ */
 @Singleton
 public class KafkaOffsetManager {
     private final static Logger LOGGER = Logger.get(KafkaOffsetManager.class);
+    private final static short ZOOKEEPER_OFFSET_STORAGE = 0;
+
     private final KafkaSimpleConsumerManager consumerManager;
     private final KafkaConfig config;
+    private final AtomicInteger correlationId = new AtomicInteger();
 
     @Inject
     public KafkaOffsetManager(@Named("event.store.kafka") KafkaConfig config) {
@@ -41,22 +56,109 @@ public class KafkaOffsetManager {
         this.consumerManager = new KafkaSimpleConsumerManager();
     }
 
-    public Map<String, Long> getOffset(String project, Set<String> collections) {
-        return getTopicOffsets(collections.stream()
-                .map(col -> project+"_"+col.toLowerCase()).collect(Collectors.toList()));
+    public static String getTopic(String project, String collection) {
+        return project + "_" + collection.toLowerCase();
+    }
+
+    /**
+     * Returns the offsets of the next messages that will be written to the partitions of the collections.
+     */
+    public Map<TopicAndPartition, Long> getOffset(String project, Set<String> collections) {
+        return getTopicOffsets(getTopics(project, collections), kafka.api.OffsetRequest.LatestTime());
+    }
+
+    public Map<TopicAndPartition, Long> getEarliestOffset(String project, Set<String> collections) {
+        return getTopicOffsets(getTopics(project, collections), kafka.api.OffsetRequest.EarliestTime());
+    }
+
+    /**
+     * Returns the offsets committed by the consumer group, the partitions that don't have a committed offset
+     * are not included.
+     */
+    public Map<TopicAndPartition, Long> getCommittedOffset(String project, Set<String> collections) {
+        List<TopicAndPartition> partitions = new ArrayList<>();
+        for (TopicMetadata metadata : getTopicMetadata(getTopics(project, collections))) {
+            for (PartitionMetadata part : metadata.partitionsMetadata()) {
+                partitions.add(new TopicAndPartition(metadata.topic(), part.partitionId()));
+            }
+        }
+
+        if (partitions.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        SimpleConsumer consumer = getAnyConsumer();
+        OffsetFetchResponse response = consumer.fetchOffsets(new OffsetFetchRequest(config.getConsumerGroup(), partitions,
+                ZOOKEEPER_OFFSET_STORAGE, correlationId.incrementAndGet(), consumer.clientId()));
+
+        ImmutableMap.Builder<TopicAndPartition, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<TopicAndPartition, OffsetMetadataAndError> entry : response.offsets().entrySet()) {
+            OffsetMetadataAndError offset = entry.getValue();
+            if (offset.error() == ErrorMapping.UnknownTopicOrPartitionCode() || offset.offset() < 0) {
+                continue;
+            }
+            if (offset.error() != ErrorMapping.NoError()) {
+                throw new RakamException("could not fetch the committed offsets from Kafka, error code is '" + offset.error() + "'",
+                        HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            }
+            builder.put(entry.getKey(), offset.offset());
+        }
+        return builder.build();
     }
 
-    private Map<String, Long> getTopicOffsets(List<String> topics) {
+    /**
+     * Returns the number of messages in the collection topics that are not consumed by the consumer group yet.
+     * The partitions that don't have a committed offset are counted from their earliest available offset.
+     */
+    public Map<String, Long> getLag(String project, Set<String> collections) {
+        Map<TopicAndPartition, Long> latest = getOffset(project, collections);
+        Map<TopicAndPartition, Long> committed = getCommittedOffset(project, collections);
+        Map<TopicAndPartition, Long> earliest = committed.keySet().containsAll(latest.keySet()) ?
+                ImmutableMap.of() : getEarliestOffset(project, collections);
+
+        Map<String, Long> lag = new HashMap<>();
+        for (String collection : collections) {
+            lag.put(collection, 0L);
+        }
+
+        // the topic names are lower-cased so the collections that differ only in case share the same topic and lag
+        Map<String, List<String>> topicCollections = collections.stream()
+                .collect(Collectors.groupingBy(collection -> getTopic(project, collection)));
+
+        for (Map.Entry<TopicAndPartition, Long> entry : latest.entrySet()) {
+            Long consumed = committed.get(entry.getKey());
+            if (consumed == null) {
+                consumed = earliest.getOrDefault(entry.getKey(), 0L);
+            }
+            long partitionLag = Math.max(0, entry.getValue() - consumed);
+            for (String collection : topicCollections.get(entry.getKey().topic())) {
+                lag.merge(collection, partitionLag, Long::sum);
+            }
+        }
+
+        return lag;
+    }
+
+    private static List<String> getTopics(String project, Set<String> collections) {
+        return collections.stream().map(col -> getTopic(project, col)).distinct().collect(Collectors.toList());
+    }
+
+    private SimpleConsumer getAnyConsumer() {
         ArrayList<HostAndPort> nodes = new ArrayList<>(config.getNodes());
         Collections.shuffle(nodes);
+        return consumerManager.getConsumer(nodes.get(0));
+    }
 
-        SimpleConsumer simpleConsumer = consumerManager.getConsumer(nodes.get(0));
-        TopicMetadataRequest topicMetadataRequest = new TopicMetadataRequest(topics);
-        TopicMetadataResponse topicMetadataResponse = simpleConsumer.send(topicMetadataRequest);
+    private List<TopicMetadata> getTopicMetadata(List<String> topics) {
+        TopicMetadataResponse topicMetadataResponse = getAnyConsumer().send(new TopicMetadataRequest(topics));
+        return topicMetadataResponse.topicsMetadata();
+    }
 
-        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+    private Map<TopicAndPartition, Long> getTopicOffsets(List<String> topics, long time) {
+        // the offsets of the partitions that have the same leader are fetched with a single request
+        Map<HostAndPort, Map<TopicAndPartition, PartitionOffsetRequestInfo>> requests = new HashMap<>();
 
-        for (TopicMetadata metadata : topicMetadataResponse.topicsMetadata()) {
+        for (TopicMetadata metadata : getTopicMetadata(topics)) {
             for (PartitionMetadata part : metadata.partitionsMetadata()) {
                 LOGGER.debug(format("Adding Partition %s/%s", metadata.topic(), part.partitionId()));
                 Broker leader = part.leader();
@@ -64,37 +166,36 @@ public class KafkaOffsetManager {
                     LOGGER.warn(format("No leader for partition %s/%s found!", metadata.topic(), part.partitionId()));
                 } else {
                     HostAndPort leaderHost = HostAndPort.fromParts(leader.host(), leader.port());
-                    SimpleConsumer leaderConsumer = consumerManager.getConsumer(leaderHost);
-
-                    long offset = findAllOffsets(leaderConsumer, metadata.topic(), part.partitionId())[0];
-                    builder.put(metadata.topic(), offset);
+                    requests.computeIfAbsent(leaderHost, key -> new HashMap<>())
+                            .put(new TopicAndPartition(metadata.topic(), part.partitionId()), new PartitionOffsetRequestInfo(time, 1));
                 }
             }
         }
 
+        ImmutableMap.Builder<TopicAndPartition, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<HostAndPort, Map<TopicAndPartition, PartitionOffsetRequestInfo>> request : requests.entrySet()) {
+            builder.putAll(findOffsets(consumerManager.getConsumer(request.getKey()), request.getValue()));
+        }
+
         return builder.build();
     }
 
-    private static long[] findAllOffsets(SimpleConsumer consumer, String topicName, int partitionId) {
-        TopicAndPartition topicAndPartition = new TopicAndPartition(topicName, partitionId);
-
-        // The API implies that this will always return all of the offsets. So it seems a partition can not have
-        // more than Integer.MAX_VALUE-1 segments.
-        //
-        // This also assumes that the lowest value returned will be the first segment available. So if segments have been dropped off, this value
-        // should not be 0.
-        PartitionOffsetRequestInfo partitionOffsetRequestInfo = new PartitionOffsetRequestInfo(kafka.api.OffsetRequest.LatestTime(), 10000);
-        OffsetRequest offsetRequest = new OffsetRequest(ImmutableMap.of(topicAndPartition, partitionOffsetRequestInfo), kafka.api.OffsetRequest.CurrentVersion(), consumer.clientId());
+    private static Map<TopicAndPartition, Long> findOffsets(SimpleConsumer consumer, Map<TopicAndPartition, PartitionOffsetRequestInfo> partitions) {
+        OffsetRequest offsetRequest = new OffsetRequest(partitions, kafka.api.OffsetRequest.CurrentVersion(), consumer.clientId());
         OffsetResponse offsetResponse = consumer.getOffsetsBefore(offsetRequest);
 
-        if (offsetResponse.hasError()) {
-            short errorCode = offsetResponse.errorCode(topicName, partitionId);
-            LOGGER.warn(format("Offset response has error: %d", errorCode));
-            throw new RakamException("could not fetch data from Kafka, error code is '" + errorCode + "'", HttpResponseStatus.INTERNAL_SERVER_ERROR);
-        }
+        ImmutableMap.Builder<TopicAndPartition, Long> builder = ImmutableMap.builder();
+        for (TopicAndPartition partition : partitions.keySet()) {
+            short errorCode = offsetResponse.errorCode(partition.topic(), partition.partition());
+            if (errorCode != ErrorMapping.NoError()) {
+                LOGGER.warn(format("Offset response has error: %d", errorCode));
+                throw new RakamException("could not fetch data from Kafka, error code is '" + errorCode + "'", HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            }
 
-        long[] offsets = offsetResponse.offsets(topicName, partitionId);
+            long[] offsets = offsetResponse.offsets(partition.topic(), partition.partition());
+            builder.put(partition, offsets.length == 0 ? 0 : offsets[0]);
+        }
 
-        return offsets;
+        return builder.build();
     }
 }
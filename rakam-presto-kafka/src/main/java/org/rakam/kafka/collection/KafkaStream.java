@@ -1,5 +1,6 @@
 package org.rakam.kafka.collection;
 
+import kafka.common.TopicAndPartition;
 import org.rakam.collection.SchemaField;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.plugin.stream.CollectionStreamQuery;
@@ -15,6 +16,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
+import static org.rakam.kafka.collection.KafkaOffsetManager.getTopic;
 
 public class KafkaStream implements EventStream {
 
@@ -38,7 +40,7 @@ public class KafkaStream implements EventStream {
 
     public class KafkaEventSupplier implements EventStreamer {
         private final StreamResponse response;
-        private Map<String, Long> lastOffsets;
+        private Map<TopicAndPartition, Long> lastOffsets;
         private final List<CollectionStreamQuery> collections;
         private final Set<String> collectionNames;
         private final String project;
@@ -76,7 +78,7 @@ public class KafkaStream implements EventStream {
 
         @Override
         public void sync() {
-            Map<String, Long> offsets = offsetManager.getOffset(project, collectionNames);
+            Map<TopicAndPartition, Long> offsets = offsetManager.getOffset(project, collectionNames);
 
             String query = collections.stream().map(e -> {
                 String select;
@@ -99,16 +101,23 @@ public class KafkaStream implements EventStream {
                         .collect(Collectors.joining(", ")) + " }'";
 
 
-                long offsetNow = offsets.get(project + "_" + e.getCollection().toLowerCase());
-                long offsetBefore = this.lastOffsets.get(project + "_" + e.getCollection().toLowerCase());
-                if (offsetBefore == offsetNow) {
+                String topic = getTopic(project, e.getCollection());
+                // the offsets are per partition so only the partitions that have new messages are read
+                String newMessages = offsets.entrySet().stream()
+                        .filter(offset -> offset.getKey().topic().equals(topic))
+                        .filter(offset -> !offset.getValue().equals(lastOffsets.getOrDefault(offset.getKey(), 0L)))
+                        .map(offset -> format("(_partition_id = %d and _partition_offset >= %d and _partition_offset < %d)",
+                                offset.getKey().partition(),
+                                lastOffsets.getOrDefault(offset.getKey(), 0L),
+                                offset.getValue()))
+                        .collect(Collectors.joining(" or "));
+                if (newMessages.isEmpty()) {
                     return null;
                 }
-                return format("select %s from %s where _offset > %d and _offset <= %d %s",
+                return format("select %s from %s where (%s) %s",
                         select,
                         prestoConfig.getHotStorageConnector() + "." + project + "." + e.getCollection(),
-                        offsetBefore,
-                        offsetNow,
+                        newMessages,
                         e.getFilter() == null ? "" : " AND " + e.getFilter().toString());
 
             }).filter(d -> d != null).collect(Collectors.joining(" union all "));
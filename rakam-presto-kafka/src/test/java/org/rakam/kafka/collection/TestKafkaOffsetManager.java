@@ -0,0 +1,201 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import kafka.admin.AdminUtils;
+import kafka.common.OffsetAndMetadata;
+import kafka.common.TopicAndPartition;
+import kafka.javaapi.OffsetCommitRequest;
+import kafka.javaapi.OffsetCommitResponse;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.producer.Producer;
+import kafka.producer.KeyedMessage;
+import kafka.producer.ProducerConfig;
+import kafka.server.KafkaServerStartable;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+import org.apache.curator.test.TestingServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestKafkaOffsetManager
+{
+    private static final String PROJECT = "test";
+
+    private TestingServer zookeeper;
+    private ZkClient zkClient;
+    private KafkaServerStartable broker;
+    private File logDirectory;
+    private int port;
+    private Producer<Integer, byte[]> producer;
+    private KafkaOffsetManager offsetManager;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        zookeeper = new TestingServer();
+        zkClient = new ZkClient(zookeeper.getConnectString(), 10000, 10000, ZKStringSerializer$.MODULE$);
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        logDirectory = Files.createTempDir();
+
+        Properties brokerProperties = new Properties();
+        brokerProperties.put("broker.id", "0");
+        brokerProperties.put("host.name", "localhost");
+        brokerProperties.put("port", String.valueOf(port));
+        brokerProperties.put("log.dir", logDirectory.getAbsolutePath());
+        brokerProperties.put("zookeeper.connect", zookeeper.getConnectString());
+        brokerProperties.put("auto.create.topics.enable", "false");
+        brokerProperties.put("controlled.shutdown.enable", "false");
+        broker = new KafkaServerStartable(new kafka.server.KafkaConfig(brokerProperties));
+        broker.startup();
+
+        Properties producerProperties = new Properties();
+        producerProperties.put("metadata.broker.list", "localhost:" + port);
+        producerProperties.put("serializer.class", KafkaConfig.SERIALIZER);
+        producerProperties.put("request.required.acks", "1");
+        producer = new Producer<>(new ProducerConfig(producerProperties));
+
+        offsetManager = new KafkaOffsetManager(new KafkaConfig().setNodes("localhost:" + port));
+    }
+
+    @AfterClass
+    public void tearDown()
+            throws IOException
+    {
+        producer.close();
+        broker.shutdown();
+        broker.awaitShutdown();
+        zkClient.close();
+        zookeeper.close();
+        deleteRecursively(logDirectory);
+    }
+
+    @DataProvider
+    public static Object[][] partitions()
+    {
+        return new Object[][] {{1}, {8}, {64}};
+    }
+
+    @Test(dataProvider = "partitions")
+    public void testOffsets(int partitions)
+            throws InterruptedException
+    {
+        String collection = "partitioned" + partitions;
+        String topic = KafkaOffsetManager.getTopic(PROJECT, collection);
+        createTopic(topic, partitions);
+
+        // the default partitioner uses the hash code of the partition key, message i is written to the partition i % partitions
+        int messages = partitions * 3 + 1;
+        for (int i = 0; i < messages; i++) {
+            producer.send(new KeyedMessage<>(topic, null, i, ("message" + i).getBytes(UTF_8)));
+        }
+
+        Map<TopicAndPartition, Long> offsets = offsetManager.getOffset(PROJECT, ImmutableSet.of(collection));
+        assertEquals(offsets.size(), partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            assertEquals(offsets.get(new TopicAndPartition(topic, partition)).longValue(), partition == 0 ? 4 : 3);
+        }
+
+        // nothing is committed yet so all the messages are counted
+        assertTrue(offsetManager.getCommittedOffset(PROJECT, ImmutableSet.of(collection)).isEmpty());
+        assertEquals(offsetManager.getLag(PROJECT, ImmutableSet.of(collection)), ImmutableMap.of(collection, (long) messages));
+
+        // commit the first message of each partition
+        Map<TopicAndPartition, Long> committed = new HashMap<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            committed.put(new TopicAndPartition(topic, partition), 1L);
+        }
+        commitOffsets(committed);
+
+        assertEquals(offsetManager.getCommittedOffset(PROJECT, ImmutableSet.of(collection)), committed);
+        assertEquals(offsetManager.getLag(PROJECT, ImmutableSet.of(collection)), ImmutableMap.of(collection, (long) (messages - partitions)));
+    }
+
+    @Test
+    public void testCollectionsOfSameTopic()
+            throws InterruptedException
+    {
+        String topic = KafkaOffsetManager.getTopic(PROJECT, "mixed");
+        createTopic(topic, 2);
+        for (int i = 0; i < 5; i++) {
+            producer.send(new KeyedMessage<>(topic, null, i, ("message" + i).getBytes(UTF_8)));
+        }
+
+        Map<String, Long> lag = offsetManager.getLag(PROJECT, ImmutableSet.of("Mixed", "mixed"));
+        assertEquals(lag, ImmutableMap.of("Mixed", 5L, "mixed", 5L));
+    }
+
+    // commits the offsets the way the mover does after it moves the messages
+    private void commitOffsets(Map<TopicAndPartition, Long> offsets)
+    {
+        long now = System.currentTimeMillis();
+        Map<TopicAndPartition, OffsetAndMetadata> requestInfo = new HashMap<>();
+        offsets.forEach((partition, offset) -> requestInfo.put(partition, new OffsetAndMetadata(offset, "", now)));
+
+        SimpleConsumer consumer = new SimpleConsumer("localhost", port, 10000, 1024, "test");
+        try {
+            OffsetCommitResponse response = consumer.commitOffsets(new OffsetCommitRequest(new KafkaConfig().getConsumerGroup(),
+                    requestInfo, 0, consumer.clientId(), (short) 0));
+            assertFalse(response.hasError(), String.valueOf(response.errors()));
+        }
+        finally {
+            consumer.close();
+        }
+    }
+
+    private void createTopic(String topic, int partitions)
+            throws InterruptedException
+    {
+        AdminUtils.createTopic(zkClient, topic, partitions, 1, new Properties());
+
+        // wait until the broker elects the leaders of the partitions
+        SimpleConsumer consumer = new SimpleConsumer("localhost", port, 10000, 1024, "test");
+        try {
+            while (true) {
+                List<TopicMetadata> metadata = consumer.send(new TopicMetadataRequest(Collections.singletonList(topic))).topicsMetadata();
+                if (metadata.size() == 1 && metadata.get(0).partitionsMetadata().size() == partitions &&
+                        metadata.get(0).partitionsMetadata().stream().allMatch(partition -> partition.leader() != null)) {
+                    return;
+                }
+                Thread.sleep(100);
+            }
+        }
+        finally {
+            consumer.close();
+        }
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package org.rakam.presto;
+
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
+import org.rakam.util.lock.MysqlLockService;
+import org.rakam.util.lock.PostgresqlLockService;
+
+import javax.inject.Inject;
+
+import static java.lang.String.format;
+
+/**
+ * The lock service of the background jobs that modify the Raptor tables. The locks are kept in the Raptor
+ * metadata database since it's shared by all the nodes that use the same Presto cluster.
+ * {@link ReportMetadataLockServiceProvider} keeps the locks of the jobs that only modify the report metadata
+ * database in that database.
+ */
+public class PrestoLockServiceProvider
+        implements Provider<LockService>
+{
+    private final JDBCPoolDataSource dataSource;
+
+    @Inject
+    public PrestoLockServiceProvider(@Named("presto.metastore.jdbc") JDBCPoolDataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public LockService get()
+    {
+        return createLockService(dataSource);
+    }
+
+    private static LockService createLockService(JDBCPoolDataSource dataSource)
+    {
+        String url = dataSource.getConfig().getUrl();
+        if (url.startsWith("jdbc:mysql")) {
+            return new MysqlLockService(dataSource);
+        }
+        if (url.startsWith("jdbc:postgresql")) {
+            return new PostgresqlLockService(dataSource);
+        }
+        if (url.startsWith("jdbc:h2")) {
+            // the embedded metadata database can't be shared by multiple nodes
+            return new LocalLockService();
+        }
+        throw new IllegalStateException(format("Lock service doesn't support the metadata database: %s", url));
+    }
+
+    public static class ReportMetadataLockServiceProvider
+            implements Provider<LockService>
+    {
+        private final JDBCPoolDataSource dataSource;
+
+        @Inject
+        public ReportMetadataLockServiceProvider(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource)
+        {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public LockService get()
+        {
+            return createLockService(dataSource);
+        }
+    }
+}
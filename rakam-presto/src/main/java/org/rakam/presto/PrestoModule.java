@@ -13,8 +13,9 @@ import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
+import io.airlift.units.Duration;
 import org.rakam.analysis.ApiKeyService;
-import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
@@ -27,6 +28,8 @@ import org.rakam.analysis.metadata.JDBCQueryMetadata;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.aws.kinesis.ForStreamer;
+import org.rakam.aws.kinesis.ForStreamerPush;
+import org.rakam.config.ConfigManagerCacheConfig;
 import org.rakam.config.JDBCConfig;
 import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
@@ -38,10 +41,14 @@ import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.PostgresqlConfigInvalidationChannel;
 import org.rakam.postgresql.PostgresqlConfigManager;
 import org.rakam.postgresql.analysis.JDBCApiKeyService;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
+import org.rakam.presto.PrestoLockServiceProvider.ReportMetadataLockServiceProvider;
 import org.rakam.presto.analysis.MysqlConfigManager;
+import org.rakam.presto.analysis.PrestoAllTableService;
 import org.rakam.presto.analysis.PrestoConfig;
 import org.rakam.presto.analysis.PrestoContinuousQueryService;
 import org.rakam.presto.analysis.PrestoEventExplorer;
@@ -51,15 +58,20 @@ import org.rakam.presto.analysis.PrestoMaterializedViewService;
 import org.rakam.presto.analysis.PrestoMetastore;
 import org.rakam.presto.analysis.PrestoQueryExecutor;
 import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.presto.analysis.PrestoRebucketingService;
+import org.rakam.presto.analysis.PrestoRetentionCubeService;
 import org.rakam.presto.analysis.PrestoRetentionQueryExecutor;
+import org.rakam.presto.analysis.RetentionCubeHttpService;
 import org.rakam.presto.analysis.PrestoUserService;
 import org.rakam.presto.plugin.user.PrestoExternalUserStorageAdapter;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 import org.rakam.util.RakamException;
+import org.rakam.util.lock.LockService;
 
 import javax.inject.Inject;
 
@@ -72,6 +84,7 @@ import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.airlift.http.client.HttpClientBinder.httpClientBinder;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static java.lang.annotation.ElementType.FIELD;
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.ElementType.PARAMETER;
@@ -114,9 +127,14 @@ public class PrestoModule
             }
 
             metadataDataSource = bindJDBCConfig(binder, "presto.metastore.jdbc");
+            binder.bind(LockService.class).annotatedWith(Names.named("presto.metastore.jdbc"))
+                    .toProvider(PrestoLockServiceProvider.class).in(Scopes.SINGLETON);
 
             if (buildConfigObject(EventStreamConfig.class).getEventStreamEnabled()) {
                 httpClientBinder(binder).bindHttpClient("streamer", ForStreamer.class);
+                // the push connection of the event stream stays open as long as the node runs
+                httpClientBinder(binder).bindHttpClient("streamer-push", ForStreamerPush.class)
+                        .withConfigDefaults(config -> config.setRequestTimeout(new Duration(365, DAYS)));
                 binder.bind(EventStream.class).to(PrestoEventStream.class).in(Scopes.SINGLETON);
             }
         }
@@ -134,11 +152,13 @@ public class PrestoModule
                     .toInstance(metadataDataSource);
 
             String url = metadataDataSource.getConfig().getUrl();
+            ConfigManagerCacheConfig configManagerCacheConfig = buildConfigObject(ConfigManagerCacheConfig.class);
             if (url.startsWith("jdbc:mysql")) {
-                binder.bind(ConfigManager.class).to(MysqlConfigManager.class);
+                CachingConfigManager.bind(binder, configManagerCacheConfig, MysqlConfigManager.class);
             }
             else if (url.startsWith("jdbc:postgresql")) {
-                binder.bind(ConfigManager.class).to(PostgresqlConfigManager.class);
+                CachingConfigManager.bind(binder, configManagerCacheConfig, PostgresqlConfigManager.class,
+                        PostgresqlConfigInvalidationChannel.class);
             }
             else {
                 throw new IllegalStateException(format("Invalid report metadata database: %s", url));
@@ -150,11 +170,20 @@ public class PrestoModule
 
         if ("rakam_raptor".equals(prestoConfig.getColdStorageConnector())) {
             binder.bind(Metastore.class).to(PrestoRakamRaptorMetastore.class).in(Scopes.SINGLETON);
+            if (prestoConfig.getRebucketingEnabled()) {
+                binder.bind(PrestoRebucketingService.class).asEagerSingleton();
+            }
         }
         else {
             binder.bind(Metastore.class).to(PrestoMetastore.class).in(Scopes.SINGLETON);
         }
 
+        if (prestoConfig.getPhysicalAllTableEnabled() && prestoConfig.getPhysicalAllTableUpdaterEnabled()
+                && "rakam_raptor".equals(prestoConfig.getColdStorageConnector())
+                && prestoConfig.getHotStorageConnector() == null) {
+            binder.bind(PrestoAllTableService.class).asEagerSingleton();
+        }
+
         if ("postgresql".equals(getConfig("plugin.user.storage"))) {
             binder.bind(AbstractPostgresqlUserStorage.class).to(PrestoExternalUserStorageAdapter.class)
                     .in(Scopes.SINGLETON);
@@ -162,6 +191,8 @@ public class PrestoModule
                     .in(Scopes.SINGLETON);
 
             userConfig.setBinding().toInstance(buildConfigObject(JDBCConfig.class, "store.adapter.postgresql"));
+            // the user storage uses PostgresqlQueryExecutor
+            buildConfigObject(PostgresqlConfig.class);
         }
 
         EventExplorerConfig eventExplorerConfig = buildConfigObject(EventExplorerConfig.class);
@@ -180,6 +211,15 @@ public class PrestoModule
 
         if (userPluginConfig.isRetentionAnalysisEnabled()) {
             binder.bind(RetentionQueryExecutor.class).to(PrestoRetentionQueryExecutor.class);
+
+            OptionalBinder<PrestoRetentionCubeService> retentionCubeService = OptionalBinder.newOptionalBinder(binder, PrestoRetentionCubeService.class);
+            // the cubes have the user ids as they are collected, the anonymous ids are not mapped to the users
+            if (prestoConfig.getRetentionCubeEnabled() && !userPluginConfig.getEnableUserMapping()) {
+                retentionCubeService.setBinding().to(PrestoRetentionCubeService.class).in(Scopes.SINGLETON);
+                binder.bind(LockService.class).annotatedWith(Names.named("report.metadata.store.jdbc"))
+                        .toProvider(ReportMetadataLockServiceProvider.class).in(Scopes.SINGLETON);
+                Multibinder.newSetBinder(binder, HttpService.class).addBinding().to(RetentionCubeHttpService.class);
+            }
         }
 
         Multibinder<EventMapper> timeMapper = Multibinder.newSetBinder(binder, EventMapper.class);
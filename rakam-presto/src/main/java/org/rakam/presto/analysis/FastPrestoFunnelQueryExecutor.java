@@ -1,33 +1,128 @@
 package org.rakam.presto.analysis;
 
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.AbstractFunnelQueryExecutor;
 import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.report.QueryExecutor;
+import org.rakam.util.ValidationUtil;
 
 import javax.inject.Inject;
 
 import java.time.LocalDate;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
-public class FastPrestoFunnelQueryExecutor extends AbstractFunnelQueryExecutor
+import static com.facebook.presto.sql.RakamExpressionFormatter.formatIdentifier;
+import static java.lang.String.format;
+import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
+import static org.rakam.presto.analysis.PrestoUserService.ANONYMOUS_ID_MAPPING;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Strictly ordered funnel that scans each collection once even if the collection is used in more than one step.
+ * The events are tagged with the indexes of the steps they match and the funnel_step_time aggregation of the
+ * rakam Presto plugin finds the deepest step that each user reached in a single pass over the sorted events.
+ */
+public class FastPrestoFunnelQueryExecutor
+        extends AbstractFunnelQueryExecutor
 {
+    private static final String EVENTS_ALIAS = "events";
+    private static final String STEPS_ALIAS = "funnel_steps";
+
+    private final boolean userMappingEnabled;
+
     @Inject
-    public FastPrestoFunnelQueryExecutor(ProjectConfig projectConfig, Metastore metastore, QueryExecutor executor)
+    public FastPrestoFunnelQueryExecutor(ProjectConfig projectConfig, Metastore metastore, QueryExecutor executor, UserPluginConfig userPluginConfig)
     {
         super(projectConfig, metastore, executor);
+        this.userMappingEnabled = userPluginConfig.getEnableUserMapping();
     }
 
     @Override
     public String getTemplate(List<FunnelStep> steps, Optional<String> dimension, Optional<FunnelWindow> window)
     {
-        return null;
+        return "select %s step, count(*) total from (\n" +
+                "select %s funnel_step_time(array_agg(cast(step as tinyint)), array_agg(cast(to_unixtime(" + checkTableColumn(projectConfig.getTimeColumn()) + ") as integer))) as step from (select * from (%s) WHERE "
+                + checkTableColumn(projectConfig.getTimeColumn()) + " between timestamp '%s' and timestamp '%s'\n" +
+                ") t group by %s %s\n" +
+                ") t group by 1 %s order by 1";
+    }
+
+    @Override
+    protected String getStepQueries(String project, List<FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate,
+            Optional<List<String>> connectors, Map<String, List<SchemaField>> collections)
+    {
+        Map<String, Map<Integer, FunnelStep>> stepsByCollection = new LinkedHashMap<>();
+        for (int i = 0; i < steps.size(); i++) {
+            stepsByCollection.computeIfAbsent(steps.get(i).getCollection(), k -> new TreeMap<>()).put(i, steps.get(i));
+        }
+
+        return stepsByCollection.entrySet().stream()
+                .map(entry -> {
+                    FunnelStep firstStep = entry.getValue().values().iterator().next();
+                    return convertSteps(project, getConnectorField(firstStep, connectors, collections), entry.getKey(), entry.getValue(),
+                            dimension, startDate, endDate);
+                })
+                .collect(Collectors.joining(" UNION ALL "));
     }
 
     @Override
     public String convertFunnel(String project, String connectorField, int idx, FunnelStep funnelStep, Optional<String> dimension, LocalDate startDate, LocalDate endDate)
     {
-        return null;
+        return convertSteps(project, connectorField, funnelStep.getCollection(), ImmutableMap.of(idx, funnelStep), dimension, startDate, endDate);
+    }
+
+    private String convertSteps(String project, String connectorField, String collection, Map<Integer, FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate)
+    {
+        String stepColumn;
+        String unnest;
+        Optional<String> filter;
+        if (steps.size() == 1) {
+            Map.Entry<Integer, FunnelStep> step = steps.entrySet().iterator().next();
+            stepColumn = String.valueOf(step.getKey() + 1);
+            unnest = "";
+            filter = formatFilter(step.getValue());
+        }
+        else {
+            // an event may match more than one step so it's emitted once for each step that it matches
+            stepColumn = STEPS_ALIAS + ".step";
+            unnest = format("cross join unnest(array[%s]) as %s (step)",
+                    steps.keySet().stream().map(idx -> String.valueOf(idx + 1)).collect(Collectors.joining(", ")), STEPS_ALIAS);
+            filter = Optional.of(steps.entrySet().stream()
+                    .map(step -> format("(%s = %d and %s)", stepColumn, step.getKey() + 1, formatFilter(step.getValue()).orElse("true")))
+                    .collect(Collectors.joining(" or ")));
+        }
+
+        return format("SELECT %s %s, %s as step, %s.%s from %s %s %s %s %s",
+                dimension.map(ValidationUtil::checkTableColumn).map(v -> EVENTS_ALIAS + "." + v + ",").orElse(""),
+                userMappingEnabled ? format("coalesce(mapping._user, %s._user, %s) as _user", EVENTS_ALIAS, format(connectorField, EVENTS_ALIAS)) : format(connectorField, EVENTS_ALIAS),
+                stepColumn,
+                EVENTS_ALIAS,
+                checkTableColumn(projectConfig.getTimeColumn()),
+                project + "." + checkCollection(collection),
+                EVENTS_ALIAS,
+                unnest,
+                userMappingEnabled ? format("left join %s.%s mapping on (%s.%s is null and mapping.created_at >= date '%s' and mapping.merged_at <= date '%s' and mapping.id = %s.%s)",
+                        project, checkCollection(ANONYMOUS_ID_MAPPING),
+                        EVENTS_ALIAS, checkTableColumn(projectConfig.getUserColumn()), startDate.format(ISO_LOCAL_DATE), endDate.format(ISO_LOCAL_DATE),
+                        EVENTS_ALIAS, checkTableColumn(projectConfig.getUserColumn())) : "",
+                filter.map(v -> "where " + v).orElse(""));
+    }
+
+    private Optional<String> formatFilter(FunnelStep step)
+    {
+        return step.getExpression().map(value -> RakamSqlFormatter.formatExpression(value,
+                name -> name.getParts().stream().map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")),
+                name -> formatIdentifier(EVENTS_ALIAS, '"') + "." + name.getParts().stream()
+                        .map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")), '"'));
     }
 }
@@ -16,6 +16,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
+import org.rakam.util.metrics.MetricRegistry;
 import org.skife.jdbi.v2.tweak.ConnectionFactory;
 
 import javax.inject.Inject;
@@ -65,7 +66,7 @@ public abstract class PrestoAbstractMetastore
                     config.getAddress().getHost(), config.getAddress().getPort()), properties);
         };
 
-        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES)
+        schemaCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES).recordStats()
                 .build(new CacheLoader<ProjectCollection, List<SchemaField>>()
                 {
                     @Override
@@ -84,7 +85,7 @@ public abstract class PrestoAbstractMetastore
                     }
                 });
 
-        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES).build(new CacheLoader<String, Set<String>>()
+        collectionCache = CacheBuilder.newBuilder().expireAfterWrite(20, TimeUnit.MINUTES).recordStats().build(new CacheLoader<String, Set<String>>()
         {
             @Override
             public Set<String> load(String project)
@@ -108,6 +109,13 @@ public abstract class PrestoAbstractMetastore
         });
     }
 
+    @Inject
+    public void registerMetrics(MetricRegistry registry)
+    {
+        registry.cache("presto_schema", schemaCache);
+        registry.cache("presto_collections", collectionCache);
+    }
+
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
     {
@@ -0,0 +1,305 @@
+package org.rakam.presto.analysis;
+
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SortItem;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.report.QueryResult;
+import org.rakam.util.lock.LockService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.analysis.InternalConfig.ALL_TABLE_CHECKPOINT;
+import static org.rakam.analysis.InternalConfig.USER_TYPE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.toSql;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Maintains a narrow table that has the events of all the collections in a project. The table has
+ * the _collection column and the columns that are shared by all the collections when the table is created
+ * and it's appended periodically using the checkpoint column, the same way the incremental materialized views are updated.
+ * {@link PrestoQueryExecutor} routes the queries on _all to this table when the query only references its columns.
+ * <p>
+ * The table is append-only: the queries that are routed to it don't see the events that are stored in the last
+ * update interval and the events that are deleted from the collections are never removed from it.
+ * Only one node updates the table of a project at a time, the others skip the project while the lock is held.
+ */
+public class PrestoAllTableService
+{
+    private final static Logger LOGGER = Logger.get(PrestoAllTableService.class);
+
+    public static final String ALL_TABLE = "$all";
+    public static final String COLLECTION_COLUMN = "_collection";
+
+    private final PrestoConfig prestoConfig;
+    private final ProjectConfig projectConfig;
+    private final Metastore metastore;
+    private final ConfigManager configManager;
+    private final PrestoQueryExecutor executor;
+    private final ScheduledExecutorService scheduler;
+    private final LockService lockService;
+
+    @Inject
+    public PrestoAllTableService(PrestoConfig prestoConfig, ProjectConfig projectConfig, Metastore metastore, ConfigManager configManager,
+            PrestoQueryExecutor executor, @Named("presto.metastore.jdbc") LockService lockService)
+    {
+        this.lockService = lockService;
+        this.prestoConfig = prestoConfig;
+        this.projectConfig = projectConfig;
+        this.metastore = metastore;
+        this.configManager = configManager;
+        this.executor = executor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("all-table-updater").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        long interval = prestoConfig.getPhysicalAllTableUpdateInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::updateAll, interval, interval, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private void updateAll()
+    {
+        for (String project : metastore.getProjects()) {
+            try {
+                update(project);
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Unable to update the %s table of project %s", ALL_TABLE, project);
+            }
+        }
+    }
+
+    /**
+     * Appends the events that are stored since the last update to the table. Returns false if the table is being
+     * updated by another node.
+     */
+    public boolean update(String project)
+    {
+        LockService.Lock lock = lockService.tryLock("all-table." + project);
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            update(project, lock);
+            return true;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    private void update(String project, LockService.Lock lock)
+    {
+        Map<String, List<SchemaField>> collections = metastore.getCollections(project).entrySet().stream()
+                .filter(e -> isSourceCollection(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (collections.isEmpty()) {
+            return;
+        }
+
+        String table = prestoConfig.getColdStorageConnector() + "." + checkCollection(project) + "." + checkCollection(ALL_TABLE);
+        String checkpointColumn = checkTableColumn(prestoConfig.getCheckpointColumn());
+        Instant now = Instant.now();
+
+        List<SchemaField> columns = metastore.getCollection(project, ALL_TABLE);
+        String query;
+        if (columns.isEmpty()) {
+            columns = getColumns(project, collections);
+            // the checkpoint is set before the table is created, if the creation fails the table is created again in the next run
+            configManager.setConfig(project, ALL_TABLE_CHECKPOINT.name(), now.getEpochSecond());
+            query = format("CREATE TABLE %s WITH (temporal_column = '%s') AS %s", table,
+                    checkLiteral(projectConfig.getTimeColumn()),
+                    getSelectQuery(project, collections, columns, format("%s <= from_unixtime(%d)", checkpointColumn, now.getEpochSecond())));
+        }
+        else {
+            Long lastCheckpoint = configManager.getConfig(project, ALL_TABLE_CHECKPOINT.name(), Long.class);
+            String predicate = lastCheckpoint != null ?
+                    format("%s > from_unixtime(%d) and %s <= from_unixtime(%d)", checkpointColumn, lastCheckpoint, checkpointColumn, now.getEpochSecond()) :
+                    format("%s <= from_unixtime(%d)", checkpointColumn, now.getEpochSecond());
+
+            query = format("INSERT INTO %s (%s) %s", table,
+                    columns.stream().map(column -> checkTableColumn(column.getName())).collect(Collectors.joining(", ")),
+                    getSelectQuery(project, collections, columns, predicate));
+        }
+
+        if (!lock.isValid()) {
+            LOGGER.warn("The lock of the %s table of project %s is lost, skipping the update", ALL_TABLE, project);
+            return;
+        }
+
+        QueryResult result = executor.executeRawStatement(query).getResult().join();
+        if (result.isFailed()) {
+            LOGGER.warn("Unable to update the %s table of project %s: %s", ALL_TABLE, project, result.getError().message);
+            return;
+        }
+
+        // the events between the checkpoints may be inserted twice if the node fails before the checkpoint is set
+        // or if the update takes longer than the lease of the lock
+        configManager.setConfig(project, ALL_TABLE_CHECKPOINT.name(), now.getEpochSecond());
+    }
+
+    private List<SchemaField> getColumns(String project, Map<String, List<SchemaField>> collections)
+    {
+        List<SchemaField> columns = new ArrayList<>();
+        columns.add(new SchemaField(COLLECTION_COLUMN, STRING));
+
+        collections.values().iterator().next().stream()
+                .filter(column -> collections.values().stream().allMatch(fields -> fields.contains(column)))
+                .forEach(columns::add);
+
+        if (columns.stream().noneMatch(column -> column.getName().equals(projectConfig.getTimeColumn()))) {
+            columns.add(new SchemaField(projectConfig.getTimeColumn(), TIMESTAMP));
+        }
+        if (columns.stream().noneMatch(column -> column.getName().equals(prestoConfig.getCheckpointColumn()))) {
+            columns.add(new SchemaField(prestoConfig.getCheckpointColumn(), TIMESTAMP));
+        }
+        if (columns.stream().noneMatch(column -> column.getName().equals(projectConfig.getUserColumn()))) {
+            FieldType userType = configManager.getConfig(project, USER_TYPE.name(), FieldType.class);
+            columns.add(new SchemaField(projectConfig.getUserColumn(), userType == null ? STRING : userType));
+        }
+
+        return columns;
+    }
+
+    private String getSelectQuery(String project, Map<String, List<SchemaField>> collections, List<SchemaField> columns, String predicate)
+    {
+        return collections.entrySet().stream().map(collection -> {
+            String values = columns.stream().map(column -> {
+                if (column.getName().equals(COLLECTION_COLUMN)) {
+                    return format("'%s' as %s", checkLiteral(collection.getKey()), checkTableColumn(COLLECTION_COLUMN));
+                }
+
+                Optional<SchemaField> field = collection.getValue().stream()
+                        .filter(f -> f.getName().equals(column.getName())).findAny();
+                if (!field.isPresent()) {
+                    return format("cast(null as %s) as %s", toSql(column.getType()), checkTableColumn(column.getName()));
+                }
+                if (field.get().getType() != column.getType()) {
+                    return format("try_cast(%s as %s) as %s", checkTableColumn(column.getName()), toSql(column.getType()),
+                            checkTableColumn(column.getName()));
+                }
+                return checkTableColumn(column.getName());
+            }).collect(Collectors.joining(", "));
+
+            return format("select %s from %s.%s.%s where %s", values, prestoConfig.getColdStorageConnector(),
+                    checkCollection(project), checkCollection(collection.getKey()), predicate);
+        }).collect(Collectors.joining(" union all "));
+    }
+
+    public static boolean isSourceCollection(String collection)
+    {
+        return !collection.startsWith("_") && !collection.startsWith("$");
+    }
+
+    /**
+     * Returns the column names that are referenced in the statement, or empty if the statement selects all the columns
+     * of a relation so the referenced columns can't be known without the table schema.
+     */
+    public static Optional<Set<String>> getReferencedColumns(Statement statement)
+    {
+        ColumnReferenceVisitor visitor = new ColumnReferenceVisitor();
+        visitor.process(statement, false);
+        if (visitor.allColumns) {
+            return Optional.empty();
+        }
+
+        Set<String> columns = new HashSet<>(visitor.columns);
+        // the order by clause may refer to the aliases in the select list
+        visitor.orderByColumns.stream()
+                .filter(column -> !visitor.aliases.contains(column))
+                .forEach(columns::add);
+        return Optional.of(columns);
+    }
+
+    private static class ColumnReferenceVisitor
+            extends DefaultTraversalVisitor<Void, Boolean>
+    {
+        private final Set<String> columns = new HashSet<>();
+        private final Set<String> orderByColumns = new HashSet<>();
+        private final Set<String> aliases = new HashSet<>();
+        private boolean allColumns;
+
+        @Override
+        protected Void visitQualifiedNameReference(QualifiedNameReference node, Boolean orderBy)
+        {
+            add(node.getName().getSuffix(), orderBy);
+            return null;
+        }
+
+        @Override
+        protected Void visitDereferenceExpression(DereferenceExpression node, Boolean orderBy)
+        {
+            // relation.column references, the relation names are not columns
+            if (node.getBase() instanceof QualifiedNameReference) {
+                add(node.getFieldName(), orderBy);
+                return null;
+            }
+            return super.visitDereferenceExpression(node, orderBy);
+        }
+
+        @Override
+        protected Void visitAllColumns(AllColumns node, Boolean orderBy)
+        {
+            allColumns = true;
+            return null;
+        }
+
+        @Override
+        protected Void visitSingleColumn(SingleColumn node, Boolean orderBy)
+        {
+            node.getAlias().ifPresent(aliases::add);
+            return super.visitSingleColumn(node, orderBy);
+        }
+
+        @Override
+        protected Void visitSortItem(SortItem node, Boolean orderBy)
+        {
+            return process(node.getSortKey(), true);
+        }
+
+        private void add(String column, boolean orderBy)
+        {
+            (orderBy ? orderByColumns : columns).add(column);
+        }
+    }
+}
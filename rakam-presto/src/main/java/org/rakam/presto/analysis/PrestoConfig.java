@@ -3,10 +3,16 @@ package org.rakam.presto.analysis;
 import com.google.common.collect.ImmutableList;
 import com.google.common.base.Splitter;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
 import java.net.URI;
 import java.util.List;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 public class PrestoConfig {
     private URI address;
     private String coldStorageConnector;
@@ -17,6 +23,19 @@ public class PrestoConfig {
     private String checkpointColumn = "_shard_time";
     private List<String> existingProjects;
     private boolean enableStreaming = true;
+    private boolean physicalAllTableEnabled;
+    private boolean physicalAllTableUpdaterEnabled = true;
+    private Duration physicalAllTableUpdateInterval = new Duration(1, MINUTES);
+    private boolean retentionCubeEnabled;
+    private Duration retentionCubeUpdateInterval = new Duration(1, HOURS);
+    private int retentionCubeBackfillDays = 90;
+    private Duration eventCountUpdateInterval = new Duration(1, HOURS);
+    private long bucketingEventsPerBucket = 10_000_000;
+    private int bucketingMinBucketCount = 4;
+    private int bucketingMaxBucketCount = 512;
+    private boolean rebucketingEnabled;
+    private Duration rebucketingInterval = new Duration(1, DAYS);
+    private Duration rebucketingDrainPeriod = new Duration(1, HOURS);
 
     @Config("presto.address")
     public PrestoConfig setAddress(URI address)
@@ -124,4 +143,164 @@ public class PrestoConfig {
     public String getBulkConnector() {
         return bulkConnector;
     }
+
+    @Config("presto.physical-all-table.enabled")
+    public PrestoConfig setPhysicalAllTableEnabled(boolean physicalAllTableEnabled)
+    {
+        this.physicalAllTableEnabled = physicalAllTableEnabled;
+        return this;
+    }
+
+    public boolean getPhysicalAllTableEnabled()
+    {
+        return physicalAllTableEnabled;
+    }
+
+    @Config("presto.physical-all-table.updater-enabled")
+    public PrestoConfig setPhysicalAllTableUpdaterEnabled(boolean physicalAllTableUpdaterEnabled)
+    {
+        this.physicalAllTableUpdaterEnabled = physicalAllTableUpdaterEnabled;
+        return this;
+    }
+
+    public boolean getPhysicalAllTableUpdaterEnabled()
+    {
+        return physicalAllTableUpdaterEnabled;
+    }
+
+    @Config("presto.physical-all-table.update-interval")
+    @ConfigDescription("The interval of the updates of the _all tables. The queries that are routed to the _all tables " +
+            "don't see the events that are stored in the last interval and the deleted events are never removed from them.")
+    public PrestoConfig setPhysicalAllTableUpdateInterval(Duration physicalAllTableUpdateInterval)
+    {
+        this.physicalAllTableUpdateInterval = physicalAllTableUpdateInterval;
+        return this;
+    }
+
+    public Duration getPhysicalAllTableUpdateInterval()
+    {
+        return physicalAllTableUpdateInterval;
+    }
+
+    @Config("presto.retention-cube.enabled")
+    public PrestoConfig setRetentionCubeEnabled(boolean retentionCubeEnabled)
+    {
+        this.retentionCubeEnabled = retentionCubeEnabled;
+        return this;
+    }
+
+    public boolean getRetentionCubeEnabled()
+    {
+        return retentionCubeEnabled;
+    }
+
+    @Config("presto.retention-cube.update-interval")
+    public PrestoConfig setRetentionCubeUpdateInterval(Duration retentionCubeUpdateInterval)
+    {
+        this.retentionCubeUpdateInterval = retentionCubeUpdateInterval;
+        return this;
+    }
+
+    public Duration getRetentionCubeUpdateInterval()
+    {
+        return retentionCubeUpdateInterval;
+    }
+
+    @Config("presto.retention-cube.backfill-days")
+    public PrestoConfig setRetentionCubeBackfillDays(int retentionCubeBackfillDays)
+    {
+        this.retentionCubeBackfillDays = retentionCubeBackfillDays;
+        return this;
+    }
+
+    public int getRetentionCubeBackfillDays()
+    {
+        return retentionCubeBackfillDays;
+    }
+
+    @Config("presto.event-count.update-interval")
+    @ConfigDescription("The interval that the event counts of the projects are updated from the shards that are changed since the last update")
+    public PrestoConfig setEventCountUpdateInterval(Duration eventCountUpdateInterval)
+    {
+        this.eventCountUpdateInterval = eventCountUpdateInterval;
+        return this;
+    }
+
+    public Duration getEventCountUpdateInterval()
+    {
+        return eventCountUpdateInterval;
+    }
+
+    @Config("presto.bucketing.events-per-bucket")
+    public PrestoConfig setBucketingEventsPerBucket(long bucketingEventsPerBucket)
+    {
+        this.bucketingEventsPerBucket = bucketingEventsPerBucket;
+        return this;
+    }
+
+    public long getBucketingEventsPerBucket()
+    {
+        return bucketingEventsPerBucket;
+    }
+
+    @Config("presto.bucketing.min-bucket-count")
+    public PrestoConfig setBucketingMinBucketCount(int bucketingMinBucketCount)
+    {
+        this.bucketingMinBucketCount = bucketingMinBucketCount;
+        return this;
+    }
+
+    public int getBucketingMinBucketCount()
+    {
+        return bucketingMinBucketCount;
+    }
+
+    @Config("presto.bucketing.max-bucket-count")
+    public PrestoConfig setBucketingMaxBucketCount(int bucketingMaxBucketCount)
+    {
+        this.bucketingMaxBucketCount = bucketingMaxBucketCount;
+        return this;
+    }
+
+    public int getBucketingMaxBucketCount()
+    {
+        return bucketingMaxBucketCount;
+    }
+
+    @Config("presto.rebucketing.enabled")
+    public PrestoConfig setRebucketingEnabled(boolean rebucketingEnabled)
+    {
+        this.rebucketingEnabled = rebucketingEnabled;
+        return this;
+    }
+
+    public boolean getRebucketingEnabled()
+    {
+        return rebucketingEnabled;
+    }
+
+    @Config("presto.rebucketing.interval")
+    public PrestoConfig setRebucketingInterval(Duration rebucketingInterval)
+    {
+        this.rebucketingInterval = rebucketingInterval;
+        return this;
+    }
+
+    public Duration getRebucketingInterval()
+    {
+        return rebucketingInterval;
+    }
+
+    @Config("presto.rebucketing.drain-period")
+    @ConfigDescription("The time that the old table of a rebucketed collection is kept, it must be longer than the timeout of the inserts")
+    public PrestoConfig setRebucketingDrainPeriod(Duration rebucketingDrainPeriod)
+    {
+        this.rebucketingDrainPeriod = rebucketingDrainPeriod;
+        return this;
+    }
+
+    public Duration getRebucketingDrainPeriod()
+    {
+        return rebucketingDrainPeriod;
+    }
 }
@@ -14,12 +14,12 @@
 package org.rakam.presto.analysis;
 
 import com.google.common.collect.ImmutableMap;
-import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.config.ProjectConfig;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
 import org.rakam.report.realtime.AggregationType;
 
 import javax.inject.Inject;
@@ -46,9 +46,9 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
             .build();
 
     @Inject
-    public PrestoEventExplorer(ProjectConfig projectConfig, QueryExecutorService executor, ContinuousQueryService continuousQueryService,
+    public PrestoEventExplorer(ProjectConfig projectConfig, QueryExecutorService executor, OLAPTableIndex olapTableIndex,
                                MaterializedViewService materializedViewService) {
-        super(projectConfig, executor, materializedViewService, continuousQueryService, timestampMapping);
+        super(projectConfig, executor, materializedViewService, olapTableIndex, timestampMapping);
     }
 
     @Override
@@ -80,6 +80,6 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
 
     @Override
     public String getFinalForApproximateUniqueFunction() {
-        return "cardinality(CAST(%s AS HYPERLOGLOG))";
+        return "cardinality(merge(CAST(%s AS HYPERLOGLOG)))";
     }
 }
\ No newline at end of file
@@ -1,107 +1,426 @@
 package org.rakam.presto.analysis;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.http.client.HttpClient;
 import io.airlift.http.client.JsonBodyGenerator;
 import io.airlift.http.client.Request;
+import io.airlift.http.client.Response;
+import io.airlift.http.client.ResponseHandler;
 import io.airlift.http.client.StringResponseHandler;
 import io.airlift.json.JsonCodec;
 import io.airlift.log.Logger;
 import org.rakam.aws.kinesis.AWSKinesisModule;
 import org.rakam.aws.kinesis.ForStreamer;
+import org.rakam.aws.kinesis.ForStreamerPush;
 import org.rakam.aws.kinesis.StreamQuery;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.StreamResponse;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.RakamException;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.ws.rs.core.UriBuilder;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.net.MediaType.JSON_UTF_8;
-import static io.airlift.http.client.Request.Builder.*;
+import static io.airlift.http.client.HttpStatus.METHOD_NOT_ALLOWED;
+import static io.airlift.http.client.HttpStatus.NOT_FOUND;
+import static io.airlift.http.client.HttpStatus.NOT_IMPLEMENTED;
+import static io.airlift.http.client.Request.Builder.prepareDelete;
+import static io.airlift.http.client.Request.Builder.prepareGet;
+import static io.airlift.http.client.Request.Builder.preparePost;
+import static io.airlift.http.client.StringResponseHandler.createStringResponseHandler;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
 
+/**
+ * Streams the events from the streaming connector of Presto.
+ * <ul>
+ * <li>{@code POST connector/streamer?node=<node>} registers a query and returns its ticket.</li>
+ * <li>{@code GET connector/streamer?ticket=<ticket>} returns the rows of the ticket since the last request.</li>
+ * <li>{@code GET connector/streamer/push?node=<node>} is a chunked response that writes a JSON line
+ * {@code {"ticket": ..., "data": [...]}} for the rows of each ticket as they arrive, empty lines are heartbeats.</li>
+ * <li>{@code DELETE connector/streamer?ticket=<ticket>} removes the query.</li>
+ * </ul>
+ * By default each subscriber polls its ticket on every sync. If {@code presto.streaming.push-enabled} is set, each
+ * rakam node opens a single long-lived push connection instead and the rows of all the subscribers of the node are
+ * fanned out in-process, each subscriber has a bounded buffer and the oldest rows are dropped if a subscriber can't
+ * keep up. The subscribers fall back to polling if the connector doesn't have the push endpoint.
+ */
 public class PrestoEventStream
         implements EventStream
 {
     private final static Logger LOGGER = Logger.get(PrestoEventStream.class);
+    private static final long MAX_RECONNECT_DELAY = SECONDS.toMillis(30);
+    private static final int MAX_FAILED_POLLS = 5;
 
     private final HttpClient httpClient;
+    private final HttpClient pushHttpClient;
     private final int streamingPort;
     private final URI prestoAddress;
+    private final int bufferSize;
     private final JsonCodec<StreamQuery> queryCodec;
+    private final String node;
+    private final Map<String, Subscription> subscriptions;
+    // the frames that arrive before the ticket is returned to the subscriber, guarded by the subscriptions map
+    private final Cache<String, Deque<String>> pendingFrames;
+    private final ExecutorService pushReader;
+    private final ExecutorService deliveryExecutor;
+    private final AtomicBoolean connected;
+    private final MetricFamily<Counter> droppedFrames;
+    private final Counter reconnects;
+    private volatile InputStream pushStream;
+    private volatile boolean push;
+    private volatile boolean running;
 
     @Inject
-    public PrestoEventStream(@ForStreamer HttpClient httpClient, AWSKinesisModule.PrestoStreamConfig config, PrestoConfig prestoConfig)
+    public PrestoEventStream(@ForStreamer HttpClient httpClient, @ForStreamerPush HttpClient pushHttpClient,
+            AWSKinesisModule.PrestoStreamConfig config, PrestoConfig prestoConfig, MetricRegistry registry)
     {
         this.httpClient = httpClient;
+        // the push connection doesn't time out so it has its own client, the other requests use the default timeout
+        this.pushHttpClient = pushHttpClient;
         this.streamingPort = config.getPort();
         this.prestoAddress = prestoConfig.getAddress();
+        this.bufferSize = config.getSubscriberBufferSize();
         this.queryCodec = JsonCodec.jsonCodec(StreamQuery.class);
+        this.node = UUID.randomUUID().toString();
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.pendingFrames = CacheBuilder.newBuilder().expireAfterWrite(1, MINUTES).build();
+        this.connected = new AtomicBoolean();
+        this.push = config.getPushEnabled();
+        this.running = true;
+        this.pushReader = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("presto-event-stream-push").setDaemon(true).build());
+        this.deliveryExecutor = Executors.newFixedThreadPool(4, new ThreadFactoryBuilder()
+                .setNameFormat("presto-event-stream-delivery-%d").setDaemon(true).build());
+
+        droppedFrames = registry.counter("rakam_event_stream_dropped_frames_total",
+                "Number of the streamed row batches that are dropped because the subscriber couldn't keep up", "project");
+        reconnects = registry.counter("rakam_event_stream_reconnects_total",
+                "Number of the times the push connection to the Presto streaming connector is re-established");
+        registry.gauge("rakam_event_stream_subscribers", "Number of the event stream subscribers of this node",
+                subscriptions::size);
     }
 
     @Override
     public EventStreamer subscribe(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response)
     {
+        if (!running) {
+            throw new IllegalStateException("Event stream is closed");
+        }
 
-        StreamQuery query = new StreamQuery(project, collections);
-
-        URI uri = UriBuilder.fromUri(prestoAddress)
-                .port(streamingPort)
-                .path("connector/streamer")
-                .build();
+        if (push && connected.compareAndSet(false, true)) {
+            pushReader.execute(this::readPushConnection);
+        }
 
         Request request = preparePost()
-                .setUri(uri)
+                .setUri(uri("connector/streamer").queryParam("node", node).build())
                 .setHeader(CONTENT_TYPE, JSON_UTF_8.toString())
-                .setBodyGenerator(JsonBodyGenerator.jsonBodyGenerator(queryCodec, query))
+                .setBodyGenerator(JsonBodyGenerator.jsonBodyGenerator(queryCodec, new StreamQuery(project, collections)))
                 .build();
 
-        String ticket = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
+        StringResponseHandler.StringResponse ticketResponse = httpClient.execute(request, createStringResponseHandler());
+        if (ticketResponse.getStatusCode() != 200) {
+            throw new RakamException("Unable to subscribe to the event stream: " + ticketResponse.getBody(), BAD_GATEWAY);
+        }
+
+        Subscription subscription = new Subscription(project, ticketResponse.getBody().trim(), response);
+        synchronized (subscriptions) {
+            subscriptions.put(subscription.ticket, subscription);
+            Deque<String> frames = pendingFrames.getIfPresent(subscription.ticket);
+            if (frames != null) {
+                pendingFrames.invalidate(subscription.ticket);
+                frames.forEach(subscription::offer);
+            }
+        }
+        return subscription;
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        running = false;
+        subscriptions.values().forEach(Subscription::shutdown);
+        closePushStream();
+        pushReader.shutdownNow();
+        deliveryExecutor.shutdownNow();
+    }
+
+    private void readPushConnection()
+    {
+        Request request = prepareGet().setUri(uri("connector/streamer/push").queryParam("node", node).build()).build();
+        long delay = SECONDS.toMillis(1);
+
+        while (running && push) {
+            try {
+                boolean received = pushHttpClient.execute(request, new PushResponseHandler());
+                if (received) {
+                    delay = SECONDS.toMillis(1);
+                }
+            }
+            catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                LOGGER.warn(e, "Push connection to the Presto streaming connector is lost, reconnecting in %d ms", delay);
+            }
+
+            if (!running || !push) {
+                return;
+            }
+
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            reconnects.increment();
+        }
+    }
+
+    private void dispatch(String line)
+    {
+        JsonNode frame;
+        try {
+            frame = JsonHelper.getMapper().readTree(line);
+        }
+        catch (IOException e) {
+            LOGGER.warn(e, "Unable to parse the frame received from the Presto streaming connector");
+            return;
+        }
+
+        JsonNode ticket = frame.get("ticket");
+        JsonNode data = frame.get("data");
+        if (ticket == null || data == null) {
+            return;
+        }
+
+        synchronized (subscriptions) {
+            Subscription subscription = subscriptions.get(ticket.asText());
+            if (subscription != null) {
+                subscription.offer(data.toString());
+                return;
+            }
 
-        return new EventStreamer()
+            // the connector may send the rows of a ticket before its POST request returns
+            Deque<String> frames = pendingFrames.asMap().computeIfAbsent(ticket.asText(), key -> new ArrayDeque<>());
+            if (frames.size() == bufferSize) {
+                frames.poll();
+            }
+            frames.add(data.toString());
+        }
+    }
+
+    private void closePushStream()
+    {
+        InputStream stream = pushStream;
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                LOGGER.debug(e, "Unable to close the push connection");
+            }
+        }
+    }
+
+    private UriBuilder uri(String path)
+    {
+        return UriBuilder.fromUri(prestoAddress).port(streamingPort).path(path);
+    }
+
+    private class PushResponseHandler
+            implements ResponseHandler<Boolean, IOException>
+    {
+        @Override
+        public Boolean handleException(Request request, Exception exception)
+                throws IOException
         {
-            private AtomicInteger failed = new AtomicInteger();
+            if (exception instanceof IOException) {
+                throw (IOException) exception;
+            }
+            throw new IOException(exception);
+        }
 
-            @Override
-            public synchronized void sync()
-            {
-                try {
-                    URI uri = UriBuilder.fromUri(prestoAddress)
-                            .port(streamingPort)
-                            .path("connector/streamer")
-                            .queryParam("ticket", ticket)
-                            .build();
+        @Override
+        public Boolean handle(Request request, Response response)
+                throws IOException
+        {
+            int status = response.getStatusCode();
+            if (status == NOT_FOUND.code() || status == METHOD_NOT_ALLOWED.code() || status == NOT_IMPLEMENTED.code()) {
+                LOGGER.warn("Presto streaming connector doesn't support the push connection, falling back to polling");
+                push = false;
+                return false;
+            }
+            if (status != 200) {
+                throw new IOException("Streaming connector returned status " + status);
+            }
 
-                    Request request = prepareGet().setUri(uri).build();
-                    String data = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
+            boolean received = false;
+            pushStream = response.getInputStream();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(pushStream, UTF_8))) {
+                String line;
+                while (running && (line = reader.readLine()) != null) {
+                    received = true;
+                    if (!line.isEmpty()) {
+                        dispatch(line);
+                    }
+                }
+            }
+            finally {
+                pushStream = null;
+            }
+            return received;
+        }
+    }
 
-                    response.send("data", data);
+    private class Subscription
+            implements EventStreamer
+    {
+        private final String project;
+        private final String ticket;
+        private final StreamResponse response;
+        private final BlockingQueue<String> buffer;
+        private final AtomicBoolean draining;
+        private final AtomicBoolean closed;
+        private final AtomicInteger failedPolls;
+
+        public Subscription(String project, String ticket, StreamResponse response)
+        {
+            this.project = project;
+            this.ticket = ticket;
+            this.response = response;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+            this.draining = new AtomicBoolean();
+            this.closed = new AtomicBoolean();
+            this.failedPolls = new AtomicInteger();
+        }
+
+        // only called while holding the subscriptions lock so the buffer can't be filled again between poll and offer.
+        private void offer(String data)
+        {
+            while (!buffer.offer(data)) {
+                if (buffer.poll() != null) {
+                    droppedFrames.get(project).increment();
+                }
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain()
+        {
+            if (!buffer.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    deliveryExecutor.execute(this::drain);
+                }
+                catch (RuntimeException e) {
+                    draining.set(false);
+                    throw e;
                 }
-                catch (Exception e) {
-                    if (failed.incrementAndGet() > 5) {
-                        LOGGER.error(e, "Error while streaming records to client");
-                        shutdown();
+            }
+        }
+
+        private void drain()
+        {
+            try {
+                String data;
+                while ((data = buffer.poll()) != null) {
+                    if (closed.get() || response.isClosed()) {
+                        buffer.clear();
+                        return;
                     }
+                    response.send("data", data);
                 }
             }
+            catch (Throwable e) {
+                LOGGER.error(e, "Error while streaming records to client");
+                shutdown();
+            }
+            finally {
+                draining.set(false);
+            }
+
+            if (!closed.get()) {
+                scheduleDrain();
+            }
+        }
+
+        @Override
+        public void sync()
+        {
+            // the pushed rows are delivered as they arrive, this only delivers the ones that are left after a failed
+            // delivery or a fallback to polling.
+            if (push || !buffer.isEmpty() || draining.get()) {
+                scheduleDrain();
+            }
+            else {
+                poll();
+            }
+        }
 
-            @Override
-            public void shutdown()
-            {
-                URI uri = UriBuilder.fromUri(prestoAddress)
-                        .port(streamingPort)
-                        .path("connector/streamer")
-                        .queryParam("ticket", ticket)
-                        .build();
+        private synchronized void poll()
+        {
+            if (closed.get()) {
+                return;
+            }
+
+            try {
+                Request request = prepareGet().setUri(uri("connector/streamer").queryParam("ticket", ticket).build()).build();
+                String data = httpClient.execute(request, createStringResponseHandler()).getBody();
+                response.send("data", data);
+            }
+            catch (Exception e) {
+                if (failedPolls.incrementAndGet() > MAX_FAILED_POLLS) {
+                    LOGGER.error(e, "Error while streaming records to client");
+                    shutdown();
+                }
+            }
+        }
 
-                Request request = prepareDelete().setUri(uri).build();
-                httpClient.execute(request, StringResponseHandler.createStringResponseHandler());
+        @Override
+        public void shutdown()
+        {
+            if (!closed.compareAndSet(false, true)) {
+                return;
             }
-        };
+
+            subscriptions.remove(ticket);
+            buffer.clear();
+
+            Request request = prepareDelete().setUri(uri("connector/streamer").queryParam("ticket", ticket).build()).build();
+            httpClient.executeAsync(request, createStringResponseHandler());
+        }
     }
 }
-
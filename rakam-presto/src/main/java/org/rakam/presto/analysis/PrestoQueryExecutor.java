@@ -11,8 +11,11 @@ import com.facebook.presto.rakam.externaldata.source.RemoteFileDataSource.Extern
 import com.facebook.presto.sql.RakamSqlFormatter;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
 import com.google.inject.Singleton;
 import org.rakam.analysis.datasource.CustomDataSourceService;
 import org.rakam.analysis.datasource.RemoteTable;
@@ -36,14 +39,17 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import java.net.URI;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -54,6 +60,8 @@ import static java.util.Base64.getDecoder;
 import static java.util.Base64.getEncoder;
 import static org.rakam.postgresql.report.PostgresqlQueryExecutor.dbSeparator;
 import static org.rakam.presto.PrestoPseudoContinuousQueryService.CONTINUOUS_QUERY_PREFIX;
+import static org.rakam.presto.analysis.PrestoAllTableService.ALL_TABLE;
+import static org.rakam.presto.analysis.PrestoAllTableService.isSourceCollection;
 import static org.rakam.presto.analysis.PrestoMaterializedViewService.MATERIALIZED_VIEW_PREFIX;
 import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.toType;
 import static org.rakam.util.JsonHelper.encodeAsBytes;
@@ -215,8 +223,52 @@ public class PrestoQueryExecutor
         return executeRawQuery(sqlQuery);
     }
 
+    @Override
+    public Function<QualifiedName, String> getTableNameMapper(String project, Statement statement, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+    {
+        boolean hasHotStorage = prestoConfig.getHotStorageConnector() != null;
+        // the physical _all table only has the events in the cold storage
+        boolean physicalAllTable = prestoConfig.getPhysicalAllTableEnabled() && !hasHotStorage;
+        if (!hasHotStorage && !physicalAllTable) {
+            return QueryExecutor.super.getTableNameMapper(project, statement, sample, sessionParameters, defaultSchema);
+        }
+
+        // the time predicates are used to skip the storage tiers that can't have the matching events
+        Map<QualifiedName, RangeSet<Instant>> timeRanges = hasHotStorage ?
+                TimePredicateExtractor.extract(statement, projectConfig.getTimeColumn()) : ImmutableMap.of();
+        Optional<Set<String>> referencedColumns = physicalAllTable ?
+                PrestoAllTableService.getReferencedColumns(statement) : Optional.empty();
+
+        return name -> {
+            if (referencedColumns.isPresent() && !name.getPrefix().isPresent() && name.getSuffix().equals("_all")) {
+                Optional<String> reference = getPhysicalAllTableReference(project, referencedColumns.get(), sample);
+                if (reference.isPresent()) {
+                    return reference.get();
+                }
+            }
+            return formatTableReference(project, name, sample, sessionParameters, defaultSchema, Optional.ofNullable(timeRanges.get(name)));
+        };
+    }
+
+    private Optional<String> getPhysicalAllTableReference(String project, Set<String> referencedColumns, Optional<QuerySampling> sample)
+    {
+        Set<String> columns = metastore.getCollection(project, ALL_TABLE).stream()
+                .map(SchemaField::getName).collect(Collectors.toSet());
+        if (columns.isEmpty() || !columns.containsAll(referencedColumns)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(prestoConfig.getColdStorageConnector() + "." + checkCollection(project) + "." + checkCollection(ALL_TABLE) + " _all" +
+                sample.map(e -> " TABLESAMPLE " + e.method.name() + "(" + e.percentage + ")").orElse(""));
+    }
+
     @Override
     public String formatTableReference(String project, QualifiedName node, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+    {
+        return formatTableReference(project, node, sample, sessionParameters, defaultSchema, Optional.empty());
+    }
+
+    public String formatTableReference(String project, QualifiedName node, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema, Optional<RangeSet<Instant>> timeRange)
     {
         String prefix = node.getPrefix().map(e -> e.toString()).orElse(null);
         String suffix = node.getSuffix();
@@ -233,10 +285,10 @@ public class PrestoQueryExecutor
             }
         }
         else if ("materialized".equals(prefix)) {
-            return getTableReference(project, MATERIALIZED_VIEW_PREFIX + suffix, sample);
+            return getTableReference(project, MATERIALIZED_VIEW_PREFIX + suffix, sample, Optional.empty());
         }
         else if ("collection".equals(prefix) || (prefix == null && (defaultSchema.equals("collection")) && !"_users".equals(suffix) && !"_all".equals(suffix))) {
-            return getTableReference(project, suffix, sample);
+            return getTableReference(project, suffix, sample, timeRange);
         }
         else {
             String encodedKey = sessionParameters.get("external.source_options");
@@ -267,7 +319,7 @@ public class PrestoQueryExecutor
             // special prefix for all columns
             else if (suffix.equals("_all") && prefix == null) {
                 List<Map.Entry<String, List<SchemaField>>> collections = metastore.getCollections(project).entrySet().stream()
-                        .filter(c -> !c.getKey().startsWith("_"))
+                        .filter(c -> isSourceCollection(c.getKey()))
                         .collect(Collectors.toList());
                 if (!collections.isEmpty()) {
                     String sharedColumns = collections.get(0).getValue().stream()
@@ -281,7 +333,7 @@ public class PrestoQueryExecutor
                                     collection,
                                     checkTableColumn(prestoConfig.getCheckpointColumn()),
                                     sharedColumns.isEmpty() ? "1" : sharedColumns,
-                                    getTableReference(project, collection, sample)))
+                                    getTableReference(project, collection, sample, timeRange)))
                             .collect(Collectors.joining(" union all ")) + ") _all";
                 }
                 else {
@@ -338,19 +390,32 @@ public class PrestoQueryExecutor
         }
     }
 
-    private String getTableReference(String project, String tableName, Optional<QuerySampling> sample)
+    private String getTableReference(String project, String tableName, Optional<QuerySampling> sample, Optional<RangeSet<Instant>> timeRange)
     {
         String hotStorageConnector = prestoConfig.getHotStorageConnector();
-        String table = checkCollection(project) + "." + checkCollection(tableName) +
-                sample.map(e -> " TABLESAMPLE " + e.method.name() + "(" + e.percentage + ")").orElse("");
+        String tableSample = sample.map(e -> " TABLESAMPLE " + e.method.name() + "(" + e.percentage + ")").orElse("");
+        String table = checkCollection(project) + "." + checkCollection(tableName) + tableSample;
 
-        if (hotStorageConnector != null) {
-            return "((select * from " + prestoConfig.getColdStorageConnector() + "." + table + " union all " +
-                    "select * from " + hotStorageConnector + "." + table + ")" +
-                    " as " + tableName + ")";
-        }
-        else {
+        if (hotStorageConnector == null) {
             return prestoConfig.getColdStorageConnector() + "." + table;
         }
+
+        String predicate = "";
+        if (timeRange.isPresent()) {
+            Optional<Instant> watermark = metastore.getColdStorageWatermark(project, tableName);
+            // the events are moved to the cold storage in the order they are ingested, not in event time order,
+            // so late events may still be in the hot storage and only the cold storage can be skipped.
+            if (watermark.isPresent() && timeRange.get().subRangeSet(Range.atMost(watermark.get())).isEmpty()) {
+                // the same alias with the union so that the columns can be qualified with the collection name
+                return "(" + hotStorageConnector + "." + checkCollection(project) + "." + checkCollection(tableName) +
+                        " as " + tableName + tableSample + ")";
+            }
+
+            predicate = " where " + TimePredicateExtractor.formatPredicate(timeRange.get(), projectConfig.getTimeColumn());
+        }
+
+        return "((select * from " + prestoConfig.getColdStorageConnector() + "." + table + predicate + " union all " +
+                "select * from " + hotStorageConnector + "." + table + predicate + ")" +
+                " as " + tableName + ")";
     }
 }
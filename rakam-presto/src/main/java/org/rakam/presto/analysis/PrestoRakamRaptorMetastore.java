@@ -27,9 +27,13 @@ import com.facebook.presto.spi.type.VarbinaryType;
 import com.facebook.presto.spi.type.VarcharType;
 import com.facebook.presto.type.ArrayType;
 import com.facebook.presto.type.MapType;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
 import org.rakam.analysis.JDBCPoolDataSource;
@@ -42,33 +46,46 @@ import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.exceptions.DBIException;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.LongMapper;
 import org.skife.jdbi.v2.util.StringMapper;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
+import java.sql.Date;
 import java.sql.JDBCType;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.facebook.presto.raptor.metadata.DatabaseShardManager.maxColumn;
 import static com.facebook.presto.raptor.metadata.DatabaseShardManager.minColumn;
@@ -84,12 +101,12 @@ import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERR
 import static java.lang.String.format;
 import static java.sql.JDBCType.VARBINARY;
 import static java.util.Locale.ENGLISH;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.rakam.collection.FieldType.DATE;
 import static org.rakam.collection.FieldType.LONG;
 import static org.rakam.collection.FieldType.TIMESTAMP;
 import static org.rakam.presto.analysis.PrestoMaterializedViewService.MATERIALIZED_VIEW_PREFIX;
 import static org.rakam.util.ValidationUtil.checkCollection;
-import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -97,21 +114,41 @@ public class PrestoRakamRaptorMetastore
         extends AbstractMetastore
 {
     private static final Logger LOGGER = Logger.get(PrestoRakamRaptorMetastore.class);
+    private static final int MAX_SCHEMA_CHANGE_ATTEMPTS = 10;
+    private static final long MAX_SCHEMA_CHANGE_BACKOFF_MILLIS = 1000;
+    private static final int EVENT_DAY_BATCH_SIZE = 1000;
 
     private final DBI dbi;
     private final MetadataDao dao;
     private final PrestoConfig prestoConfig;
     private final ClientSession defaultSession;
     private final ProjectConfig projectConfig;
+    private final ScheduledExecutorService eventCountUpdater;
+    private final PrestoTableLayoutPolicy tableLayoutPolicy;
+    private final LockService lockService;
+
+    public PrestoRakamRaptorMetastore(
+            JDBCPoolDataSource prestoMetastoreDataSource,
+            EventBus eventBus,
+            ProjectConfig projectConfig,
+            PrestoConfig prestoConfig)
+    {
+        this(prestoMetastoreDataSource, eventBus, projectConfig, prestoConfig,
+                new PrestoTableLayoutPolicy(prestoMetastoreDataSource, prestoConfig, projectConfig), new LocalLockService());
+    }
 
     @Inject
     public PrestoRakamRaptorMetastore(
             @Named("presto.metastore.jdbc") JDBCPoolDataSource prestoMetastoreDataSource,
             EventBus eventBus,
             ProjectConfig projectConfig,
-            PrestoConfig prestoConfig)
+            PrestoConfig prestoConfig,
+            PrestoTableLayoutPolicy tableLayoutPolicy,
+            @Named("presto.metastore.jdbc") LockService lockService)
     {
         super(eventBus);
+        this.tableLayoutPolicy = tableLayoutPolicy;
+        this.lockService = lockService;
         dbi = new DBI(prestoMetastoreDataSource);
         dbi.registerMapper(new TableColumn.Mapper(new SignatureReferenceTypeManager()));
         this.dao = onDemandDao(dbi, MetadataDao.class);
@@ -128,6 +165,8 @@ public class PrestoRakamRaptorMetastore
                 ImmutableMap.<String, String>of(),
                 null,
                 false, new com.facebook.presto.jdbc.internal.airlift.units.Duration(1, TimeUnit.MINUTES));
+        this.eventCountUpdater = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("event-count-updater").setDaemon(true).build());
     }
 
     @PostConstruct
@@ -135,6 +174,22 @@ public class PrestoRakamRaptorMetastore
     public void setup()
     {
         setupTables();
+
+        long interval = prestoConfig.getEventCountUpdateInterval().toMillis();
+        eventCountUpdater.scheduleWithFixedDelay(() -> {
+            try {
+                updateEventCounts();
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Unable to update the event counts of the projects");
+            }
+        }, interval, interval, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        eventCountUpdater.shutdownNow();
     }
 
     private void setupTables()
@@ -144,6 +199,21 @@ public class PrestoRakamRaptorMetastore
                     "  name VARCHAR(255) NOT NULL, \n" +
                     "  PRIMARY KEY (name))")
                     .execute();
+            handle.createStatement("CREATE TABLE IF NOT EXISTS project_event_count (" +
+                    "  project VARCHAR(255) NOT NULL, \n" +
+                    "  day DATE NOT NULL, \n" +
+                    "  events BIGINT NOT NULL, \n" +
+                    "  PRIMARY KEY (project, day))")
+                    .execute();
+            handle.createStatement("CREATE TABLE IF NOT EXISTS project_event_count_shard (" +
+                    "  shard_id BIGINT NOT NULL, \n" +
+                    "  shard_uuid BINARY(16) NOT NULL, \n" +
+                    "  project VARCHAR(255) NOT NULL, \n" +
+                    "  day DATE NOT NULL, \n" +
+                    "  events BIGINT NOT NULL, \n" +
+                    "  PRIMARY KEY (shard_id), \n" +
+                    "  UNIQUE (shard_uuid))")
+                    .execute();
             return null;
         });
     }
@@ -151,16 +221,38 @@ public class PrestoRakamRaptorMetastore
     @Override
     public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields)
     {
-        return getOrCreateCollectionFields(project, collection, fields, fields.size());
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return tryGetOrCreateCollectionFields(project, collection, fields);
+            }
+            catch (ConcurrentSchemaChangeException e) {
+                if (attempt >= MAX_SCHEMA_CHANGE_ATTEMPTS) {
+                    String description = format("%s.%s: %s: %s", project, collection, Arrays.toString(fields.toArray()), e.getMessage());
+                    String message = "Failed to add new fields to collection";
+
+                    LOGGER.error(message, description);
+                    throw new RakamException(message + " " + description, INTERNAL_SERVER_ERROR);
+                }
+
+                // another writer is changing the table, wait for it with an exponential backoff
+                long backoff = Math.min(MAX_SCHEMA_CHANGE_BACKOFF_MILLIS, 10L << attempt);
+                try {
+                    Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw Throwables.propagate(ie);
+                }
+            }
+        }
     }
 
-    public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields, int tryCount)
+    private List<SchemaField> tryGetOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields)
     {
         String query;
-        List<SchemaField> schemaFields = getCollection(project, collection);
         List<SchemaField> lastFields;
         Table tableInformation = dao.getTableInformation(project, collection);
-        if (schemaFields.isEmpty() && tableInformation == null) {
+        if (tableInformation == null) {
             if (collection.startsWith("$materialized")) {
                 throw new RakamException("Collections cannot start with $materialized prefix", BAD_REQUEST);
             }
@@ -180,17 +272,7 @@ public class PrestoRakamRaptorMetastore
                 return currentFields;
             }
 
-            List<String> params = new ArrayList<>();
-            if (fields.stream().anyMatch(f -> f.getName().equals(projectConfig.getTimeColumn()) && (f.getType() == TIMESTAMP || f.getType() == DATE))) {
-                params.add(format("temporal_column = '%s'", checkLiteral(projectConfig.getTimeColumn())));
-            }
-
-            if (fields.stream().anyMatch(f -> f.getName().equals(projectConfig.getUserColumn()))) {
-                params.add(format("bucketed_on = array['%s']", checkLiteral(projectConfig.getUserColumn())));
-                params.add("bucket_count = 10");
-                params.add(format("distribution_name = '%s'", project));
-            }
-
+            List<String> params = tableLayoutPolicy.getTableProperties(project, fields);
             String properties = params.isEmpty() ? "" : ("WITH( " + params.stream().collect(Collectors.joining(", ")) + ")");
 
             query = format("CREATE TABLE %s.\"%s\".%s (%s) %s ",
@@ -198,18 +280,8 @@ public class PrestoRakamRaptorMetastore
             QueryResult join = new PrestoQueryExecution(defaultSession, query).getResult().join();
             if (join.isFailed()) {
                 if (join.getError().message.contains("exists") || join.getError().message.equals("Failed to perform metadata operation")) {
-                    if (tryCount > 0) {
-                        return getOrCreateCollectionFields(project, collection, fields, tryCount - 1);
-                    }
-                    else {
-                        String description = format("%s.%s: %s: %s",
-                                project, collection, Arrays.toString(fields.toArray()),
-                                join.getError().toString());
-                        String message = "Failed to add new fields to collection";
-
-                        LOGGER.error(message, description);
-                        throw new RakamException(message + " " + description, INTERNAL_SERVER_ERROR);
-                    }
+                    // the table is created by another writer, the next attempt adds the missing fields
+                    throw new ConcurrentSchemaChangeException(join.getError().toString());
                 }
                 else {
                     if (PrestoQueryExecution.isServerInactive(join.getError())) {
@@ -221,32 +293,84 @@ public class PrestoRakamRaptorMetastore
             }
 
             lastFields = fields.stream().collect(Collectors.toList());
+            super.onCreateCollection(project, collection, ImmutableList.of());
         }
         else {
-            List<SchemaField> newFields = new ArrayList<>();
-
-            fields.stream()
-                    .filter(field -> schemaFields.stream().noneMatch(f -> f.getName().equals(field.getName())))
-                    .forEach(f -> {
-                        newFields.add(f);
-                        try {
-                            addColumn(tableInformation, project, collection, f.getName(), f.getType());
-                        }
-                        catch (Exception e) {
-                            if (e.getMessage().equals("Failed to perform metadata operation")) {
-                                // TODO: fix stackoverflow
-                                getOrCreateCollectionFields(project, collection, ImmutableSet.of(f), 1);
-                            }
-                            else if (!e.getMessage().contains("exists")) {
-                                throw new IllegalStateException(e.getMessage());
-                            }
-                        }
-                    });
+            List<SchemaField> schemaFields = new ArrayList<>();
+            lastFields = addColumns(tableInformation, fields, schemaFields);
+            super.onCreateCollection(project, collection, schemaFields);
+        }
+
+        return lastFields;
+    }
 
-            lastFields = getCollection(project, collection);
+    /**
+     * Adds the missing fields in a single transaction and bumps the table version once. The table row is locked
+     * so that the concurrent writers add their columns one after another and see the columns of each other.
+     *
+     * @param existingFields the fields of the collection before the new fields are added
+     * @return the fields of the collection including the new fields
+     */
+    private List<SchemaField> addColumns(Table table, Set<SchemaField> fields, List<SchemaField> existingFields)
+    {
+        Map<Long, FieldType> newColumns = new LinkedHashMap<>();
+
+        List<SchemaField> lastFields;
+        try {
+            lastFields = runTransaction(dbi, (handle, status) -> {
+                newColumns.clear();
+                existingFields.clear();
+
+                handle.createQuery("SELECT table_id FROM tables WHERE table_id = :tableId FOR UPDATE")
+                        .bind("tableId", table.getTableId())
+                        .list();
+
+                MetadataDao dao = handle.attach(MetadataDao.class);
+                List<TableColumn> columns = dao.listTableColumns(table.getTableId());
+                existingFields.addAll(toSchemaFields(columns));
+
+                Set<String> columnNames = columns.stream().map(TableColumn::getColumnName).collect(Collectors.toSet());
+                long columnId = columns.stream().mapToLong(TableColumn::getColumnId).max().orElse(0) + 1;
+                int ordinalPosition = columns.size();
+
+                List<SchemaField> mergedFields = new ArrayList<>(existingFields);
+                for (SchemaField field : fields) {
+                    if (!columnNames.add(field.getName())) {
+                        continue;
+                    }
+
+                    String type = TypeSignature.parseTypeSignature(toSql(field.getType())).toString().toLowerCase(ENGLISH);
+                    dao.insertColumn(table.getTableId(), columnId, field.getName(), ordinalPosition++, type, null, null);
+                    newColumns.put(columnId++, field.getType());
+                    mergedFields.add(field);
+                }
+
+                if (!newColumns.isEmpty()) {
+                    dao.updateTableVersion(table.getTableId(), System.currentTimeMillis());
+                }
+                return mergedFields;
+            });
+        }
+        catch (PrestoException e) {
+            throw new ConcurrentSchemaChangeException(e.getMessage());
+        }
+
+        String indexColumns = newColumns.entrySet().stream()
+                .filter(column -> sqlColumnType(column.getValue()) != null)
+                .map(column -> format("%s %s, %s %s",
+                        minColumn(column.getKey()), sqlColumnType(column.getValue()),
+                        maxColumn(column.getKey()), sqlColumnType(column.getValue())))
+                .collect(Collectors.joining(", "));
+
+        if (!indexColumns.isEmpty()) {
+            try (Handle handle = dbi.open()) {
+                handle.execute(format("ALTER TABLE %s ADD COLUMN (%s)", shardIndexTable(table.getTableId()), indexColumns));
+            }
+            catch (DBIException e) {
+                throw metadataError(e);
+            }
         }
 
-        super.onCreateCollection(project, collection, schemaFields);
         return lastFields;
     }
 
@@ -269,38 +393,6 @@ public class PrestoRakamRaptorMetastore
         }
     }
 
-    private void addColumn(Table table, String schema, String tableName, String columnName, FieldType fieldType)
-    {
-        List<TableColumn> existingColumns = dao.listTableColumns(schema, tableName);
-        TableColumn lastColumn = existingColumns.get(existingColumns.size() - 1);
-        long columnId = lastColumn.getColumnId() + 1;
-        int ordinalPosition = existingColumns.size();
-
-        String type = TypeSignature.parseTypeSignature(toSql(fieldType)).toString().toLowerCase(ENGLISH);
-
-        daoTransaction(dbi, MetadataDao.class, dao -> {
-            dao.insertColumn(table.getTableId(), columnId, columnName, ordinalPosition, type, null, null);
-            dao.updateTableVersion(table.getTableId(), System.currentTimeMillis());
-        });
-
-        String columnType = sqlColumnType(fieldType);
-        if (columnType == null) {
-            return;
-        }
-
-        String sql = format("ALTER TABLE %s ADD COLUMN (%s %s, %s %s)",
-                shardIndexTable(table.getTableId()),
-                minColumn(columnId), columnType,
-                maxColumn(columnId), columnType);
-
-        try (Handle handle = dbi.open()) {
-            handle.execute(sql);
-        }
-        catch (DBIException e) {
-            throw metadataError(e);
-        }
-    }
-
     private static String sqlColumnType(FieldType type)
     {
         JDBCType jdbcType = jdbcType(type);
@@ -348,7 +440,12 @@ public class PrestoRakamRaptorMetastore
     @Override
     public List<SchemaField> getCollection(String project, String collection)
     {
-        return dao.listTableColumns(project, collection).stream()
+        return toSchemaFields(dao.listTableColumns(project, collection));
+    }
+
+    private static List<SchemaField> toSchemaFields(List<TableColumn> columns)
+    {
+        return columns.stream()
                 .filter(a -> !a.getColumnName().startsWith("$"))
                 .map(column -> {
                     TypeSignature typeSignature = column.getDataType().getTypeSignature();
@@ -360,6 +457,92 @@ public class PrestoRakamRaptorMetastore
                 }).collect(Collectors.toList());
     }
 
+    @Override
+    public Optional<Instant> getColdStorageWatermark(String project, String collection)
+    {
+        // the ids are resolved by the table name for each reference because the rebucketing replaces the table of the
+        // collection, the watermark of the replaced table would hide the events that are moved since then
+        try (Handle handle = dbi.open()) {
+            Optional<TimeColumnIndex> index = getTimeColumnIndex(handle, "tables.schema_name = :project and tables.table_name = :table",
+                    ImmutableMap.of("project", project, "table", collection));
+            if (!index.isPresent()) {
+                return Optional.empty();
+            }
+
+            Long maxTime = handle.createQuery(format("SELECT max(%s) FROM %s",
+                    maxColumn(index.get().columnId), shardIndexTable(index.get().tableId)))
+                    .map((i, resultSet, context) -> {
+                        long value = resultSet.getLong(1);
+                        return resultSet.wasNull() ? null : value;
+                    }).first();
+            return Optional.ofNullable(maxTime).map(value -> index.get().toInstant(value));
+        }
+        catch (DBIException e) {
+            // the table may be dropped between the queries
+            LOGGER.warn(e, "Unable to fetch the cold storage watermark of %s.%s", project, collection);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the ids of the time column of the table if the shard index has its range.
+     */
+    private Optional<TimeColumnIndex> getTimeColumnIndex(Handle handle, String tableFilter, Map<String, ?> parameters)
+    {
+        Query<Map<String, Object>> query = handle.createQuery("select tables.table_id, columns.column_id, columns.data_type from tables " +
+                "join columns on (columns.table_id = tables.table_id) " +
+                "where " + tableFilter + " and columns.column_name = :timeColumn");
+        parameters.forEach(query::bind);
+        return Optional.ofNullable(query.bind("timeColumn", projectConfig.getTimeColumn())
+                .map((i, resultSet, context) -> new TimeColumnIndex(resultSet.getLong(1), resultSet.getLong(2),
+                        resultSet.getString(3).equalsIgnoreCase(StandardTypes.DATE)))
+                .first());
+    }
+
+    private static class CountedShard
+    {
+        private static final ResultSetMapper<CountedShard> MAPPER = (index, resultSet, context) ->
+                new CountedShard(resultSet.getLong(1), resultSet.getBytes(2), resultSet.getString(3),
+                        resultSet.getDate(4).toLocalDate(), resultSet.getLong(5));
+
+        private final long shardId;
+        private final byte[] shardUuid;
+        private final String project;
+        private final LocalDate day;
+        private final long events;
+
+        private CountedShard(long shardId, byte[] shardUuid, String project, LocalDate day, long events)
+        {
+            this.shardId = shardId;
+            this.shardUuid = shardUuid;
+            this.project = project;
+            this.day = day;
+            this.events = events;
+        }
+    }
+
+    private static class TimeColumnIndex
+    {
+        private final long tableId;
+        private final long columnId;
+        private final boolean isDate;
+
+        private TimeColumnIndex(long tableId, long columnId, boolean isDate)
+        {
+            this.tableId = tableId;
+            this.columnId = columnId;
+            this.isDate = isDate;
+        }
+
+        /**
+         * The shard index keeps the date values as epoch days and the timestamp values as epoch milliseconds.
+         */
+        private Instant toInstant(long value)
+        {
+            return isDate ? LocalDate.ofEpochDay(value).atStartOfDay(ZoneOffset.UTC).toInstant() : Instant.ofEpochMilli(value);
+        }
+    }
+
     @Override
     public void deleteProject(String project)
     {
@@ -368,9 +551,18 @@ public class PrestoRakamRaptorMetastore
         try (Handle handle = dbi.open()) {
             handle.createStatement("delete from project where name = :project")
                     .bind("project", project).execute();
+            handle.createStatement("delete from project_event_count where project = :project")
+                    .bind("project", project).execute();
+            // the shards of the dropped tables are not subtracted from the counts again
+            handle.createStatement("delete from project_event_count_shard where project = :project")
+                    .bind("project", project).execute();
         }
 
-        for (String collectionName : getCollectionNames(project)) {
+        // the internal tables of the collections are not listed in the collections, they are dropped explicitly
+        Set<String> tables = dao.listTables(project).stream().map(e -> e.getTableName())
+                .filter(table -> filterTables(table) || isInternalCollectionTable(table))
+                .collect(Collectors.toSet());
+        for (String collectionName : tables) {
             String query = format("DROP TABLE %s.\"%s\".\"%s\"", prestoConfig.getColdStorageConnector(), project, collectionName);
 
             QueryResult join = new PrestoQueryExecution(defaultSession, query).getResult().join();
@@ -383,50 +575,166 @@ public class PrestoRakamRaptorMetastore
         super.onDeleteProject(project);
     }
 
+    /**
+     * Applies the shards that are committed or deleted since the last update to the daily event counts of the
+     * projects. The shards are committed by Raptor inside Presto rather than Rakam so the counts are reconciled from
+     * the metadata database: the counted shards are kept in project_event_count_shard and compared with the shards of
+     * the collections in both directions, the shards that are not counted yet are added and the counted shards that
+     * are deleted or replaced by the compaction are subtracted. The shard ids are allocated before the shards are
+     * committed and deleted_shards is purged by Raptor so neither of them is used to find the changes. The internal
+     * tables whose names start with $ are not counted. Only one node updates the counts at a time.
+     *
+     * @return false if another node is updating the counts
+     */
+    public boolean updateEventCounts()
+    {
+        LockService.Lock lock = lockService.tryLock("event-count");
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            dbi.inTransaction((Handle handle, TransactionStatus transactionStatus) -> {
+                long countedShards = handle.createQuery("select count(*) from project_event_count_shard")
+                        .map(LongMapper.FIRST).first();
+                if (countedShards == 0) {
+                    // the counts are built from all the shards for the first time
+                    handle.createStatement("delete from project_event_count").execute();
+                }
+
+                Map<String, Map<LocalDate, Long>> changes = new HashMap<>();
+
+                List<CountedShard> deletedShards = handle.createQuery("select counted.shard_id, counted.shard_uuid, " +
+                        "counted.project, counted.day, counted.events from project_event_count_shard counted " +
+                        "where not exists (select 1 from shards join tables on (shards.table_id = tables.table_id) " +
+                        "where shards.shard_id = counted.shard_id and tables.table_name not like '$%')")
+                        .map(CountedShard.MAPPER).list();
+                for (CountedShard shard : deletedShards) {
+                    handle.createStatement("delete from project_event_count_shard where shard_id = :shardId")
+                            .bind("shardId", shard.shardId).execute();
+                    changes.computeIfAbsent(shard.project, project -> new HashMap<>())
+                            .merge(shard.day, -shard.events, Long::sum);
+                }
+
+                Map<Long, List<CountedShard>> newShardsByTable = new HashMap<>();
+                handle.createQuery("select shards.shard_id, shards.shard_uuid, " +
+                        "tables.schema_name, cast(shards.create_time as date), shards.row_count, shards.table_id " +
+                        "from shards join tables on (shards.table_id = tables.table_id) " +
+                        "where tables.table_name not like '$%' and not exists " +
+                        "(select 1 from project_event_count_shard counted where counted.shard_id = shards.shard_id)")
+                        .map((index, resultSet, context) -> newShardsByTable.computeIfAbsent(resultSet.getLong(6), id -> new ArrayList<>())
+                                .add(CountedShard.MAPPER.map(index, resultSet, context)))
+                        .list();
+
+                List<CountedShard> newShards = new ArrayList<>();
+                newShardsByTable.forEach((tableId, shards) -> newShards.addAll(withEventDays(handle, tableId, shards)));
+                for (CountedShard shard : newShards) {
+                    handle.createStatement("insert into project_event_count_shard (shard_id, shard_uuid, project, day, events) " +
+                            "values (:shardId, :shardUuid, :project, :day, :events)")
+                            .bind("shardId", shard.shardId)
+                            .bind("shardUuid", shard.shardUuid)
+                            .bind("project", shard.project)
+                            .bind("day", Date.valueOf(shard.day))
+                            .bind("events", shard.events)
+                            .execute();
+                    changes.computeIfAbsent(shard.project, project -> new HashMap<>())
+                            .merge(shard.day, shard.events, Long::sum);
+                }
+
+                changes.forEach((project, days) -> days.forEach((day, events) -> {
+                    if (events == 0) {
+                        return;
+                    }
+                    int updated = handle.createStatement("update project_event_count set events = events + :events " +
+                            "where project = :project and day = :day")
+                            .bind("events", events).bind("project", project).bind("day", Date.valueOf(day))
+                            .execute();
+                    if (updated == 0) {
+                        handle.createStatement("insert into project_event_count (project, day, events) values (:project, :day, :events)")
+                                .bind("project", project).bind("day", Date.valueOf(day)).bind("events", events)
+                                .execute();
+                    }
+                }));
+                handle.createStatement("delete from project_event_count where events <= 0").execute();
+                return null;
+            });
+        }
+        finally {
+            lock.release();
+        }
+
+        return true;
+    }
+
+    /**
+     * The shards that are copied by the rebucketing or merged by the compaction are created with the current time, so
+     * the shards are counted in the day of the latest event in the shard rather than the day they are created.
+     * Raptor splits the rows into the shards by the day of the temporal column so a shard usually has the events of
+     * a single day. The creation day is used if the shard index doesn't have the range of the time column.
+     */
+    private List<CountedShard> withEventDays(Handle handle, long tableId, List<CountedShard> shards)
+    {
+        Optional<TimeColumnIndex> index = getTimeColumnIndex(handle, "tables.table_id = :tableId", ImmutableMap.of("tableId", tableId));
+        if (!index.isPresent()) {
+            return shards;
+        }
+
+        Map<Long, LocalDate> days = new HashMap<>();
+        for (List<CountedShard> batch : Iterables.partition(shards, EVENT_DAY_BATCH_SIZE)) {
+            handle.createQuery(format("select shard_id, %s from %s where shard_id in (%s)",
+                    maxColumn(index.get().columnId), shardIndexTable(tableId),
+                    batch.stream().map(shard -> String.valueOf(shard.shardId)).collect(Collectors.joining(", "))))
+                    .map((i, resultSet, context) -> {
+                        long value = resultSet.getLong(2);
+                        if (!resultSet.wasNull()) {
+                            days.put(resultSet.getLong(1), index.get().toInstant(value).atZone(ZoneOffset.UTC).toLocalDate());
+                        }
+                        return null;
+                    }).list();
+        }
+
+        return shards.stream()
+                .map(shard -> new CountedShard(shard.shardId, shard.shardUuid, shard.project,
+                        days.getOrDefault(shard.shardId, shard.day), shard.events))
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Map<String, Stats> getStats(Collection<String> projects)
     {
         if (projects.isEmpty()) {
             return ImmutableMap.of();
         }
+
+        List<String> projectList = ImmutableList.copyOf(projects);
+        Map<String, Stats> map = new HashMap<>();
+        for (String project : projectList) {
+            map.put(project, new Stats(0L, 0L, 0L));
+        }
+
         try (Handle handle = dbi.open()) {
-            Map<String, Stats> map = new HashMap<>();
-            for (String project : projects) {
-                map.put(project, new Stats());
+            Query<Map<String, Object>> query = handle.createQuery("select project, " +
+                    "sum(events), " +
+                    "sum(case when year(day) = year(current_date) and month(day) = month(current_date) then events else 0 end), " +
+                    "sum(case when day = current_date then events else 0 end) " +
+                    "from project_event_count where project in (" +
+                    IntStream.range(0, projectList.size()).mapToObj(i -> ":project" + i).collect(Collectors.joining(", ")) +
+                    ") group by project");
+            for (int i = 0; i < projectList.size(); i++) {
+                query.bind("project" + i, projectList.get(i));
             }
-            handle.createQuery("select schema_name, (case " +
-                    "when date = CURDATE() then 'today' " +
-                    "when year(date) = YEAR(NOW()) and month(date) = MONTH(NOW()) then 'month' else 'total' end) " +
-                    "as date, " +
-                    "sum(row_count) as events " +
-                    "from (select tables.schema_name, cast(shards.create_time as date) as date, sum(shards.row_count) as row_count from tables " +
-                    "join shards on (shards.table_id = tables.table_id) where schema_name in (" +
-                    projects.stream().map(e -> "'" + e + "'").collect(Collectors.joining(", ")) + ") group by 1,2   ) t group by 1, 2 ").map((i, resultSet, statementContext) -> {
+
+            query.map((i, resultSet, statementContext) -> {
                 Stats stats = map.get(resultSet.getString(1));
-                if (resultSet.getString(2).equals("today")) {
-                    stats.dailyEvents = resultSet.getLong(3);
-                }
-                else if (resultSet.getString(2).equals("month")) {
-                    stats.monthlyEvents = resultSet.getLong(3);
-                }
-                else if (resultSet.getString(2).equals("total")) {
-                    stats.allEvents = resultSet.getLong(3);
-                }
+                stats.allEvents = resultSet.getLong(2);
+                stats.monthlyEvents = resultSet.getLong(3);
+                stats.dailyEvents = resultSet.getLong(4);
                 return null;
             }).forEach(l -> {
             });
-
-            for (Stats stats : map.values()) {
-                stats.dailyEvents = stats.dailyEvents == null ? 0 : stats.dailyEvents;
-                stats.monthlyEvents = stats.monthlyEvents == null ? 0 : stats.monthlyEvents;
-                stats.allEvents = stats.allEvents == null ? 0 : stats.allEvents;
-
-                stats.allEvents += stats.monthlyEvents + stats.dailyEvents;
-                stats.monthlyEvents += stats.dailyEvents;
-            }
-
-            return map;
         }
+
+        return map;
     }
 
     @Override
@@ -441,6 +749,13 @@ public class PrestoRakamRaptorMetastore
                 && !tableColumn.startsWith("$");
     }
 
+    private static boolean isInternalCollectionTable(String table)
+    {
+        return table.equals(PrestoAllTableService.ALL_TABLE)
+                || table.startsWith(PrestoRebucketingService.NEW_TABLE_PREFIX)
+                || table.startsWith(PrestoRebucketingService.OLD_TABLE_PREFIX);
+    }
+
     private boolean filterTables(TableColumn tableColumn)
     {
         return filterTables(tableColumn.getTable().getTableName());
@@ -504,6 +819,15 @@ public class PrestoRakamRaptorMetastore
         return map;
     }
 
+    private static class ConcurrentSchemaChangeException
+            extends RuntimeException
+    {
+        public ConcurrentSchemaChangeException(String message)
+        {
+            super(message);
+        }
+    }
+
     public static class SignatureReferenceType
             extends AbstractType
     {
@@ -0,0 +1,357 @@
+package org.rakam.presto.analysis;
+
+import com.facebook.presto.raptor.metadata.MetadataDao;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.rakam.util.lock.LockService;
+import org.rakam.util.lock.LockService.Lock;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.LongMapper;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.runTransaction;
+
+/**
+ * Rewrites the collections whose bucket count or ordering is different from the layout chosen by
+ * {@link PrestoTableLayoutPolicy}. The shards of the collection are copied to a new table with the new layout,
+ * the shards that are committed during the copy are copied in the next rounds and the tables are renamed in a single
+ * metadata transaction once the new table has all the shards. Raptor locks the table row when it commits
+ * shards so no shard can be committed to the collection between the last check and the swap. The inserts that
+ * started before the swap may still commit to the old table so it's kept and its new shards are copied until
+ * {@link PrestoConfig#getRebucketingDrainPeriod()} passes. If a copied shard is deleted or compacted during the copy,
+ * the new table is dropped and the collection is rewritten in the next run. A collection is rewritten by one node
+ * at a time.
+ */
+public class PrestoRebucketingService
+{
+    private final static Logger LOGGER = Logger.get(PrestoRebucketingService.class);
+
+    static final String NEW_TABLE_PREFIX = "$rebucketing_";
+    static final String OLD_TABLE_PREFIX = "$rebucketed_";
+    private static final int MAX_COPY_ROUNDS = 10;
+    private static final int SHARDS_PER_COPY = 500;
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10_000;
+
+    private final DBI dbi;
+    private final PrestoConfig prestoConfig;
+    private final ProjectConfig projectConfig;
+    private final Metastore metastore;
+    private final PrestoQueryExecutor executor;
+    private final PrestoTableLayoutPolicy tableLayoutPolicy;
+    private final LockService lockService;
+    private final ScheduledExecutorService scheduler;
+
+    @Inject
+    public PrestoRebucketingService(
+            @Named("presto.metastore.jdbc") JDBCPoolDataSource prestoMetastoreDataSource,
+            PrestoConfig prestoConfig,
+            ProjectConfig projectConfig,
+            Metastore metastore,
+            PrestoQueryExecutor executor,
+            PrestoTableLayoutPolicy tableLayoutPolicy,
+            @Named("presto.metastore.jdbc") LockService lockService)
+    {
+        this.dbi = new DBI(prestoMetastoreDataSource);
+        this.lockService = lockService;
+        this.prestoConfig = prestoConfig;
+        this.projectConfig = projectConfig;
+        this.metastore = metastore;
+        this.executor = executor;
+        this.tableLayoutPolicy = tableLayoutPolicy;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("rebucketing-service").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void setup()
+    {
+        long interval = prestoConfig.getRebucketingInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::rebucketAll, interval, interval, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    public void rebucketAll()
+    {
+        for (String project : metastore.getProjects()) {
+            for (String collection : metastore.getCollectionNames(project)) {
+                Lock lock = lockService.tryLock(getLockName(project, collection));
+                if (lock == null) {
+                    continue;
+                }
+
+                try {
+                    if (needsRebucketing(project, collection)) {
+                        rebucket(project, collection, lock);
+                    }
+                }
+                catch (Throwable e) {
+                    LOGGER.error(e, "Unable to rebucket the collection %s of project %s", collection, project);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    public boolean needsRebucketing(String project, String collection)
+    {
+        List<SchemaField> fields = metastore.getCollection(project, collection);
+        if (fields.stream().noneMatch(field -> field.getName().equals(projectConfig.getUserColumn()))) {
+            return false;
+        }
+
+        long tableId = getTableId(project, collection);
+        Integer bucketCount;
+        List<String> ordering;
+        try (Handle handle = dbi.open()) {
+            bucketCount = handle.createQuery("select distributions.bucket_count from tables " +
+                    "left join distributions on (distributions.distribution_id = tables.distribution_id) " +
+                    "where tables.table_id = :tableId")
+                    .bind("tableId", tableId)
+                    .map((i, resultSet, statementContext) -> (Integer) resultSet.getObject(1)).first();
+            ordering = handle.createQuery("select column_name from columns where table_id = :tableId " +
+                    "and sort_ordinal_position is not null order by sort_ordinal_position")
+                    .bind("tableId", tableId)
+                    .map(StringMapper.FIRST).list();
+        }
+
+        Set<String> columns = fields.stream().map(SchemaField::getName).collect(Collectors.toSet());
+        List<String> targetOrdering = tableLayoutPolicy.getOrdering(project).stream()
+                .filter(columns::contains).collect(Collectors.toList());
+
+        return bucketCount == null || tableLayoutPolicy.shouldChangeBucketCount(project, bucketCount) || !ordering.equals(targetOrdering);
+    }
+
+    /**
+     * @return false if another node is rebucketing the collection
+     */
+    public boolean rebucket(String project, String collection)
+    {
+        Lock lock = lockService.tryLock(getLockName(project, collection));
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            rebucket(project, collection, lock);
+        }
+        finally {
+            lock.release();
+        }
+        return true;
+    }
+
+    private void rebucket(String project, String collection, Lock lock)
+    {
+        String table = getTableReference(project, collection);
+        String newTableName = NEW_TABLE_PREFIX + collection;
+        String newTable = getTableReference(project, newTableName);
+
+        List<SchemaField> fields = metastore.getCollection(project, collection);
+        String properties = tableLayoutPolicy.getTableProperties(project, fields).stream().collect(Collectors.joining(", "));
+
+        execute(format("DROP TABLE IF EXISTS %s", newTable));
+        execute(format("CREATE TABLE %s %s AS SELECT * FROM %s LIMIT 0",
+                newTable, properties.isEmpty() ? "" : "WITH (" + properties + ")", table));
+
+        try {
+            long tableId = getTableId(project, collection);
+            long newTableId = getTableId(project, newTableName);
+            String oldTableName = OLD_TABLE_PREFIX + collection + "_" + tableId;
+
+            Set<UUID> copied = new HashSet<>();
+            for (int round = 0; ; round++) {
+                if (round == MAX_COPY_ROUNDS) {
+                    throw new RakamException(format("The shards of %s are committed faster than they are copied", table), CONFLICT);
+                }
+
+                copyShards(project, collection, newTable, tableId, copied);
+
+                checkLock(lock, table);
+                boolean swapped = runTransaction(dbi, (handle, status) -> {
+                    handle.createQuery("SELECT table_id FROM tables WHERE table_id = :tableId FOR UPDATE")
+                            .bind("tableId", tableId)
+                            .list();
+
+                    if (!getShards(handle, tableId).equals(copied)) {
+                        return false;
+                    }
+
+                    List<String> columns = getColumns(handle, tableId);
+                    if (!columns.equals(getColumns(handle, newTableId))) {
+                        throw new RakamException(format("The schema of %s is changed during rebucketing", table), CONFLICT);
+                    }
+
+                    MetadataDao dao = handle.attach(MetadataDao.class);
+                    dao.renameTable(tableId, project, oldTableName);
+                    dao.renameTable(newTableId, project, collection);
+                    long now = System.currentTimeMillis();
+                    dao.updateTableVersion(tableId, now);
+                    dao.updateTableVersion(newTableId, now);
+                    return true;
+                });
+
+                if (swapped) {
+                    break;
+                }
+            }
+
+            // the inserts that started before the swap may still commit their shards to the old table until they time out
+            long drainEnd = System.nanoTime() + prestoConfig.getRebucketingDrainPeriod().roundTo(NANOSECONDS);
+            while (true) {
+                copyShards(project, oldTableName, table, tableId, copied);
+                long remaining = NANOSECONDS.toMillis(drainEnd - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    Thread.sleep(Math.min(remaining, DRAIN_CHECK_INTERVAL_MILLIS));
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Throwables.propagate(e);
+                }
+            }
+
+            // no insert can commit to the old table after the drain period, if one did the old table is kept
+            if (copyShards(project, oldTableName, table, tableId, copied) > 0) {
+                throw new RakamException(format("The shards are committed to %s after the drain period, the table is not dropped",
+                        getTableReference(project, oldTableName)), CONFLICT);
+            }
+            checkLock(lock, table);
+            execute(format("DROP TABLE %s", getTableReference(project, oldTableName)));
+        }
+        catch (RuntimeException e) {
+            if (tableExists(project, newTableName)) {
+                execute(format("DROP TABLE IF EXISTS %s", newTable));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of the shards that are copied
+     */
+    private int copyShards(String project, String sourceTable, String targetTable, long tableId, Set<UUID> copied)
+    {
+        Set<UUID> shards;
+        try (Handle handle = dbi.open()) {
+            shards = getShards(handle, tableId);
+        }
+
+        if (!shards.containsAll(copied)) {
+            throw new RakamException(format("The shards of %s.%s are deleted or compacted during rebucketing", project, sourceTable), CONFLICT);
+        }
+
+        Set<UUID> newShards = Sets.difference(shards, copied).immutableCopy();
+        for (List<UUID> batch : Iterables.partition(newShards, SHARDS_PER_COPY)) {
+            execute(format("INSERT INTO %s SELECT * FROM %s WHERE \"$shard_uuid\" IN (%s)",
+                    targetTable, getTableReference(project, sourceTable),
+                    batch.stream().map(uuid -> "'" + uuid + "'").collect(Collectors.joining(", "))));
+            copied.addAll(batch);
+        }
+        return newShards.size();
+    }
+
+    private static String getLockName(String project, String collection)
+    {
+        return "rebucketing." + project + "." + collection;
+    }
+
+    private static void checkLock(Lock lock, String table)
+    {
+        if (!lock.isValid()) {
+            throw new RakamException(format("The rebucketing lock of %s is lost", table), CONFLICT);
+        }
+    }
+
+    private long getTableId(String project, String table)
+    {
+        try (Handle handle = dbi.open()) {
+            Long tableId = handle.createQuery("select table_id from tables where schema_name = :project and table_name = :table")
+                    .bind("project", project)
+                    .bind("table", table)
+                    .map(LongMapper.FIRST).first();
+            if (tableId == null) {
+                throw new RakamException(format("Table %s.%s does not exist", project, table), INTERNAL_SERVER_ERROR);
+            }
+            return tableId;
+        }
+    }
+
+    private boolean tableExists(String project, String table)
+    {
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("select table_id from tables where schema_name = :project and table_name = :table")
+                    .bind("project", project)
+                    .bind("table", table)
+                    .map(LongMapper.FIRST).first() != null;
+        }
+    }
+
+    private static Set<UUID> getShards(Handle handle, long tableId)
+    {
+        return new HashSet<>(handle.createQuery("select shard_uuid from shards where table_id = :tableId")
+                .bind("tableId", tableId)
+                .map((i, resultSet, statementContext) -> {
+                    ByteBuffer bytes = ByteBuffer.wrap(resultSet.getBytes(1));
+                    return new UUID(bytes.getLong(), bytes.getLong());
+                }).list());
+    }
+
+    private static List<String> getColumns(Handle handle, long tableId)
+    {
+        return ImmutableList.copyOf(handle.createQuery("select column_name from columns where table_id = :tableId order by ordinal_position")
+                .bind("tableId", tableId)
+                .map(StringMapper.FIRST).list());
+    }
+
+    private String getTableReference(String project, String table)
+    {
+        return format("%s.\"%s\".\"%s\"", prestoConfig.getColdStorageConnector(), project, table);
+    }
+
+    private void execute(String query)
+    {
+        QueryResult result = executor.executeRawStatement(query).getResult().join();
+        if (result.isFailed()) {
+            throw new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
+        }
+    }
+}
@@ -0,0 +1,708 @@
+package org.rakam.presto.analysis;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import io.airlift.slice.Slices;
+import io.airlift.stats.cardinality.HyperLogLog;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.RetentionQueryExecutor.DateUnit;
+import org.rakam.analysis.RetentionQueryExecutor.RetentionAction;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.rakam.report.DelegateQueryExecution;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
+import org.rakam.util.AlreadyExistsException;
+import org.rakam.util.NotExistsException;
+import org.rakam.util.RakamException;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkState;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.DAY;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.MONTH;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.WEEK;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.presto.analysis.PrestoAllTableService.isSourceCollection;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Maintains the retention cubes, the daily user sets of the first and returning actions of a retention query
+ * that are persisted in the metadata database. The sets of each closed day (UTC) are appended periodically and
+ * a retention query that can be served by a cube merges O(days) sets instead of scanning the events.
+ * The approximate cubes store the HyperLogLog sketches computed by approx_set and the exact cubes store
+ * roaring bitmaps of the numeric user ids. Presto doesn't have a bitmap type so the sets are merged and
+ * intersected here rather than in the query.
+ */
+public class PrestoRetentionCubeService
+{
+    private final static Logger LOGGER = Logger.get(PrestoRetentionCubeService.class);
+
+    private static final String FIRST_ACTION = "first";
+    private static final String RETURNING_ACTION = "returning";
+    // the key of the user sets that are computed from all the collections
+    private static final String ALL_COLLECTIONS = "";
+
+    private final DBI dbi;
+    private final PrestoConfig prestoConfig;
+    private final ProjectConfig projectConfig;
+    private final Metastore metastore;
+    private final QueryExecutorService executor;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final LockService lockService;
+
+    public PrestoRetentionCubeService(
+            JDBCPoolDataSource dataSource,
+            PrestoConfig prestoConfig,
+            ProjectConfig projectConfig,
+            Metastore metastore,
+            QueryExecutorService executor,
+            Clock clock)
+    {
+        this(dataSource, prestoConfig, projectConfig, metastore, executor, clock, new LocalLockService());
+    }
+
+    @Inject
+    public PrestoRetentionCubeService(
+            @Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource,
+            PrestoConfig prestoConfig,
+            ProjectConfig projectConfig,
+            Metastore metastore,
+            QueryExecutorService executor,
+            Clock clock,
+            @Named("report.metadata.store.jdbc") LockService lockService)
+    {
+        this.lockService = lockService;
+        this.dbi = new DBI(dataSource);
+        this.prestoConfig = prestoConfig;
+        this.projectConfig = projectConfig;
+        this.metastore = metastore;
+        this.executor = executor;
+        this.clock = clock;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("retention-cube-updater").setDaemon(true).build());
+    }
+
+    @PostConstruct
+    public void setup()
+    {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS retention_cube (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  name VARCHAR(255) NOT NULL," +
+                    "  first_collection VARCHAR(255)," +
+                    "  returning_collection VARCHAR(255)," +
+                    "  exact BOOLEAN NOT NULL," +
+                    "  first_day BIGINT NOT NULL," +
+                    "  last_day BIGINT," +
+                    "  PRIMARY KEY (project, name)" +
+                    "  )")
+                    .execute();
+            handle.createStatement("CREATE TABLE IF NOT EXISTS retention_cube_day (" +
+                    "  project VARCHAR(255) NOT NULL," +
+                    "  name VARCHAR(255) NOT NULL," +
+                    "  action VARCHAR(16) NOT NULL," +
+                    "  epoch_day BIGINT NOT NULL," +
+                    "  users TEXT NOT NULL," +
+                    "  PRIMARY KEY (project, name, action, epoch_day)" +
+                    "  )")
+                    .execute();
+        }
+
+        long interval = prestoConfig.getRetentionCubeUpdateInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::updateAll, interval, interval, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    public void create(String project, String name, Optional<String> firstCollection, Optional<String> returningCollection, boolean exact)
+    {
+        for (Optional<String> collection : ImmutableList.of(firstCollection, returningCollection)) {
+            if (collection.isPresent() && metastore.getCollection(project, collection.get()).isEmpty()) {
+                throw new NotExistsException("Collection");
+            }
+            if (exact && !getSourceCollections(project, collection).values().stream().allMatch(type -> type == LONG || type == INTEGER)) {
+                throw new RakamException("Exact retention cubes require numeric user ids", BAD_REQUEST);
+            }
+        }
+
+        LocalDate firstDay = LocalDate.now(clock.withZone(UTC)).minusDays(prestoConfig.getRetentionCubeBackfillDays());
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("INSERT INTO retention_cube (project, name, first_collection, returning_collection, exact, first_day) " +
+                    "VALUES (:project, :name, :first_collection, :returning_collection, :exact, :first_day)")
+                    .bind("project", project)
+                    .bind("name", name)
+                    .bind("first_collection", firstCollection.orElse(null))
+                    .bind("returning_collection", returningCollection.orElse(null))
+                    .bind("exact", exact)
+                    .bind("first_day", firstDay.toEpochDay())
+                    .execute();
+        }
+        catch (Exception e) {
+            if (get(project, name).isPresent()) {
+                throw new AlreadyExistsException("Retention cube", BAD_REQUEST);
+            }
+            throw Throwables.propagate(e);
+        }
+
+        // backfill the cube in the updater thread
+        scheduler.execute(() -> {
+            try {
+                update(project, name);
+            }
+            catch (Throwable e) {
+                LOGGER.error(e, "Unable to update the retention cube %s of project %s", name, project);
+            }
+        });
+    }
+
+    public void delete(String project, String name)
+    {
+        try (Handle handle = dbi.open()) {
+            int deleted = handle.createStatement("DELETE FROM retention_cube WHERE project = :project AND name = :name")
+                    .bind("project", project).bind("name", name).execute();
+            if (deleted == 0) {
+                throw new NotExistsException("Retention cube");
+            }
+            handle.createStatement("DELETE FROM retention_cube_day WHERE project = :project AND name = :name")
+                    .bind("project", project).bind("name", name).execute();
+        }
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("DELETE FROM retention_cube WHERE project = :project")
+                    .bind("project", event.project).execute();
+            handle.createStatement("DELETE FROM retention_cube_day WHERE project = :project")
+                    .bind("project", event.project).execute();
+        }
+    }
+
+    public List<RetentionCube> list(String project)
+    {
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("SELECT name, first_collection, returning_collection, exact, first_day, last_day " +
+                    "FROM retention_cube WHERE project = :project")
+                    .bind("project", project)
+                    .map((i, resultSet, statementContext) -> {
+                        long lastDay = resultSet.getLong(6);
+                        LocalDate lastDayValue = resultSet.wasNull() ? null : LocalDate.ofEpochDay(lastDay);
+                        return new RetentionCube(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                                resultSet.getBoolean(4), LocalDate.ofEpochDay(resultSet.getLong(5)), lastDayValue);
+                    }).list();
+        }
+    }
+
+    public Optional<RetentionCube> get(String project, String name)
+    {
+        return list(project).stream().filter(cube -> cube.name.equals(name)).findAny();
+    }
+
+    /**
+     * Finds a cube that has the user sets of the actions starting from the given date. The cubes don't have the
+     * filters of the actions and the dimensions so only the queries without them can be served by the cubes.
+     */
+    public Optional<RetentionCube> find(String project, Optional<RetentionAction> firstAction, Optional<RetentionAction> returningAction,
+            boolean exact, LocalDate startDate)
+    {
+        if (firstAction.map(action -> action.filter().isPresent()).orElse(false)
+                || returningAction.map(action -> action.filter().isPresent()).orElse(false)) {
+            return Optional.empty();
+        }
+
+        return list(project).stream()
+                .filter(cube -> Objects.equals(cube.firstCollection, firstAction.map(RetentionAction::collection).orElse(null))
+                        && Objects.equals(cube.returningCollection, returningAction.map(RetentionAction::collection).orElse(null))
+                        && cube.lastDay != null && !startDate.isBefore(cube.firstDay) && (cube.exact || !exact))
+                // the exact cubes are preferred even if the query is approximate
+                .sorted((first, second) -> Boolean.compare(second.exact, first.exact))
+                .findFirst();
+    }
+
+    private void updateAll()
+    {
+        for (String project : metastore.getProjects()) {
+            for (RetentionCube cube : list(project)) {
+                try {
+                    update(project, cube.name);
+                }
+                catch (Throwable e) {
+                    LOGGER.error(e, "Unable to update the retention cube %s of project %s", cube.name, project);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the user sets of the days that are closed since the last update of the cube. The events that are
+     * collected after their day is appended to the cube are not reflected in the cube. Returns false if the cube is
+     * being updated by another node.
+     */
+    public boolean update(String project, String name)
+    {
+        LockService.Lock lock = lockService.tryLock("retention-cube." + project + "." + name);
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            update(project, name, lock);
+            return true;
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    private void update(String project, String name, LockService.Lock lock)
+    {
+        RetentionCube cube = get(project, name).orElseThrow(() -> new NotExistsException("Retention cube"));
+
+        LocalDate lastClosedDay = LocalDate.now(clock.withZone(UTC)).minusDays(1);
+        LocalDate from = cube.lastDay == null ? cube.firstDay : cube.lastDay.plusDays(1);
+        if (from.isAfter(lastClosedDay)) {
+            return;
+        }
+
+        QueryResult result = executor.executeQuery(project, getUserSetQuery(project, cube, from, lastClosedDay),
+                Optional.empty(), "collection", Integer.MAX_VALUE).getResult().join();
+        if (result.isFailed()) {
+            LOGGER.warn("Unable to update the retention cube %s of project %s: %s", name, project, result.getError().message);
+            return;
+        }
+
+        Map<String, Map<LocalDate, UserSet>> userSets = getUserSets(cube, result);
+        if (!lock.isValid()) {
+            LOGGER.warn("The lock of the retention cube %s of project %s is lost, skipping the update", name, project);
+            return;
+        }
+
+        dbi.inTransaction((handle, status) -> {
+            PreparedBatch batch = handle.prepareBatch("INSERT INTO retention_cube_day (project, name, action, epoch_day, users) " +
+                    "VALUES (:project, :name, :action, :epoch_day, :users)");
+            for (Map.Entry<String, Map<LocalDate, UserSet>> action : userSets.entrySet()) {
+                for (Map.Entry<LocalDate, UserSet> day : action.getValue().entrySet()) {
+                    batch.add()
+                            .bind("project", project)
+                            .bind("name", name)
+                            .bind("action", action.getKey())
+                            .bind("epoch_day", day.getKey().toEpochDay())
+                            .bind("users", day.getValue().serialize());
+                }
+            }
+            if (batch.size() > 0) {
+                batch.execute();
+            }
+
+            handle.createStatement("UPDATE retention_cube SET last_day = :last_day WHERE project = :project AND name = :name")
+                    .bind("last_day", lastClosedDay.toEpochDay())
+                    .bind("project", project)
+                    .bind("name", name)
+                    .execute();
+            return null;
+        });
+    }
+
+    /**
+     * Computes the retention from the user sets in the cube, the days after the last update of the cube are
+     * read from the events. The result has the same layout with the result of {@link PrestoRetentionQueryExecutor}.
+     */
+    public QueryExecution query(String project, RetentionCube cube, DateUnit dateUnit, Optional<Integer> range,
+            LocalDate startDate, LocalDate endDate)
+    {
+        Map<String, Map<LocalDate, UserSet>> userSets = new HashMap<>();
+        userSets.put(FIRST_ACTION, new HashMap<>());
+        userSets.put(RETURNING_ACTION, new HashMap<>());
+
+        try (Handle handle = dbi.open()) {
+            handle.createQuery("SELECT action, epoch_day, users FROM retention_cube_day " +
+                    "WHERE project = :project AND name = :name AND epoch_day >= :start AND epoch_day <= :end")
+                    .bind("project", project)
+                    .bind("name", cube.name)
+                    .bind("start", startDate.toEpochDay())
+                    .bind("end", endDate.toEpochDay())
+                    .map((i, resultSet, statementContext) -> {
+                        userSets.get(resultSet.getString(1)).put(LocalDate.ofEpochDay(resultSet.getLong(2)),
+                                UserSet.deserialize(cube.exact, resultSet.getString(3)));
+                        return null;
+                    }).list();
+        }
+
+        if (!endDate.isAfter(cube.lastDay)) {
+            return QueryExecution.completedQueryExecution(null, getRetention(userSets, dateUnit, range));
+        }
+
+        LocalDate from = startDate.isAfter(cube.lastDay) ? startDate : cube.lastDay.plusDays(1);
+        QueryExecution execution = executor.executeQuery(project, getUserSetQuery(project, cube, from, endDate),
+                Optional.empty(), "collection", Integer.MAX_VALUE);
+        return new DelegateQueryExecution(execution, result -> {
+            if (result.isFailed()) {
+                return result;
+            }
+            getUserSets(cube, result).forEach((action, days) -> userSets.get(action).putAll(days));
+            return getRetention(userSets, dateUnit, range);
+        });
+    }
+
+    private static QueryResult getRetention(Map<String, Map<LocalDate, UserSet>> userSets, DateUnit dateUnit, Optional<Integer> range)
+    {
+        Map<LocalDate, UserSet> firstAction = getBuckets(userSets.get(FIRST_ACTION), dateUnit);
+        Map<LocalDate, UserSet> returningAction = getBuckets(userSets.get(RETURNING_ACTION), dateUnit);
+
+        List<List<Object>> rows = new ArrayList<>();
+        for (Map.Entry<LocalDate, UserSet> first : firstAction.entrySet()) {
+            LocalDate date = first.getKey();
+            addRow(rows, date, null, first.getValue().cardinality());
+
+            for (Map.Entry<LocalDate, UserSet> returning : returningAction.entrySet()) {
+                LocalDate returningDate = returning.getKey();
+                if (!returningDate.isAfter(date)
+                        || (range.isPresent() && date.plusDays(range.get()).isBefore(returningDate))) {
+                    continue;
+                }
+
+                long lead = getUnit(dateUnit).between(date, returningDate) - 1;
+                addRow(rows, date, lead, first.getValue().intersectionCardinality(returning.getValue()));
+            }
+        }
+
+        return new QueryResult(ImmutableList.of(
+                new SchemaField("date", DATE),
+                new SchemaField("lead", LONG),
+                new SchemaField("count", LONG)), rows);
+    }
+
+    private static void addRow(List<List<Object>> rows, LocalDate date, Long lead, long count)
+    {
+        if (count > 0) {
+            rows.add(Arrays.asList(date, lead, count));
+        }
+    }
+
+    private static Map<LocalDate, UserSet> getBuckets(Map<LocalDate, UserSet> days, DateUnit dateUnit)
+    {
+        Map<LocalDate, UserSet> buckets = new TreeMap<>();
+        for (Map.Entry<LocalDate, UserSet> day : days.entrySet()) {
+            LocalDate bucket = getBucket(day.getKey(), dateUnit);
+            UserSet userSet = buckets.get(bucket);
+            if (userSet == null) {
+                buckets.put(bucket, day.getValue().copy());
+            }
+            else {
+                userSet.merge(day.getValue());
+            }
+        }
+        return buckets;
+    }
+
+    private static LocalDate getBucket(LocalDate day, DateUnit dateUnit)
+    {
+        if (dateUnit == DAY) {
+            return day;
+        }
+        if (dateUnit == WEEK) {
+            // date_trunc('week') truncates to monday
+            return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        }
+        if (dateUnit == MONTH) {
+            return day.withDayOfMonth(1);
+        }
+        throw new UnsupportedOperationException(dateUnit + " is not supported.");
+    }
+
+    private static ChronoUnit getUnit(DateUnit dateUnit)
+    {
+        switch (dateUnit) {
+            case DAY:
+                return ChronoUnit.DAYS;
+            case WEEK:
+                return ChronoUnit.WEEKS;
+            case MONTH:
+                return ChronoUnit.MONTHS;
+            default:
+                throw new UnsupportedOperationException(dateUnit + " is not supported.");
+        }
+    }
+
+    private Map<String, Map<LocalDate, UserSet>> getUserSets(RetentionCube cube, QueryResult result)
+    {
+        Map<String, Map<LocalDate, UserSet>> sources = new HashMap<>();
+        for (List<Object> row : result.getResult()) {
+            Map<LocalDate, UserSet> days = sources.computeIfAbsent((String) row.get(0), key -> new HashMap<>());
+            LocalDate day = (LocalDate) row.get(1);
+            if (cube.exact) {
+                ((ExactUserSet) days.computeIfAbsent(day, key -> new ExactUserSet(new Roaring64NavigableMap())))
+                        .bitmap.addLong(((Number) row.get(2)).longValue());
+            }
+            else {
+                days.put(day, UserSet.deserialize(false, (String) row.get(2)));
+            }
+        }
+
+        // the actions may have the same source, the sets are copied when they're merged
+        Map<String, Map<LocalDate, UserSet>> actions = new HashMap<>();
+        actions.put(FIRST_ACTION, sources.getOrDefault(getSourceKey(cube.firstCollection), new HashMap<>()));
+        actions.put(RETURNING_ACTION, sources.getOrDefault(getSourceKey(cube.returningCollection), new HashMap<>()));
+        return actions;
+    }
+
+    private String getUserSetQuery(String project, RetentionCube cube, LocalDate from, LocalDate to)
+    {
+        String userColumn = checkTableColumn(projectConfig.getUserColumn());
+        String timeColumn = checkTableColumn(projectConfig.getTimeColumn());
+        String timePredicate = format("%s >= date '%s' and %s < date '%s' + interval '1' day",
+                timeColumn, from.format(ISO_LOCAL_DATE), timeColumn, to.format(ISO_LOCAL_DATE));
+
+        List<Optional<String>> sources = new ArrayList<>();
+        sources.add(Optional.ofNullable(cube.firstCollection));
+        if (!Objects.equals(cube.firstCollection, cube.returningCollection)) {
+            sources.add(Optional.ofNullable(cube.returningCollection));
+        }
+
+        return sources.stream().map(source -> {
+            // the user ids are hashed as strings so that the sketches don't depend on the column types of the collections
+            String events = getSourceCollections(project, source).keySet().stream()
+                    .map(collection -> format("select %s, cast(%s as %s) as %s from %s where %s",
+                            timeColumn, userColumn, cube.exact ? "bigint" : "varchar", userColumn,
+                            checkCollection(collection), timePredicate))
+                    .collect(Collectors.joining(" union all "));
+            checkState(!events.isEmpty(), "There is no collection that has the user column");
+
+            if (cube.exact) {
+                return format("select '%s' as source, cast(%s as date) as day, %s as users from (%s) where %s is not null group by 1, 2, 3",
+                        checkLiteral(getSourceKey(source.orElse(null))), timeColumn, userColumn, events, userColumn);
+            }
+            return format("select '%s' as source, cast(%s as date) as day, cast(approx_set(%s) as varbinary) as users from (%s) where %s is not null group by 1, 2",
+                    checkLiteral(getSourceKey(source.orElse(null))), timeColumn, userColumn, events, userColumn);
+        }).collect(Collectors.joining(" union all "));
+    }
+
+    private Map<String, FieldType> getSourceCollections(String project, Optional<String> collection)
+    {
+        Map<String, FieldType> collections = new HashMap<>();
+        metastore.getCollections(project).forEach((name, fields) -> {
+            if ((collection.isPresent() && !collection.get().equals(name)) || !isSourceCollection(name)) {
+                return;
+            }
+            fields.stream()
+                    .filter(field -> field.getName().equals(projectConfig.getUserColumn()))
+                    .findAny()
+                    .ifPresent(field -> collections.put(name, field.getType()));
+        });
+        return collections;
+    }
+
+    private static String getSourceKey(String collection)
+    {
+        return collection == null ? ALL_COLLECTIONS : collection;
+    }
+
+    public static class RetentionCube
+    {
+        public final String name;
+        public final String firstCollection;
+        public final String returningCollection;
+        public final boolean exact;
+        public final LocalDate firstDay;
+        public final LocalDate lastDay;
+
+        @JsonCreator
+        public RetentionCube(
+                @JsonProperty("name") String name,
+                @JsonProperty("first_collection") String firstCollection,
+                @JsonProperty("returning_collection") String returningCollection,
+                @JsonProperty("exact") boolean exact,
+                @JsonProperty("first_day") LocalDate firstDay,
+                @JsonProperty("last_day") LocalDate lastDay)
+        {
+            this.name = name;
+            this.firstCollection = firstCollection;
+            this.returningCollection = returningCollection;
+            this.exact = exact;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+    }
+
+    private abstract static class UserSet
+    {
+        public abstract void merge(UserSet other);
+
+        public abstract long cardinality();
+
+        public abstract long intersectionCardinality(UserSet other);
+
+        public abstract UserSet copy();
+
+        public abstract String serialize();
+
+        public static UserSet deserialize(boolean exact, String value)
+        {
+            byte[] bytes = Base64.getDecoder().decode(value);
+            if (!exact) {
+                return new ApproximateUserSet(HyperLogLog.newInstance(Slices.wrappedBuffer(bytes)));
+            }
+
+            Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+            try {
+                bitmap.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return new ExactUserSet(bitmap);
+        }
+    }
+
+    private static class ApproximateUserSet
+            extends UserSet
+    {
+        private final HyperLogLog sketch;
+
+        private ApproximateUserSet(HyperLogLog sketch)
+        {
+            this.sketch = sketch;
+        }
+
+        @Override
+        public void merge(UserSet other)
+        {
+            sketch.mergeWith(((ApproximateUserSet) other).sketch);
+        }
+
+        @Override
+        public long cardinality()
+        {
+            return sketch.cardinality();
+        }
+
+        @Override
+        public long intersectionCardinality(UserSet other)
+        {
+            // inclusion-exclusion, the same estimation with cardinality_intersection
+            ApproximateUserSet union = copy();
+            union.merge(other);
+            return Math.max(0, cardinality() + other.cardinality() - union.cardinality());
+        }
+
+        @Override
+        public ApproximateUserSet copy()
+        {
+            return new ApproximateUserSet(HyperLogLog.newInstance(sketch.serialize()));
+        }
+
+        @Override
+        public String serialize()
+        {
+            return Base64.getEncoder().encodeToString(sketch.serialize().getBytes());
+        }
+    }
+
+    private static class ExactUserSet
+            extends UserSet
+    {
+        private final Roaring64NavigableMap bitmap;
+
+        private ExactUserSet(Roaring64NavigableMap bitmap)
+        {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public void merge(UserSet other)
+        {
+            bitmap.or(((ExactUserSet) other).bitmap);
+        }
+
+        @Override
+        public long cardinality()
+        {
+            return bitmap.getLongCardinality();
+        }
+
+        @Override
+        public long intersectionCardinality(UserSet other)
+        {
+            ExactUserSet intersection = copy();
+            intersection.bitmap.and(((ExactUserSet) other).bitmap);
+            return intersection.cardinality();
+        }
+
+        @Override
+        public ExactUserSet copy()
+        {
+            return (ExactUserSet) deserialize(true, serialize());
+        }
+
+        @Override
+        public String serialize()
+        {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                bitmap.runOptimize();
+                bitmap.serialize(new DataOutputStream(output));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return Base64.getEncoder().encodeToString(output.toByteArray());
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.presto.analysis.PrestoRetentionCubeService.RetentionCube;
 import org.rakam.report.AbstractRetentionQueryExecutor;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.PreComputedTableSubQueryVisitor;
@@ -48,6 +49,7 @@ import java.util.stream.Collectors;
 
 import static com.facebook.presto.sql.RakamSqlFormatter.formatExpression;
 import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
 import static java.time.temporal.ChronoUnit.DAYS;
 import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.*;
@@ -68,6 +70,7 @@ public class PrestoRetentionQueryExecutor
     private final QueryExecutorService executor;
     private final boolean userMappingEnabled;
     private final ProjectConfig projectConfig;
+    private final Optional<PrestoRetentionCubeService> retentionCubeService;
 
     @Inject
     public PrestoRetentionQueryExecutor(
@@ -76,7 +79,8 @@ public class PrestoRetentionQueryExecutor
             Metastore metastore,
             MaterializedViewService materializedViewService,
             UserPluginConfig userPluginConfig,
-            ContinuousQueryService continuousQueryService)
+            ContinuousQueryService continuousQueryService,
+            com.google.common.base.Optional<PrestoRetentionCubeService> retentionCubeService)
     {
         this.projectConfig = projectConfig;
         this.executor = executor;
@@ -84,6 +88,7 @@ public class PrestoRetentionQueryExecutor
         this.materializedViewService = materializedViewService;
         this.continuousQueryService = continuousQueryService;
         this.userMappingEnabled = userPluginConfig.getEnableUserMapping();
+        this.retentionCubeService = Optional.ofNullable(retentionCubeService.orNull());
     }
 
     @Override
@@ -130,6 +135,14 @@ public class PrestoRetentionQueryExecutor
             return QueryExecution.completedQueryExecution(null, QueryResult.empty());
         }
 
+        // the cubes are bucketed by the days in UTC
+        if (!dimension.isPresent() && retentionCubeService.isPresent() && zoneId.normalized().equals(UTC)) {
+            Optional<RetentionCube> cube = retentionCubeService.get().find(project, firstAction, returningAction, !approximateVal, startDate);
+            if (cube.isPresent()) {
+                return retentionCubeService.get().query(project, cube.get(), dateUnit, range, startDate, endDate);
+            }
+        }
+
         Set<CalculatedUserSet> missingPreComputedTables = new HashSet<>();
 
         String firstActionQuery = generateQuery(project, firstAction, projectConfig.getUserColumn(), timeColumn, dimension,
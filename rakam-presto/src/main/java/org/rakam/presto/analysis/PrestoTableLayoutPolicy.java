@@ -0,0 +1,159 @@
+package org.rakam.presto.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.name.Named;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.LongMapper;
+
+import javax.inject.Inject;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.analysis.InternalConfig.BUCKET_COUNT;
+import static org.rakam.analysis.InternalConfig.ORDERING;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+
+/**
+ * Chooses the Raptor table properties of the collections of a project. The bucket count and the ordering columns
+ * can be set explicitly for a project, otherwise the bucket count is derived from the number of events the project
+ * collected in the last 30 days. The bucket counts are powers of two and each bucket count has its own distribution
+ * so that the collections of a project that have the same bucket count are co-located.
+ */
+public class PrestoTableLayoutPolicy
+{
+    private static final int VOLUME_DAYS = 30;
+
+    private final DBI dbi;
+    private final PrestoConfig prestoConfig;
+    private final ProjectConfig projectConfig;
+    private final Optional<ConfigManager> configManager;
+
+    @Inject
+    public PrestoTableLayoutPolicy(
+            @Named("presto.metastore.jdbc") JDBCPoolDataSource prestoMetastoreDataSource,
+            PrestoConfig prestoConfig,
+            ProjectConfig projectConfig,
+            ConfigManager configManager)
+    {
+        this(prestoMetastoreDataSource, prestoConfig, projectConfig, Optional.of(configManager));
+    }
+
+    /**
+     * The policy that ignores the project settings and only uses the event volume of the projects.
+     */
+    public PrestoTableLayoutPolicy(JDBCPoolDataSource prestoMetastoreDataSource, PrestoConfig prestoConfig, ProjectConfig projectConfig)
+    {
+        this(prestoMetastoreDataSource, prestoConfig, projectConfig, Optional.empty());
+    }
+
+    private PrestoTableLayoutPolicy(JDBCPoolDataSource prestoMetastoreDataSource, PrestoConfig prestoConfig,
+            ProjectConfig projectConfig, Optional<ConfigManager> configManager)
+    {
+        this.dbi = new DBI(prestoMetastoreDataSource);
+        this.prestoConfig = prestoConfig;
+        this.projectConfig = projectConfig;
+        this.configManager = configManager;
+    }
+
+    public int getBucketCount(String project)
+    {
+        Integer bucketCount = configManager.map(manager -> manager.getConfig(project, BUCKET_COUNT.name(), Integer.class)).orElse(null);
+        if (bucketCount != null) {
+            return bucketCount;
+        }
+
+        long events = getEvents(project);
+        long buckets = Math.max(1, (events + prestoConfig.getBucketingEventsPerBucket() - 1) / prestoConfig.getBucketingEventsPerBucket());
+        int powerOfTwo = Long.highestOneBit(buckets) == buckets ? (int) buckets : (int) Long.highestOneBit(buckets) << 1;
+        return Math.max(prestoConfig.getBucketingMinBucketCount(), Math.min(prestoConfig.getBucketingMaxBucketCount(), powerOfTwo));
+    }
+
+    /**
+     * Returns true if the collections of the project that have the bucket count should be rewritten. The bucket
+     * count that is calculated from the volume is only applied once the volume is well past the capacity of the current
+     * buckets, otherwise the collections of a project whose volume is close to a power of two would be rewritten back
+     * and forth.
+     */
+    public boolean shouldChangeBucketCount(String project, int currentBucketCount)
+    {
+        int bucketCount = getBucketCount(project);
+        if (bucketCount == currentBucketCount) {
+            return false;
+        }
+        if (configManager.map(manager -> manager.getConfig(project, BUCKET_COUNT.name(), Integer.class)).orElse(null) != null) {
+            return true;
+        }
+
+        long capacity = currentBucketCount * prestoConfig.getBucketingEventsPerBucket();
+        long events = getEvents(project);
+        return bucketCount > currentBucketCount ? events > capacity + capacity / 4 : events < capacity / 4;
+    }
+
+    private long getEvents(String project)
+    {
+        // the counts only include the collections of the project and the events are counted in the day they happened,
+        // so the shards that are copied by the rebucketing don't look like the events of the last days
+        try (Handle handle = dbi.open()) {
+            Long sum = handle.createQuery("select sum(events) from project_event_count where project = :project and day >= :day")
+                    .bind("project", project)
+                    .bind("day", Date.valueOf(LocalDate.now(UTC).minusDays(VOLUME_DAYS)))
+                    .map(LongMapper.FIRST).first();
+            return sum == null ? 0 : sum;
+        }
+    }
+
+    public String getDistributionName(String project, int bucketCount)
+    {
+        return format("%s_%d", project, bucketCount);
+    }
+
+    public List<String> getOrdering(String project)
+    {
+        List<String> ordering = configManager.map(manager -> manager.getConfig(project, ORDERING.name(), List.class)).orElse(null);
+        return ordering == null ? ImmutableList.of() : ImmutableList.copyOf(ordering);
+    }
+
+    /**
+     * Returns the table properties of a new collection that has the fields.
+     */
+    public List<String> getTableProperties(String project, Collection<SchemaField> fields)
+    {
+        Set<String> columns = fields.stream().map(SchemaField::getName).collect(Collectors.toSet());
+        List<String> params = new ArrayList<>();
+        if (fields.stream().anyMatch(f -> f.getName().equals(projectConfig.getTimeColumn()) && (f.getType() == TIMESTAMP || f.getType() == DATE))) {
+            params.add(format("temporal_column = '%s'", checkLiteral(projectConfig.getTimeColumn())));
+        }
+
+        if (columns.contains(projectConfig.getUserColumn())) {
+            int bucketCount = getBucketCount(project);
+            params.add(format("bucketed_on = array['%s']", checkLiteral(projectConfig.getUserColumn())));
+            params.add(format("bucket_count = %d", bucketCount));
+            params.add(format("distribution_name = '%s'", checkLiteral(getDistributionName(project, bucketCount))));
+        }
+
+        List<String> ordering = getOrdering(project).stream().filter(columns::contains).collect(Collectors.toList());
+        if (!ordering.isEmpty()) {
+            params.add(format("ordering = array[%s]", ordering.stream()
+                    .map(column -> format("'%s'", checkLiteral(column)))
+                    .collect(Collectors.joining(", "))));
+        }
+
+        return params;
+    }
+}
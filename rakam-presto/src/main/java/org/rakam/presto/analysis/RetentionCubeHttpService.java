@@ -0,0 +1,67 @@
+package org.rakam.presto.analysis;
+
+import org.rakam.presto.analysis.PrestoRetentionCubeService.RetentionCube;
+import org.rakam.server.http.HttpService;
+import org.rakam.server.http.annotations.Api;
+import org.rakam.server.http.annotations.ApiOperation;
+import org.rakam.server.http.annotations.ApiParam;
+import org.rakam.server.http.annotations.Authorization;
+import org.rakam.server.http.annotations.JsonRequest;
+import org.rakam.util.SuccessMessage;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.Path;
+
+import java.util.List;
+import java.util.Optional;
+
+@Path("/retention/cube")
+@Api(value = "/retention/cube", nickname = "retentionCube", description = "Pre-computed retention cubes", tags = "retention")
+public class RetentionCubeHttpService
+        extends HttpService
+{
+    private final PrestoRetentionCubeService service;
+
+    @Inject
+    public RetentionCubeHttpService(PrestoRetentionCubeService service)
+    {
+        this.service = service;
+    }
+
+    /**
+     * Creates a cube that has the daily user sets of the first and returning actions. The cube is filled for the
+     * last days in the background and the retention queries on the actions are served from the cube
+     * once it's filled. If the collections are not set, the actions are any event in the project.
+     */
+    @JsonRequest
+    @ApiOperation(value = "Create retention cube", authorizations = @Authorization(value = "master_key"))
+    @Path("/create")
+    public SuccessMessage create(@Named("project") String project,
+            @ApiParam("name") String name,
+            @ApiParam(value = "first_collection", required = false) String firstCollection,
+            @ApiParam(value = "returning_collection", required = false) String returningCollection,
+            @ApiParam(value = "exact", required = false) Boolean exact)
+    {
+        service.create(project, name, Optional.ofNullable(firstCollection), Optional.ofNullable(returningCollection),
+                Boolean.TRUE.equals(exact));
+        return SuccessMessage.success();
+    }
+
+    @JsonRequest
+    @ApiOperation(value = "List retention cubes", authorizations = @Authorization(value = "read_key"))
+    @Path("/list")
+    public List<RetentionCube> list(@Named("project") String project)
+    {
+        return service.list(project);
+    }
+
+    @JsonRequest
+    @ApiOperation(value = "Delete retention cube", authorizations = @Authorization(value = "master_key"))
+    @Path("/delete")
+    public SuccessMessage delete(@Named("project") String project, @ApiParam("name") String name)
+    {
+        service.delete(project, name);
+        return SuccessMessage.success();
+    }
+}
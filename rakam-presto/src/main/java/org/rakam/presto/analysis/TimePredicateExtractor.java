@@ -0,0 +1,477 @@
+package org.rakam.presto.analysis;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.AstVisitor;
+import com.facebook.presto.sql.tree.BetweenPredicate;
+import com.facebook.presto.sql.tree.Cast;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.ComparisonExpressionType;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GenericLiteral;
+import com.facebook.presto.sql.tree.IntervalLiteral;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.Node;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.StringLiteral;
+import com.facebook.presto.sql.tree.Table;
+import com.facebook.presto.sql.tree.TimestampLiteral;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.google.common.collect.BoundType.CLOSED;
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Extracts the range of the time column that the WHERE clause of a query specification allows for the table
+ * in its FROM clause. The extracted range is a superset of the matching values: the expressions that can't be
+ * analyzed don't restrict the range.
+ */
+public final class TimePredicateExtractor
+{
+    // the timestamp literals are interpreted in the session time zone which is not known while the query is formatted
+    private static final Duration TIME_ZONE_MARGIN = Duration.ofDays(1);
+
+    private static final DateTimeFormatter TIMESTAMP_PARSER = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd")
+            .optionalStart()
+            .optionalStart().appendLiteral(' ').optionalEnd()
+            .optionalStart().appendLiteral('T').optionalEnd()
+            .appendPattern("HH:mm")
+            .optionalStart().appendPattern(":ss").optionalEnd()
+            .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .optionalEnd()
+            .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+            .toFormatter();
+
+    private static final Set<String> SUB_DAY_UNITS = ImmutableSet.of("second", "minute", "hour");
+
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private TimePredicateExtractor()
+    {
+    }
+
+    /**
+     * Returns the time ranges of the tables that are referenced in the statement, keyed by the name instances of
+     * the table nodes so that the table name mapper of the formatter can look them up. The tables whose time column
+     * is not restricted are not included.
+     */
+    public static Map<QualifiedName, RangeSet<Instant>> extract(Node statement, String timeColumn)
+    {
+        Map<QualifiedName, RangeSet<Instant>> ranges = new IdentityHashMap<>();
+
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitQuerySpecification(QuerySpecification node, Void context)
+            {
+                if (node.getFrom().isPresent() && node.getWhere().isPresent()) {
+                    Relation relation = node.getFrom().get();
+                    Optional<String> alias = Optional.empty();
+                    if (relation instanceof AliasedRelation) {
+                        alias = Optional.of(((AliasedRelation) relation).getAlias());
+                        relation = ((AliasedRelation) relation).getRelation();
+                    }
+
+                    if (relation instanceof Table) {
+                        QualifiedName name = ((Table) relation).getName();
+                        RangeSet<Instant> range = new RangeExtractor(timeColumn, alias.orElse(name.getSuffix()))
+                                .process(node.getWhere().get(), null);
+                        if (!range.encloses(Range.all())) {
+                            ranges.put(name, widen(range));
+                        }
+                    }
+                }
+
+                return super.visitQuerySpecification(node, context);
+            }
+        }.process(statement, null);
+
+        return ranges;
+    }
+
+    /**
+     * Formats the range as a predicate on the time column, the ranges are combined with OR.
+     */
+    public static String formatPredicate(RangeSet<Instant> range, String timeColumn)
+    {
+        if (range.isEmpty()) {
+            return "false";
+        }
+
+        String column = checkTableColumn(timeColumn);
+        return range.asRanges().stream().map(value -> {
+            StringBuilder builder = new StringBuilder("(");
+            if (value.hasLowerBound()) {
+                builder.append(column)
+                        .append(value.lowerBoundType() == CLOSED ? " >= " : " > ")
+                        .append(formatTimestamp(value.lowerEndpoint()));
+            }
+            if (value.hasUpperBound()) {
+                if (value.hasLowerBound()) {
+                    builder.append(" and ");
+                }
+                builder.append(column)
+                        .append(value.upperBoundType() == CLOSED ? " <= " : " < ")
+                        .append(formatTimestamp(value.upperEndpoint()));
+            }
+            if (!value.hasLowerBound() && !value.hasUpperBound()) {
+                builder.append("true");
+            }
+            return builder.append(")").toString();
+        }).collect(Collectors.joining(" or "));
+    }
+
+    private static String formatTimestamp(Instant instant)
+    {
+        return "timestamp '" + TIMESTAMP_FORMATTER.format(instant.atZone(UTC)) + "'";
+    }
+
+    private static RangeSet<Instant> widen(RangeSet<Instant> range)
+    {
+        TreeRangeSet<Instant> widened = TreeRangeSet.create();
+        for (Range<Instant> value : range.asRanges()) {
+            if (value.hasLowerBound() && value.hasUpperBound()) {
+                widened.add(Range.range(value.lowerEndpoint().minus(TIME_ZONE_MARGIN), value.lowerBoundType(),
+                        value.upperEndpoint().plus(TIME_ZONE_MARGIN), value.upperBoundType()));
+            }
+            else if (value.hasLowerBound()) {
+                widened.add(Range.downTo(value.lowerEndpoint().minus(TIME_ZONE_MARGIN), value.lowerBoundType()));
+            }
+            else if (value.hasUpperBound()) {
+                widened.add(Range.upTo(value.upperEndpoint().plus(TIME_ZONE_MARGIN), value.upperBoundType()));
+            }
+            else {
+                widened.add(value);
+            }
+        }
+        return widened;
+    }
+
+    private static RangeSet<Instant> all()
+    {
+        return ImmutableRangeSet.of(Range.all());
+    }
+
+    private static RangeSet<Instant> of(Range<Instant> range)
+    {
+        return ImmutableRangeSet.of(range);
+    }
+
+    private static class RangeExtractor
+            extends AstVisitor<RangeSet<Instant>, Void>
+    {
+        private final String timeColumn;
+        private final String relationName;
+
+        private RangeExtractor(String timeColumn, String relationName)
+        {
+            this.timeColumn = timeColumn;
+            this.relationName = relationName;
+        }
+
+        @Override
+        protected RangeSet<Instant> visitNode(Node node, Void context)
+        {
+            return all();
+        }
+
+        @Override
+        protected RangeSet<Instant> visitLogicalBinaryExpression(LogicalBinaryExpression node, Void context)
+        {
+            RangeSet<Instant> left = process(node.getLeft(), context);
+            RangeSet<Instant> right = process(node.getRight(), context);
+
+            switch (node.getType()) {
+                case AND:
+                    TreeRangeSet<Instant> complement = TreeRangeSet.create(left.complement());
+                    complement.addAll(right.complement());
+                    return complement.complement();
+                case OR:
+                    TreeRangeSet<Instant> union = TreeRangeSet.create(left);
+                    union.addAll(right);
+                    return union;
+                default:
+                    return all();
+            }
+        }
+
+        @Override
+        protected RangeSet<Instant> visitBetweenPredicate(BetweenPredicate node, Void context)
+        {
+            if (!isTimeColumn(node.getValue())) {
+                return all();
+            }
+
+            Optional<Instant> min = evaluate(node.getMin());
+            Optional<Instant> max = evaluate(node.getMax());
+            if (min.isPresent() && max.isPresent()) {
+                if (min.get().isAfter(max.get())) {
+                    return TreeRangeSet.create();
+                }
+                return of(Range.closed(min.get(), max.get()));
+            }
+            if (min.isPresent()) {
+                return of(Range.atLeast(min.get()));
+            }
+            if (max.isPresent()) {
+                return of(Range.atMost(max.get()));
+            }
+            return all();
+        }
+
+        @Override
+        protected RangeSet<Instant> visitComparisonExpression(ComparisonExpression node, Void context)
+        {
+            ComparisonExpressionType type = node.getType();
+            Expression column = node.getLeft();
+            Optional<Instant> value = evaluate(node.getRight());
+
+            if (!value.isPresent()) {
+                column = node.getRight();
+                value = evaluate(node.getLeft());
+                type = flip(type);
+            }
+
+            if (!value.isPresent() || type == null) {
+                return all();
+            }
+
+            if (isTimeColumn(column)) {
+                return compare(type, value.get());
+            }
+
+            Optional<String> unit = getTruncationUnit(column);
+            if (unit.isPresent()) {
+                return compareTruncated(type, value.get(), unit.get());
+            }
+
+            return all();
+        }
+
+        private RangeSet<Instant> compare(ComparisonExpressionType type, Instant value)
+        {
+            switch (type) {
+                case EQUAL:
+                    return of(Range.singleton(value));
+                case LESS_THAN:
+                    return of(Range.lessThan(value));
+                case LESS_THAN_OR_EQUAL:
+                    return of(Range.atMost(value));
+                case GREATER_THAN:
+                    return of(Range.greaterThan(value));
+                case GREATER_THAN_OR_EQUAL:
+                    return of(Range.atLeast(value));
+                default:
+                    return all();
+            }
+        }
+
+        private RangeSet<Instant> compareTruncated(ComparisonExpressionType type, Instant value, String unit)
+        {
+            // the time value is in [truncated value, truncated value + unit)
+            Optional<Instant> next = add(value, unit, 1);
+            if (!next.isPresent()) {
+                return all();
+            }
+
+            switch (type) {
+                case EQUAL:
+                    return of(Range.closedOpen(value, next.get()));
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL:
+                    return of(Range.lessThan(next.get()));
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL:
+                    return of(Range.atLeast(value));
+                default:
+                    return all();
+            }
+        }
+
+        private static ComparisonExpressionType flip(ComparisonExpressionType type)
+        {
+            switch (type) {
+                case EQUAL:
+                    return type;
+                case LESS_THAN:
+                    return ComparisonExpressionType.GREATER_THAN;
+                case LESS_THAN_OR_EQUAL:
+                    return ComparisonExpressionType.GREATER_THAN_OR_EQUAL;
+                case GREATER_THAN:
+                    return ComparisonExpressionType.LESS_THAN;
+                case GREATER_THAN_OR_EQUAL:
+                    return ComparisonExpressionType.LESS_THAN_OR_EQUAL;
+                default:
+                    return null;
+            }
+        }
+
+        private Optional<String> getTruncationUnit(Expression expression)
+        {
+            if (expression instanceof FunctionCall) {
+                FunctionCall function = (FunctionCall) expression;
+                List<Expression> arguments = function.getArguments();
+                if (function.getName().toString().equalsIgnoreCase("date_trunc") && arguments.size() == 2
+                        && arguments.get(0) instanceof StringLiteral && isTimeColumn(arguments.get(1))) {
+                    return Optional.of(((StringLiteral) arguments.get(0)).getValue().toLowerCase(Locale.ENGLISH));
+                }
+            }
+            if (expression instanceof Cast) {
+                Cast cast = (Cast) expression;
+                if (cast.getType().equalsIgnoreCase("date")) {
+                    if (isTimeColumn(cast.getExpression())) {
+                        return Optional.of("day");
+                    }
+                    // cast(date_trunc('month', _time) as date)
+                    return getTruncationUnit(cast.getExpression())
+                            .map(unit -> SUB_DAY_UNITS.contains(unit) ? "day" : unit);
+                }
+            }
+            return Optional.empty();
+        }
+
+        private boolean isTimeColumn(Expression expression)
+        {
+            if (expression instanceof QualifiedNameReference) {
+                List<String> parts = ((QualifiedNameReference) expression).getName().getParts();
+                if (parts.size() == 1) {
+                    return parts.get(0).equalsIgnoreCase(timeColumn);
+                }
+                return parts.size() == 2 && parts.get(0).equalsIgnoreCase(relationName)
+                        && parts.get(1).equalsIgnoreCase(timeColumn);
+            }
+            if (expression instanceof DereferenceExpression) {
+                DereferenceExpression dereference = (DereferenceExpression) expression;
+                if (dereference.getBase() instanceof QualifiedNameReference) {
+                    List<String> parts = ((QualifiedNameReference) dereference.getBase()).getName().getParts();
+                    return parts.size() == 1 && parts.get(0).equalsIgnoreCase(relationName)
+                            && dereference.getFieldName().equalsIgnoreCase(timeColumn);
+                }
+            }
+            return false;
+        }
+
+        private static Optional<Instant> evaluate(Expression expression)
+        {
+            if (expression instanceof TimestampLiteral) {
+                return parse(((TimestampLiteral) expression).getValue());
+            }
+            if (expression instanceof GenericLiteral) {
+                String type = ((GenericLiteral) expression).getType();
+                if (type.equalsIgnoreCase("date") || type.equalsIgnoreCase("timestamp")) {
+                    return parse(((GenericLiteral) expression).getValue());
+                }
+                return Optional.empty();
+            }
+            if (expression instanceof StringLiteral) {
+                return parse(((StringLiteral) expression).getValue());
+            }
+            if (expression instanceof Cast) {
+                Cast cast = (Cast) expression;
+                if (cast.getType().equalsIgnoreCase("date") || cast.getType().equalsIgnoreCase("timestamp")) {
+                    return evaluate(cast.getExpression());
+                }
+                return Optional.empty();
+            }
+            if (expression instanceof ArithmeticBinaryExpression) {
+                ArithmeticBinaryExpression arithmetic = (ArithmeticBinaryExpression) expression;
+                if (!(arithmetic.getRight() instanceof IntervalLiteral)) {
+                    return Optional.empty();
+                }
+                IntervalLiteral interval = (IntervalLiteral) arithmetic.getRight();
+                if (interval.getEndField().isPresent()) {
+                    return Optional.empty();
+                }
+
+                long amount;
+                try {
+                    amount = Long.parseLong(interval.getValue().trim());
+                }
+                catch (NumberFormatException e) {
+                    return Optional.empty();
+                }
+                if (interval.getSign() == IntervalLiteral.Sign.NEGATIVE) {
+                    amount = -amount;
+                }
+
+                switch (arithmetic.getType()) {
+                    case ADD:
+                        break;
+                    case SUBTRACT:
+                        amount = -amount;
+                        break;
+                    default:
+                        return Optional.empty();
+                }
+
+                long finalAmount = amount;
+                String unit = interval.getStartField().name().toLowerCase(Locale.ENGLISH);
+                return evaluate(arithmetic.getLeft()).flatMap(value -> add(value, unit, finalAmount));
+            }
+            return Optional.empty();
+        }
+
+        private static Optional<Instant> parse(String value)
+        {
+            try {
+                return Optional.of(LocalDateTime.parse(value.trim(), TIMESTAMP_PARSER).toInstant(UTC));
+            }
+            catch (DateTimeParseException e) {
+                return Optional.empty();
+            }
+        }
+    }
+
+    private static Optional<Instant> add(Instant value, String unit, long amount)
+    {
+        ZonedDateTime time = value.atZone(UTC);
+        switch (unit) {
+            case "second":
+                return Optional.of(time.plusSeconds(amount).toInstant());
+            case "minute":
+                return Optional.of(time.plusMinutes(amount).toInstant());
+            case "hour":
+                return Optional.of(time.plusHours(amount).toInstant());
+            case "day":
+                return Optional.of(time.plusDays(amount).toInstant());
+            case "week":
+                return Optional.of(time.plusWeeks(amount).toInstant());
+            case "month":
+                return Optional.of(time.plusMonths(amount).toInstant());
+            case "quarter":
+                return Optional.of(time.plusMonths(amount * 3).toInstant());
+            case "year":
+                return Optional.of(time.plusYears(amount).toInstant());
+            default:
+                return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.rakam;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.presto.analysis.PrestoAllTableService;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Optional;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.presto.analysis.PrestoAllTableService.ALL_TABLE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPrestoAllTableRouting
+{
+    private static final String ALL_TABLE_REFERENCE = "rakam_raptor.\"test\".\"$all\" _all";
+
+    private InMemoryMetastore metastore;
+    private PrestoConfig config;
+    private PrestoQueryExecutor executor;
+    private PrestoQueryExecutor disabledExecutor;
+
+    @BeforeClass
+    public void setUp()
+    {
+        metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        metastore.createProject("test");
+        metastore.getOrCreateCollectionFields("test", "pageview", ImmutableSet.of(
+                new SchemaField("_time", TIMESTAMP), new SchemaField("_user", STRING),
+                new SchemaField("_shard_time", TIMESTAMP), new SchemaField("url", STRING)));
+        metastore.getOrCreateCollectionFields("test", "purchase", ImmutableSet.of(
+                new SchemaField("_time", TIMESTAMP), new SchemaField("_user", STRING),
+                new SchemaField("_shard_time", TIMESTAMP), new SchemaField("amount", LONG)));
+        metastore.getOrCreateCollectionFields("test", ALL_TABLE, ImmutableSet.of(
+                new SchemaField("_collection", STRING), new SchemaField("_time", TIMESTAMP),
+                new SchemaField("_user", STRING), new SchemaField("_shard_time", TIMESTAMP)));
+
+        config = new PrestoConfig()
+                .setAddress(URI.create("http://127.0.0.1:8080"))
+                .setColdStorageConnector("rakam_raptor")
+                .setPhysicalAllTableEnabled(true);
+        executor = new PrestoQueryExecutor(new ProjectConfig(), config, null, null, metastore);
+
+        PrestoConfig disabledConfig = new PrestoConfig()
+                .setAddress(URI.create("http://127.0.0.1:8080"))
+                .setColdStorageConnector("rakam_raptor");
+        disabledExecutor = new PrestoQueryExecutor(new ProjectConfig(), disabledConfig, null, null, metastore);
+    }
+
+    @Test
+    public void testRouteToPhysicalTable()
+    {
+        String query = format(executor, "select _collection, count(distinct _user) from _all " +
+                "where _time > timestamp '2016-01-01' group by 1 order by 2 desc");
+        assertTrue(query.contains(ALL_TABLE_REFERENCE), query);
+        assertFalse(query.contains("union all"), query);
+
+        query = format(executor, "select count(*) as total from _all a where a._collection = 'pageview' order by total");
+        assertTrue(query.contains(ALL_TABLE_REFERENCE), query);
+    }
+
+    @Test
+    public void testFallbackToUnion()
+    {
+        // url is not a column of the physical table
+        String query = format(executor, "select url from _all where _collection = 'pageview'");
+        assertFalse(query.contains(ALL_TABLE_REFERENCE), query);
+        assertTrue(query.contains("union all"), query);
+
+        query = format(executor, "select * from _all");
+        assertFalse(query.contains(ALL_TABLE_REFERENCE), query);
+
+        // the alias can't hide a column that is not in the physical table
+        query = format(executor, "select url as url from _all");
+        assertFalse(query.contains(ALL_TABLE_REFERENCE), query);
+    }
+
+    @Test
+    public void testUnionExcludesInternalTables()
+    {
+        String query = format(disabledExecutor, "select count(*) from _all");
+        assertFalse(query.contains(ALL_TABLE_REFERENCE), query);
+        assertFalse(query.contains("$all"), query);
+        assertEquals(query.split("union all", -1).length - 1, 1, query);
+    }
+
+    @Test
+    public void testReferencedColumns()
+    {
+        Statement statement = new SqlParser().createStatement("select _collection as c, count(*) from _all " +
+                "where _time > now() group by 1 order by c, _user");
+        assertEquals(PrestoAllTableService.getReferencedColumns(statement).get(), ImmutableSet.of("_collection", "_time", "_user"));
+    }
+
+    @Test
+    public void testUpdateSkipsLockedProject()
+    {
+        LocalLockService lockService = new LocalLockService();
+        LockService.Lock lock = lockService.tryLock("all-table.test");
+
+        // another node is updating the table
+        PrestoAllTableService service = new PrestoAllTableService(config, new ProjectConfig(), metastore,
+                new TestingConfigManager(), executor, lockService);
+        assertFalse(service.update("test"));
+        lock.release();
+    }
+
+    private String format(PrestoQueryExecutor executor, String sql)
+    {
+        Statement statement = new SqlParser().createStatement(sql);
+        return RakamSqlFormatter.formatSql(statement,
+                executor.getTableNameMapper("test", statement, Optional.empty(), new HashMap<>(), "collection"), '"');
+    }
+}
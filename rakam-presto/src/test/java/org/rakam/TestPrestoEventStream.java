@@ -0,0 +1,453 @@
+package org.rakam;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.airlift.http.client.jetty.JettyHttpClient;
+import org.rakam.aws.kinesis.AWSKinesisModule;
+import org.rakam.plugin.stream.CollectionStreamQuery;
+import org.rakam.plugin.stream.EventStream;
+import org.rakam.plugin.stream.StreamResponse;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoEventStream;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.MetricRegistry;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestPrestoEventStream
+{
+    private FakeStreamer streamer;
+    private JettyHttpClient httpClient;
+    private MetricRegistry registry;
+
+    @BeforeMethod
+    public void setup()
+            throws IOException
+    {
+        streamer = new FakeStreamer();
+        httpClient = new JettyHttpClient();
+        registry = new MetricRegistry();
+    }
+
+    @AfterMethod
+    public void tearDown()
+    {
+        httpClient.close();
+        streamer.stop();
+    }
+
+    @Test
+    public void testConcurrentSubscribers()
+            throws Exception
+    {
+        int subscriberCount = 200;
+        int frameCount = 5;
+
+        PrestoEventStream stream = createStream(100, true);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<EventStream.EventStreamer>> subscriptions = new ArrayList<>();
+        List<CollectingResponse> responses = new ArrayList<>();
+        try {
+            for (int i = 0; i < subscriberCount; i++) {
+                String project = "concurrent" + i;
+                CollectingResponse response = new CollectingResponse(frameCount);
+                responses.add(response);
+                subscriptions.add(executor.submit(() -> subscribe(stream, project, response)));
+            }
+            for (Future<EventStream.EventStreamer> subscription : subscriptions) {
+                subscription.get(10, SECONDS);
+            }
+            assertTrue(streamer.pushConnected.await(10, SECONDS));
+
+            for (int seq = 0; seq < frameCount; seq++) {
+                for (Map.Entry<String, String> ticket : streamer.tickets.entrySet()) {
+                    streamer.push(ticket.getKey(), frame(ticket.getValue(), seq));
+                }
+                streamer.heartbeat();
+            }
+
+            for (int i = 0; i < subscriberCount; i++) {
+                CollectingResponse response = responses.get(i);
+                assertTrue(response.received.await(10, SECONDS), "subscriber " + i + " didn't receive the rows");
+
+                ImmutableList.Builder<String> expected = ImmutableList.builder();
+                for (int seq = 0; seq < frameCount; seq++) {
+                    expected.add(frame("concurrent" + i, seq));
+                }
+                assertEquals(response.data, expected.build());
+            }
+
+            // a single push connection is shared by all the subscribers of the node
+            assertEquals(streamer.pushRequests.get(), 1);
+        }
+        finally {
+            executor.shutdownNow();
+            stream.stop();
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberDropsOldestRows()
+            throws Exception
+    {
+        PrestoEventStream stream = createStream(2, true);
+        try {
+            CountDownLatch sending = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CollectingResponse response = new CollectingResponse(3)
+            {
+                @Override
+                public StreamResponse send(String event, String data)
+                {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.send(event, data);
+                }
+            };
+            subscribe(stream, "slow", response);
+            CollectingResponse fastResponse = new CollectingResponse(9);
+            subscribe(stream, "fast", fastResponse);
+            assertTrue(streamer.pushConnected.await(10, SECONDS));
+
+            String slowTicket = streamer.ticketOf("slow");
+            String fastTicket = streamer.ticketOf("fast");
+            streamer.push(slowTicket, frame("slow", 0));
+            assertTrue(sending.await(10, SECONDS));
+
+            for (int seq = 1; seq < 10; seq++) {
+                streamer.push(slowTicket, frame("slow", seq));
+                streamer.push(fastTicket, frame("fast", seq));
+            }
+
+            // the slow subscriber doesn't block the others
+            assertTrue(fastResponse.received.await(10, SECONDS));
+
+            Counter dropped = registry.counter("rakam_event_stream_dropped_frames_total",
+                    "Number of the streamed row batches that are dropped because the subscriber couldn't keep up", "project")
+                    .get("slow");
+            long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+            while (dropped.getCount() < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(dropped.getCount(), 7);
+
+            release.countDown();
+            assertTrue(response.received.await(10, SECONDS));
+            assertEquals(response.data, ImmutableList.of(frame("slow", 0), frame("slow", 8), frame("slow", 9)));
+        }
+        finally {
+            stream.stop();
+        }
+    }
+
+    @Test
+    public void testShutdown()
+            throws Exception
+    {
+        PrestoEventStream stream = createStream(100, true);
+        try {
+            CollectingResponse response = new CollectingResponse(1);
+            EventStream.EventStreamer subscription = subscribe(stream, "shutdown", response);
+            assertTrue(streamer.pushConnected.await(10, SECONDS));
+            String ticket = streamer.ticketOf("shutdown");
+
+            streamer.push(ticket, frame("shutdown", 0));
+            assertTrue(response.received.await(10, SECONDS));
+
+            subscription.shutdown();
+            assertEquals(streamer.deletedTickets.poll(10, SECONDS), ticket);
+
+            streamer.push(ticket, frame("shutdown", 1));
+            subscription.sync();
+            assertEquals(response.data, ImmutableList.of(frame("shutdown", 0)));
+        }
+        finally {
+            stream.stop();
+        }
+    }
+
+    @Test
+    public void testFramesBeforeTicketAreBuffered()
+            throws Exception
+    {
+        PrestoEventStream stream = createStream(100, true);
+        try {
+            subscribe(stream, "first", new CollectingResponse(0));
+            assertTrue(streamer.pushConnected.await(10, SECONDS));
+
+            // the connector sends the first rows of the query before the response of the POST request
+            streamer.earlyFrames = true;
+            CollectingResponse response = new CollectingResponse(2);
+            subscribe(stream, "early", response);
+            streamer.push(streamer.ticketOf("early"), frame("early", 1));
+
+            assertTrue(response.received.await(10, SECONDS));
+            assertEquals(response.data, ImmutableList.of(frame("early", 0), frame("early", 1)));
+        }
+        finally {
+            stream.stop();
+        }
+    }
+
+    @Test
+    public void testPollingByDefault()
+            throws Exception
+    {
+        PrestoEventStream stream = createStream(100, false);
+        try {
+            CollectingResponse response = new CollectingResponse(1);
+            EventStream.EventStreamer subscription = subscribe(stream, "polling", response);
+            streamer.enqueue(streamer.ticketOf("polling"), frame("polling", 0));
+
+            subscription.sync();
+            assertEquals(response.data, ImmutableList.of(frame("polling", 0)));
+            assertEquals(streamer.pushRequests.get(), 0);
+        }
+        finally {
+            stream.stop();
+        }
+    }
+
+    @Test
+    public void testFallbackToPolling()
+            throws Exception
+    {
+        streamer.pushSupported = false;
+        PrestoEventStream stream = createStream(100, true);
+        try {
+            CollectingResponse response = new CollectingResponse(1);
+            EventStream.EventStreamer subscription = subscribe(stream, "fallback", response);
+            streamer.enqueue(streamer.ticketOf("fallback"), frame("fallback", 0));
+
+            // the subscriber polls once the push endpoint is rejected
+            long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+            while (response.data.isEmpty() && System.currentTimeMillis() < deadline) {
+                subscription.sync();
+                Thread.sleep(10);
+            }
+            assertEquals(response.data, ImmutableList.of(frame("fallback", 0)));
+            assertEquals(streamer.pushRequests.get(), 1);
+        }
+        finally {
+            stream.stop();
+        }
+    }
+
+    private PrestoEventStream createStream(int bufferSize, boolean push)
+    {
+        AWSKinesisModule.PrestoStreamConfig config = new AWSKinesisModule.PrestoStreamConfig();
+        config.setPort(streamer.getPort());
+        config.setSubscriberBufferSize(bufferSize);
+        config.setPushEnabled(push);
+        PrestoConfig prestoConfig = new PrestoConfig().setAddress(URI.create("http://127.0.0.1"));
+        return new PrestoEventStream(httpClient, httpClient, config, prestoConfig, registry);
+    }
+
+    private static EventStream.EventStreamer subscribe(PrestoEventStream stream, String project, StreamResponse response)
+    {
+        return stream.subscribe(project, ImmutableList.of(new CollectionStreamQuery("test", null)), null, response);
+    }
+
+    private static String frame(String project, int seq)
+    {
+        return format("[{\"project\":\"%s\",\"seq\":%d}]", project, seq);
+    }
+
+    private static class CollectingResponse
+            implements StreamResponse
+    {
+        final List<String> data = new CopyOnWriteArrayList<>();
+        final CountDownLatch received;
+
+        CollectingResponse(int expected)
+        {
+            this.received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public StreamResponse send(String event, String data)
+        {
+            assertEquals(event, "data");
+            this.data.add(data);
+            received.countDown();
+            return this;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return false;
+        }
+
+        @Override
+        public void end()
+        {
+        }
+    }
+
+    /**
+     * Implements the protocol of the Presto streaming connector in-process.
+     */
+    private static class FakeStreamer
+    {
+        private final HttpServer server;
+        private final AtomicInteger ticketSequence = new AtomicInteger();
+        final Map<String, String> tickets = new ConcurrentHashMap<>();
+        final BlockingQueue<String> deletedTickets = new LinkedBlockingQueue<>();
+        final CountDownLatch pushConnected = new CountDownLatch(1);
+        final AtomicInteger pushRequests = new AtomicInteger();
+        private final Map<String, Queue<String>> polledFrames = new ConcurrentHashMap<>();
+        volatile boolean pushSupported = true;
+        volatile boolean earlyFrames;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile OutputStream pushStream;
+
+        FakeStreamer()
+                throws IOException
+        {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/connector/streamer/push", this::handlePush);
+            server.createContext("/connector/streamer", this::handleQuery);
+            server.start();
+        }
+
+        int getPort()
+        {
+            return server.getAddress().getPort();
+        }
+
+        String ticketOf(String project)
+        {
+            return tickets.entrySet().stream()
+                    .filter(entry -> entry.getValue().equals(project))
+                    .map(Map.Entry::getKey)
+                    .findAny().get();
+        }
+
+        synchronized void push(String ticket, String data)
+                throws IOException
+        {
+            write(format("{\"ticket\":\"%s\",\"data\":%s}\n", ticket, data));
+        }
+
+        void enqueue(String ticket, String data)
+        {
+            polledFrames.computeIfAbsent(ticket, key -> new ConcurrentLinkedQueue<>()).add(data);
+        }
+
+        synchronized void heartbeat()
+                throws IOException
+        {
+            write("\n");
+        }
+
+        void stop()
+        {
+            stopped.countDown();
+            server.stop(0);
+        }
+
+        private void write(String line)
+                throws IOException
+        {
+            pushStream.write(line.getBytes(UTF_8));
+            pushStream.flush();
+        }
+
+        private void handleQuery(HttpExchange exchange)
+                throws IOException
+        {
+            String method = exchange.getRequestMethod();
+            if (method.equals("POST")) {
+                JsonNode query = JsonHelper.getMapper().readTree(ByteStreams.toByteArray(exchange.getRequestBody()));
+                String ticket = "ticket" + ticketSequence.incrementAndGet();
+                String project = query.get("project").asText();
+                tickets.put(ticket, project);
+                if (earlyFrames) {
+                    push(ticket, frame(project, 0));
+                }
+                byte[] body = ticket.getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            else if (method.equals("GET")) {
+                String ticket = exchange.getRequestURI().getQuery().substring("ticket=".length());
+                Queue<String> frames = polledFrames.get(ticket);
+                String frame = frames == null ? null : frames.poll();
+                byte[] body = (frame == null ? "[]" : frame).getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            else if (method.equals("DELETE")) {
+                String ticket = exchange.getRequestURI().getQuery().substring("ticket=".length());
+                tickets.remove(ticket);
+                deletedTickets.add(ticket);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+            exchange.close();
+        }
+
+        private void handlePush(HttpExchange exchange)
+                throws IOException
+        {
+            pushRequests.incrementAndGet();
+            if (!pushSupported) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            // zero length is a chunked response that is kept open until the server is stopped
+            exchange.sendResponseHeaders(200, 0);
+            pushStream = exchange.getResponseBody();
+            pushStream.flush();
+            pushConnected.countDown();
+            try {
+                stopped.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        }
+    }
+}
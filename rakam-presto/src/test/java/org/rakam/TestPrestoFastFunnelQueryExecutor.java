@@ -0,0 +1,195 @@
+package org.rakam;
+
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.AbstractFunnelQueryExecutor;
+import org.rakam.analysis.FunnelQueryExecutor;
+import org.rakam.analysis.FunnelQueryExecutor.FunnelStep;
+import org.rakam.analysis.FunnelQueryExecutor.FunnelWindow;
+import org.rakam.collection.Event;
+import org.rakam.config.ProjectConfig;
+import org.rakam.event.TestingEnvironment;
+import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.presto.analysis.FastPrestoFunnelQueryExecutor;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QuerySampling;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import static com.google.common.collect.ImmutableList.of;
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.analysis.FunnelQueryExecutor.WindowType.DAY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestPrestoFastFunnelQueryExecutor
+{
+    private static final String PROJECT_NAME = "test_fast_funnel";
+    private static final int USERS = 50;
+    private static final int DAYS = 5;
+
+    private TestingEnvironment testingEnvironment;
+    private PrestoRakamRaptorMetastore metastore;
+    private RecordingQueryExecutor executor;
+    private FastPrestoFunnelQueryExecutor fastExecutor;
+    private FunnelQueryExecutor referenceExecutor;
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        testingEnvironment = new TestingEnvironment();
+        PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
+
+        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), new ProjectConfig(), prestoConfig);
+        metastore.setup();
+
+        PrestoQueryExecutor prestoQueryExecutor = new PrestoQueryExecutor(new ProjectConfig(), prestoConfig, null, null, metastore);
+        executor = new RecordingQueryExecutor(prestoQueryExecutor);
+        fastExecutor = new FastPrestoFunnelQueryExecutor(new ProjectConfig(), metastore, executor, new UserPluginConfig());
+
+        // scans the collection of each step separately, the way the executor worked before the steps were grouped by collection
+        referenceExecutor = new AbstractFunnelQueryExecutor(new ProjectConfig(), metastore, executor)
+        {
+            @Override
+            public String getTemplate(List<FunnelStep> steps, Optional<String> dimension, Optional<FunnelWindow> window)
+            {
+                return fastExecutor.getTemplate(steps, dimension, window);
+            }
+
+            @Override
+            public String convertFunnel(String project, String connectorField, int idx, FunnelStep funnelStep, Optional<String> dimension, LocalDate startDate, LocalDate endDate)
+            {
+                return fastExecutor.convertFunnel(project, connectorField, idx, funnelStep, dimension, startDate, endDate);
+            }
+        };
+
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+        TestingPrestoEventStore eventStore = new TestingPrestoEventStore(prestoQueryExecutor, prestoConfig);
+
+        Random random = new Random(0);
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String collection = random.nextInt(3) == 0 ? "purchase" : "pageview";
+            events.add(builder.createEvent(collection, ImmutableMap.<String, Object>builder()
+                    .put("page", "page" + random.nextInt(3))
+                    .put("_user", "user" + random.nextInt(USERS))
+                    .put("_time", Instant.ofEpochSecond(random.nextInt(DAYS * 86400))).build()));
+        }
+        eventStore.storeBatch(events);
+    }
+
+    @AfterClass
+    public void destroy()
+    {
+        metastore.deleteProject(PROJECT_NAME);
+    }
+
+    @Test
+    public void testMatchesReferenceOnRandomFunnels()
+    {
+        FunnelStep[] candidates = {
+                new FunnelStep("pageview", Optional.empty()),
+                new FunnelStep("pageview", Optional.of("page = 'page0'")),
+                new FunnelStep("pageview", Optional.of("page = 'page1'")),
+                new FunnelStep("purchase", Optional.empty()),
+                new FunnelStep("purchase", Optional.of("page <> 'page2'")),
+        };
+
+        Random random = new Random(1);
+        for (int i = 0; i < 10; i++) {
+            List<FunnelStep> steps = new ArrayList<>();
+            int stepCount = 2 + random.nextInt(3);
+            for (int step = 0; step < stepCount; step++) {
+                steps.add(candidates[random.nextInt(candidates.length)]);
+            }
+            Optional<String> dimension = random.nextBoolean() ? Optional.of("page") : Optional.empty();
+
+            QueryResult expected = query(referenceExecutor, steps, dimension);
+            QueryResult actual = query(fastExecutor, steps, dimension);
+            assertEquals(ImmutableSet.copyOf(actual.getResult()), ImmutableSet.copyOf(expected.getResult()));
+        }
+    }
+
+    @Test
+    public void testSingleScanPerCollection()
+    {
+        List<FunnelStep> steps = of(
+                new FunnelStep("pageview", Optional.of("page = 'page0'")),
+                new FunnelStep("pageview", Optional.of("page = 'page1'")),
+                new FunnelStep("pageview", Optional.of("page = 'page2'")));
+
+        query(referenceExecutor, steps, Optional.empty());
+        assertEquals(countScans(executor.lastQuery, "pageview"), 3);
+
+        query(fastExecutor, steps, Optional.empty());
+        assertEquals(countScans(executor.lastQuery, "pageview"), 1);
+
+        query(fastExecutor, of(steps.get(0), new FunnelStep("purchase", Optional.empty()), steps.get(1)), Optional.empty());
+        assertEquals(countScans(executor.lastQuery, "pageview"), 1);
+        assertEquals(countScans(executor.lastQuery, "purchase"), 1);
+    }
+
+    private QueryResult query(FunnelQueryExecutor executor, List<FunnelStep> steps, Optional<String> dimension)
+    {
+        QueryResult result = executor.query(PROJECT_NAME, steps, dimension,
+                LocalDate.ofEpochDay(0), LocalDate.ofEpochDay(DAYS), Optional.of(new FunnelWindow(30, DAY)), UTC,
+                Optional.empty(), Optional.of(true)).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+        return result;
+    }
+
+    private static int countScans(String query, String collection)
+    {
+        return query.split(PROJECT_NAME + ".\"" + collection + "\"", -1).length - 1;
+    }
+
+    private static class RecordingQueryExecutor
+            implements QueryExecutor
+    {
+        private final QueryExecutor delegate;
+        private String lastQuery;
+
+        public RecordingQueryExecutor(QueryExecutor delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public QueryExecution executeRawQuery(String sqlQuery)
+        {
+            lastQuery = sqlQuery;
+            return delegate.executeRawQuery(sqlQuery);
+        }
+
+        @Override
+        public QueryExecution executeRawStatement(String sqlQuery)
+        {
+            lastQuery = sqlQuery;
+            return delegate.executeRawStatement(sqlQuery);
+        }
+
+        @Override
+        public String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+        {
+            return delegate.formatTableReference(project, name, sample, sessionParameters, defaultSchema);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.rakam.event.TestingEnvironment;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.postgresql.analysis.FastGenericFunnelQueryExecutor;
+import org.rakam.presto.analysis.FastPrestoFunnelQueryExecutor;
 import org.rakam.presto.analysis.PrestoConfig;
 import org.rakam.presto.analysis.PrestoContinuousQueryService;
 import org.rakam.presto.analysis.PrestoFunnelQueryExecutor;
@@ -64,9 +65,9 @@ public class TestPrestoFunnelQueryExecutor extends TestFunnelQueryExecutor {
                 materializedViewService, Clock.system(ZoneId.of("UTC")), '"');
 
         FastGenericFunnelQueryExecutor fastGenericFunnelQueryExecutor = new FastGenericFunnelQueryExecutor(queryExecutorService, new ProjectConfig());
-        funnelQueryExecutor = new PrestoFunnelQueryExecutor(new ProjectConfig(), fastGenericFunnelQueryExecutor, metastore, queryExecutorService,
-                prestoQueryExecutor, materializedViewService,
-                continuousQueryService, new UserPluginConfig());
+        FastPrestoFunnelQueryExecutor fastPrestoFunnelQueryExecutor = new FastPrestoFunnelQueryExecutor(new ProjectConfig(), metastore,
+                prestoQueryExecutor, new UserPluginConfig());
+        funnelQueryExecutor = new PrestoFunnelQueryExecutor(new ProjectConfig(), fastGenericFunnelQueryExecutor, fastPrestoFunnelQueryExecutor);
         testingPrestoEventStore = new TestingPrestoEventStore(prestoQueryExecutor, prestoConfig);
         Thread.sleep(1000);
         super.setup();
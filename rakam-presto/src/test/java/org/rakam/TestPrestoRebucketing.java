@@ -0,0 +1,372 @@
+package org.rakam;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import io.airlift.units.Duration;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.event.TestingEnvironment;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecution;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.presto.analysis.PrestoRebucketingService;
+import org.rakam.presto.analysis.PrestoTableLayoutPolicy;
+import org.rakam.report.QueryResult;
+import org.rakam.util.RakamException;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
+import org.rakam.util.lock.LockService.Lock;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.StringMapper;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static java.lang.String.format;
+import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.analysis.InternalConfig.BUCKET_COUNT;
+import static org.rakam.analysis.InternalConfig.ORDERING;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestPrestoRebucketing
+{
+    private static final String PROJECT_NAME = "test_rebucketing";
+
+    private TestingEnvironment testingEnvironment;
+    private TestingConfigManager configManager;
+    private PrestoConfig prestoConfig;
+    private PrestoRakamRaptorMetastore metastore;
+    private PrestoQueryExecutor queryExecutor;
+    private InterceptingQueryExecutor rebucketingExecutor;
+    private LockService lockService;
+    private PrestoRebucketingService rebucketingService;
+    private DBI dbi;
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        testingEnvironment = new TestingEnvironment();
+        prestoConfig = new PrestoConfig()
+                .setAddress(testingEnvironment.getPrestoConfig().getAddress())
+                .setColdStorageConnector(testingEnvironment.getPrestoConfig().getColdStorageConnector())
+                // the counts that are inserted by the tests are not overwritten by the updater
+                .setEventCountUpdateInterval(new Duration(1, DAYS))
+                .setBucketingEventsPerBucket(1000)
+                .setBucketingMinBucketCount(2)
+                .setBucketingMaxBucketCount(64)
+                .setRebucketingDrainPeriod(new Duration(1, SECONDS));
+        configManager = new TestingConfigManager();
+        dbi = new DBI(testingEnvironment.getPrestoMetastore());
+
+        ProjectConfig projectConfig = new ProjectConfig();
+        PrestoTableLayoutPolicy tableLayoutPolicy = new PrestoTableLayoutPolicy(testingEnvironment.getPrestoMetastore(), prestoConfig, projectConfig, configManager);
+        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), projectConfig, prestoConfig, tableLayoutPolicy,
+                new LocalLockService());
+        metastore.setup();
+        queryExecutor = new PrestoQueryExecutor(projectConfig, prestoConfig, null, null, metastore);
+        rebucketingExecutor = new InterceptingQueryExecutor(projectConfig, prestoConfig, metastore);
+        lockService = new LocalLockService();
+        rebucketingService = new PrestoRebucketingService(testingEnvironment.getPrestoMetastore(), prestoConfig, projectConfig,
+                metastore, rebucketingExecutor, tableLayoutPolicy, lockService);
+    }
+
+    @AfterMethod
+    public void clean()
+    {
+        rebucketingExecutor.beforeCopy = null;
+        metastore.deleteProject(PROJECT_NAME);
+        configManager.clear();
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("delete from project_event_count where project = :project").bind("project", PROJECT_NAME).execute();
+        }
+    }
+
+    @Test
+    public void testBucketCountFromVolume()
+    {
+        metastore.createProject(PROJECT_NAME);
+        setEvents(10_500);
+
+        createCollection();
+        // 11 buckets are rounded up to the next power of two
+        assertEquals(getBucketCount(), 16);
+        assertEquals(getDistributionName(), PROJECT_NAME + "_16");
+    }
+
+    @Test
+    public void testBucketCountHysteresis()
+    {
+        metastore.createProject(PROJECT_NAME);
+        setEvents(10_500);
+        createCollection();
+        assertEquals(getBucketCount(), 16);
+
+        // the 16 buckets can hold 16000 events, the collection is rewritten when the volume is 25% more
+        setEvents(17_000);
+        assertFalse(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+        setEvents(21_000);
+        assertTrue(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+
+        // and when the volume fits in a quarter of the buckets
+        setEvents(5_000);
+        assertFalse(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+        setEvents(3_000);
+        assertTrue(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+    }
+
+    @Test
+    public void testExplicitLayout()
+    {
+        metastore.createProject(PROJECT_NAME);
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 4);
+        configManager.setConfig(PROJECT_NAME, ORDERING.name(), ImmutableList.of("_time"));
+
+        createCollection();
+        assertEquals(getBucketCount(), 4);
+        assertEquals(getDistributionName(), PROJECT_NAME + "_4");
+        assertEquals(getOrdering(), ImmutableList.of("_time"));
+        assertFalse(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+    }
+
+    @Test
+    public void testRebucketing()
+    {
+        metastore.createProject(PROJECT_NAME);
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 4);
+        createCollection();
+
+        insertBatches();
+        List<Object> before = getSummary();
+
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 16);
+        configManager.setConfig(PROJECT_NAME, ORDERING.name(), ImmutableList.of("_time"));
+        assertTrue(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+
+        assertTrue(rebucketingService.rebucket(PROJECT_NAME, "test"));
+
+        assertEquals(getBucketCount(), 16);
+        assertEquals(getDistributionName(), PROJECT_NAME + "_16");
+        assertEquals(getOrdering(), ImmutableList.of("_time"));
+        assertFalse(rebucketingService.needsRebucketing(PROJECT_NAME, "test"));
+        assertEquals(metastore.getCollectionNames(PROJECT_NAME), ImmutableSet.of("test"));
+        assertEquals(getSummary(), before);
+
+        // the collection is still writable after the swap
+        execute(format("INSERT INTO %s.%s.test (_user, _time, value) VALUES ('new', timestamp '2016-02-01 00:00:00', 1000)",
+                prestoConfig.getColdStorageConnector(), PROJECT_NAME));
+        assertEquals(((Number) getSummary().get(0)).longValue(), 301);
+    }
+
+    @Test
+    public void testInsertDuringCopy()
+    {
+        metastore.createProject(PROJECT_NAME);
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 4);
+        createCollection();
+        insertBatches();
+
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 16);
+        // a writer commits new shards to the collection while the existing shards are copied
+        rebucketingExecutor.beforeCopy = () -> execute(format("INSERT INTO %s.%s.test (_user, _time, value) " +
+                        "VALUES ('concurrent', timestamp '2016-02-01 00:00:00', 1000)",
+                prestoConfig.getColdStorageConnector(), PROJECT_NAME));
+
+        assertTrue(rebucketingService.rebucket(PROJECT_NAME, "test"));
+
+        assertEquals(getBucketCount(), 16);
+        assertEquals(metastore.getCollectionNames(PROJECT_NAME), ImmutableSet.of("test"));
+        List<Object> summary = getSummary();
+        assertEquals(((Number) summary.get(0)).longValue(), 301);
+        assertEquals(((Number) summary.get(2)).longValue(), 300 * 299 / 2 + 1000);
+    }
+
+    @Test
+    public void testDeleteDuringCopy()
+    {
+        metastore.createProject(PROJECT_NAME);
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 4);
+        createCollection();
+        insertBatches();
+
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 16);
+        // the delete replaces the shards that are being copied, the same way the compaction does
+        rebucketingExecutor.beforeCopy = () -> execute(format("DELETE FROM %s.%s.test WHERE value < 50",
+                prestoConfig.getColdStorageConnector(), PROJECT_NAME));
+
+        try {
+            rebucketingService.rebucket(PROJECT_NAME, "test");
+            fail("the rebucketing must fail when the copied shards are replaced");
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), CONFLICT);
+        }
+
+        // the collection keeps its layout and rows, the new table is dropped
+        assertEquals(getBucketCount(), 4);
+        assertEquals(getTableNames(), ImmutableSet.of("test"));
+        assertEquals(((Number) getSummary().get(0)).longValue(), 250);
+    }
+
+    @Test
+    public void testRebucketingIsLocked()
+    {
+        metastore.createProject(PROJECT_NAME);
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 4);
+        createCollection();
+        configManager.setConfig(PROJECT_NAME, BUCKET_COUNT.name(), 16);
+
+        Lock lock = lockService.tryLock("rebucketing." + PROJECT_NAME + ".test");
+        try {
+            assertFalse(rebucketingService.rebucket(PROJECT_NAME, "test"));
+            rebucketingService.rebucketAll();
+            assertEquals(getBucketCount(), 4);
+        }
+        finally {
+            lock.release();
+        }
+    }
+
+    private void insertBatches()
+    {
+        // each insert commits its own shards
+        for (int batch = 0; batch < 3; batch++) {
+            execute(format("INSERT INTO %s.%s.test (_user, _time, value) " +
+                            "SELECT cast(id as varchar), timestamp '2016-01-01 00:00:00' + id * interval '1' hour, id " +
+                            "FROM (VALUES %s) t (id)",
+                    prestoConfig.getColdStorageConnector(), PROJECT_NAME, values(batch * 100, 100)));
+        }
+    }
+
+    private void setEvents(long events)
+    {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("delete from project_event_count where project = :project").bind("project", PROJECT_NAME).execute();
+            handle.createStatement("insert into project_event_count (project, day, events) values (:project, :day, :events)")
+                    .bind("project", PROJECT_NAME)
+                    .bind("day", Date.valueOf(LocalDate.now(UTC)))
+                    .bind("events", events)
+                    .execute();
+        }
+    }
+
+    private Set<String> getTableNames()
+    {
+        try (Handle handle = dbi.open()) {
+            return ImmutableSet.copyOf(handle.createQuery("select table_name from tables where schema_name = :project")
+                    .bind("project", PROJECT_NAME)
+                    .map(StringMapper.FIRST).list());
+        }
+    }
+
+    private void createCollection()
+    {
+        metastore.getOrCreateCollectionFields(PROJECT_NAME, "test", ImmutableSet.of(
+                new SchemaField("_user", STRING),
+                new SchemaField("_time", TIMESTAMP),
+                new SchemaField("value", LONG)));
+    }
+
+    private List<Object> getSummary()
+    {
+        QueryResult result = queryExecutor.executeRawQuery(format("SELECT count(*), count(distinct _user), sum(value), max(_time) FROM %s.%s.test",
+                prestoConfig.getColdStorageConnector(), PROJECT_NAME)).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+        return result.getResult().get(0);
+    }
+
+    private int getBucketCount()
+    {
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("select distributions.bucket_count from tables " +
+                    "join distributions on (distributions.distribution_id = tables.distribution_id) " +
+                    "where tables.schema_name = :project and tables.table_name = 'test'")
+                    .bind("project", PROJECT_NAME)
+                    .map((i, resultSet, statementContext) -> resultSet.getInt(1)).first();
+        }
+    }
+
+    private String getDistributionName()
+    {
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("select distributions.distribution_name from tables " +
+                    "join distributions on (distributions.distribution_id = tables.distribution_id) " +
+                    "where tables.schema_name = :project and tables.table_name = 'test'")
+                    .bind("project", PROJECT_NAME)
+                    .map(StringMapper.FIRST).first();
+        }
+    }
+
+    private List<String> getOrdering()
+    {
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery("select columns.column_name from tables " +
+                    "join columns on (columns.table_id = tables.table_id) " +
+                    "where tables.schema_name = :project and tables.table_name = 'test' " +
+                    "and columns.sort_ordinal_position is not null order by columns.sort_ordinal_position")
+                    .bind("project", PROJECT_NAME)
+                    .map(StringMapper.FIRST).list();
+        }
+    }
+
+    private void execute(String query)
+    {
+        QueryResult result = queryExecutor.executeRawStatement(query).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+    }
+
+    /**
+     * Runs the hook before the first statement that copies the shards to the new table.
+     */
+    private static class InterceptingQueryExecutor
+            extends PrestoQueryExecutor
+    {
+        private volatile Runnable beforeCopy;
+
+        InterceptingQueryExecutor(ProjectConfig projectConfig, PrestoConfig prestoConfig, Metastore metastore)
+        {
+            super(projectConfig, prestoConfig, null, null, metastore);
+        }
+
+        @Override
+        public PrestoQueryExecution executeRawStatement(String sqlQuery)
+        {
+            Runnable hook = beforeCopy;
+            if (hook != null && sqlQuery.startsWith("INSERT INTO") && sqlQuery.contains("$rebucketing_")) {
+                beforeCopy = null;
+                hook.run();
+            }
+            return super.executeRawStatement(sqlQuery);
+        }
+    }
+
+    private static String values(int start, int count)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = start; i < start + count; i++) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(i);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,277 @@
+package org.rakam;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.InMemoryQueryMetadataStore;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.RetentionQueryExecutor.DateUnit;
+import org.rakam.analysis.RetentionQueryExecutor.RetentionAction;
+import org.rakam.collection.Event;
+import org.rakam.config.ProjectConfig;
+import org.rakam.event.TestingEnvironment;
+import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoContinuousQueryService;
+import org.rakam.presto.analysis.PrestoMaterializedViewService;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.presto.analysis.PrestoRetentionCubeService;
+import org.rakam.presto.analysis.PrestoRetentionCubeService.RetentionCube;
+import org.rakam.presto.analysis.PrestoRetentionQueryExecutor;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.DAY;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.MONTH;
+import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.WEEK;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPrestoRetentionCube
+{
+    private static final String PROJECT_NAME = "test_retention_cube";
+    private static final int DAYS = 40;
+    // the days before this day are in the cube and the rest are read from the events
+    private static final int CLOSED_DAYS = 30;
+
+    private TestingEnvironment testingEnvironment;
+    private PrestoRakamRaptorMetastore metastore;
+    private PrestoRetentionCubeService cubeService;
+    private PrestoRetentionQueryExecutor retentionQueryExecutor;
+    private PrestoRetentionQueryExecutor rawRetentionQueryExecutor;
+    private final List<TestEvent> events = new ArrayList<>();
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        testingEnvironment = new TestingEnvironment();
+        PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
+        InMemoryQueryMetadataStore queryMetadataStore = new InMemoryQueryMetadataStore();
+
+        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), new ProjectConfig(), prestoConfig);
+        metastore.setup();
+
+        PrestoQueryExecutor queryExecutor = new PrestoQueryExecutor(new ProjectConfig(), prestoConfig, null, null, metastore);
+        PrestoMaterializedViewService materializedViewService = new PrestoMaterializedViewService(new PrestoConfig(), queryExecutor, metastore, queryMetadataStore);
+        QueryExecutorService queryExecutorService = new QueryExecutorService(queryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"');
+
+        cubeService = new PrestoRetentionCubeService(JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig()),
+                new PrestoConfig(), new ProjectConfig(), metastore, queryExecutorService,
+                Clock.fixed(LocalDate.ofEpochDay(CLOSED_DAYS).atStartOfDay(UTC).toInstant(), UTC));
+        cubeService.setup();
+
+        PrestoContinuousQueryService continuousQueryService = new PrestoContinuousQueryService(queryMetadataStore, new RealTimeConfig(),
+                queryExecutor, prestoConfig);
+        retentionQueryExecutor = new PrestoRetentionQueryExecutor(new ProjectConfig(), queryExecutorService, metastore, materializedViewService,
+                new UserPluginConfig(), continuousQueryService, com.google.common.base.Optional.of(cubeService));
+        rawRetentionQueryExecutor = new PrestoRetentionQueryExecutor(new ProjectConfig(), queryExecutorService, metastore, materializedViewService,
+                new UserPluginConfig(), continuousQueryService, com.google.common.base.Optional.absent());
+
+        metastore.createProject(PROJECT_NAME);
+        EventBuilder builder = new EventBuilder(PROJECT_NAME, metastore);
+        TestingPrestoEventStore eventStore = new TestingPrestoEventStore(queryExecutor, prestoConfig);
+
+        Random random = new Random(0);
+        List<Event> batch = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            TestEvent event = new TestEvent((long) random.nextInt(60), random.nextInt(3) == 0 ? "purchase" : "pageview",
+                    random.nextInt(DAYS * 86400));
+            events.add(event);
+            batch.add(builder.createEvent(event.collection, ImmutableMap.of(
+                    "_user", event.user,
+                    "_time", Instant.ofEpochSecond(event.time))));
+        }
+        eventStore.storeBatch(batch);
+
+        cubeService.create(PROJECT_NAME, "exact", Optional.of("pageview"), Optional.of("purchase"), true);
+        cubeService.create(PROJECT_NAME, "approximate", Optional.empty(), Optional.empty(), false);
+        cubeService.update(PROJECT_NAME, "exact");
+        cubeService.update(PROJECT_NAME, "approximate");
+    }
+
+    @AfterClass
+    public void destroy()
+    {
+        cubeService.stop();
+        metastore.deleteProject(PROJECT_NAME);
+    }
+
+    @Test
+    public void testCubeIsFilled()
+    {
+        RetentionCube cube = cubeService.get(PROJECT_NAME, "exact").get();
+        assertEquals(cube.lastDay, LocalDate.ofEpochDay(CLOSED_DAYS - 1));
+
+        // the retention query executor uses the cube when there is no filter and dimension
+        assertTrue(cubeService.find(PROJECT_NAME, Optional.of(RetentionAction.create("pageview", Optional.empty())),
+                Optional.of(RetentionAction.create("purchase", Optional.empty())), true, LocalDate.ofEpochDay(0)).isPresent());
+        assertFalse(cubeService.find(PROJECT_NAME, Optional.empty(), Optional.empty(), true, LocalDate.ofEpochDay(0)).isPresent());
+    }
+
+    @Test
+    public void testExactCube()
+    {
+        for (DateUnit dateUnit : DateUnit.values()) {
+            for (Optional<Integer> period : Arrays.asList(Optional.<Integer>empty(), Optional.of(3), Optional.of(15))) {
+                // the ranges are read from the cube, the events and both of them
+                assertRetention("pageview", "purchase", dateUnit, period, 0, CLOSED_DAYS - 1, false);
+                assertRetention("pageview", "purchase", dateUnit, period, CLOSED_DAYS + 1, DAYS - 1, false);
+                assertRetention("pageview", "purchase", dateUnit, period, 3, DAYS - 1, false);
+            }
+        }
+    }
+
+    @Test
+    public void testApproximateCube()
+    {
+        for (DateUnit dateUnit : DateUnit.values()) {
+            assertRetention(null, null, dateUnit, Optional.of(7), 0, DAYS - 1, true);
+        }
+    }
+
+    @Test
+    public void testCubeMatchesRawQuery()
+    {
+        for (ZoneId zoneId : Arrays.asList(UTC, ZoneId.of("UTC"), ZoneId.of("America/Los_Angeles"), ZoneId.of("+05:30"))) {
+            for (DateUnit dateUnit : Arrays.asList(DAY, WEEK, MONTH)) {
+                for (Optional<Integer> period : Arrays.asList(Optional.<Integer>empty(), Optional.of(3))) {
+                    assertSameAsRawQuery(dateUnit, period, 0, CLOSED_DAYS - 1, zoneId);
+                    assertSameAsRawQuery(dateUnit, period, 3, DAYS - 1, zoneId);
+                }
+            }
+        }
+    }
+
+    private void assertSameAsRawQuery(DateUnit dateUnit, Optional<Integer> period, int startDay, int endDay, ZoneId zoneId)
+    {
+        Optional<RetentionAction> firstAction = Optional.of(RetentionAction.create("pageview", Optional.empty()));
+        Optional<RetentionAction> returningAction = Optional.of(RetentionAction.create("purchase", Optional.empty()));
+        LocalDate startDate = LocalDate.ofEpochDay(startDay);
+        LocalDate endDate = LocalDate.ofEpochDay(endDay);
+
+        QueryResult result = retentionQueryExecutor.query(PROJECT_NAME, firstAction, returningAction, dateUnit, Optional.empty(),
+                period, startDate, endDate, zoneId, false).getResult().join();
+        QueryResult rawResult = rawRetentionQueryExecutor.query(PROJECT_NAME, firstAction, returningAction, dateUnit, Optional.empty(),
+                period, startDate, endDate, zoneId, false).getResult().join();
+
+        String message = dateUnit + " " + period + " " + startDate + " " + endDate + " " + zoneId;
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+        assertFalse(rawResult.isFailed(), String.valueOf(rawResult.getError()));
+        assertEquals(result.getResult(), rawResult.getResult(), message);
+    }
+
+    private void assertRetention(String firstCollection, String returningCollection, DateUnit dateUnit, Optional<Integer> period,
+            int startDay, int endDay, boolean approximate)
+    {
+        LocalDate startDate = LocalDate.ofEpochDay(startDay);
+        LocalDate endDate = LocalDate.ofEpochDay(endDay);
+
+        QueryResult result = retentionQueryExecutor.query(PROJECT_NAME,
+                Optional.ofNullable(firstCollection).map(collection -> RetentionAction.create(collection, Optional.empty())),
+                Optional.ofNullable(returningCollection).map(collection -> RetentionAction.create(collection, Optional.empty())),
+                dateUnit, Optional.empty(), period, startDate, endDate, UTC, approximate).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+
+        List<List<Object>> expected = getRetention(firstCollection, returningCollection, dateUnit, period, startDate, endDate);
+        String message = dateUnit + " " + period + " " + startDate + " " + endDate;
+        if (!approximate) {
+            assertEquals(result.getResult(), expected, message);
+            return;
+        }
+
+        assertEquals(result.getResult().size(), expected.size(), message);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(result.getResult().get(i).subList(0, 2), expected.get(i).subList(0, 2), message);
+            long count = (long) result.getResult().get(i).get(2);
+            long expectedCount = (long) expected.get(i).get(2);
+            assertTrue(Math.abs(count - expectedCount) <= Math.max(1, expectedCount * 0.05), message + " " + count + " " + expectedCount);
+        }
+    }
+
+    /**
+     * Computes the retention from the raw events, the way {@link PrestoRetentionQueryExecutor} does in Presto.
+     */
+    private List<List<Object>> getRetention(String firstCollection, String returningCollection, DateUnit dateUnit,
+            Optional<Integer> period, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, Set<Long>> firstAction = getUserSets(firstCollection, dateUnit, startDate, endDate);
+        Map<LocalDate, Set<Long>> returningAction = getUserSets(returningCollection, dateUnit, startDate, endDate);
+
+        // the executor limits the period with the range of the query
+        LocalDate start = dateUnit == MONTH ? startDate.withDayOfMonth(1) : startDate;
+        LocalDate end = dateUnit == MONTH ? endDate.withDayOfMonth(1).plusMonths(1) : (dateUnit == WEEK ? endDate.plusMonths(1) : endDate);
+        Optional<Integer> range = period.map(value -> (int) Math.min(value, ChronoUnit.DAYS.between(start, end)));
+
+        List<List<Object>> rows = new ArrayList<>();
+        firstAction.forEach((date, users) -> {
+            rows.add(Arrays.asList(date, null, (long) users.size()));
+            returningAction.forEach((returningDate, returningUsers) -> {
+                if (!returningDate.isAfter(date) || (range.isPresent() && date.plusDays(range.get()).isBefore(returningDate))) {
+                    return;
+                }
+                Set<Long> intersection = new HashSet<>(users);
+                intersection.retainAll(returningUsers);
+                if (!intersection.isEmpty()) {
+                    long lead = (dateUnit == DAY ? ChronoUnit.DAYS : dateUnit == WEEK ? ChronoUnit.WEEKS : ChronoUnit.MONTHS)
+                            .between(date, returningDate) - 1;
+                    rows.add(Arrays.asList(date, lead, (long) intersection.size()));
+                }
+            });
+        });
+        return rows;
+    }
+
+    private Map<LocalDate, Set<Long>> getUserSets(String collection, DateUnit dateUnit, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, Set<Long>> userSets = new TreeMap<>();
+        for (TestEvent event : events) {
+            LocalDate day = LocalDate.ofEpochDay(event.time / 86400);
+            if ((collection != null && !collection.equals(event.collection)) || day.isBefore(startDate) || day.isAfter(endDate)) {
+                continue;
+            }
+
+            LocalDate bucket = dateUnit == DAY ? day :
+                    (dateUnit == WEEK ? day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)) : day.withDayOfMonth(1));
+            userSets.computeIfAbsent(bucket, key -> new HashSet<>()).add(event.user);
+        }
+        return userSets;
+    }
+
+    private static class TestEvent
+    {
+        private final long user;
+        private final String collection;
+        private final long time;
+
+        private TestEvent(long user, String collection, long time)
+        {
+            this.user = user;
+            this.collection = collection;
+            this.time = time;
+        }
+    }
+}
@@ -45,7 +45,8 @@ public class TestPrestoRetentionQueryExecutor extends TestRetentionQueryExecutor
 
         QueryExecutorService queryExecutorService = new QueryExecutorService(queryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"');
 
-        retentionQueryExecutor = new PrestoRetentionQueryExecutor(new ProjectConfig(), queryExecutorService, metastore, materializedViewService, new UserPluginConfig(), continuousQueryService);
+        retentionQueryExecutor = new PrestoRetentionQueryExecutor(new ProjectConfig(), queryExecutorService, metastore, materializedViewService, new UserPluginConfig(), continuousQueryService,
+                com.google.common.base.Optional.absent());
         testingPrestoEventStore = new TestingPrestoEventStore(queryExecutor, prestoConfig);
 
         // TODO: Presto throws "No node available" error, find a way to avoid this ugly hack.
@@ -0,0 +1,159 @@
+package org.rakam;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Statement;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.config.ProjectConfig;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPrestoTimePredicatePruning
+{
+    private static final Instant WATERMARK = Instant.parse("2016-06-01T00:00:00Z");
+    private static final String COLD_TABLE = "raptor.\"test\".\"pageview\"";
+    private static final String HOT_TABLE = "kafka.\"test\".\"pageview\"";
+
+    private PrestoQueryExecutor executor;
+
+    @BeforeClass
+    public void setUp()
+    {
+        PrestoConfig prestoConfig = new PrestoConfig()
+                .setAddress(URI.create("http://127.0.0.1:8080"))
+                .setColdStorageConnector("raptor")
+                .setHotStorageConnector("kafka");
+
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService())
+        {
+            @Override
+            public Optional<Instant> getColdStorageWatermark(String project, String collection)
+            {
+                return Optional.of(WATERMARK);
+            }
+        };
+
+        executor = new PrestoQueryExecutor(new ProjectConfig(), prestoConfig, null, null, metastore);
+    }
+
+    @Test
+    public void testBetweenBeforeWatermarkReadsHotStorage()
+    {
+        // late events that are not moved yet are in the hot storage even though they are before the watermark
+        String query = format("select count(*) from pageview where _time between timestamp '2016-01-01' and timestamp '2016-02-01'");
+        String predicate = " where (\"_time\" >= timestamp '2015-12-31 00:00:00.000' and \"_time\" <= timestamp '2016-02-02 00:00:00.000')";
+        assertTrue(query.contains(COLD_TABLE + predicate), query);
+        assertTrue(query.contains(HOT_TABLE + predicate), query);
+    }
+
+    @Test
+    public void testGreaterThanInHotStorage()
+    {
+        String query = format("select count(*) from pageview where _time >= timestamp '2016-07-01 10:00:00'");
+        assertTrue(query.contains(HOT_TABLE));
+        assertFalse(query.contains(COLD_TABLE));
+
+        query = format("select count(*) from pageview p where timestamp '2016-07-01' < p._time and p.city = 'test'");
+        assertTrue(query.contains(HOT_TABLE));
+        assertFalse(query.contains(COLD_TABLE));
+    }
+
+    @Test
+    public void testHotStorageHasCollectionAlias()
+    {
+        String query = format("select pageview.city from pageview where _time >= timestamp '2016-07-01 10:00:00'");
+        assertTrue(query.contains("(" + HOT_TABLE + " as pageview)"), query);
+        assertFalse(query.contains(COLD_TABLE));
+        new SqlParser().createStatement(query);
+
+        query = format("select p.city from pageview p where _time >= timestamp '2016-07-01 10:00:00'");
+        assertTrue(query.contains("(" + HOT_TABLE + " as pageview)"), query);
+        new SqlParser().createStatement(query);
+    }
+
+    @Test
+    public void testDateTruncEquality()
+    {
+        String query = format("select count(*) from pageview where date_trunc('month', _time) = date '2016-03-01'");
+        assertTrue(query.contains(COLD_TABLE + " where"));
+        assertTrue(query.contains(HOT_TABLE + " where"));
+
+        query = format("select count(*) from pageview where cast(_time as date) = date '2016-08-01'");
+        assertTrue(query.contains(HOT_TABLE));
+        assertFalse(query.contains(COLD_TABLE));
+    }
+
+    @Test
+    public void testIntervalArithmetic()
+    {
+        String query = format("select count(*) from pageview where _time between timestamp '2016-05-01' and timestamp '2016-05-01' + interval '7' day");
+        assertTrue(query.contains("\"_time\" <= timestamp '2016-05-09 00:00:00.000'"), query);
+        assertTrue(query.contains(HOT_TABLE + " where"));
+    }
+
+    @Test
+    public void testOrOfRangesInBothStorages()
+    {
+        String query = format("select count(*) from pageview where _time between timestamp '2016-01-01' and timestamp '2016-01-02' " +
+                "or _time >= timestamp '2016-09-01'");
+
+        assertTrue(query.contains(COLD_TABLE));
+        assertTrue(query.contains(HOT_TABLE));
+        // the ranges are pushed down to both of the branches, widened for the session time zone
+        String predicate = "(\"_time\" >= timestamp '2015-12-31 00:00:00.000' and \"_time\" <= timestamp '2016-01-03 00:00:00.000') " +
+                "or (\"_time\" >= timestamp '2016-08-31 00:00:00.000')";
+        assertTrue(query.contains(COLD_TABLE + " where " + predicate), query);
+        assertTrue(query.contains(HOT_TABLE + " where " + predicate), query);
+    }
+
+    @Test
+    public void testOrOfRangesAfterWatermark()
+    {
+        String query = format("select count(*) from pageview where _time between timestamp '2016-07-01' and timestamp '2016-07-02' " +
+                "or date_trunc('day', _time) = timestamp '2016-08-01'");
+        assertTrue(query.contains(HOT_TABLE));
+        assertFalse(query.contains(COLD_TABLE));
+    }
+
+    @Test
+    public void testUnknownPredicate()
+    {
+        String query = format("select count(*) from pageview where _time > now() - interval '1' day");
+        assertTrue(query.contains(COLD_TABLE));
+        assertTrue(query.contains(HOT_TABLE));
+        assertFalse(query.contains(COLD_TABLE + " where"));
+
+        query = format("select count(*) from pageview where _time >= timestamp '2016-07-01' or city = 'test'");
+        assertTrue(query.contains(COLD_TABLE));
+        assertTrue(query.contains(HOT_TABLE));
+    }
+
+    @Test
+    public void testSubquery()
+    {
+        String query = format("select count(*) from (select city from pageview where _time >= timestamp '2016-07-01') t " +
+                "join (select city from pageview) t2 on (t.city = t2.city)");
+        // the predicate only applies to the first reference
+        assertEquals(query.split("kafka\\.", -1).length - 1, 2);
+        assertEquals(query.split("raptor\\.", -1).length - 1, 1);
+    }
+
+    private String format(String sql)
+    {
+        Statement statement = new SqlParser().createStatement(sql);
+        return RakamSqlFormatter.formatSql(statement,
+                executor.getTableNameMapper("test", statement, Optional.empty(), new HashMap<>(), "collection"), '"');
+    }
+}
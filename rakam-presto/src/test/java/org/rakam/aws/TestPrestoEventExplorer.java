@@ -20,6 +20,7 @@ import org.rakam.presto.analysis.PrestoMaterializedViewService;
 import org.rakam.presto.analysis.PrestoQueryExecutor;
 import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
 import org.rakam.report.QueryExecutorService;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.testng.annotations.BeforeSuite;
 
@@ -63,7 +64,7 @@ public class TestPrestoEventExplorer
                 prestoQueryExecutor, metastore, queryMetadataStore);
         QueryExecutorService queryExecutorService = new QueryExecutorService(prestoQueryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"');
 
-        eventExplorer = new PrestoEventExplorer(new ProjectConfig(), queryExecutorService, continuousQueryService, materializedViewService);
+        eventExplorer = new PrestoEventExplorer(new ProjectConfig(), queryExecutorService, new OLAPTableIndex(queryMetadataStore), materializedViewService);
         setupInline();
         super.setup();
         Thread.sleep(10000);
@@ -1,21 +1,71 @@
 package org.rakam.event;
 
+import com.facebook.presto.raptor.metadata.MetadataDao;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.Metastore.Stats;
+import org.rakam.collection.SchemaField;
 import org.rakam.collection.TestMetastore;
 import org.rakam.config.ProjectConfig;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
 import org.rakam.presto.analysis.PrestoRakamRaptorMetastore;
+import org.rakam.presto.analysis.PrestoTableLayoutPolicy;
+import org.rakam.report.QueryResult;
+import org.rakam.util.lock.LocalLockService;
+import org.rakam.util.lock.LockService;
+import org.rakam.util.lock.LockService.Lock;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.LongMapper;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+import static java.util.Locale.ENGLISH;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestJdbcMetastore
         extends TestMetastore
 {
-    private AbstractMetastore metastore;
+    private static final String CONCURRENT_PROJECT_NAME = "test_concurrent_fields";
+
+    private TestingEnvironment testingEnvironment;
+    private PrestoRakamRaptorMetastore metastore;
+    private LockService lockService;
 
     @BeforeMethod
     public void setUpMethod() throws Exception {
-        TestingEnvironment testingEnvironment = new TestingEnvironment();
-        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), new ProjectConfig(), testingEnvironment.getPrestoConfig());
+        testingEnvironment = new TestingEnvironment();
+        lockService = new LocalLockService();
+        ProjectConfig projectConfig = new ProjectConfig();
+        PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
+        metastore = new PrestoRakamRaptorMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), projectConfig, prestoConfig,
+                new PrestoTableLayoutPolicy(testingEnvironment.getPrestoMetastore(), prestoConfig, projectConfig), lockService);
         metastore.setup();
     }
 
@@ -24,4 +74,292 @@ public class TestJdbcMetastore
     {
         return metastore;
     }
+
+    @Test
+    public void testAddManyFields()
+            throws Exception
+    {
+        metastore.createProject(CONCURRENT_PROJECT_NAME);
+        try {
+            metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, "test", ImmutableSet.of(new SchemaField("id", LONG)));
+
+            Set<SchemaField> fields = IntStream.range(0, 40)
+                    .mapToObj(i -> new SchemaField("field" + i, i % 2 == 0 ? STRING : LONG))
+                    .collect(Collectors.toSet());
+            List<SchemaField> schema = metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, "test", fields);
+
+            // the returned schema is merged without reading the collection again
+            assertEquals(schema, metastore.getCollection(CONCURRENT_PROJECT_NAME, "test"));
+            assertEquals(schema.size(), 41);
+        }
+        finally {
+            metastore.deleteProject(CONCURRENT_PROJECT_NAME);
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters()
+            throws Exception
+    {
+        metastore.createProject(CONCURRENT_PROJECT_NAME);
+        try {
+            metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, "test", ImmutableSet.of(new SchemaField("id", LONG)));
+            assertConcurrentWriters("test", ImmutableSet.of(new SchemaField("id", LONG)));
+        }
+        finally {
+            metastore.deleteProject(CONCURRENT_PROJECT_NAME);
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersCreateCollection()
+            throws Exception
+    {
+        metastore.createProject(CONCURRENT_PROJECT_NAME);
+        try {
+            // one of the writers creates the table, the others add their fields after they fail to create it
+            assertConcurrentWriters("created", ImmutableSet.of());
+        }
+        finally {
+            metastore.deleteProject(CONCURRENT_PROJECT_NAME);
+        }
+    }
+
+    private void assertConcurrentWriters(String collectionName, Set<SchemaField> existingFields)
+            throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<List<SchemaField>>> results = new ArrayList<>();
+            List<Set<SchemaField>> requestedFields = new ArrayList<>();
+            for (int writer = 0; writer < 8; writer++) {
+                // each writer shares half of its fields with the next writer
+                Set<SchemaField> fields = IntStream.range(writer * 5, writer * 5 + 10)
+                        .mapToObj(i -> new SchemaField("field" + i, STRING))
+                        .collect(Collectors.toSet());
+                requestedFields.add(fields);
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, collectionName, fields);
+                }));
+            }
+            start.countDown();
+
+            for (int writer = 0; writer < results.size(); writer++) {
+                assertTrue(results.get(writer).get().containsAll(requestedFields.get(writer)));
+            }
+
+            List<SchemaField> collection = metastore.getCollection(CONCURRENT_PROJECT_NAME, collectionName);
+            Set<SchemaField> expected = new HashSet<>(existingFields);
+            requestedFields.forEach(expected::addAll);
+
+            assertEquals(collection.size(), expected.size());
+            assertEquals(ImmutableSet.copyOf(collection), expected);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEventCounts()
+            throws Exception
+    {
+        PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
+        PrestoQueryExecutor queryExecutor = new PrestoQueryExecutor(new ProjectConfig(), prestoConfig, null, null, metastore);
+        String table = format("%s.%s.test", prestoConfig.getColdStorageConnector(), CONCURRENT_PROJECT_NAME);
+
+        metastore.createProject(CONCURRENT_PROJECT_NAME);
+        try {
+            metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, "test", ImmutableSet.of(new SchemaField("id", LONG)));
+
+            // each insert commits at least one shard
+            for (int batch = 0; batch < 3; batch++) {
+                execute(queryExecutor, format("INSERT INTO %s (id) VALUES (1), (2), (3)", table));
+            }
+            assertEventCounts(9);
+
+            execute(queryExecutor, format("DELETE FROM %s WHERE id = 1", table));
+            assertEventCounts(6);
+
+            compactShards();
+            assertEventCounts(6);
+
+            // Raptor purges the deleted shards periodically, the counts don't depend on them
+            execute(queryExecutor, format("INSERT INTO %s (id) VALUES (4), (5)", table));
+            compactShards();
+            purgeDeletedShards();
+            assertEventCounts(8);
+
+            // the internal tables such as the copies of the rebucketing are not counted
+            execute(queryExecutor, format("CREATE TABLE %s.%s.\"$rebucketing_test\" AS SELECT * FROM %s",
+                    prestoConfig.getColdStorageConnector(), CONCURRENT_PROJECT_NAME, table));
+            assertEventCounts(8);
+        }
+        finally {
+            metastore.deleteProject(CONCURRENT_PROJECT_NAME);
+        }
+
+        assertTrue(metastore.updateEventCounts());
+        Stats stats = metastore.getStats(ImmutableSet.of(CONCURRENT_PROJECT_NAME)).get(CONCURRENT_PROJECT_NAME);
+        assertEquals(stats.allEvents.longValue(), 0);
+    }
+
+    @Test
+    public void testRebucketedCollection()
+    {
+        PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
+        PrestoQueryExecutor queryExecutor = new PrestoQueryExecutor(new ProjectConfig(), prestoConfig, null, null, metastore);
+        String schema = format("%s.%s", prestoConfig.getColdStorageConnector(), CONCURRENT_PROJECT_NAME);
+
+        metastore.createProject(CONCURRENT_PROJECT_NAME);
+        try {
+            metastore.getOrCreateCollectionFields(CONCURRENT_PROJECT_NAME, "test",
+                    ImmutableSet.of(new SchemaField("id", LONG), new SchemaField("_time", TIMESTAMP)));
+            execute(queryExecutor, format("INSERT INTO %s.test (id, _time) VALUES (1, timestamp '2016-01-01 10:00:00'), " +
+                    "(2, timestamp '2016-01-02 10:00:00')", schema));
+            assertEquals(metastore.getColdStorageWatermark(CONCURRENT_PROJECT_NAME, "test"), Optional.of(Instant.parse("2016-01-02T10:00:00Z")));
+
+            // the new table has the copies of the shards and the events that are committed during the copy
+            execute(queryExecutor, format("CREATE TABLE %s.\"$rebucketing_test\" AS SELECT * FROM %s.test", schema, schema));
+            execute(queryExecutor, format("INSERT INTO %s.\"$rebucketing_test\" (id, _time) VALUES (3, timestamp '2016-01-03 10:00:00')", schema));
+            assertTrue(metastore.updateEventCounts());
+            swapTables("test", "$rebucketing_test");
+
+            // the watermark of the replaced table is not used
+            assertEquals(metastore.getColdStorageWatermark(CONCURRENT_PROJECT_NAME, "test"), Optional.of(Instant.parse("2016-01-03T10:00:00Z")));
+
+            // the copied shards are counted in the days of their events rather than the day they are copied
+            assertTrue(metastore.updateEventCounts());
+            Stats stats = metastore.getStats(ImmutableSet.of(CONCURRENT_PROJECT_NAME)).get(CONCURRENT_PROJECT_NAME);
+            assertEquals(stats.allEvents.longValue(), 3);
+            assertEquals(stats.dailyEvents.longValue(), 0);
+        }
+        finally {
+            metastore.deleteProject(CONCURRENT_PROJECT_NAME);
+        }
+    }
+
+    @Test
+    public void testEventCountsUpdatedByOneNode()
+    {
+        Lock lock = lockService.tryLock("event-count");
+        try {
+            assertFalse(metastore.updateEventCounts());
+        }
+        finally {
+            lock.release();
+        }
+        assertTrue(metastore.updateEventCounts());
+    }
+
+    private void assertEventCounts(long expected)
+    {
+        assertTrue(metastore.updateEventCounts());
+        Stats stats = metastore.getStats(ImmutableSet.of(CONCURRENT_PROJECT_NAME)).get(CONCURRENT_PROJECT_NAME);
+
+        try (Handle handle = new DBI(testingEnvironment.getPrestoMetastore()).open()) {
+            long shardTotal = handle.createQuery("select sum(shards.row_count) from tables " +
+                    "join shards on (shards.table_id = tables.table_id) where tables.schema_name = :project and tables.table_name = 'test'")
+                    .bind("project", CONCURRENT_PROJECT_NAME)
+                    .map(LongMapper.FIRST).first();
+            assertEquals(shardTotal, expected);
+        }
+
+        // all the shards are created today
+        assertEquals(stats.allEvents.longValue(), expected);
+        assertEquals(stats.monthlyEvents.longValue(), expected);
+        assertEquals(stats.dailyEvents.longValue(), expected);
+    }
+
+    /**
+     * Replaces the shards of the table with a new shard the way the Raptor compaction does in the metadata database.
+     */
+    private void compactShards()
+    {
+        try (Handle handle = new DBI(testingEnvironment.getPrestoMetastore()).open()) {
+            handle.inTransaction((transaction, status) -> {
+                long tableId = transaction.createQuery("select table_id from tables where schema_name = :project and table_name = 'test'")
+                        .bind("project", CONCURRENT_PROJECT_NAME)
+                        .map(LongMapper.FIRST).first();
+                List<Long> shards = transaction.createQuery("select shard_id from shards where table_id = :tableId order by shard_id")
+                        .bind("tableId", tableId)
+                        .map(LongMapper.FIRST).list();
+                assertTrue(shards.size() > 1);
+
+                long rows = transaction.createQuery("select sum(row_count) from shards where table_id = :tableId")
+                        .bind("tableId", tableId)
+                        .map(LongMapper.FIRST).first();
+
+                // the new shard is a copy of the first shard that has all the rows
+                List<String> columns = new ArrayList<>();
+                try (Statement statement = transaction.getConnection().createStatement();
+                        ResultSet resultSet = statement.executeQuery("select * from shards where shard_id = " + shards.get(0))) {
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        String column = metaData.getColumnName(i).toLowerCase(ENGLISH);
+                        if (!column.equals("shard_id")) {
+                            columns.add(column);
+                        }
+                    }
+                }
+                String values = columns.stream()
+                        .map(column -> column.equals("shard_uuid") ? ":shardUuid" : column.equals("row_count") ? ":rows" : column)
+                        .collect(Collectors.joining(", "));
+                transaction.createStatement(format("insert into shards (%s) select %s from shards where shard_id = :shardId",
+                        String.join(", ", columns), values))
+                        .bind("shardUuid", uuidToBytes(UUID.randomUUID())).bind("rows", rows).bind("shardId", shards.get(0))
+                        .execute();
+
+                for (Long shardId : shards) {
+                    transaction.createStatement("insert into deleted_shards (shard_uuid, delete_time) " +
+                            "select shard_uuid, current_timestamp from shards where shard_id = :shardId")
+                            .bind("shardId", shardId).execute();
+                    transaction.createStatement("delete from shard_nodes where shard_id = :shardId").bind("shardId", shardId).execute();
+                    transaction.createStatement(format("delete from x_shards_t%d where shard_id = :shardId", tableId)).bind("shardId", shardId).execute();
+                    transaction.createStatement("delete from shards where shard_id = :shardId").bind("shardId", shardId).execute();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Replaces the table with the new table the way the rebucketing does in the metadata database.
+     */
+    private void swapTables(String table, String newTable)
+    {
+        try (Handle handle = new DBI(testingEnvironment.getPrestoMetastore()).open()) {
+            handle.inTransaction((transaction, status) -> {
+                MetadataDao dao = transaction.attach(MetadataDao.class);
+                long tableId = dao.getTableInformation(CONCURRENT_PROJECT_NAME, table).getTableId();
+                long newTableId = dao.getTableInformation(CONCURRENT_PROJECT_NAME, newTable).getTableId();
+                dao.renameTable(tableId, CONCURRENT_PROJECT_NAME, "$rebucketed_" + table);
+                dao.renameTable(newTableId, CONCURRENT_PROJECT_NAME, table);
+                return null;
+            });
+        }
+    }
+
+    private void purgeDeletedShards()
+    {
+        try (Handle handle = new DBI(testingEnvironment.getPrestoMetastore()).open()) {
+            handle.createStatement("delete from deleted_shards").execute();
+        }
+    }
+
+    private static byte[] uuidToBytes(UUID uuid)
+    {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    private static void execute(PrestoQueryExecutor queryExecutor, String query)
+    {
+        QueryResult result = queryExecutor.executeRawStatement(query).getResult().join();
+        assertFalse(result.isFailed(), String.valueOf(result.getError()));
+    }
 }
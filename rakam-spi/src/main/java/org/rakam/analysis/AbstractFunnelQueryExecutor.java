@@ -68,21 +68,30 @@ public abstract class AbstractFunnelQueryExecutor
     {
         Map<String, List<SchemaField>> collections = metastore.getCollections(project);
 
-        String ctes = IntStream.range(0, steps.size())
-                .mapToObj(i -> convertFunnel(
-                        project, connectors.orElse(ImmutableList.of(testDeviceIdExists(steps.get(i), collections) ? "coalesce(cast(%s." + checkTableColumn(projectConfig.getUserColumn()) + " as varchar), _device_id)" : projectConfig.getUserColumn()))
-                                .stream().collect(Collectors.joining(", ")), i,
-                        steps.get(i), dimension, startDate, endDate))
-                .collect(Collectors.joining(" UNION ALL "));
+        String ctes = getStepQueries(project, steps, dimension, startDate, endDate, connectors, collections);
+
+        String query = formatQuery(getTemplate(steps, dimension, window), ctes, dimension, startDate, endDate, zoneId, connectors);
+        return executeFunnel(query, steps, dimension);
+    }
 
+    protected String formatQuery(String template, String stepQueries, Optional<String> dimension, LocalDate startDate, LocalDate endDate, ZoneId zoneId, Optional<List<String>> connectors)
+    {
         String dimensionCol = dimension.map(ValidationUtil::checkTableColumn).map(v -> v + ", ").orElse("");
-        String query = format(getTemplate(steps, dimension, window), dimensionCol, dimensionCol, ctes,
+        return format(template, dimensionCol, dimensionCol, stepQueries,
                 TIMESTAMP_FORMATTER.format(startDate.atStartOfDay(zoneId)),
                 TIMESTAMP_FORMATTER.format(endDate.plusDays(1).atStartOfDay(zoneId)),
                 dimensionCol,
                 connectors.orElse(of(projectConfig.getUserColumn()))
                         .stream().collect(Collectors.joining(", ")),
                 dimension.map(v -> ", 2").orElse(""));
+    }
+
+    /**
+     * Executes the query that returns the deepest step reached and the number of users for it and converts the result
+     * into the cumulative step counts.
+     */
+    protected QueryExecution executeFunnel(String query, List<FunnelStep> steps, Optional<String> dimension)
+    {
         if (dimension.isPresent()) {
             query = String.format("SELECT (CASE WHEN rank > 15 THEN 'Others' ELSE cast(%s as varchar) END) as dimension, step, sum(total) from " +
                             "(select *, row_number() OVER(ORDER BY total DESC) rank from (%s) t) t GROUP BY 1, 2",
@@ -142,6 +151,25 @@ public abstract class AbstractFunnelQueryExecutor
                 });
     }
 
+    /**
+     * Returns the query that has a row with the step index for each event that matches a step. The default implementation
+     * scans the collection of each step separately.
+     */
+    protected String getStepQueries(String project, List<FunnelStep> steps, Optional<String> dimension, LocalDate startDate, LocalDate endDate,
+            Optional<List<String>> connectors, Map<String, List<SchemaField>> collections)
+    {
+        return IntStream.range(0, steps.size())
+                .mapToObj(i -> convertFunnel(project, getConnectorField(steps.get(i), connectors, collections), i,
+                        steps.get(i), dimension, startDate, endDate))
+                .collect(Collectors.joining(" UNION ALL "));
+    }
+
+    protected String getConnectorField(FunnelStep step, Optional<List<String>> connectors, Map<String, List<SchemaField>> collections)
+    {
+        return connectors.orElse(ImmutableList.of(testDeviceIdExists(step, collections) ? "coalesce(cast(%s." + checkTableColumn(projectConfig.getUserColumn()) + " as varchar), _device_id)" : projectConfig.getUserColumn()))
+                .stream().collect(Collectors.joining(", "));
+    }
+
     protected boolean testDeviceIdExists(FunnelStep firstAction, Map<String, List<SchemaField>> collections)
     {
         List<SchemaField> schemaFields = collections.get(firstAction.getCollection());
@@ -0,0 +1,201 @@
+package org.rakam.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Binder;
+import com.google.inject.Scopes;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import org.rakam.config.ConfigManagerCacheConfig;
+
+import javax.inject.Inject;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Caches the configs of the backend {@link ConfigManager}. The writes go through the backend and update the cache
+ * of this node, the other nodes are notified via {@link ConfigInvalidationChannel}. The missing configs are also
+ * cached so that the lookups of the unset configs (FIXED_SCHEMA of most projects) don't hit the backend either.
+ */
+public class CachingConfigManager
+        implements ConfigManager
+{
+    public static final String BACKEND = "config-manager.backend";
+
+    private final ConfigManager delegate;
+    private final ConfigInvalidationChannel channel;
+    private final Cache<ConfigKey, Optional<Object>> cache;
+    private final String nodeId;
+
+    @Inject
+    public CachingConfigManager(@Named(BACKEND) ConfigManager delegate, ConfigInvalidationChannel channel, ConfigManagerCacheConfig config)
+    {
+        this.delegate = delegate;
+        this.channel = channel;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getExpireAfterWrite().toMillis(), MILLISECONDS)
+                .build();
+        this.nodeId = UUID.randomUUID().toString();
+        channel.subscribe(this::invalidate);
+    }
+
+    /**
+     * Binds the backend config manager that can't notify the other nodes. The cache is used only if it's enabled
+     * explicitly since the other nodes are notified only by the in-JVM channel and the configs that are changed on
+     * another node are stale until the cache entry expires.
+     * The config object must be created with {@code buildConfigObject} in the module.
+     */
+    public static void bind(Binder binder, ConfigManagerCacheConfig config, Class<? extends ConfigManager> backend)
+    {
+        bind(binder, Boolean.TRUE.equals(config.getEnabled()), backend, LocalConfigInvalidationChannel.class);
+    }
+
+    /**
+     * Binds the backend config manager with the channel that notifies the other nodes and wraps it with the cache
+     * unless it's disabled, the channel is not bound if the cache is disabled.
+     */
+    public static void bind(Binder binder, ConfigManagerCacheConfig config, Class<? extends ConfigManager> backend,
+            Class<? extends ConfigInvalidationChannel> channel)
+    {
+        bind(binder, !Boolean.FALSE.equals(config.getEnabled()), backend, channel);
+    }
+
+    private static void bind(Binder binder, boolean enabled, Class<? extends ConfigManager> backend,
+            Class<? extends ConfigInvalidationChannel> channel)
+    {
+        if (!enabled) {
+            binder.bind(ConfigManager.class).to(backend);
+            return;
+        }
+
+        binder.bind(ConfigManager.class).annotatedWith(Names.named(BACKEND)).to(backend).in(Scopes.SINGLETON);
+        binder.bind(ConfigInvalidationChannel.class).to(channel).in(Scopes.SINGLETON);
+        binder.bind(ConfigManager.class).to(CachingConfigManager.class).in(Scopes.SINGLETON);
+    }
+
+    @Override
+    public void setup()
+    {
+        delegate.setup();
+    }
+
+    @Override
+    public <T> T getConfig(String project, String configName, Class<T> clazz)
+    {
+        ConfigKey key = new ConfigKey(project, configName);
+        Optional<Object> value;
+        try {
+            // concurrent lookups of the same config wait for a single backend query
+            value = cache.get(key, () -> Optional.ofNullable(delegate.getConfig(project, configName, clazz)));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+
+        if (!value.isPresent()) {
+            return null;
+        }
+
+        if (!clazz.isInstance(value.get())) {
+            // the config is cached with a different type, let the backend deserialize it
+            T config = delegate.getConfig(project, configName, clazz);
+            cache.put(key, Optional.ofNullable(config));
+            return config;
+        }
+
+        return clazz.cast(value.get());
+    }
+
+    @Override
+    public <T> void setConfig(String project, String configName, T value)
+    {
+        delegate.setConfig(project, configName, value);
+        cache.put(new ConfigKey(project, configName), Optional.ofNullable(value));
+        channel.publish(nodeId, project, configName);
+    }
+
+    @Override
+    public <T> T setConfigOnce(String project, String configName, T value)
+    {
+        ConfigKey key = new ConfigKey(project, configName);
+        Optional<Object> cached = cache.getIfPresent(key);
+        if (cached != null && cached.isPresent() && value.getClass().isInstance(cached.get())) {
+            // the config can't be changed by setConfigOnce once it's set
+            return (T) cached.get();
+        }
+
+        T config = delegate.setConfigOnce(project, configName, value);
+        cache.put(key, Optional.ofNullable(config));
+        if (config == value) {
+            channel.publish(nodeId, project, configName);
+        }
+        return config;
+    }
+
+    @Override
+    public void clear()
+    {
+        delegate.clear();
+        cache.invalidateAll();
+        channel.publish(nodeId, null, null);
+    }
+
+    private void invalidate(String source, String project, String configName)
+    {
+        if (nodeId.equals(source)) {
+            return;
+        }
+
+        if (project == null) {
+            cache.invalidateAll();
+        }
+        else if (configName == null) {
+            cache.invalidateAll(cache.asMap().keySet().stream()
+                    .filter(key -> key.project.equals(project))
+                    .collect(Collectors.toList()));
+        }
+        else {
+            cache.invalidate(new ConfigKey(project, configName));
+        }
+    }
+
+    private static class ConfigKey
+    {
+        private final String project;
+        private final String configName;
+
+        private ConfigKey(String project, String configName)
+        {
+            this.project = project;
+            this.configName = configName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ConfigKey)) {
+                return false;
+            }
+
+            ConfigKey configKey = (ConfigKey) o;
+            return project.equals(configKey.project) && configName.equals(configKey.configName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, configName);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.rakam.analysis;
+
+import javax.annotation.Nullable;
+
+/**
+ * Broadcasts config changes to the {@link CachingConfigManager} instances of the other nodes in the cluster.
+ * A null project invalidates all the projects and a null config name invalidates all the configs of the project.
+ */
+public interface ConfigInvalidationChannel
+{
+    void publish(String source, @Nullable String project, @Nullable String configName);
+
+    void subscribe(Listener listener);
+
+    interface Listener
+    {
+        void invalidate(String source, @Nullable String project, @Nullable String configName);
+    }
+}
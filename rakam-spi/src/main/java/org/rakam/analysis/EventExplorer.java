@@ -164,13 +164,15 @@ public interface EventExplorer
         public final Set<AggregationType> aggregations;
         public final Set<String> measures;
         public final String tableName;
+        public final TimestampTransformation granularity;
 
         @JsonCreator
         public OLAPTable(@ApiParam("collections") Set<String> collections,
                 @ApiParam("dimensions") Set<String> dimensions,
                 @ApiParam("aggregations") Set<AggregationType> aggregations,
                 @ApiParam("measures") Set<String> measures,
-                @ApiParam("tableName") String tableName)
+                @ApiParam("tableName") String tableName,
+                @ApiParam(value = "granularity", required = false) TimestampTransformation granularity)
         {
             checkCollection(tableName);
             this.collections = collections;
@@ -178,6 +180,11 @@ public interface EventExplorer
             this.aggregations = aggregations;
             this.measures = measures;
             this.tableName = tableName;
+            // the tables that are created before the granularity became configurable are daily rollups
+            this.granularity = granularity == null ? TimestampTransformation.DAY : granularity;
+            if (!this.granularity.getCategory().equals(TimestampTransformation.DAY.getCategory())) {
+                throw new RakamException("Granularity must be a date period", BAD_REQUEST);
+            }
         }
     }
 }
@@ -23,6 +23,22 @@ public interface FunnelQueryExecutor
             Optional<String> dimension, LocalDate startDate,
             LocalDate endDate, Optional<FunnelWindow> window, ZoneId zoneId, Optional<List<String>> connectors, Optional<Boolean> ordered);
 
+    /**
+     * If consecutive is set, a step must be followed by the next step without any other event in between
+     * from the collections of the funnel.
+     */
+    default QueryExecution query(String project,
+            List<FunnelStep> steps,
+            Optional<String> dimension, LocalDate startDate,
+            LocalDate endDate, Optional<FunnelWindow> window, ZoneId zoneId, Optional<List<String>> connectors, Optional<Boolean> ordered,
+            boolean consecutive)
+    {
+        if (consecutive) {
+            throw new RakamException("Consecutive funnel query is not supported", HttpResponseStatus.BAD_REQUEST);
+        }
+        return query(project, steps, dimension, startDate, endDate, window, zoneId, connectors, ordered);
+    }
+
     enum WindowType
     {
         DAY, WEEK, MONTH;
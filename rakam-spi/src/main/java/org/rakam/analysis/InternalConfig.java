@@ -4,7 +4,8 @@ import org.rakam.collection.FieldType;
 
 public enum InternalConfig
 {
-    USER_TYPE(FieldType.STRING, false), FIXED_SCHEMA(FieldType.BOOLEAN, true);
+    USER_TYPE(FieldType.STRING, false), FIXED_SCHEMA(FieldType.BOOLEAN, true), ALL_TABLE_CHECKPOINT(FieldType.LONG, false),
+    BUCKET_COUNT(FieldType.INTEGER, true), ORDERING(FieldType.ARRAY_STRING, true);
 
     private final FieldType type;
     private final boolean dynamic;
@@ -0,0 +1,28 @@
+package org.rakam.analysis;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the invalidations to the listeners in the same JVM. It's enough for a single node deployment
+ * and it's used in the tests to simulate multiple nodes.
+ */
+public class LocalConfigInvalidationChannel
+        implements ConfigInvalidationChannel
+{
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(String source, String project, String configName)
+    {
+        for (Listener listener : listeners) {
+            listener.invalidate(source, project, configName);
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener)
+    {
+        listeners.add(listener);
+    }
+}
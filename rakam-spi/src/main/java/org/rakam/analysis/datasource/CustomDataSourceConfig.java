@@ -1,10 +1,22 @@
 package org.rakam.analysis.datasource;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CustomDataSourceConfig
 {
     private boolean enabled;
+    private int maxConnectionsPerSource = 2;
+    private Duration connectionIdleTimeout = new Duration(5, MINUTES);
+    private Duration metadataCacheTtl = new Duration(5, MINUTES);
+    private Duration metadataTimeout = new Duration(10, SECONDS);
+    private Duration networkTimeout = new Duration(30, SECONDS);
+    private int metadataThreads = 16;
+    private int metadataQueueSize = 1000;
 
     @Config("custom-data-source.enabled")
     public CustomDataSourceConfig setEnabled(boolean enabled) {
@@ -16,4 +28,93 @@ public class CustomDataSourceConfig
     {
         return enabled;
     }
+
+    @Config("custom-data-source.max-connections-per-source")
+    public CustomDataSourceConfig setMaxConnectionsPerSource(int maxConnectionsPerSource)
+    {
+        this.maxConnectionsPerSource = maxConnectionsPerSource;
+        return this;
+    }
+
+    public int getMaxConnectionsPerSource()
+    {
+        return maxConnectionsPerSource;
+    }
+
+    @Config("custom-data-source.connection-idle-timeout")
+    public CustomDataSourceConfig setConnectionIdleTimeout(Duration connectionIdleTimeout)
+    {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+        return this;
+    }
+
+    public Duration getConnectionIdleTimeout()
+    {
+        return connectionIdleTimeout;
+    }
+
+    @Config("custom-data-source.metadata-cache-ttl")
+    @ConfigDescription("The cache is local to each node, a data source that is changed on another node is visible " +
+            "to this node after this period")
+    public CustomDataSourceConfig setMetadataCacheTtl(Duration metadataCacheTtl)
+    {
+        this.metadataCacheTtl = metadataCacheTtl;
+        return this;
+    }
+
+    public Duration getMetadataCacheTtl()
+    {
+        return metadataCacheTtl;
+    }
+
+    @Config("custom-data-source.metadata-timeout")
+    public CustomDataSourceConfig setMetadataTimeout(Duration metadataTimeout)
+    {
+        this.metadataTimeout = metadataTimeout;
+        return this;
+    }
+
+    public Duration getMetadataTimeout()
+    {
+        return metadataTimeout;
+    }
+
+    @Config("custom-data-source.network-timeout")
+    @ConfigDescription("The socket timeout of the connections to the data sources so that the metadata requests " +
+            "that time out don't keep the threads waiting on an unresponsive database")
+    public CustomDataSourceConfig setNetworkTimeout(Duration networkTimeout)
+    {
+        this.networkTimeout = networkTimeout;
+        return this;
+    }
+
+    public Duration getNetworkTimeout()
+    {
+        return networkTimeout;
+    }
+
+    @Config("custom-data-source.metadata-threads")
+    public CustomDataSourceConfig setMetadataThreads(int metadataThreads)
+    {
+        this.metadataThreads = metadataThreads;
+        return this;
+    }
+
+    public int getMetadataThreads()
+    {
+        return metadataThreads;
+    }
+
+    @Config("custom-data-source.metadata-queue-size")
+    @ConfigDescription("The maximum number of the metadata requests that wait for a thread, the other requests fail")
+    public CustomDataSourceConfig setMetadataQueueSize(int metadataQueueSize)
+    {
+        this.metadataQueueSize = metadataQueueSize;
+        return this;
+    }
+
+    public int getMetadataQueueSize()
+    {
+        return metadataQueueSize;
+    }
 }
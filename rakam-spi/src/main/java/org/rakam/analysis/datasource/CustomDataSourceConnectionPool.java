@@ -0,0 +1,209 @@
+package org.rakam.analysis.datasource;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.rakam.util.JsonHelper;
+
+import javax.sql.DataSource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps a small connection pool for each data source of the projects. The pool of a data source is closed when
+ * the data source is removed, or replaced when the type or the options of the data source are changed.
+ * The connections have a network timeout so a request to an unresponsive database can't block a thread forever.
+ */
+public class CustomDataSourceConnectionPool
+{
+    private final CustomDataSourceConfig config;
+    private final Map<SourceKey, Pool> pools = new ConcurrentHashMap<>();
+
+    public CustomDataSourceConnectionPool(CustomDataSourceConfig config)
+    {
+        this.config = config;
+    }
+
+    public Connection getConnection(String project, CustomDataSource source)
+            throws SQLException
+    {
+        SourceKey key = new SourceKey(project, source.schemaName);
+        String fingerprint = source.type + JsonHelper.encode(source.options);
+
+        Pool pool = pools.compute(key, (k, existing) -> {
+            if (existing != null && existing.fingerprint.equals(fingerprint)) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.dataSource.close();
+            }
+            return new Pool(fingerprint, createDataSource(project, source));
+        });
+
+        return pool.dataSource.getConnection();
+    }
+
+    public void invalidate(String project, String schemaName)
+    {
+        Pool pool = pools.remove(new SourceKey(project, schemaName));
+        if (pool != null) {
+            pool.dataSource.close();
+        }
+    }
+
+    public void close()
+    {
+        for (SourceKey key : pools.keySet()) {
+            invalidate(key.project, key.schemaName);
+        }
+    }
+
+    private HikariDataSource createDataSource(String project, CustomDataSource source)
+    {
+        SupportedCustomDatabase database = SupportedCustomDatabase.getAdapter(source.type);
+
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setDataSource(new AdapterDataSource(database.getDataSource(), source.options,
+                (int) config.getNetworkTimeout().toMillis()));
+        hikariConfig.setPoolName(format("custom-data-source-%s-%s", project, source.schemaName));
+        hikariConfig.setMaximumPoolSize(config.getMaxConnectionsPerSource());
+        hikariConfig.setMinimumIdle(0);
+        hikariConfig.setIdleTimeout(config.getConnectionIdleTimeout().toMillis());
+        hikariConfig.setConnectionTimeout(config.getMetadataTimeout().toMillis());
+        // the external database may be unavailable, the connections are opened when they're needed
+        hikariConfig.setInitializationFailFast(false);
+        return new HikariDataSource(hikariConfig);
+    }
+
+    private static class Pool
+    {
+        private final String fingerprint;
+        private final HikariDataSource dataSource;
+
+        private Pool(String fingerprint, HikariDataSource dataSource)
+        {
+            this.fingerprint = fingerprint;
+            this.dataSource = dataSource;
+        }
+    }
+
+    private static class SourceKey
+    {
+        private final String project;
+        private final String schemaName;
+
+        private SourceKey(String project, String schemaName)
+        {
+            this.project = project;
+            this.schemaName = schemaName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            SourceKey sourceKey = (SourceKey) o;
+            return project.equals(sourceKey.project) && schemaName.equals(sourceKey.schemaName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, schemaName);
+        }
+    }
+
+    private static class AdapterDataSource
+            implements DataSource
+    {
+        private final SupportedCustomDatabase.CDataSource<JDBCSchemaConfig> adapter;
+        private final JDBCSchemaConfig options;
+        private final int networkTimeoutMillis;
+
+        private AdapterDataSource(SupportedCustomDatabase.CDataSource<JDBCSchemaConfig> adapter, JDBCSchemaConfig options,
+                int networkTimeoutMillis)
+        {
+            this.adapter = adapter;
+            this.options = options;
+            this.networkTimeoutMillis = networkTimeoutMillis;
+        }
+
+        @Override
+        public Connection getConnection()
+                throws SQLException
+        {
+            Connection connection = adapter.openConnection(options);
+            try {
+                // the pool restores this timeout after its own checks
+                connection.setNetworkTimeout(MoreExecutors.directExecutor(), networkTimeoutMillis);
+            }
+            catch (SQLFeatureNotSupportedException e) {
+                // the driver doesn't support socket timeouts, the requests are still bounded by the metadata timeout
+            }
+            return connection;
+        }
+
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PrintWriter getLogWriter()
+        {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out)
+        {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds)
+        {
+        }
+
+        @Override
+        public int getLoginTimeout()
+        {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger()
+                throws SQLFeatureNotSupportedException
+        {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface)
+                throws SQLException
+        {
+            throw new SQLException("DataSource is not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface)
+        {
+            return false;
+        }
+    }
+}
@@ -2,8 +2,12 @@ package org.rakam.analysis.datasource;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -20,6 +24,7 @@ import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.ws.rs.Path;
@@ -30,24 +35,68 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.util.JDBCUtil.fromSql;
 
+/**
+ * Keeps the custom data sources of the projects. The metadata of the data sources is fetched on a bounded thread pool
+ * and cached for {@link CustomDataSourceConfig#getMetadataCacheTtl()}. The caches and the connection pools are local
+ * to each node: adding or removing a data source invalidates them only on the node that serves the request, the other
+ * nodes see the change when their cache entries expire.
+ */
 public class CustomDataSourceService
 {
     private final DBI dbi;
+    private final CustomDataSourceConfig config;
+    private final CustomDataSourceConnectionPool connectionPool;
+    private final ThreadPoolExecutor metadataExecutor;
+    // keyed by project and schema name
+    private final Cache<List<String>, Map<String, List<SchemaField>>> tableCache;
+    // keyed by project, schema name and table name
+    private final Cache<List<String>, List<SchemaField>> columnCache;
+
+    public CustomDataSourceService(JDBCPoolDataSource dataSource)
+    {
+        this(dataSource, new CustomDataSourceConfig());
+    }
 
     @Inject
-    public CustomDataSourceService(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource)
+    public CustomDataSourceService(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, CustomDataSourceConfig config)
     {
         this.dbi = new DBI(dataSource);
+        this.config = config;
+        this.connectionPool = new CustomDataSourceConnectionPool(config);
+        this.metadataExecutor = new ThreadPoolExecutor(config.getMetadataThreads(), config.getMetadataThreads(),
+                60L, SECONDS,
+                new LinkedBlockingQueue<>(config.getMetadataQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("custom-data-source-metadata-%d").setDaemon(true).build());
+        this.metadataExecutor.allowCoreThreadTimeOut(true);
+        this.tableCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getMetadataCacheTtl().toMillis(), MILLISECONDS)
+                .build();
+        this.columnCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(config.getMetadataCacheTtl().toMillis(), MILLISECONDS)
+                .build();
     }
 
     @PostConstruct
@@ -73,6 +122,13 @@ public class CustomDataSourceService
         }
     }
 
+    @PreDestroy
+    public void destroy()
+    {
+        metadataExecutor.shutdownNow();
+        connectionPool.close();
+    }
+
     public static class CustomDataSourceList
     {
         public final List<CustomDataSource> customDataSources;
@@ -109,59 +165,84 @@ public class CustomDataSourceService
         }
     }
 
+    /**
+     * The response of /custom-data-source/schema. It used to be the map of the schemas, the schemas are now in
+     * {@code schemas} and the data sources that can't be reached are in {@code errors} with their error messages.
+     */
+    public static class CustomDataSourceSchemas
+    {
+        public final Map<String, Map<String, List<SchemaField>>> schemas;
+        public final Map<String, String> errors;
+
+        @JsonCreator
+        public CustomDataSourceSchemas(Map<String, Map<String, List<SchemaField>>> schemas, Map<String, String> errors)
+        {
+            this.schemas = schemas;
+            this.errors = errors;
+        }
+    }
+
     public List<SchemaField> schemaTable(String project, String schema, String table)
     {
         CustomDataSource customDataSource = getDatabase(project, schema);
-        List<SchemaField> builder = new ArrayList<>();
-
-        SupportedCustomDatabase source = SupportedCustomDatabase.getAdapter(customDataSource.type);
-        try (Connection conn = source.getDataSource().openConnection(customDataSource.options)) {
-            ResultSet dbColumns = conn.getMetaData().getColumns(null, customDataSource.options.getSchema(), table, null);
+        List<String> key = ImmutableList.of(project, customDataSource.schemaName, table);
 
-            while (dbColumns.next()) {
-                String columnName = dbColumns.getString("COLUMN_NAME");
-                FieldType fieldType;
-                try {
-                    fieldType = fromSql(dbColumns.getInt("DATA_TYPE"), dbColumns.getString("TYPE_NAME"));
-                }
-                catch (UnsupportedOperationException e) {
-                    continue;
-                }
-                builder.add(new SchemaField(columnName, fieldType));
-            }
+        Future<List<SchemaField>> future;
+        try {
+            future = metadataExecutor.submit(() -> columnCache.get(key, () -> fetchColumns(project, customDataSource, table)));
+        }
+        catch (RejectedExecutionException e) {
+            throw new RakamException("Too many pending data source requests", SERVICE_UNAVAILABLE);
+        }
 
-            return builder;
+        try {
+            return future.get(config.getMetadataTimeout().toMillis(), MILLISECONDS);
         }
-        catch (SQLException e) {
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw Throwables.propagate(e);
         }
+        catch (ExecutionException | TimeoutException e) {
+            future.cancel(true);
+            throw new RakamException(getErrorMessage(e), BAD_GATEWAY);
+        }
     }
 
-    public Map<String, Map<String, List<SchemaField>>> schemaDatabases(String project)
+    /**
+     * Fetches the tables of the data sources of the project in parallel. The data sources that fail or don't respond
+     * in time are reported in the errors of the result.
+     */
+    public CustomDataSourceSchemas schemaDatabases(String project)
     {
-        ImmutableMap.Builder<String, Map<String, List<SchemaField>>> schemas = ImmutableMap.builder();
-
         CustomDataSourceList customDataSourceList = listDatabases(project);
-        for (CustomDataSource customDataSource : customDataSourceList.customDataSources) {
-            Map<String, List<SchemaField>> builder = new HashMap<>();
 
-            SupportedCustomDatabase source = SupportedCustomDatabase.getAdapter(customDataSource.type);
-            try (Connection conn = source.getDataSource().openConnection(customDataSource.options)) {
-                ResultSet dbColumns = conn.getMetaData().getTables(null, customDataSource.options.getSchema(), null, null);
-
-                while (dbColumns.next()) {
-                    if (!"TABLE".equals(dbColumns.getString("table_type"))) {
-                        continue;
-                    }
-                    builder.computeIfAbsent(dbColumns.getString("table_name"), (k) -> new ArrayList<>());
-                }
+        Map<String, Future<Map<String, List<SchemaField>>>> futures = new LinkedHashMap<>();
+        Map<String, String> errors = new HashMap<>();
+        for (CustomDataSource customDataSource : customDataSourceList.customDataSources) {
+            List<String> key = ImmutableList.of(project, customDataSource.schemaName);
+            try {
+                futures.put(customDataSource.schemaName, metadataExecutor.submit(() ->
+                        tableCache.get(key, () -> fetchTables(project, customDataSource))));
             }
-            catch (SQLException e) {
-                // TODO: report error
-                continue;
+            catch (RejectedExecutionException e) {
+                errors.put(customDataSource.schemaName, "Too many pending data source requests");
             }
+        }
 
-            schemas.put(customDataSource.schemaName, builder);
+        ImmutableMap.Builder<String, Map<String, List<SchemaField>>> schemas = ImmutableMap.builder();
+        long deadline = System.nanoTime() + config.getMetadataTimeout().roundTo(NANOSECONDS);
+        for (Map.Entry<String, Future<Map<String, List<SchemaField>>>> entry : futures.entrySet()) {
+            try {
+                schemas.put(entry.getKey(), entry.getValue().get(Math.max(0, deadline - System.nanoTime()), NANOSECONDS));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+            catch (ExecutionException | TimeoutException e) {
+                entry.getValue().cancel(true);
+                errors.put(entry.getKey(), getErrorMessage(e));
+            }
         }
 
         if (!customDataSourceList.customFileSources.isEmpty()) {
@@ -173,7 +254,69 @@ public class CustomDataSourceService
             }
         }
 
-        return schemas.build();
+        return new CustomDataSourceSchemas(schemas.build(), errors);
+    }
+
+    private Map<String, List<SchemaField>> fetchTables(String project, CustomDataSource customDataSource)
+            throws SQLException
+    {
+        Map<String, List<SchemaField>> builder = new HashMap<>();
+        try (Connection conn = connectionPool.getConnection(project, customDataSource)) {
+            ResultSet dbColumns = conn.getMetaData().getTables(null, customDataSource.options.getSchema(), null, null);
+
+            while (dbColumns.next()) {
+                if (!"TABLE".equals(dbColumns.getString("table_type"))) {
+                    continue;
+                }
+                builder.computeIfAbsent(dbColumns.getString("table_name"), (k) -> new ArrayList<>());
+            }
+        }
+        return builder;
+    }
+
+    private List<SchemaField> fetchColumns(String project, CustomDataSource customDataSource, String table)
+            throws SQLException
+    {
+        List<SchemaField> builder = new ArrayList<>();
+        try (Connection conn = connectionPool.getConnection(project, customDataSource)) {
+            ResultSet dbColumns = conn.getMetaData().getColumns(null, customDataSource.options.getSchema(), table, null);
+
+            while (dbColumns.next()) {
+                String columnName = dbColumns.getString("COLUMN_NAME");
+                FieldType fieldType;
+                try {
+                    fieldType = fromSql(dbColumns.getInt("DATA_TYPE"), dbColumns.getString("TYPE_NAME"));
+                }
+                catch (UnsupportedOperationException e) {
+                    continue;
+                }
+                builder.add(new SchemaField(columnName, fieldType));
+            }
+        }
+        return builder;
+    }
+
+    private String getErrorMessage(Exception e)
+    {
+        if (e instanceof TimeoutException) {
+            return format("The data source did not respond in %s", config.getMetadataTimeout());
+        }
+
+        // the cache wraps the exceptions of the loaders
+        Throwable cause = e;
+        while ((cause instanceof ExecutionException || cause instanceof UncheckedExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return Optional.ofNullable(cause.getMessage()).orElse(cause.getClass().getName());
+    }
+
+    // only the caches of this node are invalidated
+    private void invalidate(String project, String schemaName)
+    {
+        String schema = schemaName.toLowerCase(Locale.ENGLISH);
+        connectionPool.invalidate(project, schema);
+        tableCache.invalidate(ImmutableList.of(project, schema));
+        columnCache.asMap().keySet().removeIf(key -> key.get(0).equals(project) && key.get(1).equals(schema));
     }
 
     public CustomDataSource getDatabase(@Named("project") String project, String schema)
@@ -233,6 +376,7 @@ public class CustomDataSourceService
 
     public SuccessMessage addDatabase(@Named("project") String project, CustomDataSource hook)
     {
+        invalidate(project, hook.schemaName);
         try (Handle handle = dbi.open()) {
             try {
                 handle.createStatement("INSERT INTO custom_data_source (project, schema_name, type, options) " +
@@ -322,6 +466,7 @@ public class CustomDataSourceService
                     .bind("project", project)
                     .bind("schema_name", schemaName)
                     .execute();
+            invalidate(project, schemaName);
 
             if (execute == 0) {
                 throw new RakamException("Custom database not found", NOT_FOUND);
@@ -4,18 +4,27 @@ import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents.ContinuousQueryCreatedEvent;
+import org.rakam.plugin.SystemEvents.ContinuousQueryDeletedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewCreatedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewDeletedEvent;
 import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.Histogram;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
@@ -41,6 +50,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static java.lang.String.format;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.metrics.Histogram.LATENCY_BUCKETS;
 
 @Singleton
 public class JDBCQueryMetadata
@@ -49,6 +59,9 @@ public class JDBCQueryMetadata
     private final DBI dbi;
     private final LoadingCache<ProjectCollection, MaterializedView> materializedViewCache;
     private final Clock clock;
+    private final EventBus eventBus;
+    private final MetricFamily<Histogram> refreshTime;
+    private final MetricFamily<Counter> failedRefreshes;
 
     private ResultSetMapper<MaterializedView> materializedViewMapper = (index, r, ctx) -> {
         Long update_interval = r.getLong("update_interval");
@@ -69,13 +82,19 @@ public class JDBCQueryMetadata
                     JsonHelper.read(r.getString(4), List.class),
                     JsonHelper.read(r.getString(5), Map.class));
 
+    public JDBCQueryMetadata(JDBCPoolDataSource dataSource, Clock clock, EventBus eventBus)
+    {
+        this(dataSource, clock, eventBus, new MetricRegistry());
+    }
+
     @Inject
-    public JDBCQueryMetadata(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Clock clock)
+    public JDBCQueryMetadata(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Clock clock, EventBus eventBus, MetricRegistry registry)
     {
         dbi = new DBI(dataSource);
         this.clock = clock;
+        this.eventBus = eventBus;
 
-        materializedViewCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, MaterializedView>()
+        materializedViewCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).recordStats().build(new CacheLoader<ProjectCollection, MaterializedView>()
         {
             @Override
             public MaterializedView load(ProjectCollection key)
@@ -94,6 +113,12 @@ public class JDBCQueryMetadata
                 }
             }
         });
+
+        registry.cache("materialized_view", materializedViewCache);
+        refreshTime = registry.histogram("rakam_materialized_view_refresh_seconds",
+                "Time spent for refreshing the materialized views", "project", LATENCY_BUCKETS);
+        failedRefreshes = registry.counter("rakam_materialized_view_failed_refreshes_total",
+                "Number of the materialized view refreshes that are failed", "project");
     }
 
     @PostConstruct
@@ -163,6 +188,7 @@ public class JDBCQueryMetadata
                 throw new AlreadyExistsException("Materialized view", BAD_REQUEST);
             }
         }
+        eventBus.post(new MaterializedViewCreatedEvent(project, materializedView));
     }
 
     @Override
@@ -182,7 +208,12 @@ public class JDBCQueryMetadata
                 return false;
             }
 
+            long startTime = System.nanoTime();
             releaseLock.whenComplete((success, ex) -> {
+                refreshTime.get(project).addElapsed(startTime);
+                if (success == null) {
+                    failedRefreshes.get(project).increment();
+                }
                 if (success != null) {
                     view.lastUpdate = success;
                     long lastUpdate = view.lastUpdate.getEpochSecond();
@@ -233,6 +264,7 @@ public class JDBCQueryMetadata
                 throw new RakamException(e.getCause().getMessage(), BAD_REQUEST);
             }
         }
+        eventBus.post(new ContinuousQueryCreatedEvent(project, report));
     }
 
     @Override
@@ -243,6 +275,7 @@ public class JDBCQueryMetadata
                     .bind("project", project)
                     .bind("name", tableName).execute();
         }
+        eventBus.post(new ContinuousQueryDeletedEvent(project, tableName));
     }
 
     @Override
@@ -277,6 +310,7 @@ public class JDBCQueryMetadata
                     .bind("project", project)
                     .bind("name", tableName).execute();
         }
+        eventBus.post(new MaterializedViewDeletedEvent(project, tableName));
     }
 
     @Override
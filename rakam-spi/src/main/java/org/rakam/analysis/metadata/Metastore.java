@@ -3,9 +3,11 @@ package org.rakam.analysis.metadata;
 import org.rakam.collection.SchemaField;
 import org.rakam.util.NotExistsException;
 
+import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 
@@ -28,6 +30,15 @@ public interface Metastore {
 
     default void setup() {}
 
+    /**
+     * Returns the latest event time in the cold storage of the collection: the cold storage doesn't have events after
+     * the watermark. The hot storage may still have events before it because the events are not moved in event time
+     * order. Empty if the collection is not tiered or the watermark is not known, in which case the queries read both tiers.
+     */
+    default Optional<Instant> getColdStorageWatermark(String project, String collection) {
+        return Optional.empty();
+    }
+
     class Stats {
         public Long allEvents;
         public Long monthlyEvents;
@@ -0,0 +1,58 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.annotation.Nullable;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+public class ConfigManagerCacheConfig
+{
+    private Boolean enabled;
+    private long maximumSize = 100_000;
+    private Duration expireAfterWrite = new Duration(10, MINUTES);
+
+    @Config("config-manager.cache.enabled")
+    @ConfigDescription("Caches the configs in memory. It's enabled by default only if the changes are sent to the " +
+            "other nodes, i.e. the metadata store is Postgresql")
+    public ConfigManagerCacheConfig setEnabled(Boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @Nullable
+    public Boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("config-manager.cache.max-size")
+    public ConfigManagerCacheConfig setMaximumSize(long maximumSize)
+    {
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    public long getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    @Config("config-manager.cache.expire-after-write")
+    @ConfigDescription("Upper bound of the staleness of the cached configs. The changes are sent to the other nodes " +
+            "only if the metadata store is Postgresql; if the cache is enabled explicitly with the MySQL and Dynamodb " +
+            "config managers, the other nodes see a change after this duration")
+    public ConfigManagerCacheConfig setExpireAfterWrite(Duration expireAfterWrite)
+    {
+        this.expireAfterWrite = expireAfterWrite;
+        return this;
+    }
+
+    public Duration getExpireAfterWrite()
+    {
+        return expireAfterWrite;
+    }
+}
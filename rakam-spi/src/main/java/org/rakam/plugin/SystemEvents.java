@@ -59,4 +59,44 @@ public final class SystemEvents {
             this.fields = fields;
         }
     }
+
+    public static class MaterializedViewCreatedEvent {
+        public final String project;
+        public final MaterializedView materializedView;
+
+        public MaterializedViewCreatedEvent(String project, MaterializedView materializedView) {
+            this.project = project;
+            this.materializedView = materializedView;
+        }
+    }
+
+    public static class MaterializedViewDeletedEvent {
+        public final String project;
+        public final String tableName;
+
+        public MaterializedViewDeletedEvent(String project, String tableName) {
+            this.project = project;
+            this.tableName = tableName;
+        }
+    }
+
+    public static class ContinuousQueryCreatedEvent {
+        public final String project;
+        public final ContinuousQuery continuousQuery;
+
+        public ContinuousQueryCreatedEvent(String project, ContinuousQuery continuousQuery) {
+            this.project = project;
+            this.continuousQuery = continuousQuery;
+        }
+    }
+
+    public static class ContinuousQueryDeletedEvent {
+        public final String project;
+        public final String tableName;
+
+        public ContinuousQueryDeletedEvent(String project, String tableName) {
+            this.project = project;
+            this.tableName = tableName;
+        }
+    }
 }
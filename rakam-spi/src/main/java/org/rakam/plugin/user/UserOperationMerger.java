@@ -0,0 +1,211 @@
+package org.rakam.plugin.user;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import org.rakam.util.RakamException;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+
+/**
+ * Folds a list of user operations into a single change per (user, property) so that the storage
+ * can apply the batch with a single write per user instead of one write per operation.
+ * The operations are merged in the order they are received; the order of the property kinds
+ * within a single operation is set, set once, unset and increment.
+ */
+public final class UserOperationMerger
+{
+    private UserOperationMerger()
+    {
+    }
+
+    public static Collection<MergedUser> merge(List<? extends ISingleUserBatchOperation> operations, Function<String, String> propertyMapper)
+    {
+        Map<String, MergedUser> users = new LinkedHashMap<>();
+
+        for (ISingleUserBatchOperation operation : operations) {
+            if (operation.getUser() == null) {
+                throw new RakamException("User id is not set.", BAD_REQUEST);
+            }
+
+            MergedUser user = users.computeIfAbsent(operation.getUser().toString(),
+                    k -> new MergedUser(operation.getUser()));
+
+            if (operation.getSetProperties() != null) {
+                Iterator<Map.Entry<String, JsonNode>> fields = operation.getSetProperties().fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> entry = fields.next();
+                    String key = propertyMapper.apply(entry.getKey());
+                    if (key.equals("created_at")) {
+                        user.setCreatedAt(entry.getValue());
+                    }
+                    else {
+                        user.get(key).set(entry.getValue());
+                    }
+                }
+            }
+            if (operation.getSetPropertiesOnce() != null) {
+                Iterator<Map.Entry<String, JsonNode>> fields = operation.getSetPropertiesOnce().fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> entry = fields.next();
+                    String key = propertyMapper.apply(entry.getKey());
+                    if (key.equals("created_at")) {
+                        user.setCreatedAt(entry.getValue());
+                    }
+                    else {
+                        user.get(key).setOnce(entry.getValue());
+                    }
+                }
+            }
+            if (operation.getUnsetProperties() != null) {
+                for (String property : operation.getUnsetProperties()) {
+                    String key = propertyMapper.apply(property);
+                    if (!key.equals("created_at")) {
+                        user.get(key).set(NullNode.getInstance());
+                    }
+                }
+            }
+            if (operation.getIncrementProperties() != null) {
+                for (Map.Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    user.get(propertyMapper.apply(entry.getKey())).increment(entry.getValue());
+                }
+            }
+        }
+
+        return users.values();
+    }
+
+    public static boolean isNull(JsonNode value)
+    {
+        return value == null || value.isNull();
+    }
+
+    public enum Operation
+    {
+        NONE(0), SET(1), SET_ONCE(2);
+
+        private final int code;
+
+        Operation(int code)
+        {
+            this.code = code;
+        }
+
+        public int getCode()
+        {
+            return code;
+        }
+    }
+
+    public static class MergedUser
+    {
+        private final Object id;
+        private final Map<String, PropertyChange> properties;
+        private JsonNode createdAt;
+
+        public MergedUser(Object id)
+        {
+            this.id = id;
+            this.properties = new LinkedHashMap<>();
+        }
+
+        public Object getId()
+        {
+            return id;
+        }
+
+        public JsonNode getCreatedAt()
+        {
+            return createdAt;
+        }
+
+        public Map<String, PropertyChange> getProperties()
+        {
+            return properties;
+        }
+
+        private void setCreatedAt(JsonNode value)
+        {
+            // created_at is never updated once the user is created so the first value wins.
+            if (createdAt == null && !isNull(value)) {
+                createdAt = value;
+            }
+        }
+
+        private PropertyChange get(String property)
+        {
+            return properties.computeIfAbsent(property, k -> new PropertyChange());
+        }
+    }
+
+    /**
+     * The final value of the property is computed as:
+     * SET: value, SET_ONCE: coalesce(current, value), NONE: current
+     * and if the increment is not null, the increment is added to the result.
+     */
+    public static class PropertyChange
+    {
+        private Operation operation = Operation.NONE;
+        private JsonNode value;
+        private Double increment;
+
+        public static PropertyChange ofSetOnce(JsonNode value)
+        {
+            PropertyChange change = new PropertyChange();
+            change.setOnce(value);
+            return change;
+        }
+
+        public Operation getOperation()
+        {
+            return operation;
+        }
+
+        public JsonNode getValue()
+        {
+            return value;
+        }
+
+        public Double getIncrement()
+        {
+            return increment;
+        }
+
+        private void set(JsonNode value)
+        {
+            this.operation = Operation.SET;
+            this.value = isNull(value) ? NullNode.getInstance() : value;
+            this.increment = null;
+        }
+
+        private void setOnce(JsonNode value)
+        {
+            // the value can't be null after an increment so set once is no-op
+            if (isNull(value) || increment != null) {
+                return;
+            }
+
+            if (operation == Operation.NONE) {
+                this.operation = Operation.SET_ONCE;
+                this.value = value;
+            }
+            else if (operation == Operation.SET && isNull(this.value)) {
+                this.value = value;
+            }
+        }
+
+        private void increment(double value)
+        {
+            this.increment = increment == null ? value : increment + value;
+        }
+    }
+}
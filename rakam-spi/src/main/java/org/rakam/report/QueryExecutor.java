@@ -1,9 +1,11 @@
 package org.rakam.report;
 
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
 
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
 public interface QueryExecutor
 {
@@ -13,6 +15,14 @@ public interface QueryExecutor
         return executeRawQuery(sqlQuery);
     }
 
+    /**
+     * Executes a query of the project, the executors may use the project in order to limit the resources that the
+     * queries of a project can use.
+     */
+    default QueryExecution executeRawQuery(String project, String sqlQuery, Map<String, String> sessionParameters) {
+        return executeRawQuery(sqlQuery, sessionParameters);
+    }
+
     default QueryExecution executeRawStatement(String sqlQuery, Map<String, String> sessionParameters) {
         return executeRawStatement(sqlQuery);
     }
@@ -20,4 +30,12 @@ public interface QueryExecutor
     QueryExecution executeRawStatement(String sqlQuery);
 
     String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema);
+
+    /**
+     * Returns the table name mapper that is used while the statement is formatted. The executors may analyze the
+     * statement in order to optimize the table references.
+     */
+    default Function<QualifiedName, String> getTableNameMapper(String project, Statement statement, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema) {
+        return name -> formatTableReference(project, name, sample, sessionParameters, defaultSchema);
+    }
 }
@@ -20,6 +20,10 @@ import org.rakam.util.LogUtil;
 import org.rakam.util.MaterializedViewNotExists;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.Histogram;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
 
 import java.time.Clock;
 import java.time.Instant;
@@ -36,6 +40,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static org.rakam.report.QueryResult.EXECUTION_TIME;
+import static org.rakam.util.metrics.Histogram.LATENCY_BUCKETS;
 
 public class QueryExecutorService
 {
@@ -47,15 +52,26 @@ public class QueryExecutorService
     private final MaterializedViewService materializedViewService;
     private final Metastore metastore;
     private final char escapeIdentifier;
+    private final MetricFamily<Histogram> executionTime;
+    private final MetricFamily<Counter> failedQueries;
     private volatile Set<String> projectCache;
 
+    public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, char escapeIdentifier)
+    {
+        this(executor, metastore, materializedViewService, clock, escapeIdentifier, new MetricRegistry());
+    }
+
     @Inject
-    public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier)
+    public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier, MetricRegistry registry)
     {
         this.executor = executor;
         this.materializedViewService = materializedViewService;
         this.metastore = metastore;
         this.escapeIdentifier = escapeIdentifier;
+
+        this.executionTime = registry.histogram("rakam_query_execution_seconds",
+                "Time spent for executing the queries, including the time that they wait in the queue", "project", LATENCY_BUCKETS);
+        this.failedQueries = registry.counter("rakam_failed_queries_total", "Number of the queries that are failed", "project");
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit)
@@ -84,7 +100,7 @@ public class QueryExecutorService
                 .collect(Collectors.toList());
 
         if (queryExecutions.isEmpty()) {
-            QueryExecution execution = executor.executeRawQuery(query, sessionParameters);
+            QueryExecution execution = track(project, executor.executeRawQuery(project, query, sessionParameters));
             if (materializedViews.isEmpty()) {
                 return execution;
             }
@@ -102,7 +118,7 @@ public class QueryExecutorService
                     .map(e -> e.queryExecution)
                     .collect(Collectors.toList());
 
-            return new DelegateQueryExecution(new ChainQueryExecution(executions, query, (results) -> {
+            return new DelegateQueryExecution(track(project, new ChainQueryExecution(executions, query, (results) -> {
                 for (MaterializedViewExecution queryExecution : queryExecutions) {
                     QueryResult result = queryExecution.queryExecution.getResult().join();
                     if (result.isFailed()) {
@@ -117,8 +133,8 @@ public class QueryExecutorService
                     }
                 }
 
-                return executor.executeRawQuery(query, sessionParameters);
-            }), result -> {
+                return executor.executeRawQuery(project, query, sessionParameters);
+            })), result -> {
                 if (!result.isFailed()) {
                     Map<String, Long> collect = materializedViews.entrySet().stream()
                             .collect(Collectors.toMap(
@@ -133,6 +149,18 @@ public class QueryExecutorService
         }
     }
 
+    private QueryExecution track(String project, QueryExecution execution)
+    {
+        long startTime = System.nanoTime();
+        execution.getResult().whenComplete((result, ex) -> {
+            executionTime.get(project).addElapsed(startTime);
+            if (ex != null || result.isFailed()) {
+                failedQueries.get(project).increment();
+            }
+        });
+        return execution;
+    }
+
     public QueryExecution executeQuery(String project, String sqlQuery)
     {
         return executeQuery(project, sqlQuery, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT);
@@ -167,21 +195,23 @@ public class QueryExecutorService
     public String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
     {
         Query statement;
-        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
+        Statement queryStatement;
         synchronized (parser) {
-            Statement queryStatement = parser.createStatement(query);
-            if ((queryStatement instanceof Query)) {
-                statement = (Query) queryStatement;
-            }
-            else if ((queryStatement instanceof Call)) {
-                StringBuilder builder = new StringBuilder();
-                new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
-                        .process(queryStatement, 1);
-                return builder.toString();
-            }
-            else {
-                throw new RakamException(queryStatement.getClass().getSimpleName() + " is not supported", BAD_REQUEST);
-            }
+            queryStatement = parser.createStatement(query);
+        }
+
+        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, queryStatement, materializedViews, sample, defaultSchema, sessionParameters);
+        if ((queryStatement instanceof Query)) {
+            statement = (Query) queryStatement;
+        }
+        else if ((queryStatement instanceof Call)) {
+            StringBuilder builder = new StringBuilder();
+            new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
+                    .process(queryStatement, 1);
+            return builder.toString();
+        }
+        else {
+            throw new RakamException(queryStatement.getClass().getSimpleName() + " is not supported", BAD_REQUEST);
         }
 
         StringBuilder builder = new StringBuilder();
@@ -209,8 +239,9 @@ public class QueryExecutorService
         return builder.toString();
     }
 
-    private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
+    private Function<QualifiedName, String> tableNameMapper(String project, Statement statement, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
     {
+        Function<QualifiedName, String> executorMapper = executor.getTableNameMapper(project, statement, sample, sessionParameters, defaultSchema);
         return (node) -> {
             if (node.getPrefix().isPresent() && node.getPrefix().get().toString().equals("materialized")) {
                 MaterializedView materializedView;
@@ -231,7 +262,7 @@ public class QueryExecutorService
                 return materializedViewExecution.computeQuery ;
             }
 
-            return executor.formatTableReference(project, node, sample, sessionParameters, defaultSchema);
+            return executorMapper.apply(node);
         };
     }
 
@@ -252,7 +283,7 @@ public class QueryExecutorService
                 .process(queryStatement, 1);
 
         QueryExecution execution = executor
-                .executeRawQuery(builder.toString() + " limit 0", map);
+                .executeRawQuery(project, builder.toString() + " limit 0", map);
         CompletableFuture<List<SchemaField>> f = new CompletableFuture<>();
         execution.getResult().thenAccept(result -> {
             if (result.isFailed()) {
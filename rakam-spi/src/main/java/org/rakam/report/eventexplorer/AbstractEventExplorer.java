@@ -4,8 +4,8 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
 import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.google.common.collect.ImmutableSet;
 import io.airlift.log.Logger;
-import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorerListener;
 import org.rakam.analysis.MaterializedViewService;
@@ -16,8 +16,8 @@ import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
+import org.rakam.report.eventexplorer.OLAPTableIndex.IndexedTable;
 import org.rakam.report.realtime.AggregationType;
-import org.rakam.util.JsonHelper;
 import org.rakam.util.MaterializedViewNotExists;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
@@ -25,15 +25,16 @@ import org.rakam.util.ValidationUtil;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
-import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -46,7 +47,11 @@ import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
 import static org.rakam.collection.SchemaField.stripName;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
 import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.MINIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
 import static org.rakam.util.DateTimeUtils.TIMESTAMP_FORMATTER;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkLiteral;
@@ -66,21 +71,21 @@ public abstract class AbstractEventExplorer
 
     private final Map<TimestampTransformation, String> timestampMapping;
     private final MaterializedViewService materializedViewService;
-    private final ContinuousQueryService continuousQueryService;
+    private final OLAPTableIndex olapTableIndex;
     private final ProjectConfig projectConfig;
 
     public AbstractEventExplorer(
             ProjectConfig projectConfig,
             QueryExecutorService executor,
             MaterializedViewService materializedViewService,
-            ContinuousQueryService continuousQueryService,
+            OLAPTableIndex olapTableIndex,
             Map<TimestampTransformation, String> timestampMapping)
     {
         this.projectConfig = projectConfig;
         this.executor = executor;
         this.timestampMapping = timestampMapping;
         this.materializedViewService = materializedViewService;
-        this.continuousQueryService = continuousQueryService;
+        this.olapTableIndex = olapTableIndex;
     }
 
     public static void checkReference(String refValue, Instant startDate, Instant endDate, int size)
@@ -174,42 +179,27 @@ public abstract class AbstractEventExplorer
             checkReference(segment.value, startDate, endDate, collections.size());
         }
 
-        Predicate<OLAPTable> groupedMetricsPredicate = options -> {
-            Expression filterExp;
-            if (filterExpression != null) {
-                synchronized (sqlParser) {
-                    filterExp = sqlParser.createExpression(filterExpression);
+        Optional<IndexedTable> preComputedTable = Optional.empty();
+        Set<String> dimensions = new HashSet<>();
+        Optional<Set<String>> filterColumns = filterExpression == null ? Optional.of(ImmutableSet.of()) : getFilterColumns(filterExpression);
+        if (filterColumns.isPresent()) {
+            Set<TimestampTransformation> timestampTransformations = EnumSet.noneOf(TimestampTransformation.class);
+            for (Reference reference : Arrays.asList(grouping, segment)) {
+                if (reference == null) {
+                    continue;
                 }
-            }
-            else {
-                filterExp = null;
-            }
-
-            if (options.collections.containsAll(collections)) {
-                if (options.aggregations.contains(measure.aggregation)
-                        && measure.column != null && options.measures.contains(measure.column)
-                        && (grouping == null || (grouping.type == REFERENCE || (grouping.type == COLUMN && options.dimensions.contains(grouping.value))))
-                        && (segment == null || (segment.value.equals("_collection") && segment.type == COLUMN && options.collections.size() == 1) || (segment.type == REFERENCE || (segment.type == COLUMN && options.dimensions.contains(segment.value))))
-                        && (filterExp == null || testFilterExpressionForPerComputedTable(filterExp, options))) {
-                    return true;
+                if (reference.type == COLUMN) {
+                    dimensions.add(reference.value);
+                }
+                else {
+                    timestampTransformations.add(fromString(reference.value.replace(" ", "_")));
                 }
             }
+            dimensions.addAll(filterColumns.get());
+            // the pre-computed tables always have the collection column
+            dimensions.remove(DEFAULT_SEGMENT.value);
 
-            return false;
-        };
-
-        Optional<Map.Entry<OLAPTable, String>> preComputedTable = materializedViewService.list(project).stream()
-                .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "materialized." + checkCollection(view.tableName)));
-
-        if (!preComputedTable.isPresent()) {
-            preComputedTable = continuousQueryService.list(project).stream()
-                    .filter(view -> view.options != null && view.options.containsKey("olap_table"))
-                    .map(view -> JsonHelper.convert(view.options.get("olap_table"), OLAPTable.class))
-                    .filter(table -> groupedMetricsPredicate.test(table)).findAny()
-                    .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "continuous." + checkCollection(view.tableName)));
+            preComputedTable = olapTableIndex.find(project, collections, dimensions, measure, timestampTransformations, startDate, endDate);
         }
 
         String timeFilter = format(" %s between timestamp '%s' and timestamp '%s' + interval '1' day",
@@ -230,22 +220,24 @@ public abstract class AbstractEventExplorer
 
         String computeQuery;
         if (preComputedTable.isPresent()) {
-            String filters = preComputedTable.get().getKey().dimensions.stream()
-                    .filter(dim -> (grouping == null || grouping.type == REFERENCE && !grouping.value.equals(dim) &&
-                            (segment == null || segment.type == REFERENCE && !segment.value.equals(dim))))
-                    .map(dim -> format("%s is null", dim))
+            // the pre-computed tables are grouped by the cube of the dimensions so the rows of the other grouping sets are filtered out
+            String filters = preComputedTable.get().table.dimensions.stream()
+                    .filter(dim -> !dimensions.contains(dim))
+                    .map(dim -> format("%s is null", checkTableColumn(dim)))
                     .collect(Collectors.joining(" and "));
 
             computeQuery = format("SELECT %s %s %s as value FROM %s WHERE %s %s",
                     grouping != null ? (getColumnValue(timestampMapping, grouping, true) + " as " + checkTableColumn(getColumnReference(grouping) + "_group") + " ,") : "",
                     segment != null ? (getColumnValue(timestampMapping, segment, true) + " as " + checkTableColumn(getColumnReference(segment) + "_segment") + " ,") : "",
-                    format(getFinalForAggregationFunction(measure), measure.column + "_" + measure.aggregation.name().toLowerCase()),
-                    preComputedTable.get().getValue(),
+                    getFinalForAggregationFunction(measure),
+                    preComputedTable.get().tableReference,
                     Stream.of(
-                            collections.size() > 1 ? format("collection IN (%s)", collections.stream().map(c -> "'" + c + "'").collect(Collectors.joining(","))) : "",
+                            format("%s IN (%s)", checkTableColumn(DEFAULT_SEGMENT.value), collections.stream().map(c -> "'" + checkLiteral(c) + "'").collect(Collectors.joining(","))),
                             filters,
                             filterExpression,
-                            timeFilter
+                            format("%1$s >= timestamp '%2$s' and %1$s < timestamp '%3$s' + interval '1' day",
+                                    checkTableColumn(projectConfig.getTimeColumn()),
+                                    TIMESTAMP_FORMATTER.format(startDate), TIMESTAMP_FORMATTER.format(endDate))
                     ).filter(e -> e != null && !e.isEmpty()).collect(Collectors.joining(" AND ")),
                     groupBy);
         }
@@ -341,7 +333,7 @@ public abstract class AbstractEventExplorer
                     computeQuery, bothActive ? 3 : 2);
         }
 
-        String table = preComputedTable.map(e -> e.getValue()).orElse(null);
+        String table = preComputedTable.map(e -> e.tableReference).orElse(null);
 
         return new DelegateQueryExecution(executor.executeQuery(project, query), result -> {
             if (table != null) {
@@ -372,9 +364,15 @@ public abstract class AbstractEventExplorer
         return selectBuilder.toString();
     }
 
-    private boolean testFilterExpressionForPerComputedTable(Expression filterExp, OLAPTable options)
+    private static Optional<Set<String>> getFilterColumns(String filterExpression)
     {
-        final boolean[] columnExists = {true};
+        Expression filterExp;
+        synchronized (sqlParser) {
+            filterExp = sqlParser.createExpression(filterExpression);
+        }
+
+        Set<String> columns = new HashSet<>();
+        boolean[] qualified = {false};
 
         new DefaultExpressionTraversalVisitor<Void, Void>()
         {
@@ -382,42 +380,47 @@ public abstract class AbstractEventExplorer
             protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
             {
                 if (node.getName().getParts().size() != 1) {
-                    columnExists[0] = false;
+                    qualified[0] = true;
                 }
-
-                if (!options.dimensions.contains(node.getName().getParts().get(0))) {
-                    columnExists[0] = false;
+                else {
+                    columns.add(node.getName().getParts().get(0));
                 }
 
                 return null;
             }
         }.process(filterExp, null);
 
-        return columnExists[0];
+        return qualified[0] ? Optional.empty() : Optional.of(columns);
     }
 
-    private String getFinalForAggregationFunction(Measure aggregation)
+    private String getFinalForAggregationFunction(Measure measure)
     {
-        switch (aggregation.aggregation) {
+        // the pre-computed tables may be at a finer granularity than the query so the partial values are merged
+        switch (measure.aggregation) {
             case AVERAGE:
-                return "cast(sum(%1$s) as double) / count(%1$s)";
+                return format("cast(sum(%s) as double) / sum(%s)", getMeasureColumn(measure.column, SUM), getMeasureColumn(measure.column, COUNT));
             case MAXIMUM:
-                return "max(%s)";
+                return format("max(%s)", getMeasureColumn(measure.column, MAXIMUM));
             case MINIMUM:
-                return "min(%s)";
+                return format("min(%s)", getMeasureColumn(measure.column, MINIMUM));
             case COUNT:
-                return "count(%s)";
+                return format("sum(%s)", getMeasureColumn(measure.column, COUNT));
             case SUM:
-                return "sum(%s)";
+                return format("sum(%s)", getMeasureColumn(measure.column, SUM));
             case COUNT_UNIQUE:
                 throw new UnsupportedOperationException();
             case APPROXIMATE_UNIQUE:
-                return getFinalForApproximateUniqueFunction();
+                return format(getFinalForApproximateUniqueFunction(), getMeasureColumn(measure.column, APPROXIMATE_UNIQUE));
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
     }
 
+    private static String getMeasureColumn(String column, AggregationType aggregation)
+    {
+        return checkTableColumn(column + "_" + aggregation.name().toLowerCase());
+    }
+
     @Override
     public CompletableFuture<QueryResult> getEventStatistics(String project,
             Optional<Set<String>> collections,
@@ -0,0 +1,428 @@
+package org.rakam.report.eventexplorer;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents.ContinuousQueryCreatedEvent;
+import org.rakam.plugin.SystemEvents.ContinuousQueryDeletedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewCreatedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewDeletedEvent;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.JsonHelper;
+
+import javax.inject.Inject;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.HOURS;
+import static java.time.temporal.TemporalAdjusters.previousOrSame;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.rakam.util.ValidationUtil.checkCollection;
+
+/**
+ * In-memory index of the pre-computed tables that the event explorer can use instead of scanning the raw events.
+ * The tables are indexed by the collections they cover and the measures they store, the dimensions and the time
+ * granularity of the candidates are then checked against the query. The index of a project is loaded from the query
+ * metadata store on first use and kept up to date with the materialized view and continuous query events.
+ * The events are only posted on the node that creates or deletes the table, the other nodes reload the index of the
+ * project every five minutes so they may not use a new table or may still use a deleted table until then.
+ */
+@Singleton
+public class OLAPTableIndex
+{
+    private final static Logger LOGGER = Logger.get(OLAPTableIndex.class);
+
+    public static final String OLAP_TABLE_OPTION = "olap_table";
+    // the tables that cover all the collections are created from _all
+    private static final String ALL_COLLECTIONS = "_all";
+
+    private static final Comparator<IndexedTable> PREFERENCE = Comparator
+            // a coarser granularity and fewer dimensions mean fewer rows to aggregate
+            .<IndexedTable, TimestampTransformation>comparing(table -> table.table.granularity, Comparator.reverseOrder())
+            .thenComparing(table -> table.table.dimensions.size())
+            .thenComparing(table -> table.coversAllCollections() ? Integer.MAX_VALUE : table.table.collections.size())
+            .thenComparing(table -> table.tableReference);
+
+    private final QueryMetadataStore metadataStore;
+    private final LoadingCache<String, ProjectIndex> projects;
+
+    @Inject
+    public OLAPTableIndex(QueryMetadataStore metadataStore)
+    {
+        this.metadataStore = metadataStore;
+        // the events are only posted on the node that modifies the metadata so the index is reloaded periodically
+        this.projects = CacheBuilder.newBuilder().expireAfterWrite(5, MINUTES).build(new CacheLoader<String, ProjectIndex>()
+        {
+            @Override
+            public ProjectIndex load(String project)
+            {
+                return loadProject(project);
+            }
+        });
+    }
+
+    public Optional<IndexedTable> find(String project, Collection<String> collections, Set<String> dimensions, Measure measure,
+            Set<TimestampTransformation> timestampTransformations, Instant startDate, Instant endDate)
+    {
+        if (measure.column == null || measure.aggregation == COUNT_UNIQUE) {
+            return Optional.empty();
+        }
+
+        return projects.getUnchecked(project).find(collections, new MeasureKey(measure.column, measure.aggregation)).stream()
+                .filter(table -> table.table.dimensions.containsAll(dimensions))
+                .filter(table -> timestampTransformations.stream().allMatch(transformation -> canServe(table.table.granularity, transformation)))
+                .filter(table -> isAligned(table.table.granularity, startDate, endDate))
+                .min(PREFERENCE);
+    }
+
+    /**
+     * Returns true if the values of the given timestamp transformation can be computed from a table
+     * whose time column is truncated to the given granularity.
+     */
+    public static boolean canServe(TimestampTransformation granularity, TimestampTransformation transformation)
+    {
+        switch (transformation) {
+            case HOUR:
+            case HOUR_OF_DAY:
+            case DAY_PART:
+                return canRollUp(granularity, TimestampTransformation.HOUR);
+            case DAY:
+            case DAY_OF_MONTH:
+            case DAY_OF_WEEK:
+                return canRollUp(granularity, TimestampTransformation.DAY);
+            case WEEK:
+            case WEEK_OF_YEAR:
+                return canRollUp(granularity, TimestampTransformation.WEEK);
+            case MONTH:
+            case MONTH_OF_YEAR:
+            case QUARTER_OF_YEAR:
+                return canRollUp(granularity, TimestampTransformation.MONTH);
+            case YEAR:
+                return canRollUp(granularity, TimestampTransformation.YEAR);
+            default:
+                throw new IllegalArgumentException("Unknown timestamp transformation: " + transformation);
+        }
+    }
+
+    /**
+     * Returns true if each period of the target granularity is made of whole periods of the source granularity.
+     * Weeks don't line up with months and years so a weekly table can only serve weekly queries.
+     */
+    public static boolean canRollUp(TimestampTransformation source, TimestampTransformation target)
+    {
+        switch (source) {
+            case HOUR:
+            case DAY:
+                return target.ordinal() >= source.ordinal();
+            case WEEK:
+                return target == TimestampTransformation.WEEK;
+            case MONTH:
+                return target == TimestampTransformation.MONTH || target == TimestampTransformation.YEAR;
+            case YEAR:
+                return target == TimestampTransformation.YEAR;
+            default:
+                throw new IllegalArgumentException("Granularity must be a date period: " + source);
+        }
+    }
+
+    /**
+     * The event explorer queries the days between the start and end date so the table can only be used
+     * if both ends of the interval are on the boundaries of its periods.
+     */
+    public static boolean isAligned(TimestampTransformation granularity, Instant startDate, Instant endDate)
+    {
+        ZonedDateTime start = startDate.atZone(UTC);
+        ZonedDateTime end = endDate.atZone(UTC).plusDays(1);
+        return truncate(granularity, start).equals(start) && truncate(granularity, end).equals(end);
+    }
+
+    private static ZonedDateTime truncate(TimestampTransformation granularity, ZonedDateTime time)
+    {
+        switch (granularity) {
+            case HOUR:
+                return time.truncatedTo(HOURS);
+            case DAY:
+                return time.truncatedTo(DAYS);
+            case WEEK:
+                return time.truncatedTo(DAYS).with(previousOrSame(DayOfWeek.MONDAY));
+            case MONTH:
+                return time.truncatedTo(DAYS).withDayOfMonth(1);
+            case YEAR:
+                return time.truncatedTo(DAYS).withDayOfYear(1);
+            default:
+                throw new IllegalArgumentException("Granularity must be a date period: " + granularity);
+        }
+    }
+
+    @Subscribe
+    public void onCreateMaterializedView(MaterializedViewCreatedEvent event)
+    {
+        ProjectIndex index = projects.getIfPresent(event.project);
+        if (index != null) {
+            getOLAPTable(event.materializedView.options)
+                    .ifPresent(table -> index.add(new IndexedTable(table, materializedReference(event.materializedView.tableName))));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteMaterializedView(MaterializedViewDeletedEvent event)
+    {
+        ProjectIndex index = projects.getIfPresent(event.project);
+        if (index != null) {
+            index.remove(materializedReference(event.tableName));
+        }
+    }
+
+    @Subscribe
+    public void onCreateContinuousQuery(ContinuousQueryCreatedEvent event)
+    {
+        ProjectIndex index = projects.getIfPresent(event.project);
+        if (index != null) {
+            getOLAPTable(event.continuousQuery.options)
+                    .ifPresent(table -> index.add(new IndexedTable(table, continuousReference(event.continuousQuery.tableName))));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteContinuousQuery(ContinuousQueryDeletedEvent event)
+    {
+        ProjectIndex index = projects.getIfPresent(event.project);
+        if (index != null) {
+            index.remove(continuousReference(event.tableName));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        projects.invalidate(event.project);
+    }
+
+    private ProjectIndex loadProject(String project)
+    {
+        ProjectIndex index = new ProjectIndex();
+        for (MaterializedView view : metadataStore.getMaterializedViews(project)) {
+            getOLAPTable(view.options).ifPresent(table -> index.add(new IndexedTable(table, materializedReference(view.tableName))));
+        }
+        for (ContinuousQuery query : metadataStore.getContinuousQueries(project)) {
+            getOLAPTable(query.options).ifPresent(table -> index.add(new IndexedTable(table, continuousReference(query.tableName))));
+        }
+        return index;
+    }
+
+    private static Optional<OLAPTable> getOLAPTable(Map<String, Object> options)
+    {
+        if (options == null || !options.containsKey(OLAP_TABLE_OPTION)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(JsonHelper.convert(options.get(OLAP_TABLE_OPTION), OLAPTable.class));
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Ignoring invalid pre-computed table definition");
+            return Optional.empty();
+        }
+    }
+
+    private static String materializedReference(String tableName)
+    {
+        return "materialized." + checkCollection(tableName);
+    }
+
+    private static String continuousReference(String tableName)
+    {
+        return "continuous." + checkCollection(tableName);
+    }
+
+    public static class IndexedTable
+    {
+        public final OLAPTable table;
+        public final String tableReference;
+
+        public IndexedTable(OLAPTable table, String tableReference)
+        {
+            this.table = table;
+            this.tableReference = tableReference;
+        }
+
+        public boolean coversAllCollections()
+        {
+            return table.collections == null || table.collections.isEmpty();
+        }
+
+        public boolean covers(Collection<String> collections)
+        {
+            return coversAllCollections() || table.collections.containsAll(collections);
+        }
+
+        private Set<MeasureKey> getMeasures()
+        {
+            Set<MeasureKey> measures = new HashSet<>();
+            for (String column : table.measures) {
+                for (AggregationType aggregation : table.aggregations) {
+                    // the average is computed from the sum and count columns
+                    if (aggregation != COUNT_UNIQUE && aggregation != AVERAGE) {
+                        measures.add(new MeasureKey(column, aggregation));
+                    }
+                }
+                if (table.aggregations.contains(SUM) && table.aggregations.contains(COUNT)) {
+                    measures.add(new MeasureKey(column, AVERAGE));
+                }
+            }
+            return measures;
+        }
+    }
+
+    private static class ProjectIndex
+    {
+        private final Map<String, IndexedTable> tables = new HashMap<>();
+        private final Map<PostingKey, Set<IndexedTable>> postings = new HashMap<>();
+
+        public synchronized void add(IndexedTable table)
+        {
+            remove(table.tableReference);
+            tables.put(table.tableReference, table);
+            for (PostingKey key : getPostingKeys(table)) {
+                postings.computeIfAbsent(key, k -> new HashSet<>()).add(table);
+            }
+        }
+
+        public synchronized void remove(String tableReference)
+        {
+            IndexedTable table = tables.remove(tableReference);
+            if (table == null) {
+                return;
+            }
+
+            for (PostingKey key : getPostingKeys(table)) {
+                Set<IndexedTable> posting = postings.get(key);
+                posting.remove(table);
+                if (posting.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+        }
+
+        public synchronized List<IndexedTable> find(Collection<String> collections, MeasureKey measure)
+        {
+            // the tables that contain all the collections must be in the posting list of each collection so the shortest one is enough
+            Set<IndexedTable> candidates = null;
+            for (String collection : collections) {
+                Set<IndexedTable> posting = postings.getOrDefault(new PostingKey(collection, measure), ImmutableSet.of());
+                if (candidates == null || posting.size() < candidates.size()) {
+                    candidates = posting;
+                }
+            }
+
+            Set<IndexedTable> allCollections = postings.getOrDefault(new PostingKey(ALL_COLLECTIONS, measure), ImmutableSet.of());
+            return Stream.concat(candidates == null ? Stream.<IndexedTable>empty() : candidates.stream(), allCollections.stream())
+                    .filter(table -> table.covers(collections))
+                    .collect(Collectors.toList());
+        }
+
+        private static Set<PostingKey> getPostingKeys(IndexedTable table)
+        {
+            Set<PostingKey> keys = new HashSet<>();
+            Collection<String> collections = table.coversAllCollections() ? ImmutableSet.of(ALL_COLLECTIONS) : table.table.collections;
+            for (MeasureKey measure : table.getMeasures()) {
+                for (String collection : collections) {
+                    keys.add(new PostingKey(collection, measure));
+                }
+            }
+            return keys;
+        }
+    }
+
+    private static class MeasureKey
+    {
+        private final String column;
+        private final AggregationType aggregation;
+
+        private MeasureKey(String column, AggregationType aggregation)
+        {
+            this.column = column;
+            this.aggregation = aggregation;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MeasureKey)) {
+                return false;
+            }
+            MeasureKey that = (MeasureKey) o;
+            return column.equals(that.column) && aggregation == that.aggregation;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(column, aggregation);
+        }
+    }
+
+    private static class PostingKey
+    {
+        private final String collection;
+        private final MeasureKey measure;
+
+        private PostingKey(String collection, MeasureKey measure)
+        {
+            this.collection = collection;
+            this.measure = measure;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PostingKey)) {
+                return false;
+            }
+            PostingKey that = (PostingKey) o;
+            return collection.equals(that.collection) && measure.equals(that.measure);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(collection, measure);
+        }
+    }
+}
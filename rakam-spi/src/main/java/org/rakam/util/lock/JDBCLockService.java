@@ -0,0 +1,230 @@
+package org.rakam.util.lock;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.skife.jdbi.v2.util.LongMapper;
+
+import javax.annotation.PreDestroy;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Keeps the locks as lease rows in the metadata database. A lock is acquired by taking the row of the lock if the
+ * lease of the previous holder is expired and the leases of the locks that are held are renewed in the background.
+ * If the lease can't be renewed before it expires, the lock is considered lost and another node may acquire it.
+ * The expiration times are calculated by the database clock so the clocks of the nodes don't need to be in sync.
+ */
+public abstract class JDBCLockService
+        implements LockService
+{
+    private final static Logger LOGGER = Logger.get(JDBCLockService.class);
+
+    public static final Duration DEFAULT_LEASE_DURATION = new Duration(1, MINUTES);
+
+    private final DBI dbi;
+    private final long leaseMillis;
+    private final String owner;
+    private final Map<String, LeaseLock> locks;
+    private final ScheduledExecutorService renewer;
+
+    protected JDBCLockService(ConnectionFactory connectionFactory, Duration leaseDuration)
+    {
+        this.dbi = new DBI(connectionFactory);
+        this.leaseMillis = leaseDuration.toMillis();
+        this.owner = UUID.randomUUID().toString();
+        this.locks = new ConcurrentHashMap<>();
+
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS lock_lease (" +
+                    "  name VARCHAR(255) NOT NULL," +
+                    "  owner VARCHAR(36) NOT NULL," +
+                    "  token BIGINT NOT NULL," +
+                    "  expires_at BIGINT NOT NULL," +
+                    "  PRIMARY KEY (name)" +
+                    "  )")
+                    .execute();
+        }
+
+        this.renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("lock-lease-renewer").setDaemon(true).build());
+        long interval = Math.max(leaseMillis / 3, 1);
+        renewer.scheduleWithFixedDelay(this::renewLeases, interval, interval, MILLISECONDS);
+    }
+
+    /**
+     * The SQL expression that returns the current time of the database in milliseconds.
+     */
+    protected abstract String currentTimeMillis();
+
+    @Override
+    public Lock tryLock(String name)
+    {
+        long start = System.nanoTime();
+
+        Long token = dbi.inTransaction((handle, status) -> {
+            int updated = handle.createStatement(format("UPDATE lock_lease SET owner = :owner, token = token + 1, " +
+                    "expires_at = %1$s + :lease WHERE name = :name AND expires_at <= %1$s", currentTimeMillis()))
+                    .bind("owner", owner)
+                    .bind("lease", leaseMillis)
+                    .bind("name", name)
+                    .execute();
+            if (updated == 0) {
+                return null;
+            }
+            return handle.createQuery("SELECT token FROM lock_lease WHERE name = :name")
+                    .bind("name", name)
+                    .map(LongMapper.FIRST)
+                    .first();
+        });
+
+        if (token == null) {
+            // the lock is either held by another holder or it has never been acquired
+            try (Handle handle = dbi.open()) {
+                handle.createStatement(format("INSERT INTO lock_lease (name, owner, token, expires_at) " +
+                        "VALUES (:name, :owner, 1, %s + :lease)", currentTimeMillis()))
+                        .bind("name", name)
+                        .bind("owner", owner)
+                        .bind("lease", leaseMillis)
+                        .execute();
+                token = 1L;
+            }
+            catch (UnableToExecuteStatementException e) {
+                if (isUniqueViolation(e)) {
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        LeaseLock lock = new LeaseLock(name, token, start + MILLISECONDS.toNanos(leaseMillis));
+        locks.put(name, lock);
+        return lock;
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        renewer.shutdownNow();
+    }
+
+    private void renewLeases()
+    {
+        for (LeaseLock lock : locks.values()) {
+            long start = System.nanoTime();
+            try (Handle handle = dbi.open()) {
+                int updated = handle.createStatement(format("UPDATE lock_lease SET expires_at = %1$s + :lease " +
+                        "WHERE name = :name AND token = :token AND expires_at > %1$s", currentTimeMillis()))
+                        .bind("lease", leaseMillis)
+                        .bind("name", lock.name)
+                        .bind("token", lock.token)
+                        .execute();
+                if (updated == 1) {
+                    lock.expiresAt = start + MILLISECONDS.toNanos(leaseMillis);
+                }
+                else {
+                    lock.lost();
+                    LOGGER.warn("The lease of lock %s with token %d is expired", lock.name, lock.token);
+                }
+            }
+            catch (Exception e) {
+                if (System.nanoTime() - lock.expiresAt >= 0) {
+                    lock.lost();
+                    LOGGER.error(e, "Unable to renew the lease of lock %s with token %d before it's expired", lock.name, lock.token);
+                }
+                else {
+                    LOGGER.warn(e, "Unable to renew the lease of lock %s, retrying", lock.name);
+                }
+            }
+        }
+    }
+
+    private static boolean isUniqueViolation(UnableToExecuteStatementException e)
+    {
+        return e.getCause() instanceof SQLException && ((SQLException) e.getCause()).getSQLState() != null
+                && ((SQLException) e.getCause()).getSQLState().startsWith("23");
+    }
+
+    private class LeaseLock
+            implements Lock
+    {
+        private final String name;
+        private final long token;
+        private volatile long expiresAt;
+        private volatile boolean valid;
+
+        private LeaseLock(String name, long token, long expiresAt)
+        {
+            this.name = name;
+            this.token = token;
+            this.expiresAt = expiresAt;
+            this.valid = true;
+        }
+
+        private void lost()
+        {
+            valid = false;
+            locks.remove(name, this);
+        }
+
+        @Override
+        public long getToken()
+        {
+            return token;
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            if (!valid || System.nanoTime() - expiresAt >= 0) {
+                return false;
+            }
+
+            try (Handle handle = dbi.open()) {
+                return handle.createQuery(format("SELECT token FROM lock_lease " +
+                        "WHERE name = :name AND token = :token AND expires_at > %s", currentTimeMillis()))
+                        .bind("name", name)
+                        .bind("token", token)
+                        .map(LongMapper.FIRST)
+                        .first() != null;
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Unable to check the lease of lock %s", name);
+                return false;
+            }
+        }
+
+        @Override
+        public void release()
+        {
+            boolean wasValid = valid;
+            lost();
+            if (!wasValid) {
+                return;
+            }
+
+            try (Handle handle = dbi.open()) {
+                handle.createStatement("UPDATE lock_lease SET expires_at = 0 WHERE name = :name AND token = :token")
+                        .bind("name", name)
+                        .bind("token", token)
+                        .execute();
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Unable to release lock %s, it will be released when its lease is expired", name);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.rakam.util.lock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the locks in memory. It's only safe for the single node deployments that use an embedded metadata
+ * database since the other nodes can't see the locks.
+ */
+public class LocalLockService
+        implements LockService
+{
+    private final Map<String, LocalLock> locks = new ConcurrentHashMap<>();
+    private final AtomicLong tokens = new AtomicLong();
+
+    @Override
+    public Lock tryLock(String name)
+    {
+        LocalLock lock = new LocalLock(name, tokens.incrementAndGet());
+        return locks.putIfAbsent(name, lock) == null ? lock : null;
+    }
+
+    private class LocalLock
+            implements Lock
+    {
+        private final String name;
+        private final long token;
+
+        private LocalLock(String name, long token)
+        {
+            this.name = name;
+            this.token = token;
+        }
+
+        @Override
+        public long getToken()
+        {
+            return token;
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            return locks.get(name) == this;
+        }
+
+        @Override
+        public void release()
+        {
+            locks.remove(name, this);
+        }
+    }
+}
@@ -4,8 +4,19 @@ public interface LockService
 {
     Lock tryLock(String name);
 
-    @FunctionalInterface
     interface Lock {
         void release();
+
+        /**
+         * The fencing token of the lock, it's increased every time the lock is acquired so the holder that has the
+         * greatest token is the most recent one.
+         */
+        long getToken();
+
+        /**
+         * Checks that the lease of the lock is not expired or taken by another holder. The holders should check the
+         * lock before committing the result of the work that is done while holding the lock.
+         */
+        boolean isValid();
     }
 }
@@ -1,93 +1,25 @@
 package org.rakam.util.lock;
 
-import com.google.common.base.Throwables;
+import io.airlift.units.Duration;
 import org.rakam.analysis.JDBCPoolDataSource;
-import org.skife.jdbi.v2.DBI;
-import org.skife.jdbi.v2.Handle;
-import org.skife.jdbi.v2.util.BooleanMapper;
-
-import java.sql.SQLException;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
-
-import static java.lang.String.format;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
 
 public class MysqlLockService
-        implements LockService
+        extends JDBCLockService
 {
-    private final DBI dbi;
-    private Handle currentHandle;
-    private Set<String> locks;
-
     public MysqlLockService(JDBCPoolDataSource poolDataSource)
     {
-        this.dbi = new DBI(() -> {
-            return poolDataSource.getConnection(true);
-        });
-        this.currentHandle = dbi.open();
-        locks = new ConcurrentSkipListSet<>();
+        this(poolDataSource::getConnection, DEFAULT_LEASE_DURATION);
     }
 
-    @Override
-    public Lock tryLock(String name)
+    public MysqlLockService(ConnectionFactory connectionFactory, Duration leaseDuration)
     {
-        if (!locks.add(name)) {
-            return null;
-        }
-        try {
-            return tryLock(name, 4);
-        }
-        catch (Exception e) {
-            locks.remove(name);
-            throw Throwables.propagate(e);
-        }
+        super(connectionFactory, leaseDuration);
     }
 
-    public Lock tryLock(String name, int tryCount)
+    @Override
+    protected String currentTimeMillis()
     {
-        try {
-            if (currentHandle.getConnection().isClosed()) {
-                synchronized (this) {
-                    currentHandle = dbi.open();
-                }
-            }
-
-            Boolean first = currentHandle.createQuery("select get_lock(:name, 1)")
-                    .bind("name", name)
-                    .map(BooleanMapper.FIRST)
-                    .first();
-
-            if (!Boolean.TRUE.equals(first)) {
-                locks.remove(name);
-                return null;
-            }
-
-            return () -> {
-                locks.remove(name);
-                currentHandle.createQuery("select release_lock(:name)")
-                        .bind("name", name)
-                        .map(BooleanMapper.FIRST)
-                        .first();
-            };
-        }
-        catch (SQLException e) {
-            try {
-                if (currentHandle.getConnection().isClosed()) {
-                    synchronized (this) {
-                        currentHandle = dbi.open();
-                    }
-                }
-            }
-            catch (SQLException e1) {
-                synchronized (this) {
-                    currentHandle = dbi.open();
-                }
-            }
-
-            if (tryCount == 0) {
-                throw Throwables.propagate(e);
-            }
-            return tryLock(name, tryCount - 1);
-        }
+        return "CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS SIGNED)";
     }
 }
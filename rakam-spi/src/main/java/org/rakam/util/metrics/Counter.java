@@ -0,0 +1,26 @@
+package org.rakam.util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. The updates don't contend with each other so it's safe to use in the hot paths.
+ */
+public class Counter
+{
+    private final LongAdder count = new LongAdder();
+
+    public void increment()
+    {
+        count.increment();
+    }
+
+    public void add(long value)
+    {
+        count.add(value);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+}
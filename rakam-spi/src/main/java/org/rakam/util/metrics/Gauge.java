@@ -0,0 +1,10 @@
+package org.rakam.util.metrics;
+
+/**
+ * A value that is computed when the metrics are read, such as the size of a queue.
+ */
+@FunctionalInterface
+public interface Gauge
+{
+    double getValue();
+}
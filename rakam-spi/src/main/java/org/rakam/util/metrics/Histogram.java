@@ -0,0 +1,93 @@
+package org.rakam.util.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Counts the values in fixed buckets, recording a value is a binary search and two uncontended additions. The bucket
+ * bounds are inclusive upper bounds, the values that are greater than the last bound are counted in an overflow
+ * bucket.
+ */
+public class Histogram
+{
+    /**
+     * Bounds for the durations in seconds, from half a millisecond to five minutes.
+     */
+    public static final double[] LATENCY_BUCKETS = {.0005, .001, .0025, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    /**
+     * Bounds for the number of items such as the events in a batch.
+     */
+    public static final double[] SIZE_BUCKETS = {1, 10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000};
+
+    private final double[] bounds;
+    private final LongAdder[] buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    public Histogram(double[] bounds)
+    {
+        checkArgument(bounds.length > 0, "bounds is empty");
+        for (int i = 1; i < bounds.length; i++) {
+            checkArgument(bounds[i - 1] < bounds[i], "bounds must be in increasing order");
+        }
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void add(double value)
+    {
+        int index = Arrays.binarySearch(bounds, value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        buckets[index].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the time that is elapsed since the given {@link System#nanoTime()} in seconds.
+     */
+    public void addElapsed(long startNanos)
+    {
+        add((System.nanoTime() - startNanos) / 1_000_000_000.0);
+    }
+
+    public double[] getBounds()
+    {
+        return bounds.clone();
+    }
+
+    /**
+     * The number of the values that are less than or equal to each bound, the last element is the total count.
+     */
+    public long[] getCumulativeCounts()
+    {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount()
+    {
+        long total = 0;
+        for (LongAdder bucket : buckets) {
+            total += bucket.sum();
+        }
+        return total;
+    }
+
+    public double getSum()
+    {
+        return sum.sum();
+    }
+}
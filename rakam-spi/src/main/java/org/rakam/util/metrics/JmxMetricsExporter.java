@@ -0,0 +1,156 @@
+package org.rakam.util.metrics;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.log.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the metrics of a registry as the read-only attributes of a single MBean. The attributes are named
+ * {@code metric} or {@code metric.labelValue}, the histograms have {@code .count} and {@code .sum} attributes.
+ */
+public class JmxMetricsExporter
+        implements DynamicMBean
+{
+    private static final Logger LOGGER = Logger.get(JmxMetricsExporter.class);
+    private static final String OBJECT_NAME = "org.rakam:name=Metrics";
+
+    private final MetricRegistry registry;
+
+    public JmxMetricsExporter(MetricRegistry registry)
+    {
+        this.registry = registry;
+    }
+
+    public static void register(MetricRegistry registry)
+    {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new JmxMetricsExporter(registry), name);
+            }
+        }
+        catch (JMException e) {
+            LOGGER.warn(e, "Unable to register the metrics to JMX");
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException
+    {
+        Object value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Object> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Object value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("The metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException("The metrics MBean has no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        ImmutableList.Builder<MBeanAttributeInfo> attributes = ImmutableList.builder();
+        for (MetricFamily<?> family : registry.getFamilies()) {
+            for (String labelValue : family.getMetrics().keySet()) {
+                String name = attributeName(family, labelValue);
+                switch (family.getType()) {
+                    case COUNTER:
+                        attributes.add(attribute(name, Long.class, family.getHelp()));
+                        break;
+                    case GAUGE:
+                        attributes.add(attribute(name, Double.class, family.getHelp()));
+                        break;
+                    case HISTOGRAM:
+                        attributes.add(attribute(name + ".count", Long.class, family.getHelp()));
+                        attributes.add(attribute(name + ".sum", Double.class, family.getHelp()));
+                        break;
+                }
+            }
+        }
+
+        List<MBeanAttributeInfo> list = attributes.build();
+        return new MBeanInfo(getClass().getName(), "Rakam metrics",
+                list.toArray(new MBeanAttributeInfo[list.size()]), null, null, null);
+    }
+
+    private Map<String, Object> getValues()
+    {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (MetricFamily<?> family : registry.getFamilies()) {
+            for (Map.Entry<String, ?> entry : family.getMetrics().entrySet()) {
+                String name = attributeName(family, entry.getKey());
+                switch (family.getType()) {
+                    case COUNTER:
+                        values.put(name, ((Counter) entry.getValue()).getCount());
+                        break;
+                    case GAUGE:
+                        values.put(name, ((Gauge) entry.getValue()).getValue());
+                        break;
+                    case HISTOGRAM:
+                        Histogram histogram = (Histogram) entry.getValue();
+                        values.put(name + ".count", histogram.getCount());
+                        values.put(name + ".sum", histogram.getSum());
+                        break;
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String attributeName(MetricFamily<?> family, String labelValue)
+    {
+        return family.getLabel() == null ? family.getName() : family.getName() + "." + labelValue;
+    }
+
+    private static MBeanAttributeInfo attribute(String name, Class<?> type, String description)
+    {
+        return new MBeanAttributeInfo(name, type.getName(), description, true, false, false);
+    }
+}
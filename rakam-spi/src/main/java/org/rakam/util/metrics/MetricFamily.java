@@ -0,0 +1,97 @@
+package org.rakam.util.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The metrics that share a name and differ in the value of a single label, such as the project. The metrics of the
+ * families that don't have a label are stored with the empty label value.
+ */
+public class MetricFamily<T>
+{
+    public enum Type
+    {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private final String name;
+    private final String help;
+    private final Type type;
+    private final String label;
+    private final Supplier<T> factory;
+    private final Map<String, T> metrics = new ConcurrentHashMap<>();
+
+    MetricFamily(String name, String help, Type type, String label, Supplier<T> factory)
+    {
+        this.name = requireNonNull(name, "name is null");
+        this.help = requireNonNull(help, "help is null");
+        this.type = requireNonNull(type, "type is null");
+        this.label = label;
+        this.factory = factory;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getHelp()
+    {
+        return help;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * The name of the label, null if the metrics of the family don't have a label.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Returns the metric of the label value, the lookup doesn't allocate once the metric is created.
+     */
+    public T get(String labelValue)
+    {
+        T metric = metrics.get(labelValue);
+        if (metric == null) {
+            if (factory == null) {
+                throw new IllegalStateException("The metrics of " + name + " must be registered");
+            }
+            metric = metrics.computeIfAbsent(labelValue, key -> factory.get());
+        }
+        return metric;
+    }
+
+    /**
+     * Sets the metric of the label value, the previous metric is replaced. It's used for the gauges that are bound to
+     * an object such as a cache.
+     */
+    public void register(String labelValue, T metric)
+    {
+        metrics.put(labelValue, metric);
+    }
+
+    public void remove(String labelValue)
+    {
+        metrics.remove(labelValue);
+    }
+
+    /**
+     * The metrics of the family ordered by the label value.
+     */
+    public Map<String, T> getMetrics()
+    {
+        return ImmutableSortedMap.copyOf(metrics);
+    }
+}
@@ -0,0 +1,96 @@
+package org.rakam.util.metrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import org.rakam.util.metrics.MetricFamily.Type;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+import static org.rakam.util.metrics.MetricFamily.Type.COUNTER;
+import static org.rakam.util.metrics.MetricFamily.Type.GAUGE;
+import static org.rakam.util.metrics.MetricFamily.Type.HISTOGRAM;
+
+/**
+ * Holds the runtime metrics of the process. A single registry is bound in the injector and the components get it
+ * through injection, they look up their metrics once, usually in the constructor, and update them in the hot paths
+ * without locking. The metrics are exported in Prometheus text format by
+ * {@link PrometheusTextFormat} and through JMX by {@link JmxMetricsExporter}.
+ */
+public class MetricRegistry
+{
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final String NO_LABEL = "";
+
+    private final ConcurrentMap<String, MetricFamily<?>> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help)
+    {
+        return counter(name, help, null).get(NO_LABEL);
+    }
+
+    public MetricFamily<Counter> counter(String name, String help, String label)
+    {
+        return family(name, help, COUNTER, label, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, double[] bounds)
+    {
+        return histogram(name, help, null, bounds).get(NO_LABEL);
+    }
+
+    public MetricFamily<Histogram> histogram(String name, String help, String label, double[] bounds)
+    {
+        return family(name, help, HISTOGRAM, label, () -> new Histogram(bounds));
+    }
+
+    public void gauge(String name, String help, Gauge gauge)
+    {
+        this.<Gauge>family(name, help, GAUGE, null, null).register(NO_LABEL, gauge);
+    }
+
+    public void gauge(String name, String help, String label, String labelValue, Gauge gauge)
+    {
+        this.<Gauge>family(name, help, GAUGE, label, null).register(labelValue, gauge);
+    }
+
+    /**
+     * Exports the statistics of a cache that is built with {@link com.google.common.cache.CacheBuilder#recordStats()}.
+     */
+    public void cache(String cacheName, Cache<?, ?> cache)
+    {
+        gauge("rakam_cache_hit_ratio", "Ratio of the cache requests that are served from the cache", "cache", cacheName,
+                () -> cache.stats().hitRate());
+        gauge("rakam_cache_requests", "Number of the cache requests", "cache", cacheName,
+                () -> cache.stats().requestCount());
+        gauge("rakam_cache_evictions", "Number of the entries that are evicted from the cache", "cache", cacheName,
+                () -> cache.stats().evictionCount());
+        gauge("rakam_cache_size", "Number of the entries in the cache", "cache", cacheName,
+                cache::size);
+    }
+
+    public List<MetricFamily<?>> getFamilies()
+    {
+        return ImmutableList.copyOf(families.values());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MetricFamily<T> family(String name, String help, Type type, String label, Supplier<T> factory)
+    {
+        checkArgument(NAME_PATTERN.matcher(name).matches(), "invalid metric name: %s", name);
+        checkArgument(label == null || NAME_PATTERN.matcher(label).matches(), "invalid label name: %s", label);
+
+        MetricFamily<?> family = families.computeIfAbsent(name, key -> new MetricFamily<>(name, help, type, label, factory));
+        if (family.getType() != type || !Objects.equals(family.getLabel(), label)) {
+            throw new IllegalArgumentException(format("Metric %s is already registered as %s with label %s",
+                    name, family.getType(), family.getLabel()));
+        }
+        return (MetricFamily<T>) family;
+    }
+}
@@ -0,0 +1,105 @@
+package org.rakam.util.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the metrics in the text exposition format of Prometheus, version 0.0.4.
+ */
+public final class PrometheusTextFormat
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusTextFormat()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    public static String format(MetricRegistry registry)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (MetricFamily<?> family : registry.getFamilies()) {
+            Map<String, ?> metrics = family.getMetrics();
+            if (metrics.isEmpty()) {
+                continue;
+            }
+
+            String name = family.getName();
+            builder.append("# HELP ").append(name).append(' ').append(escapeHelp(family.getHelp())).append('\n');
+            builder.append("# TYPE ").append(name).append(' ').append(family.getType().name().toLowerCase(Locale.ENGLISH)).append('\n');
+
+            for (Map.Entry<String, ?> entry : metrics.entrySet()) {
+                String labels = family.getLabel() == null ? "" :
+                        family.getLabel() + "=\"" + escapeLabelValue(entry.getKey()) + "\"";
+
+                switch (family.getType()) {
+                    case COUNTER:
+                        sample(builder, name, labels, ((Counter) entry.getValue()).getCount());
+                        break;
+                    case GAUGE:
+                        sample(builder, name, labels, ((Gauge) entry.getValue()).getValue());
+                        break;
+                    case HISTOGRAM:
+                        Histogram histogram = (Histogram) entry.getValue();
+                        double[] bounds = histogram.getBounds();
+                        long[] counts = histogram.getCumulativeCounts();
+                        String prefix = labels.isEmpty() ? "" : labels + ",";
+                        for (int i = 0; i < bounds.length; i++) {
+                            sample(builder, name + "_bucket", prefix + "le=\"" + formatValue(bounds[i]) + "\"", counts[i]);
+                        }
+                        sample(builder, name + "_bucket", prefix + "le=\"+Inf\"", counts[bounds.length]);
+                        sample(builder, name + "_sum", labels, histogram.getSum());
+                        sample(builder, name + "_count", labels, counts[bounds.length]);
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void sample(StringBuilder builder, String name, String labels, long value)
+    {
+        appendName(builder, name, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, String labels, double value)
+    {
+        appendName(builder, name, labels).append(formatValue(value)).append('\n');
+    }
+
+    private static StringBuilder appendName(StringBuilder builder, String name, String labels)
+    {
+        builder.append(name);
+        if (!labels.isEmpty()) {
+            builder.append('{').append(labels).append('}');
+        }
+        return builder.append(' ');
+    }
+
+    private static String formatValue(double value)
+    {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escapeHelp(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabelValue(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
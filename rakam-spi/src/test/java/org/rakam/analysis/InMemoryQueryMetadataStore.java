@@ -43,7 +43,7 @@ public class InMemoryQueryMetadataStore
     @Override
     public void deleteMaterializedView(String project, String name)
     {
-        materializedViews.remove(getMaterializedView(project, name));
+        materializedViews.computeIfAbsent(project, (key) -> new HashSet<>()).remove(getMaterializedView(project, name));
     }
 
     @Override
@@ -0,0 +1,112 @@
+package org.rakam.analysis;
+
+import org.rakam.TestingConfigManager;
+import org.rakam.collection.FieldType;
+import org.rakam.config.ConfigManagerCacheConfig;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.rakam.analysis.InternalConfig.FIXED_SCHEMA;
+import static org.rakam.analysis.InternalConfig.USER_TYPE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestCachingConfigManager
+        extends TestConfigManager
+{
+    private CountingConfigManager backend;
+    private LocalConfigInvalidationChannel channel;
+    private CachingConfigManager configManager;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        backend = new CountingConfigManager();
+        channel = new LocalConfigInvalidationChannel();
+        configManager = new CachingConfigManager(backend, channel, new ConfigManagerCacheConfig());
+    }
+
+    @Override
+    public ConfigManager getConfigManager()
+    {
+        return configManager;
+    }
+
+    @Test
+    public void testNewFieldStorm()
+    {
+        int projects = 10;
+        int events = 10_000;
+
+        // the event deserializer checks FIXED_SCHEMA and sets USER_TYPE for each event that has new fields
+        for (int i = 0; i < events; i++) {
+            String project = "project" + (i % projects);
+            assertNull(configManager.getConfig(project, FIXED_SCHEMA.name(), Boolean.class));
+            assertEquals(configManager.setConfigOnce(project, USER_TYPE.name(), FieldType.STRING), FieldType.STRING);
+        }
+
+        assertEquals(backend.reads.get(), projects);
+        assertEquals(backend.writes.get(), projects);
+    }
+
+    @Test
+    public void testNegativeCache()
+    {
+        assertNull(configManager.getConfig("project", "missing", String.class));
+        assertNull(configManager.getConfig("project", "missing", String.class));
+        assertEquals(backend.reads.get(), 1);
+
+        configManager.setConfig("project", "missing", "value");
+        assertEquals(configManager.getConfig("project", "missing", String.class), "value");
+        assertEquals(backend.reads.get(), 1);
+    }
+
+    @Test
+    public void testInvalidationAcrossNodes()
+    {
+        CachingConfigManager otherNode = new CachingConfigManager(backend, channel, new ConfigManagerCacheConfig());
+
+        assertNull(otherNode.getConfig("project", FIXED_SCHEMA.name(), Boolean.class));
+        configManager.setConfig("project", FIXED_SCHEMA.name(), true);
+        assertEquals(otherNode.getConfig("project", FIXED_SCHEMA.name(), Boolean.class), Boolean.TRUE);
+
+        int reads = backend.reads.get();
+        assertEquals(configManager.getConfig("project", FIXED_SCHEMA.name(), Boolean.class), Boolean.TRUE);
+        assertEquals(backend.reads.get(), reads);
+
+        otherNode.clear();
+        assertNull(configManager.getConfig("project", FIXED_SCHEMA.name(), Boolean.class));
+        assertTrue(backend.reads.get() > reads);
+    }
+
+    private static class CountingConfigManager
+            extends TestingConfigManager
+    {
+        private final AtomicInteger reads = new AtomicInteger();
+        private final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public synchronized <T> T getConfig(String project, String configName, Class<T> clazz)
+        {
+            reads.incrementAndGet();
+            return super.getConfig(project, configName, clazz);
+        }
+
+        @Override
+        public synchronized <T> void setConfig(String project, String configName, T clazz)
+        {
+            writes.incrementAndGet();
+            super.setConfig(project, configName, clazz);
+        }
+
+        @Override
+        public synchronized <T> T setConfigOnce(String project, String configName, T clazz)
+        {
+            writes.incrementAndGet();
+            return super.setConfigOnce(project, configName, clazz);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.SystemEvents.MaterializedViewCreatedEvent;
+import org.rakam.plugin.SystemEvents.MaterializedViewDeletedEvent;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.rakam.report.eventexplorer.OLAPTableIndex;
+import org.rakam.report.eventexplorer.OLAPTableIndex.IndexedTable;
+import org.rakam.report.realtime.AggregationType;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY_OF_WEEK;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR_OF_DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.MONTH;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.QUARTER_OF_YEAR;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.WEEK;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.WEEK_OF_YEAR;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.YEAR;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.OLAP_TABLE_OPTION;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.canRollUp;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.canServe;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.isAligned;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestOLAPTableIndex
+{
+    private static final String PROJECT = "test";
+    // a full week that is also a full month
+    private static final Instant START = date(2010, 2, 1);
+    private static final Instant END = date(2010, 2, 28);
+
+    private InMemoryQueryMetadataStore metadataStore;
+    private EventBus eventBus;
+    private OLAPTableIndex index;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        metadataStore = new InMemoryQueryMetadataStore();
+        eventBus = new EventBus();
+        index = new OLAPTableIndex(metadataStore);
+        eventBus.register(index);
+    }
+
+    @Test
+    public void testDimensions()
+    {
+        createTable("dimensions", ImmutableSet.of("pageview"), ImmutableSet.of("url", "referrer", "country"), DAY);
+
+        assertFound("dimensions", ImmutableSet.of("pageview"), ImmutableSet.of("url", "country"), measure("amount", SUM), ImmutableSet.of());
+        assertFound("dimensions", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of("url", "browser"), measure("amount", SUM), ImmutableSet.of());
+    }
+
+    @Test
+    public void testCollections()
+    {
+        createTable("pageview", ImmutableSet.of("pageview", "click"), ImmutableSet.of("url"), DAY);
+
+        assertFound("pageview", ImmutableSet.of("click"), ImmutableSet.of("url"), measure("amount", SUM), ImmutableSet.of());
+        assertNotFound(ImmutableSet.of("click", "purchase"), ImmutableSet.of("url"), measure("amount", SUM), ImmutableSet.of());
+
+        createTable("all_collections", ImmutableSet.of(), ImmutableSet.of("url"), DAY);
+        assertFound("all_collections", ImmutableSet.of("click", "purchase"), ImmutableSet.of("url"), measure("amount", SUM), ImmutableSet.of());
+        // the table of the collection has the same dimensions but fewer rows
+        assertFound("pageview", ImmutableSet.of("click"), ImmutableSet.of("url"), measure("amount", SUM), ImmutableSet.of());
+    }
+
+    @Test
+    public void testMeasures()
+    {
+        createTable("measures", ImmutableSet.of("pageview"), ImmutableSet.of("url"), DAY);
+
+        assertFound("measures", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", COUNT), ImmutableSet.of());
+        // the average is derived from the sum and count columns
+        assertFound("measures", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", AVERAGE), ImmutableSet.of());
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", MAXIMUM), ImmutableSet.of());
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("price", SUM), ImmutableSet.of());
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure(null, COUNT), ImmutableSet.of());
+    }
+
+    @Test
+    public void testGranularity()
+    {
+        createTable("daily", ImmutableSet.of("pageview"), ImmutableSet.of("url"), DAY);
+
+        assertFound("daily", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(WEEK));
+        assertFound("daily", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(MONTH, DAY_OF_WEEK));
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(HOUR));
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(DAY, HOUR_OF_DAY));
+
+        createTable("monthly", ImmutableSet.of("pageview"), ImmutableSet.of("url"), MONTH);
+        // the coarser table is preferred when both of them can serve the query
+        assertFound("monthly", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(YEAR));
+        assertFound("daily", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(WEEK));
+    }
+
+    @Test
+    public void testAlignment()
+    {
+        createTable("weekly", ImmutableSet.of("pageview"), ImmutableSet.of("url"), WEEK);
+
+        assertFound("weekly", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of(WEEK));
+        Optional<IndexedTable> table = index.find(PROJECT, ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM),
+                ImmutableSet.of(WEEK), date(2010, 2, 2), END);
+        assertFalse(table.isPresent());
+    }
+
+    @Test
+    public void testRollupRules()
+    {
+        assertTrue(canRollUp(HOUR, YEAR));
+        assertTrue(canRollUp(DAY, WEEK));
+        assertTrue(canRollUp(DAY, MONTH));
+        assertTrue(canRollUp(MONTH, YEAR));
+        assertFalse(canRollUp(DAY, HOUR));
+        assertFalse(canRollUp(WEEK, MONTH));
+        assertFalse(canRollUp(WEEK, YEAR));
+        assertFalse(canRollUp(MONTH, WEEK));
+
+        assertTrue(canServe(HOUR, HOUR_OF_DAY));
+        assertTrue(canServe(DAY, WEEK_OF_YEAR));
+        assertTrue(canServe(MONTH, QUARTER_OF_YEAR));
+        assertFalse(canServe(DAY, HOUR_OF_DAY));
+        assertFalse(canServe(WEEK, DAY_OF_WEEK));
+        assertFalse(canServe(MONTH, WEEK_OF_YEAR));
+
+        assertTrue(isAligned(DAY, START, END));
+        assertTrue(isAligned(MONTH, date(2016, 1, 1), date(2016, 3, 31)));
+        assertFalse(isAligned(MONTH, date(2016, 1, 1), date(2016, 3, 30)));
+        assertTrue(isAligned(YEAR, date(2016, 1, 1), date(2016, 12, 31)));
+        assertFalse(isAligned(DAY, START.plusSeconds(3600), END));
+        assertTrue(isAligned(HOUR, START.plusSeconds(3600), END));
+    }
+
+    @Test
+    public void testEvents()
+    {
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+
+        // the index of the project is already loaded so it's updated from the events
+        createTable("created", ImmutableSet.of("pageview"), ImmutableSet.of("url"), DAY);
+        assertFound("created", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+
+        metadataStore.deleteMaterializedView(PROJECT, "created");
+        eventBus.post(new MaterializedViewDeletedEvent(PROJECT, "created"));
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+
+        // the metadata store is read again after the project is deleted
+        MaterializedView view = materializedView("reloaded", ImmutableSet.of("pageview"), ImmutableSet.of("url"), DAY);
+        metadataStore.createMaterializedView(PROJECT, view);
+        assertNotFound(ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+        eventBus.post(new ProjectDeletedEvent(PROJECT));
+        assertFound("reloaded", ImmutableSet.of("pageview"), ImmutableSet.of(), measure("amount", SUM), ImmutableSet.of());
+    }
+
+    private void createTable(String tableName, Set<String> collections, Set<String> dimensions, TimestampTransformation granularity)
+    {
+        MaterializedView view = materializedView(tableName, collections, dimensions, granularity);
+        metadataStore.createMaterializedView(PROJECT, view);
+        eventBus.post(new MaterializedViewCreatedEvent(PROJECT, view));
+    }
+
+    private static MaterializedView materializedView(String tableName, Set<String> collections, Set<String> dimensions, TimestampTransformation granularity)
+    {
+        OLAPTable table = new OLAPTable(collections, dimensions, ImmutableSet.of(SUM, COUNT), ImmutableSet.of("amount"), tableName, granularity);
+        return new MaterializedView(tableName, "Olap table", "select 1", Duration.ofHours(1), null, null, ImmutableMap.of(OLAP_TABLE_OPTION, table));
+    }
+
+    private void assertFound(String tableName, Set<String> collections, Set<String> dimensions, Measure measure, Set<TimestampTransformation> transformations)
+    {
+        Optional<IndexedTable> table = index.find(PROJECT, collections, dimensions, measure, transformations, START, END);
+        assertTrue(table.isPresent(), "no table for " + collections + " " + dimensions);
+        assertEquals(table.get().tableReference, "materialized.\"" + tableName + "\"");
+    }
+
+    private void assertNotFound(Set<String> collections, Set<String> dimensions, Measure measure, Set<TimestampTransformation> transformations)
+    {
+        Optional<IndexedTable> table = index.find(PROJECT, collections, dimensions, measure, transformations, START, END);
+        assertFalse(table.isPresent(), table.map(e -> e.tableReference).orElse(null));
+    }
+
+    private static Measure measure(String column, AggregationType aggregation)
+    {
+        return new Measure(column, aggregation);
+    }
+
+    private static Instant date(int year, int month, int day)
+    {
+        return LocalDate.of(year, month, day).atStartOfDay(UTC).toInstant();
+    }
+}
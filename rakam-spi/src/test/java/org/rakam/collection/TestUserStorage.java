@@ -2,9 +2,11 @@ package org.rakam.collection;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.plugin.user.AbstractUserService;
+import org.rakam.plugin.user.AbstractUserService.BatchUserOperationRequest.BatchUserOperations;
 import org.rakam.plugin.user.User;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -14,6 +16,8 @@ import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -337,6 +341,55 @@ public abstract class TestUserStorage
         assertEquals(userService.getUser(PROJECT_NAME, 8).join().properties.get("test").asDouble(), 20.0);
     }
 
+    @Test
+    public void testBatchMergedOperations()
+            throws Exception
+    {
+        AbstractUserService userService = getUserService();
+        userService.setUserProperties(PROJECT_NAME, 9, JsonHelper.jsonObject()
+                .put("created_at", 100)
+                .put("test", 1.0)
+                .put("test1", "value"));
+
+        userService.batch(PROJECT_NAME, ImmutableList.of(
+                new BatchUserOperations(9, JsonHelper.jsonObject().put("test2", "set"), null,
+                        ImmutableMap.of("test", 2.0), null, null),
+                new BatchUserOperations(9, null, JsonHelper.jsonObject().put("test1", "once").put("test3", "once"),
+                        ImmutableMap.of("test", 3.0), ImmutableList.of("test2"), null),
+                new BatchUserOperations(10, JsonHelper.jsonObject().put("test1", "new"), null,
+                        ImmutableMap.of("test", 5.0), null, null),
+                new BatchUserOperations(10, null, JsonHelper.jsonObject().put("test1", "once"), null, null, null)));
+
+        assertEquals((Object) userService.getUser(PROJECT_NAME, 9).join().properties, JsonHelper.jsonObject()
+                .put("created_at", Instant.ofEpochMilli(100).toString())
+                .put("test", 6.0)
+                .put("test1", "value")
+                .put("test3", "once"));
+
+        User test = userService.getUser(PROJECT_NAME, 10).join();
+        assertEquals(test.properties.get("test").asDouble(), 5.0);
+        assertEquals(test.properties.get("test1").asText(), "new");
+    }
+
+    @Test
+    public void testBatchManyUsers()
+            throws Exception
+    {
+        AbstractUserService userService = getUserService();
+
+        List<BatchUserOperations> operations = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            operations.add(new BatchUserOperations(100 + (i % 1000), JsonHelper.jsonObject().put("test", "value" + i), null,
+                    ImmutableMap.of("counter", 1.0), null, null));
+        }
+
+        userService.batch(PROJECT_NAME, operations);
+
+        User test = userService.getUser(PROJECT_NAME, 150).join();
+        assertEquals(test.properties.get("test").asText(), "value9050");
+        assertEquals(test.properties.get("counter").asDouble(), 10.0);
+    }
+
     public abstract AbstractUserService getUserService();
 
     public abstract ConfigManager getConfigManager();
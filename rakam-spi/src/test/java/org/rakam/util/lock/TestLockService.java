@@ -0,0 +1,208 @@
+package org.rakam.util.lock;
+
+import io.airlift.units.Duration;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public abstract class TestLockService
+{
+    private static final Duration LEASE = new Duration(2, SECONDS);
+
+    private final List<JDBCLockService> services = new ArrayList<>();
+
+    public abstract ConnectionFactory getConnectionFactory();
+
+    public abstract JDBCLockService createService(ConnectionFactory connectionFactory, Duration leaseDuration);
+
+    @AfterMethod
+    public void clean()
+            throws SQLException
+    {
+        services.forEach(JDBCLockService::close);
+        services.clear();
+        try (Connection connection = getConnectionFactory().openConnection()) {
+            connection.createStatement().execute("DELETE FROM lock_lease");
+        }
+    }
+
+    @Test
+    public void testLockAndRelease()
+    {
+        LockService first = createService(getConnectionFactory());
+        LockService second = createService(getConnectionFactory());
+
+        LockService.Lock lock = first.tryLock("test");
+        assertNotNull(lock);
+        assertTrue(lock.isValid());
+        assertNull(first.tryLock("test"));
+        assertNull(second.tryLock("test"));
+
+        lock.release();
+        assertFalse(lock.isValid());
+
+        LockService.Lock next = second.tryLock("test");
+        assertNotNull(next);
+        assertTrue(next.getToken() > lock.getToken());
+        next.release();
+    }
+
+    @Test
+    public void testLeaseIsRenewed()
+            throws InterruptedException
+    {
+        LockService first = createService(getConnectionFactory());
+        LockService second = createService(getConnectionFactory());
+
+        LockService.Lock lock = first.tryLock("test");
+        SECONDS.sleep(5);
+
+        assertTrue(lock.isValid());
+        assertNull(second.tryLock("test"));
+        lock.release();
+    }
+
+    @Test
+    public void testTemporaryConnectionLoss()
+            throws InterruptedException
+    {
+        FlakyConnectionFactory connectionFactory = new FlakyConnectionFactory();
+        LockService first = createService(connectionFactory);
+        LockService second = createService(getConnectionFactory());
+
+        LockService.Lock lock = first.tryLock("test");
+        connectionFactory.available = false;
+        Thread.sleep(500);
+        assertFalse(lock.isValid());
+        connectionFactory.available = true;
+
+        // the lease is renewed once the connection is back
+        SECONDS.sleep(3);
+        assertTrue(lock.isValid());
+        assertNull(second.tryLock("test"));
+        lock.release();
+    }
+
+    @Test
+    public void testLeaseExpiry()
+            throws InterruptedException
+    {
+        FlakyConnectionFactory connectionFactory = new FlakyConnectionFactory();
+        LockService first = createService(connectionFactory);
+        LockService second = createService(getConnectionFactory());
+
+        LockService.Lock lock = first.tryLock("test");
+        connectionFactory.available = false;
+        SECONDS.sleep(3);
+
+        LockService.Lock next = second.tryLock("test");
+        assertNotNull(next);
+        assertTrue(next.getToken() > lock.getToken());
+
+        // the previous holder can't commit its work or release the lock of the new holder after the connection is back
+        connectionFactory.available = true;
+        assertFalse(lock.isValid());
+        lock.release();
+        assertTrue(next.isValid());
+        assertNull(first.tryLock("test"));
+        next.release();
+    }
+
+    @Test
+    public void testContention()
+            throws Exception
+    {
+        List<LockService> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(createService(getConnectionFactory()));
+        }
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        ConcurrentLinkedQueue<Long> tokens = new ConcurrentLinkedQueue<>();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            LockService service = nodes.get(i % nodes.size());
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int attempt = 0; attempt < 50; attempt++) {
+                    LockService.Lock lock = service.tryLock("test");
+                    if (lock == null) {
+                        continue;
+                    }
+                    try {
+                        maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                        tokens.add(lock.getToken());
+                        Thread.sleep(1);
+                    }
+                    finally {
+                        holders.decrementAndGet();
+                        lock.release();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(maxHolders.get(), 1);
+        assertFalse(tokens.isEmpty());
+
+        // the holders are serialized so the tokens are given in increasing order
+        long previous = 0;
+        for (Long token : tokens) {
+            assertTrue(token > previous);
+            previous = token;
+        }
+    }
+
+    private JDBCLockService createService(ConnectionFactory connectionFactory)
+    {
+        JDBCLockService service = createService(connectionFactory, LEASE);
+        services.add(service);
+        return service;
+    }
+
+    private class FlakyConnectionFactory
+            implements ConnectionFactory
+    {
+        private volatile boolean available = true;
+
+        @Override
+        public Connection openConnection()
+                throws SQLException
+        {
+            if (!available) {
+                throw new SQLException("Connection refused");
+            }
+            return getConnectionFactory().openConnection();
+        }
+    }
+}
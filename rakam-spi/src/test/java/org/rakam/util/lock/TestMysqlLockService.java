@@ -0,0 +1,47 @@
+package org.rakam.util.lock;
+
+import io.airlift.testing.mysql.TestingMySqlServer;
+import io.airlift.units.Duration;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+public class TestMysqlLockService
+        extends TestLockService
+{
+    private TestingMySqlServer server;
+
+    @BeforeClass
+    public void setup()
+            throws Exception
+    {
+        server = new TestingMySqlServer("testuser", "testpass", "locks");
+    }
+
+    @AfterClass
+    public void destroy()
+            throws IOException
+    {
+        server.close();
+    }
+
+    @Override
+    public ConnectionFactory getConnectionFactory()
+    {
+        return () -> {
+            Connection connection = DriverManager.getConnection(server.getJdbcUrl());
+            connection.setCatalog("locks");
+            return connection;
+        };
+    }
+
+    @Override
+    public JDBCLockService createService(ConnectionFactory connectionFactory, Duration leaseDuration)
+    {
+        return new MysqlLockService(connectionFactory, leaseDuration);
+    }
+}
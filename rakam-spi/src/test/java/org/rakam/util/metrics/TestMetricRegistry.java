@@ -0,0 +1,172 @@
+package org.rakam.util.metrics;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.testng.annotations.Test;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestMetricRegistry
+{
+    @Test
+    public void testCounterFamily()
+    {
+        MetricRegistry registry = new MetricRegistry();
+        MetricFamily<Counter> events = registry.counter("events_total", "Events", "project");
+
+        events.get("a").add(3);
+        events.get("a").increment();
+        events.get("b").increment();
+
+        assertSame(events, registry.counter("events_total", "Events", "project"));
+        assertEquals(events.get("a").getCount(), 4);
+        assertEquals(events.get("b").getCount(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTypeConflict()
+    {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("metric", "Metric");
+        registry.histogram("metric", "Metric", Histogram.SIZE_BUCKETS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidName()
+    {
+        new MetricRegistry().counter("invalid-name", "Metric");
+    }
+
+    @Test
+    public void testHistogramBuckets()
+    {
+        Histogram histogram = new Histogram(new double[] {1, 10, 100});
+        for (double value : new double[] {0, 1, 5, 10, 11, 100, 1000}) {
+            histogram.add(value);
+        }
+
+        assertEquals(histogram.getCumulativeCounts(), new long[] {2, 4, 6, 7});
+        assertEquals(histogram.getCount(), 7);
+        assertEquals(histogram.getSum(), 1127.0);
+    }
+
+    @Test
+    public void testConcurrentUpdates()
+            throws InterruptedException
+    {
+        MetricRegistry registry = new MetricRegistry();
+        MetricFamily<Counter> counter = registry.counter("events_total", "Events", "project");
+        MetricFamily<Histogram> histogram = registry.histogram("latency_seconds", "Latency", "project", Histogram.LATENCY_BUCKETS);
+
+        int threads = 8;
+        int iterations = 100_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < threads; i++) {
+            String project = "project" + (i % 2);
+            executor.execute(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int j = 0; j < iterations; j++) {
+                    counter.get(project).increment();
+                    histogram.get(project).add(.01);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        long total = counter.getMetrics().values().stream().mapToLong(Counter::getCount).sum();
+        assertEquals(total, threads * iterations);
+        assertEquals(histogram.get("project0").getCount(), threads / 2 * iterations);
+        assertEquals(histogram.get("project1").getCount(), threads / 2 * iterations);
+    }
+
+    @Test
+    public void testPrometheusFormat()
+    {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("rakam_events_total", "Number of the events", "project").get("my\"project").add(5);
+        registry.histogram("rakam_flush_seconds", "Flush time", new double[] {.5, 1}).add(.75);
+        registry.gauge("rakam_queue_size", "Queue size", () -> 3);
+        registry.counter("rakam_unused_total", "Not updated", "project");
+
+        assertEquals(PrometheusTextFormat.format(registry), "" +
+                "# HELP rakam_events_total Number of the events\n" +
+                "# TYPE rakam_events_total counter\n" +
+                "rakam_events_total{project=\"my\\\"project\"} 5\n" +
+                "# HELP rakam_flush_seconds Flush time\n" +
+                "# TYPE rakam_flush_seconds histogram\n" +
+                "rakam_flush_seconds_bucket{le=\"0.5\"} 0\n" +
+                "rakam_flush_seconds_bucket{le=\"1\"} 1\n" +
+                "rakam_flush_seconds_bucket{le=\"+Inf\"} 1\n" +
+                "rakam_flush_seconds_sum 0.75\n" +
+                "rakam_flush_seconds_count 1\n" +
+                "# HELP rakam_queue_size Queue size\n" +
+                "# TYPE rakam_queue_size gauge\n" +
+                "rakam_queue_size 3\n");
+    }
+
+    @Test
+    public void testCacheStats()
+    {
+        MetricRegistry registry = new MetricRegistry();
+        Cache<String, String> cache = CacheBuilder.newBuilder().recordStats().build();
+        registry.cache("test", cache);
+
+        cache.put("key", "value");
+        cache.getIfPresent("key");
+        cache.getIfPresent("missing");
+
+        String output = PrometheusTextFormat.format(registry);
+        assertTrue(output.contains("rakam_cache_hit_ratio{cache=\"test\"} 0.5\n"), output);
+        assertTrue(output.contains("rakam_cache_requests{cache=\"test\"} 2\n"), output);
+        assertTrue(output.contains("rakam_cache_size{cache=\"test\"} 1\n"), output);
+    }
+
+    @Test
+    public void testJmxAttributes()
+            throws AttributeNotFoundException
+    {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("events_total", "Events", "project").get("a").add(2);
+        registry.histogram("latency_seconds", "Latency", Histogram.LATENCY_BUCKETS).add(.5);
+        registry.gauge("queue_size", "Queue size", () -> 7);
+
+        JmxMetricsExporter exporter = new JmxMetricsExporter(registry);
+        assertEquals(exporter.getAttribute("events_total.a"), 2L);
+        assertEquals(exporter.getAttribute("latency_seconds.count"), 1L);
+        assertEquals(exporter.getAttribute("latency_seconds.sum"), .5);
+        assertEquals(exporter.getAttribute("queue_size"), 7.0);
+
+        String[] names = Arrays.stream(exporter.getMBeanInfo().getAttributes())
+                .map(MBeanAttributeInfo::getName)
+                .sorted()
+                .toArray(String[]::new);
+        assertEquals(names, new String[] {"events_total.a", "latency_seconds.count", "latency_seconds.sum", "queue_size"});
+    }
+
+    @Test(expectedExceptions = AttributeNotFoundException.class)
+    public void testJmxMissingAttribute()
+            throws AttributeNotFoundException
+    {
+        new JmxMetricsExporter(new MetricRegistry()).getAttribute("missing");
+    }
+}
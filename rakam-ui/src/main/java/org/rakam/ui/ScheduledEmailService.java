@@ -305,9 +305,19 @@ public class ScheduledEmailService
     private void updateTask(int id, LockService.Lock lock, long now, Throwable ex)
     {
         if (ex == null) {
-            try (Handle handle = dbi.open()) {
-                handle.createStatement("UPDATE scheduled_email SET last_executed_at = now() at time zone 'utc' WHERE id = :id")
-                        .bind("id", id).execute();
+            try {
+                // the lock may be lost while the email is sent, the tokens of the lock increase
+                // so the execution of an older holder can't overwrite the newer one
+                int updated;
+                try (Handle handle = dbi.open()) {
+                    updated = handle.createStatement("UPDATE scheduled_email SET last_executed_at = now() at time zone 'utc', last_token = :token " +
+                            "WHERE id = :id AND (last_token IS NULL OR last_token < :token)")
+                            .bind("id", id)
+                            .bind("token", lock.getToken()).execute();
+                }
+                if (updated == 0) {
+                    LOGGER.warn("The lock of scheduled email %d is lost while sending with token %d", id, lock.getToken());
+                }
             }
             finally {
                 lock.release();
@@ -0,0 +1 @@
+ALTER TABLE "scheduled_email" ADD COLUMN "last_token" BIGINT;
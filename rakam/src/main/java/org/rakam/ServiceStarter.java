@@ -61,6 +61,8 @@ import org.rakam.server.http.HttpRequestHandler;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
 import org.rakam.util.NotFoundHandler;
+import org.rakam.util.metrics.JmxMetricsExporter;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.inject.Inject;
 
@@ -124,6 +126,8 @@ public final class ServiceStarter
                 Key.get(new TypeLiteral<Set<InjectionHook>>() {}));
         hooks.forEach(InjectionHook::call);
 
+        JmxMetricsExporter.register(injector.getInstance(MetricRegistry.class));
+
         HttpServerConfig httpConfig = injector.getInstance(HttpServerConfig.class);
 
         if (!httpConfig.getDisabled()) {
@@ -180,6 +184,7 @@ public final class ServiceStarter
         protected void setup(Binder binder)
         {
             binder.bind(Clock.class).toInstance(Clock.systemUTC());
+            binder.bind(MetricRegistry.class).in(Scopes.SINGLETON);
 //            binder.bind(FlywayExecutor.class).asEagerSingleton();
 
             binder.bind(FieldDependency.class).toProvider(FieldDependencyProvider.class).in(Scopes.SINGLETON);
@@ -1,6 +1,9 @@
 package org.rakam.analysis;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
 import org.rakam.Mapper;
 import org.rakam.bootstrap.SystemRegistry;
 import org.rakam.bootstrap.SystemRegistry.ModuleDescriptor;
@@ -9,7 +12,9 @@ import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.EventMapper;
+import org.rakam.server.http.HttpServer;
 import org.rakam.server.http.HttpService;
+import org.rakam.server.http.RakamHttpRequest;
 import org.rakam.server.http.annotations.Api;
 import org.rakam.server.http.annotations.ApiOperation;
 import org.rakam.server.http.annotations.ApiParam;
@@ -18,6 +23,8 @@ import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
 import org.rakam.ui.ActiveModuleListBuilder;
 import org.rakam.ui.ActiveModuleListBuilder.ActiveModuleList;
+import org.rakam.util.metrics.MetricRegistry;
+import org.rakam.util.metrics.PrometheusTextFormat;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
@@ -30,6 +37,12 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static com.google.common.base.Charsets.UTF_8;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
 @Path("/admin")
 @Api(value = "/admin", nickname = "admin", description = "System operations", tags = "admin")
 public class AdminHttpService
@@ -39,13 +52,15 @@ public class AdminHttpService
     private final ActiveModuleList activeModules;
     private final ProjectConfig projectConfig;
     private final Set<EventMapper> eventMappers;
+    private final MetricRegistry metricRegistry;
 
     @Inject
-    public AdminHttpService(SystemRegistry systemRegistry, Set<EventMapper> eventMappers, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder)
+    public AdminHttpService(SystemRegistry systemRegistry, Set<EventMapper> eventMappers, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder, MetricRegistry metricRegistry)
     {
         this.systemRegistry = systemRegistry;
         this.projectConfig = projectConfig;
         this.eventMappers = eventMappers;
+        this.metricRegistry = metricRegistry;
         activeModules = activeModuleListBuilder.build();
     }
 
@@ -129,6 +144,27 @@ public class AdminHttpService
         return Objects.equals(lockKey, projectConfig.getLockKey());
     }
 
+    @GET
+    @IgnoreApi
+    @Path("/metrics")
+    public void metrics(RakamHttpRequest request)
+    {
+        if (projectConfig.getLockKey() != null) {
+            List<String> lockKey = request.params().get("lock_key");
+            String value = lockKey != null && !lockKey.isEmpty() ? lockKey.get(0) : request.headers().get("lock_key");
+            if (!Objects.equals(projectConfig.getLockKey(), value)) {
+                HttpServer.returnError(request, "Lock key is invalid", FORBIDDEN);
+                return;
+            }
+        }
+
+        byte[] body = PrometheusTextFormat.format(metricRegistry).getBytes(UTF_8);
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(body));
+        response.headers().set(CONTENT_TYPE, PrometheusTextFormat.CONTENT_TYPE);
+        HttpHeaders.setContentLength(response, body.length);
+        request.response(response).end();
+    }
+
     @Path("/modules")
     @GET
     @IgnoreApi
@@ -5,6 +5,7 @@ import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import io.airlift.configuration.Config;
+import org.rakam.analysis.datasource.CustomDataSourceConfig;
 import org.rakam.analysis.datasource.CustomDataSourceHttpService;
 import org.rakam.plugin.RakamModule;
 import org.rakam.analysis.datasource.CustomDataSourceService;
@@ -12,6 +13,8 @@ import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
+
 @AutoService(RakamModule.class)
 @ConditionalModule(config="custom-data-source.enabled", value = "true")
 public class CustomDataSourceModule extends RakamModule
@@ -19,6 +22,10 @@ public class CustomDataSourceModule extends RakamModule
     @Override
     protected void setup(Binder binder)
     {
+        configBinder(binder).bindConfig(CustomDataSourceConfig.class);
+        // the connection pools and the metadata cache of the data sources are shared
+        binder.bind(CustomDataSourceService.class).in(Scopes.SINGLETON);
+
         Multibinder<HttpService> httpServiceMultibinder = Multibinder.newSetBinder(binder, HttpService.class);
         httpServiceMultibinder.addBinding().to(CustomDataSourceHttpService.class).in(Scopes.SINGLETON);
     }
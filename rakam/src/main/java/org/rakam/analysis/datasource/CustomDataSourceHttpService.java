@@ -77,10 +77,13 @@ public class CustomDataSourceHttpService
         return customDataSourceList;
     }
 
-    @ApiOperation(value = "Schema of data-sources", authorizations = @Authorization(value = "read_key"))
+    @ApiOperation(value = "Schema of data-sources", authorizations = @Authorization(value = "read_key"),
+            notes = "Returns the tables of the data sources in 'schemas' and the error messages of the data sources " +
+                    "that can't be reached in 'errors'. The clients that read the schemas from the root of the " +
+                    "response must read them from 'schemas'.")
     @Path("/schema")
     @GET
-    public Map<String, Map<String, List<SchemaField>>> schemaDatabases(@Named("project") String project)
+    public CustomDataSourceService.CustomDataSourceSchemas schemaDatabases(@Named("project") String project)
     {
         return service.schemaDatabases(project);
     }
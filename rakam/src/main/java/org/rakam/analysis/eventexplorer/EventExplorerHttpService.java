@@ -18,6 +18,7 @@ import com.google.common.collect.ImmutableMap;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorer.OLAPTable;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.config.ProjectConfig;
@@ -52,6 +53,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
+import static org.rakam.report.eventexplorer.OLAPTableIndex.OLAP_TABLE_OPTION;
 import static org.rakam.report.realtime.AggregationType.COUNT;
 import static org.rakam.report.realtime.AggregationType.SUM;
 import static org.rakam.util.ValidationUtil.checkArgument;
@@ -140,6 +142,7 @@ public class EventExplorerHttpService
     }
 
     @ApiOperation(value = "Create Pre-computed table",
+            notes = "The table is used by the event explorer queries of the other nodes in up to five minutes.",
             authorizations = @Authorization(value = "master_key")
     )
     @JsonRequest
@@ -177,21 +180,33 @@ public class EventExplorerHttpService
         }
 
         String query = format("SELECT _collection, _time %s %s FROM " +
-                        "(SELECT _collection, CAST(%s AS DATE) as _time %s %s FROM (%s) data) data " +
+                        "(SELECT _collection, %s as _time %s %s FROM (%s) data) data " +
                         "GROUP BY CUBE (_collection, _time %s) ORDER BY 1 ASC",
                 dimension,
                 ", " + metrics,
-                checkTableColumn(projectConfig.getTimeColumn()),
+                truncateTime(checkTableColumn(projectConfig.getTimeColumn()), table.granularity),
                 dimension,
                 measures,
                 subQuery,
                 dimensions.isEmpty() ? "" : "," + dimensions);
 
         return materializedViewService.create(project, new MaterializedView(table.tableName, "Olap table", query,
-                Duration.ofHours(1), null, null, ImmutableMap.of("olap_table", table)))
+                Duration.ofHours(1), null, null, ImmutableMap.of(OLAP_TABLE_OPTION, table)))
                 .thenApply(v -> new PrecalculatedTable(name, table.tableName));
     }
 
+    private static String truncateTime(String column, TimestampTransformation granularity)
+    {
+        switch (granularity) {
+            case HOUR:
+                return format("date_trunc('hour', %s)", column);
+            case DAY:
+                return format("CAST(%s AS DATE)", column);
+            default:
+                return format("CAST(date_trunc('%s', %s) AS DATE)", granularity.name().toLowerCase(), column);
+        }
+    }
+
     private Optional<String> getAggregationColumn(AggregationType agg, Set<AggregationType> aggregations)
     {
         switch (agg) {
@@ -85,7 +85,7 @@ public class FunnelAnalyzerHttpService
                 query.endDate,
                 Optional.ofNullable(query.window),
                 query.timezone,
-                Optional.ofNullable(query.connectors), Optional.ofNullable(query.strictOrdering)), (query, result) -> LOGGER.error(new RuntimeException(JsonHelper.encode(query) + " : " + result.getError().toString()), "Error running funnel query"));
+                Optional.ofNullable(query.connectors), Optional.ofNullable(query.strictOrdering), query.consecutive), (query, result) -> LOGGER.error(new RuntimeException(JsonHelper.encode(query) + " : " + result.getError().toString()), "Error running funnel query"));
     }
 
     @ApiOperation(value = "Execute query",
@@ -105,7 +105,8 @@ public class FunnelAnalyzerHttpService
                 Optional.ofNullable(query.window),
                 query.timezone,
                 Optional.ofNullable(query.connectors),
-                Optional.ofNullable(query.strictOrdering)).getResult();
+                Optional.ofNullable(query.strictOrdering),
+                query.consecutive).getResult();
         result.thenAccept(data -> {
             if (data.isFailed()) {
                 LOGGER.error(new RuntimeException(JsonHelper.encode(query) + " : " + data.getError().toString()),
@@ -124,6 +125,7 @@ public class FunnelAnalyzerHttpService
         public final LocalDate endDate;
         public final ZoneId timezone;
         public final Boolean strictOrdering;
+        public final boolean consecutive;
         public final List<String> connectors;
 
         @JsonCreator
@@ -134,6 +136,7 @@ public class FunnelAnalyzerHttpService
                 @ApiParam("endDate") LocalDate endDate,
                 @ApiParam(value = "connectors", required = false) List<String> connectors,
                 @ApiParam(value = "strictOrdering", required = false) Boolean strictOrdering,
+                @ApiParam(value = "consecutive", required = false) Boolean consecutive,
                 @ApiParam(value = "timezone", required = false) String timezone)
         {
             this.steps = checkNotNull(steps, "steps field is required");
@@ -141,6 +144,7 @@ public class FunnelAnalyzerHttpService
             this.startDate = startDate;
             this.endDate = endDate;
             this.strictOrdering = strictOrdering;
+            this.consecutive = Boolean.TRUE.equals(consecutive);
             this.connectors = connectors;
             this.window = window;
             try {
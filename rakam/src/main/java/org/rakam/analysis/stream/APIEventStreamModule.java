@@ -31,8 +31,9 @@ public class APIEventStreamModule
     @Override
     protected void setup(Binder binder)
     {
+        Map<String, List<CollectionStreamHolder>> holders = new ConcurrentHashMap<>();
         binder.bind(new TypeLiteral<Map<String, List<CollectionStreamHolder>>>() {})
-                .toInstance(new ConcurrentHashMap<>());
+                .toInstance(holders);
         binder.bind(EventStream.class).to(APIEventStream.class);
         Multibinder<EventMapper> mapperMultibinder = Multibinder.newSetBinder(binder, EventMapper.class);
         mapperMultibinder.addBinding().to(EventListenerMapper.class);
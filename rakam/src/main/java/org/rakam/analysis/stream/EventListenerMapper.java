@@ -7,6 +7,9 @@ import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
 import org.rakam.collection.Event;
 import org.rakam.plugin.SyncEventMapper;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.inject.Inject;
 
@@ -19,11 +22,17 @@ public class EventListenerMapper
         implements SyncEventMapper
 {
     Map<String, List<CollectionStreamHolder>> lists;
+    private final MetricFamily<Counter> droppedEvents;
 
     @Inject
-    public EventListenerMapper(Map<String, List<CollectionStreamHolder>> lists)
+    public EventListenerMapper(Map<String, List<CollectionStreamHolder>> lists, MetricRegistry registry)
     {
         this.lists = lists;
+        this.droppedEvents = registry.counter("rakam_event_stream_dropped_events_total",
+                "Number of the events that are not sent to a subscriber because its queue is full", "project");
+        registry.gauge("rakam_event_stream_queued_events",
+                "Number of the events that wait to be sent to the event stream subscribers",
+                () -> lists.values().stream().flatMap(List::stream).mapToInt(holder -> holder.messageQueue.size()).sum());
     }
 
     @Override
@@ -55,7 +64,9 @@ public class EventListenerMapper
                     }
                 }
 
-                holderItem.messageQueue.offer(event);
+                if (!holderItem.messageQueue.offer(event)) {
+                    droppedEvents.get(event.project()).increment();
+                }
                 break;
             }
         }
@@ -47,6 +47,7 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamException;
 import org.rakam.util.SuccessMessage;
+import org.rakam.util.metrics.MetricRegistry;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
@@ -121,6 +122,7 @@ public class EventCollectionHttpService
     private final ApiKeyService apiKeyService;
     private final AvroEventDeserializer avroEventDeserializer;
     private final JsonEventDeserializer jsonEventDeserializer;
+    private final EventCollectionMetrics metrics;
 
     @Inject
     public EventCollectionHttpService(
@@ -130,9 +132,11 @@ public class EventCollectionHttpService
             AvroEventDeserializer avroEventDeserializer,
             EventListDeserializer eventListDeserializer,
             CsvEventDeserializer csvEventDeserializer,
-            Set<EventMapper> mappers)
+            Set<EventMapper> mappers,
+            MetricRegistry registry)
     {
         this.eventStore = eventStore;
+        this.metrics = new EventCollectionMetrics(registry);
         this.eventMappers = ImmutableList.copyOf(mappers);
         this.apiKeyService = apiKeyService;
 
@@ -223,11 +227,15 @@ public class EventCollectionHttpService
             CompletableFuture<List<Cookie>> cookiesFuture;
 
             try {
+                long startTime = System.nanoTime();
                 Event event = jsonMapper.readValue(buff, Event.class);
+                metrics.deserialized(event.project(), 1, startTime);
 
+                long mappingStartTime = System.nanoTime();
                 cookiesFuture = mapEvent(eventMappers, (mapper) -> mapper.mapAsync(event, new HttpRequestParams(request),
                         getRemoteAddress(socketAddress), response.trailingHeaders()));
-                cookiesFuture.thenAccept(v -> eventStore.store(event));
+                metrics.mapped(event.project(), cookiesFuture, mappingStartTime);
+                cookiesFuture.thenAccept(v -> store(event));
             }
             catch (JsonMappingException e) {
                 String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
@@ -326,11 +334,15 @@ public class EventCollectionHttpService
         CompletableFuture<List<Cookie>> cookiesFuture = null;
 
         try {
+            long startTime = System.nanoTime();
             Event event = jsonMapper.convertValue(objectNode, Event.class);
+            metrics.deserialized(event.project(), 1, startTime);
 
+            long mappingStartTime = System.nanoTime();
             cookiesFuture = mapEvent(eventMappers, (mapper) -> mapper.mapAsync(event, new HttpRequestParams(request),
                     getRemoteAddress(socketAddress), response.trailingHeaders()));
-            cookiesFuture.thenAccept(v -> eventStore.store(event));
+            metrics.mapped(event.project(), cookiesFuture, mappingStartTime);
+            cookiesFuture.thenAccept(v -> store(event));
         }
         catch (RakamException e) {
             response.headers().add("server-error", e.getMessage());
@@ -363,6 +375,19 @@ public class EventCollectionHttpService
         request.response(gif1x1).end();
     }
 
+    private void store(Event event)
+    {
+        long startTime = System.nanoTime();
+        try {
+            eventStore.store(event);
+        }
+        catch (RuntimeException e) {
+            metrics.failed(event.project());
+            throw e;
+        }
+        metrics.stored(event.project(), startTime);
+    }
+
     public static InetAddress getRemoteAddress(String socketAddress)
     {
         try {
@@ -613,6 +638,10 @@ public class EventCollectionHttpService
                                 errorIndexes = eventStore.storeBatchAsync(events);
                             }
                         }
+                        catch (RakamException e) {
+                            // the event store rejects the batch, i.e. it applies backpressure
+                            throw e;
+                        }
                         catch (Exception e) {
                             List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
                             LOGGER.error(new RuntimeException(sample.toString(), e), "Error executing EventStore " + (single ? "store" : "batch") + " method.");
@@ -657,19 +686,25 @@ public class EventCollectionHttpService
             CompletableFuture<FullHttpResponse> response;
             CompletableFuture<List<Cookie>> entries;
             try {
+                long startTime = System.nanoTime();
                 EventList events = mapper.apply(buff);
+                metrics.deserialized(events.project, events.events.size(), startTime);
 
                 InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
 
                 if (mapEvents) {
+                    long mappingStartTime = System.nanoTime();
                     entries = mapEvent(eventMappers, (m) -> m.mapAsync(events, new HttpRequestParams(request),
                             remoteAddress, responseHeaders));
+                    metrics.mapped(events.project, entries, mappingStartTime);
                 }
                 else {
                     entries = EventMapper.COMPLETED_EMPTY_FUTURE;
                 }
 
+                long storeStartTime = System.nanoTime();
                 response = responseFunction.apply(events.events, responseHeaders);
+                metrics.stored(events.project, response, storeStartTime);
             }
             catch (JsonMappingException | JsonParseException e) {
                 returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
@@ -0,0 +1,78 @@
+package org.rakam.collection;
+
+import io.netty.handler.codec.http.HttpResponse;
+import org.rakam.util.metrics.Counter;
+import org.rakam.util.metrics.Histogram;
+import org.rakam.util.metrics.MetricFamily;
+import org.rakam.util.metrics.MetricRegistry;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.rakam.util.metrics.Histogram.LATENCY_BUCKETS;
+import static org.rakam.util.metrics.Histogram.SIZE_BUCKETS;
+
+/**
+ * The metrics of the event collection endpoints per project. The start times are taken with {@link System#nanoTime()}.
+ */
+public class EventCollectionMetrics
+{
+    private final MetricFamily<Counter> events;
+    private final MetricFamily<Counter> failedRequests;
+    private final MetricFamily<Histogram> batchSize;
+    private final MetricFamily<Histogram> deserialization;
+    private final MetricFamily<Histogram> mapping;
+    private final MetricFamily<Histogram> store;
+
+    public EventCollectionMetrics(MetricRegistry registry)
+    {
+        events = registry.counter("rakam_collected_events_total",
+                "Number of the events that are collected", "project");
+        failedRequests = registry.counter("rakam_event_store_failures_total",
+                "Number of the requests that the event store couldn't store", "project");
+        batchSize = registry.histogram("rakam_collected_batch_events",
+                "Number of the events in a collection request", "project", SIZE_BUCKETS);
+        deserialization = registry.histogram("rakam_event_deserialization_seconds",
+                "Time spent for deserializing the events of a request", "project", LATENCY_BUCKETS);
+        mapping = registry.histogram("rakam_event_mapping_seconds",
+                "Time spent in the event mappers for the events of a request", "project", LATENCY_BUCKETS);
+        store = registry.histogram("rakam_event_store_seconds",
+                "Time spent for storing the events of a request", "project", LATENCY_BUCKETS);
+    }
+
+    public void deserialized(String project, int count, long startNanos)
+    {
+        deserialization.get(project).addElapsed(startNanos);
+        events.get(project).add(count);
+        batchSize.get(project).add(count);
+    }
+
+    public void mapped(String project, CompletableFuture<?> future, long startNanos)
+    {
+        if (future.isDone()) {
+            mapping.get(project).addElapsed(startNanos);
+        }
+        else {
+            future.whenComplete((result, ex) -> mapping.get(project).addElapsed(startNanos));
+        }
+    }
+
+    public void stored(String project, long startNanos)
+    {
+        store.get(project).addElapsed(startNanos);
+    }
+
+    public void stored(String project, CompletableFuture<? extends HttpResponse> response, long startNanos)
+    {
+        response.whenComplete((result, ex) -> {
+            store.get(project).addElapsed(startNanos);
+            if (ex != null || result.getStatus().code() >= 500) {
+                failedRequests.get(project).increment();
+            }
+        });
+    }
+
+    public void failed(String project)
+    {
+        failedRequests.get(project).increment();
+    }
+}
@@ -19,9 +19,11 @@ import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.util.CharsetUtil;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
@@ -45,6 +47,7 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamException;
 import org.rakam.util.SuccessMessage;
+import org.rakam.util.metrics.MetricRegistry;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.StatementContext;
@@ -109,7 +112,8 @@ public class WebHookHttpService
             ApiKeyService apiKeyService,
             JSCodeCompiler jsCodeCompiler,
             JSCodeLoggerService loggerService,
-            EventStore eventStore)
+            EventStore eventStore,
+            MetricRegistry registry)
     {
         this.apiKeyService = apiKeyService;
         this.jsCodeCompiler = jsCodeCompiler;
@@ -144,6 +148,8 @@ public class WebHookHttpService
         });
         this.dbi = new DBI(dataSource);
         this.eventStore = eventStore;
+        registry.gauge("rakam_webhook_pending_tasks",
+                "Number of the webhook requests that wait for a script executor", this::getPendingTasks);
         jsonMapper = new ObjectMapper();
         SimpleModule module = new SimpleModule();
         module.addDeserializer(Event.class, deserializer);
@@ -158,6 +164,17 @@ public class WebHookHttpService
         });
     }
 
+    private int getPendingTasks()
+    {
+        int pendingTasks = 0;
+        for (EventExecutor eventExecutor : executor) {
+            if (eventExecutor instanceof SingleThreadEventExecutor) {
+                pendingTasks += ((SingleThreadEventExecutor) eventExecutor).pendingTasks();
+            }
+        }
+        return pendingTasks;
+    }
+
     @PostConstruct
     public void setup()
     {
@@ -149,6 +149,12 @@ public class ScheduledTaskHttpService
                     "  schedule_interval INT" +
                     "  )")
                     .execute();
+            try {
+                handle.createStatement("ALTER TABLE custom_scheduled_tasks ADD COLUMN last_token BIGINT").execute();
+            }
+            catch (Exception e) {
+                // ignore
+            }
         }
 
         scheduler.scheduleAtFixedRate(() -> {
@@ -335,10 +341,20 @@ public class ScheduledTaskHttpService
     private void updateTask(String project, int id, LockService.Lock lock, ILogger logger, long now, Throwable ex)
     {
         if (ex == null) {
-            try (Handle handle = dbi.open()) {
-                handle.createStatement(format("UPDATE custom_scheduled_tasks SET last_executed_at = %s WHERE project = :project AND id = :id", timestampToEpoch))
-                        .bind("project", project)
-                        .bind("id", id).execute();
+            try {
+                // another node may have taken over the task if the lease of the lock is expired while the task was running,
+                // the tokens of the lock increase so the execution of an older holder can't overwrite the newer one
+                int updated;
+                try (Handle handle = dbi.open()) {
+                    updated = handle.createStatement(format("UPDATE custom_scheduled_tasks SET last_executed_at = %s, last_token = :token " +
+                            "WHERE project = :project AND id = :id AND (last_token IS NULL OR last_token < :token)", timestampToEpoch))
+                            .bind("project", project)
+                            .bind("id", id)
+                            .bind("token", lock.getToken()).execute();
+                }
+                if (updated == 0) {
+                    logger.warn(format("The lock of the task is lost while running with token %d, the execution is not recorded", lock.getToken()));
+                }
             }
             finally {
                 lock.release();